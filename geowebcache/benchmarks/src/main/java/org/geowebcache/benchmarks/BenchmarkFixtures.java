@@ -0,0 +1,105 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.storage.TileObject;
+
+/**
+ * In memory fixtures shared by the benchmarks. Everything is generated from a fixed seed so that
+ * two runs (or two revisions) work on exactly the same data.
+ */
+class BenchmarkFixtures {
+
+    static final long SEED = 0x6743L;
+
+    static final String LAYER_NAME = "topp:states";
+
+    static final String GRIDSET_ID = "EPSG:4326";
+
+    static final String FORMAT = "image/png";
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * @return the default world wide EPSG:4326 grid subset
+     */
+    static GridSubset worldGridSubset() {
+        GridSetBroker broker = new GridSetBroker(false, false);
+        return GridSubsetFactory.createGridSubSet(broker.WORLD_EPSG4326);
+    }
+
+    /**
+     * Builds {@code count} complete tile objects spread over zoom levels 0 to {@code maxZoom}, each
+     * carrying {@code blobSize} random bytes. Half of the tiles get a STYLES parameter.
+     */
+    static TileObject[] tiles(int count, int maxZoom, int blobSize) {
+        Random random = new Random(SEED);
+        GridSubset subset = worldGridSubset();
+        TileObject[] tiles = new TileObject[count];
+        for (int i = 0; i < count; i++) {
+            int z = random.nextInt(maxZoom + 1);
+            long[] coverage = subset.getCoverage(z);
+            long x = coverage[0] + (long) (random.nextDouble() * (coverage[2] - coverage[0] + 1));
+            long y = coverage[1] + (long) (random.nextDouble() * (coverage[3] - coverage[1] + 1));
+            Map<String, String> parameters = null;
+            if (i % 2 == 0) {
+                parameters = new HashMap<String, String>();
+                parameters.put("STYLES", "population");
+            }
+            byte[] blob = new byte[blobSize];
+            random.nextBytes(blob);
+            tiles[i] = TileObject.createCompleteTileObject(LAYER_NAME, new long[] { x, y, z },
+                    GRIDSET_ID, FORMAT, parameters, new ByteArrayResource(blob));
+        }
+        return tiles;
+    }
+
+    /**
+     * Builds {@code count} lock keys following the layout used by WMSLayer for metatile locks
+     */
+    static String[] metaTileLockKeys(int count) {
+        Random random = new Random(SEED);
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = "meta_" + LAYER_NAME + "_" + GRIDSET_ID + "_" + random.nextInt(1 << 16)
+                    + "_" + random.nextInt(1 << 15) + "_" + random.nextInt(20) + ".png";
+        }
+        return keys;
+    }
+
+    static File createTempDirectory(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Unable to create temporary directory " + dir);
+        }
+        return dir;
+    }
+
+    static void deleteQuietly(File dir) {
+        FileUtils.deleteQuietly(dir);
+    }
+}
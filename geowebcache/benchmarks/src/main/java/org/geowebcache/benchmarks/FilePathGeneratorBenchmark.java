@@ -0,0 +1,73 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link FilePathGenerator#tilePath}, which runs on every file blob store get, put and
+ * delete.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilePathGeneratorBenchmark {
+
+    private File cacheRoot;
+
+    private FilePathGenerator generator;
+
+    private TileObject[] tiles;
+
+    @Setup
+    public void setUp() throws Exception {
+        cacheRoot = BenchmarkFixtures.createTempDirectory("gwc-bench-paths");
+        generator = new FilePathGenerator(cacheRoot.getAbsolutePath());
+        tiles = BenchmarkFixtures.tiles(4096, 20, 0);
+        // the first call caches the parameters id on the tile, do not measure it
+        for (TileObject tile : tiles) {
+            generator.tilePath(tile, ImageMime.png);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFixtures.deleteQuietly(cacheRoot);
+    }
+
+    @Benchmark
+    public File tilePath(TileCursor cursor) {
+        return generator.tilePath(tiles[cursor.next(tiles.length)], ImageMime.png);
+    }
+}
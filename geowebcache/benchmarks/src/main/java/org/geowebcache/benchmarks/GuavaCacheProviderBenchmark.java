@@ -0,0 +1,101 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.CacheConfiguration;
+import org.geowebcache.storage.blobstore.memory.TileKey;
+import org.geowebcache.storage.blobstore.memory.guava.GuavaCacheProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the {@link GuavaCacheProvider} operations performed by the memory blob store on every
+ * request: building the cache key, looking up a cached tile and a missing one, and storing a tile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class GuavaCacheProviderBenchmark {
+
+    private GuavaCacheProvider cacheProvider;
+
+    private TileObject[] cached;
+
+    private TileObject[] missing;
+
+    @Setup
+    public void setUp() {
+        CacheConfiguration configuration = new CacheConfiguration();
+        configuration.setHardMemoryLimit(64);
+        cacheProvider = new GuavaCacheProvider(configuration);
+
+        // 4096 tiles of 4KB fit well within the 64MB limit, nothing gets evicted
+        TileObject[] tiles = BenchmarkFixtures.tiles(8192, 20, 4096);
+        cached = new TileObject[tiles.length / 2];
+        missing = new TileObject[tiles.length / 2];
+        System.arraycopy(tiles, 0, cached, 0, cached.length);
+        System.arraycopy(tiles, cached.length, missing, 0, missing.length);
+        for (TileObject tile : cached) {
+            cacheProvider.putTileObj(tile);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cacheProvider.reset();
+    }
+
+    @Benchmark
+    public String generateTileKey(TileCursor cursor) {
+        return GuavaCacheProvider.generateTileKey(cached[cursor.next(cached.length)]);
+    }
+
+    @Benchmark
+    public TileKey tileKey(TileCursor cursor) {
+        return TileKey.of(cached[cursor.next(cached.length)]);
+    }
+
+    @Benchmark
+    public TileObject getHit(TileCursor cursor) {
+        return cacheProvider.getTileObj(cached[cursor.next(cached.length)]);
+    }
+
+    @Benchmark
+    public TileObject getMiss(TileCursor cursor) {
+        return cacheProvider.getTileObj(missing[cursor.next(missing.length)]);
+    }
+
+    @Benchmark
+    public void putExisting(TileCursor cursor) {
+        cacheProvider.putTileObj(cached[cursor.next(cached.length)]);
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.locks.LockProvider;
+import org.geowebcache.locks.MemoryLockProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures acquiring and releasing metatile locks through {@link MemoryLockProvider}, both
+ * uncontended and with several threads working on distinct keys (so that any slowdown comes from
+ * the provider itself, e.g. stripe collisions, and not from real contention).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryLockProviderBenchmark {
+
+    private MemoryLockProvider lockProvider;
+
+    private String[] keys;
+
+    @Setup
+    public void setUp() {
+        lockProvider = new MemoryLockProvider();
+        keys = BenchmarkFixtures.metaTileLockKeys(8192);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void lockReleaseSingleThread(TileCursor cursor) throws Exception {
+        LockProvider.Lock lock = lockProvider.getLock(keys[cursor.next(keys.length)]);
+        lock.release();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void lockReleaseEightThreads(ThreadKeys threadKeys) throws Exception {
+        LockProvider.Lock lock = lockProvider.getLock(threadKeys.next());
+        lock.release();
+    }
+
+    /**
+     * Hands each thread its own disjoint slice of keys
+     */
+    @State(Scope.Thread)
+    public static class ThreadKeys {
+
+        private static final int KEYS_PER_THREAD = 1024;
+
+        private static int threadCounter;
+
+        private String[] keys;
+
+        private int position;
+
+        @Setup
+        public void setUp() {
+            int threadIndex;
+            synchronized (ThreadKeys.class) {
+                threadIndex = threadCounter++;
+            }
+            keys = BenchmarkFixtures.metaTileLockKeys(KEYS_PER_THREAD * (threadIndex + 1));
+            String[] own = new String[KEYS_PER_THREAD];
+            System.arraycopy(keys, KEYS_PER_THREAD * threadIndex, own, 0, KEYS_PER_THREAD);
+            keys = own;
+        }
+
+        String next() {
+            if (position >= keys.length) {
+                position = 0;
+            }
+            return keys[position++];
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.layer.MetaTile;
+import org.geowebcache.mime.ImageMime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures slicing a 4x4 metatile into its tiles and encoding them, the work done by
+ * {@code TileLayer.saveTiles} after each backend request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetaTileBenchmark {
+
+    private static final int META_FACTOR = 4;
+
+    @Param({ "image/png", "image/jpeg" })
+    public String format;
+
+    private MetaTile metaTile;
+
+    private ByteArrayResource buffer;
+
+    private int tileSize;
+
+    private int tileCount;
+
+    @Setup
+    public void setUp() throws Exception {
+        GridSubset subset = BenchmarkFixtures.worldGridSubset();
+        ImageMime mime = (ImageMime) ImageMime.createFromFormat(format);
+        // a metatile fully inside the coverage at zoom level 4, so that there are no gutters
+        long[] gridPosition = { 8, 4, 4 };
+        metaTile = new MetaTile(subset, mime, null, gridPosition, META_FACTOR, META_FACTOR, 0);
+        // backends hand out opaque images for JPEG requests, transparent ones for PNG
+        int imageType = mime.supportsAlphaChannel() ? BufferedImage.TYPE_4BYTE_ABGR
+                : BufferedImage.TYPE_3BYTE_BGR;
+        metaTile.setImage(createImage(metaTile.getMetaTileWidth(), metaTile.getMetaTileHeight(),
+                imageType));
+        tileSize = subset.getTileWidth();
+        tileCount = metaTile.getTilesGridPositions().length;
+        buffer = new ByteArrayResource(64 * 1024);
+    }
+
+    @TearDown
+    public void tearDown() {
+        metaTile.dispose();
+    }
+
+    @Benchmark
+    public RenderedImage createTile(TileCursor cursor) {
+        int i = cursor.next(tileCount);
+        int x = (i % META_FACTOR) * tileSize;
+        int y = (i / META_FACTOR) * tileSize;
+        return metaTile.createTile(x, y, tileSize, tileSize);
+    }
+
+    @Benchmark
+    public long writeTileToStream(TileCursor cursor) throws Exception {
+        buffer.truncate();
+        metaTile.writeTileToStream(cursor.next(tileCount), buffer);
+        return buffer.getSize();
+    }
+
+    /**
+     * Something looking vaguely like a map: a flat background with random filled polygons, so
+     * that the encoders have realistic work to do.
+     */
+    private static BufferedImage createImage(int width, int height, int imageType) {
+        BufferedImage image = new BufferedImage(width, height, imageType);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            graphics.setColor(new Color(170, 211, 223));
+            graphics.fillRect(0, 0, width, height);
+            Random random = new Random(BenchmarkFixtures.SEED);
+            for (int i = 0; i < 400; i++) {
+                graphics.setColor(new Color(random.nextInt(256), random.nextInt(256), random
+                        .nextInt(256), 128 + random.nextInt(128)));
+                int points = 3 + random.nextInt(6);
+                int[] xs = new int[points];
+                int[] ys = new int[points];
+                int cx = random.nextInt(width);
+                int cy = random.nextInt(height);
+                for (int j = 0; j < points; j++) {
+                    xs[j] = cx + random.nextInt(160) - 80;
+                    ys[j] = cy + random.nextInt(160) - 80;
+                }
+                graphics.fillPolygon(xs, ys, points);
+            }
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
+}
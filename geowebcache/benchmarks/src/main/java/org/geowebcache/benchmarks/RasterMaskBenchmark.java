@@ -0,0 +1,111 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.storage.RasterMask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link RasterMask#lookup}, which is evaluated for every tile of a masked seed or
+ * truncate task, both on levels backed by a mask image and on deeper, downsampled levels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RasterMaskBenchmark {
+
+    /** Highest zoom level with its own mask image */
+    private static final int MAX_MASK_LEVEL = 10;
+
+    /** Highest zoom level looked up */
+    private static final int MAX_LEVEL = 18;
+
+    private RasterMask mask;
+
+    private long[][] maskedLevelIndexes;
+
+    private long[][] downsampledLevelIndexes;
+
+    @Setup
+    public void setUp() {
+        GridSubset subset = BenchmarkFixtures.worldGridSubset();
+        long[][] fullCoverage = new long[MAX_LEVEL + 1][];
+        for (int z = 0; z <= MAX_LEVEL; z++) {
+            fullCoverage[z] = subset.getCoverage(z);
+        }
+
+        Random random = new Random(BenchmarkFixtures.SEED);
+        BufferedImage[] byLevelMasks = new BufferedImage[MAX_MASK_LEVEL + 1];
+        for (int z = 0; z <= MAX_MASK_LEVEL; z++) {
+            long[] coverage = fullCoverage[z];
+            int width = (int) (coverage[2] - coverage[0] + 1);
+            int height = (int) (coverage[3] - coverage[1] + 1);
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+            WritableRaster raster = image.getRaster();
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    raster.setSample(x, y, 0, random.nextInt(4) == 0 ? 1 : 0);
+                }
+            }
+            byLevelMasks[z] = image;
+        }
+        mask = new RasterMask(byLevelMasks, fullCoverage, fullCoverage);
+
+        maskedLevelIndexes = randomIndexes(random, fullCoverage, 0, MAX_MASK_LEVEL, 4096);
+        downsampledLevelIndexes = randomIndexes(random, fullCoverage, MAX_MASK_LEVEL + 1,
+                MAX_LEVEL, 4096);
+    }
+
+    private static long[][] randomIndexes(Random random, long[][] coverages, int minZoom,
+            int maxZoom, int count) {
+        long[][] indexes = new long[count][];
+        for (int i = 0; i < count; i++) {
+            int z = minZoom + random.nextInt(maxZoom - minZoom + 1);
+            long[] coverage = coverages[z];
+            long x = coverage[0] + (long) (random.nextDouble() * (coverage[2] - coverage[0] + 1));
+            long y = coverage[1] + (long) (random.nextDouble() * (coverage[3] - coverage[1] + 1));
+            indexes[i] = new long[] { x, y, z };
+        }
+        return indexes;
+    }
+
+    @Benchmark
+    public boolean lookupMaskedLevel(TileCursor cursor) {
+        return mask.lookup(maskedLevelIndexes[cursor.next(maskedLevelIndexes.length)]);
+    }
+
+    @Benchmark
+    public boolean lookupDownsampledLevel(TileCursor cursor) {
+        return mask.lookup(downsampledLevelIndexes[cursor.next(downsampledLevelIndexes.length)]);
+    }
+}
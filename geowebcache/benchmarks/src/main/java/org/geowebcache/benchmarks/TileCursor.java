@@ -0,0 +1,38 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per thread position over a fixture array, so that concurrent benchmark threads walk the same
+ * data without sharing a counter.
+ */
+@State(Scope.Thread)
+public class TileCursor {
+
+    private int position;
+
+    /**
+     * @return the next index in {@code [0, size)}, wrapping around at the end
+     */
+    public int next(int size) {
+        if (position >= size) {
+            position = 0;
+        }
+        return position++;
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.storage.TileRangeIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link TileRangeIterator#nextMetaGridLocation} the way seeding uses it: one iterator
+ * shared by all the seeding threads of a task. Run with {@code -t <N>} to change the number of
+ * threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class TileRangeIteratorBenchmark {
+
+    private static final int[] META_TILING = { 4, 4 };
+
+    private TileRange range;
+
+    private volatile TileRangeIterator iterator;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        GridSubset subset = BenchmarkFixtures.worldGridSubset();
+        // zoom levels 0 to 20 of the whole world, far more than an iteration can consume
+        int zoomStop = 20;
+        long[][] bounds = new long[zoomStop + 1][];
+        for (int z = 0; z <= zoomStop; z++) {
+            bounds[z] = subset.getCoverage(z);
+        }
+        range = new TileRange(BenchmarkFixtures.LAYER_NAME, BenchmarkFixtures.GRIDSET_ID, 0,
+                zoomStop, bounds, ImageMime.png, (String) null);
+        iterator = new TileRangeIterator(range, META_TILING);
+    }
+
+    @Benchmark
+    public long[] nextMetaGridLocation(GridLocation location) {
+        long[] next = iterator.nextMetaGridLocation(location.gridLoc);
+        if (next == null) {
+            // range exhausted, start over
+            synchronized (this) {
+                iterator = new TileRangeIterator(range, META_TILING);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * The per thread grid location array reused across calls, as the seeder does
+     */
+    @State(Scope.Thread)
+    public static class GridLocation {
+        long[] gridLoc = new long[3];
+    }
+}
@@ -20,7 +20,6 @@ package org.geowebcache;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URL;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
@@ -36,6 +35,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.httpclient.util.DateParseException;
 import org.apache.commons.httpclient.util.DateUtil;
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.config.BlobStoreConfig;
@@ -56,6 +56,10 @@ import org.geowebcache.io.Resource;
 import org.geowebcache.layer.BadTileException;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.locks.LockInfo;
+import org.geowebcache.locks.LockProvider;
+import org.geowebcache.locks.LockStatistics;
+import org.geowebcache.locks.MemoryLockProvider;
 import org.geowebcache.mime.ImageMime;
 import org.geowebcache.service.HttpErrorCodeException;
 import org.geowebcache.service.OWSException;
@@ -475,6 +479,7 @@ public class GeoWebCacheDispatcher extends AbstractController {
         if(storageBroker != null){
             appendInternalCacheStats(str);
         }
+        appendLockStats(str);
         str.append("</body></html>\n");
 
         writePage(response, 200, str.toString());
@@ -664,8 +669,7 @@ public class GeoWebCacheDispatcher extends AbstractController {
         response.setContentLength((int) contentLength);
         if (resource != null) {
             try {
-                OutputStream os = response.getOutputStream();
-                resource.transferTo(Channels.newChannel(os));
+                ServletUtils.writeResource(resource, response);
 
                 runtimeStats.log(contentLength, cacheRes);
 
@@ -725,6 +729,7 @@ public class GeoWebCacheDispatcher extends AbstractController {
         long hitCount = statistics.getHitCount();
         long missCount = statistics.getMissCount();
         long evictionCount = statistics.getEvictionCount();
+        long admissionRejectionCount = statistics.getAdmissionRejectionCount();
         long requestCount = statistics.getRequestCount();
         double hitRate = statistics.getHitRate();
         double missRate = statistics.getMissRate();
@@ -768,6 +773,12 @@ public class GeoWebCacheDispatcher extends AbstractController {
                 + (evictionCount >= 0 ?  evictionCount + "" : "Unavailable"));
         str.append("</td></tr>\n");
 
+        if (admissionRejectionCount > 0) {
+            str.append("<tr><td colspan=\"2\">Total number of tiles not admitted:</td><td colspan=\"3\">"
+                    + admissionRejectionCount);
+            str.append("</td></tr>\n");
+        }
+
         str.append("<tr><td colspan=\"5\"> </td></tr>");
         
         str.append("<tr><td colspan=\"2\">Cache Memory occupation:</td><td colspan=\"3\">"
@@ -782,9 +793,90 @@ public class GeoWebCacheDispatcher extends AbstractController {
 
         str.append("<tr><td colspan=\"5\"> </td></tr>");
 
+        Map<String, CacheStatistics> layerStatistics = statistics.getLayerStatistics();
+        if (layerStatistics != null && !layerStatistics.isEmpty()) {
+            str.append("<tr><th>Layer</th><th>Requests</th><th>Hit ratio</th><th>Evicted tiles</th>"
+                    + "<th>Actual Size/ Total Size</th></tr>\n");
+            for (Map.Entry<String, CacheStatistics> entry : layerStatistics.entrySet()) {
+                CacheStatistics layer = entry.getValue();
+                double layerActualSize = ((long) (100 * (layer.getActualSize() * 1.0d) / byteToMb)) / 100d;
+                double layerTotalSize = ((long) (100 * (layer.getTotalSize() * 1.0d) / byteToMb)) / 100d;
+                str.append("<tr><td>" + StringEscapeUtils.escapeHtml(entry.getKey()) + "</td><td>"
+                        + layer.getRequestCount() + "</td><td>" + layer.getHitRate() + " %</td><td>" + layer.getEvictionCount()
+                        + "</td><td>" + layerActualSize + " / " + layerTotalSize + " Mb</td></tr>\n");
+            }
+            str.append("<tr><td colspan=\"5\"> </td></tr>");
+        }
+
         str.append("</table>\n");
 
         // Append to the homepage HTML
         strGlobal.append(str);
     }
+
+    /**
+     * Appends the locks currently held and, if the in memory lock provider is used, the lock
+     * contention statistics
+     * 
+     * @param str
+     */
+    private void appendLockStats(StringBuilder str) {
+        XMLConfiguration config;
+        if (mainConfiguration instanceof XMLConfiguration) {
+            config = (XMLConfiguration) mainConfiguration;
+        } else {
+            config = GeoWebCacheExtensions.bean(XMLConfiguration.class);
+        }
+        LockProvider lockProvider = config == null ? null : config.getLockProvider();
+        if (lockProvider == null) {
+            return;
+        }
+        appendHeldLocks(str, lockProvider.getLocks());
+        if (!(lockProvider instanceof MemoryLockProvider)) {
+            return;
+        }
+        LockStatistics statistics = ((MemoryLockProvider) lockProvider).getStatistics();
+
+        str.append("<h3>Lock Statistics</h3>\n");
+        str.append("<table border=\"0\" cellspacing=\"5\">");
+        str.append("<tr><td>Locks acquired:</td><td>" + statistics.getAcquisitions()
+                + "</td></tr>\n");
+        str.append("<tr><td>Locks acquired after waiting:</td><td>"
+                + statistics.getContendedAcquisitions() + "</td></tr>\n");
+        str.append("<tr><td>Average / Max wait:</td><td>"
+                + ((long) (100 * statistics.getAverageWaitTime())) / 100d + " / "
+                + statistics.getMaxWaitTime() + " ms</td></tr>\n");
+        str.append("<tr><td>Max threads queued on a lock:</td><td>"
+                + statistics.getMaxQueueLength() + "</td></tr>\n");
+        str.append("<tr><td>Currently locked keys:</td><td>" + statistics.getActiveLocks()
+                + "</td></tr>\n");
+        str.append("<tr><td>Locks broken past their lease:</td><td>"
+                + statistics.getBrokenLocks() + "</td></tr>\n");
+        long[] buckets = statistics.getWaitTimeBuckets();
+        long[] histogram = statistics.getWaitTimeHistogram();
+        for (int i = 0; i < histogram.length; i++) {
+            String label = i < buckets.length ? "Waits under " + buckets[i] + " ms:"
+                    : "Waits of " + buckets[buckets.length - 1] + " ms or more:";
+            str.append("<tr><td>" + label + "</td><td>" + histogram[i] + "</td></tr>\n");
+        }
+        str.append("</table>\n");
+    }
+
+    private void appendHeldLocks(StringBuilder str, List<LockInfo> locks) {
+        if (locks.isEmpty()) {
+            return;
+        }
+        str.append("<h3>Held Locks</h3>\n");
+        str.append("<table border=\"0\" cellspacing=\"5\">");
+        str.append("<tr><th>Key</th><th>Owner</th><th>Age</th><th>Lease</th><th>Waiters</th></tr>\n");
+        for (LockInfo lock : locks) {
+            str.append("<tr><td>" + StringEscapeUtils.escapeHtml(lock.getKey()) + "</td><td>"
+                    + StringEscapeUtils.escapeHtml(lock.getOwner()) + "</td><td>"
+                    + lock.getAge() + " ms</td><td>"
+                    + (lock.getLeaseTime() > 0 ? lock.getLeaseTime() + " ms" : "none")
+                    + (lock.isExpired() ? " (expired)" : "") + "</td><td>" + lock.getWaiters()
+                    + "</td></tr>\n");
+        }
+        str.append("</table>\n");
+    }
 }
@@ -0,0 +1,92 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.config;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.locks.LockProvider;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.blobstore.file.BundleBlobStore;
+
+/**
+ * Configuration and factory for {@link BundleBlobStore}.
+ *
+ * @see BlobStoreConfig
+ */
+public class BundleBlobStoreConfig extends BlobStoreConfig {
+
+    private static final long serialVersionUID = 3419870917227442379L;
+
+    private String baseDirectory;
+
+    private Integer bundleSize;
+
+    public BundleBlobStoreConfig() {
+        super();
+    }
+
+    public BundleBlobStoreConfig(String id) {
+        super(id);
+    }
+
+    public String getBaseDirectory() {
+        return baseDirectory;
+    }
+
+    public void setBaseDirectory(String baseDirectory) {
+        this.baseDirectory = baseDirectory;
+    }
+
+    /**
+     * The number of tiles per side packed into each bundle file, defaults to
+     * {@link BundleBlobStore#DEFAULT_BUNDLE_SIZE}. Changing it for an existing store makes the
+     * already cached tiles unreachable.
+     */
+    public Integer getBundleSize() {
+        return bundleSize;
+    }
+
+    public void setBundleSize(Integer bundleSize) {
+        this.bundleSize = bundleSize;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("BundleBlobStore[id:").append(getId()).append(", enabled:")
+                .append(isEnabled()).append(", baseDirectory:").append(baseDirectory)
+                .append(", bundleSize:").append(bundleSize).append(']').toString();
+    }
+
+    @Override
+    public BundleBlobStore createInstance(TileLayerDispatcher layers, LockProvider lockProvider)
+            throws StorageException {
+        checkState(getId() != null, "id not set");
+        checkState(isEnabled(),
+                "Can't call BundleBlobStoreConfig.createInstance() is blob store is not enabled");
+        checkState(baseDirectory != null, "baseDirectory not provided");
+        checkState(bundleSize == null || bundleSize.intValue() > 0,
+                "bundleSize must be a positive integer: %s", bundleSize);
+        int size = bundleSize == null ? BundleBlobStore.DEFAULT_BUNDLE_SIZE : bundleSize
+                .intValue();
+        return new BundleBlobStore(baseDirectory, size);
+    }
+
+    @Override
+    public String getLocation() {
+        return getBaseDirectory();
+    }
+}
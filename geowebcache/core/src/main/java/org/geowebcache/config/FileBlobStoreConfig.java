@@ -38,6 +38,20 @@ public class FileBlobStoreConfig extends BlobStoreConfig {
 
     private int fileSystemBlockSize;
 
+    private Integer truncateParallelism;
+
+    private Boolean deduplicate;
+
+    private Integer maxDeduplicatedSize;
+
+    private Boolean existenceFilter;
+
+    private Integer writeBehindThreads;
+
+    private Integer writeBehindQueueSize;
+
+    private Integer writeBehindRetries;
+
     public FileBlobStoreConfig() {
         super();
     }
@@ -79,11 +93,100 @@ public class FileBlobStoreConfig extends BlobStoreConfig {
         this.fileSystemBlockSize = fileSystemBlockSize;
     }
 
+    /**
+     * The maximum number of threads used to walk the cache directories when truncating a tile
+     * range, or {@code null} to use as many threads as available processors.
+     */
+    public Integer getTruncateParallelism() {
+        return truncateParallelism;
+    }
+
+    public void setTruncateParallelism(Integer truncateParallelism) {
+        this.truncateParallelism = truncateParallelism;
+    }
+
+    /**
+     * Whether byte-identical tiles are stored once, as hard links to a shared copy. Defaults to
+     * {@code false}.
+     */
+    public Boolean getDeduplicate() {
+        return deduplicate;
+    }
+
+    public void setDeduplicate(Boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * The size in bytes of the largest tile considered for deduplication, or {@code null} for the
+     * default of 8KB.
+     */
+    public Integer getMaxDeduplicatedSize() {
+        return maxDeduplicatedSize;
+    }
+
+    public void setMaxDeduplicatedSize(Integer maxDeduplicatedSize) {
+        this.maxDeduplicatedSize = maxDeduplicatedSize;
+    }
+
+    /**
+     * Whether cache misses are answered from in memory filters rather than the file system.
+     * Defaults to {@code false}, and should stay so if other processes write to the same base
+     * directory.
+     */
+    public Boolean getExistenceFilter() {
+        return existenceFilter;
+    }
+
+    public void setExistenceFilter(Boolean existenceFilter) {
+        this.existenceFilter = existenceFilter;
+    }
+
+    /**
+     * The number of threads writing tiles asynchronously, or {@code null} or {@code 0} to write
+     * them synchronously.
+     */
+    public Integer getWriteBehindThreads() {
+        return writeBehindThreads;
+    }
+
+    public void setWriteBehindThreads(Integer writeBehindThreads) {
+        this.writeBehindThreads = writeBehindThreads;
+    }
+
+    /**
+     * The maximum number of tiles waiting to be written asynchronously, or {@code null} for the
+     * default of 1000.
+     */
+    public Integer getWriteBehindQueueSize() {
+        return writeBehindQueueSize;
+    }
+
+    public void setWriteBehindQueueSize(Integer writeBehindQueueSize) {
+        this.writeBehindQueueSize = writeBehindQueueSize;
+    }
+
+    /**
+     * The number of times a tile failing to be written asynchronously is retried, or {@code null}
+     * for the default of 3.
+     */
+    public Integer getWriteBehindRetries() {
+        return writeBehindRetries;
+    }
+
+    public void setWriteBehindRetries(Integer writeBehindRetries) {
+        this.writeBehindRetries = writeBehindRetries;
+    }
+
     @Override
     public String toString() {
         return new StringBuilder("FileBlobStore[id:").append(getId()).append(", enabled:")
                 .append(isEnabled()).append(", baseDirectory:").append(baseDirectory)
-                .append("fileSystemBlockSize:").append(fileSystemBlockSize).append(']').toString();
+                .append("fileSystemBlockSize:").append(fileSystemBlockSize)
+                .append(", truncateParallelism:").append(truncateParallelism)
+                .append(", deduplicate:").append(deduplicate).append(", existenceFilter:")
+                .append(existenceFilter).append(", writeBehindThreads:")
+                .append(writeBehindThreads).append(']').toString();
     }
 
     @Override
@@ -94,10 +197,40 @@ public class FileBlobStoreConfig extends BlobStoreConfig {
         checkState(baseDirectory != null, "baseDirectory not provided");
         checkState(fileSystemBlockSize >= 0, "fileSystemBlockSize must be a positive integer: %s",
                 fileSystemBlockSize);
+        checkState(truncateParallelism == null || truncateParallelism.intValue() > 0,
+                "truncateParallelism must be a positive integer: %s", truncateParallelism);
+        checkState(maxDeduplicatedSize == null || maxDeduplicatedSize.intValue() > 0,
+                "maxDeduplicatedSize must be a positive integer: %s", maxDeduplicatedSize);
+        checkState(writeBehindThreads == null || writeBehindThreads.intValue() >= 0,
+                "writeBehindThreads can't be negative: %s", writeBehindThreads);
+        checkState(writeBehindQueueSize == null || writeBehindQueueSize.intValue() > 0,
+                "writeBehindQueueSize must be a positive integer: %s", writeBehindQueueSize);
+        checkState(writeBehindRetries == null || writeBehindRetries.intValue() >= 0,
+                "writeBehindRetries can't be negative: %s", writeBehindRetries);
         FileBlobStore fileBlobStore = new FileBlobStore(baseDirectory);
         if(fileSystemBlockSize > 0){
             fileBlobStore.setBlockSize(fileSystemBlockSize);
         }
+        if (truncateParallelism != null) {
+            fileBlobStore.setTruncateParallelism(truncateParallelism.intValue());
+        }
+        if (maxDeduplicatedSize != null) {
+            fileBlobStore.setMaxDeduplicatedSize(maxDeduplicatedSize.intValue());
+        }
+        if (Boolean.TRUE.equals(deduplicate)) {
+            fileBlobStore.setDeduplicate(true);
+        }
+        if (Boolean.TRUE.equals(existenceFilter)) {
+            fileBlobStore.setExistenceFilter(true);
+        }
+        if (writeBehindRetries != null) {
+            fileBlobStore.setWriteBehindRetries(writeBehindRetries.intValue());
+        }
+        if (writeBehindThreads != null && writeBehindThreads.intValue() > 0) {
+            int queueSize = writeBehindQueueSize == null ? FileBlobStore.DEFAULT_WRITE_BEHIND_QUEUE_SIZE
+                    : writeBehindQueueSize.intValue();
+            fileBlobStore.setWriteBehind(writeBehindThreads.intValue(), queueSize);
+        }
         return fileBlobStore;
     }
 
@@ -446,6 +446,7 @@ public class XMLConfiguration implements Configuration, InitializingBean {
 
         xs.alias("blobStores", new ArrayList<BlobStoreConfig>().getClass());
         xs.alias("FileBlobStore", FileBlobStoreConfig.class);
+        xs.alias("BundleBlobStore", BundleBlobStoreConfig.class);
         xs.aliasAttribute(BlobStoreConfig.class, "_default", "default");
 
         // These two are for 1.1.x compatibility
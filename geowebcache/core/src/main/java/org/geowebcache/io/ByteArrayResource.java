@@ -73,6 +73,14 @@ public class ByteArrayResource implements Resource, Serializable {
         return lastModified;
     }
 
+    /**
+     * Sets the modification time, for instance when the contents are restored from a copy
+     * @param lastModified
+     */
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+
     /**
      * @see org.geowebcache.io.Resource#getSize()
      */
@@ -0,0 +1,87 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.io;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reusable {@link ByteArrayResource} buffers, safe to use from any thread. A buffer is
+ * acquired, used and released by the same task, no matter which thread runs it, so the buffers
+ * can be handed over to the threads encoding the tiles of a metatile, which thread local buffers
+ * could not.
+ * <p>
+ * At most {@code maxPooled} buffers are kept, and buffers grown over {@code maxBufferSize} are
+ * dropped on release, so that a single large response does not keep its memory around.
+ * </p>
+ */
+public class ByteArrayResourcePool {
+
+    private final int initialCapacity;
+
+    private final int maxBufferSize;
+
+    private final int maxPooled;
+
+    private final Queue<ByteArrayResource> buffers = new ConcurrentLinkedQueue<ByteArrayResource>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param initialCapacity the capacity of the newly created buffers
+     * @param maxBufferSize the largest contents, in bytes, of a buffer returned to the pool
+     * @param maxPooled the max number of buffers kept in the pool
+     */
+    public ByteArrayResourcePool(int initialCapacity, int maxBufferSize, int maxPooled) {
+        this.initialCapacity = initialCapacity;
+        this.maxBufferSize = maxBufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Returns an empty buffer, reusing a pooled one if available
+     */
+    public ByteArrayResource acquire() {
+        ByteArrayResource buffer = buffers.poll();
+        if (buffer == null) {
+            return new ByteArrayResource(initialCapacity);
+        }
+        pooled.decrementAndGet();
+        buffer.truncate();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used anymore by the caller.
+     */
+    public void release(ByteArrayResource buffer) {
+        if (buffer == null || buffer.getSize() > maxBufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+
+    /**
+     * Returns the number of buffers currently pooled
+     */
+    public int getPooled() {
+        return pooled.get();
+    }
+}
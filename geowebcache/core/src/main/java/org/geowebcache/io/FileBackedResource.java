@@ -0,0 +1,19 @@
+package org.geowebcache.io;
+
+import java.io.File;
+
+/**
+ * Optional {@link Resource} capability for resources whose contents are the whole contents of a
+ * file on the local file system.
+ * <p>
+ * Knowing the file allows the contents to be handed to the operating system or the servlet
+ * container (e.g. through sendfile) instead of being copied through the JVM heap. Resources not
+ * implementing this interface are always written through {@link #transferTo}.
+ */
+public interface FileBackedResource extends Resource {
+
+    /**
+     * @return the file holding the resource contents
+     */
+    public File getFile();
+}
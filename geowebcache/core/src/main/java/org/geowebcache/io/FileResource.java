@@ -11,7 +11,7 @@ import java.nio.channels.FileLock;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 
-public class FileResource implements Resource {
+public class FileResource implements FileBackedResource {
 
     private final File file;
 
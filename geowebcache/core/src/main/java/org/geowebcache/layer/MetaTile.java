@@ -418,7 +418,10 @@ public class MetaTile implements TileResponseReceiver {
         return false;
     }
 
-    protected void disposeLater(RenderedImage tile) {
+    /**
+     * Synchronized, the tiles of a metatile can be written by several threads at once
+     */
+    protected synchronized void disposeLater(RenderedImage tile) {
         if (disposableImages == null) {
             disposableImages = new ArrayList<RenderedImage>(tiles.length);
         }
@@ -535,8 +538,13 @@ public class MetaTile implements TileResponseReceiver {
         } else if (image instanceof PlanarImage) {
             disposePlanarImageChain((PlanarImage) image, new HashSet<PlanarImage>());
         }
-        if (disposableImages != null) {
-            for (RenderedImage tile : disposableImages) {
+        List<RenderedImage> images;
+        synchronized (this) {
+            images = disposableImages;
+            disposableImages = null;
+        }
+        if (images != null) {
+            for (RenderedImage tile : images) {
                 if (log.isTraceEnabled()) {
                     log.trace("disposing tile " + tile);
                 }
@@ -547,7 +555,6 @@ public class MetaTile implements TileResponseReceiver {
                 }
             }
         }
-        disposableImages = null;
     }
 
     @SuppressWarnings("rawtypes")
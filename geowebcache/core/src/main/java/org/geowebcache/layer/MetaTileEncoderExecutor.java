@@ -0,0 +1,97 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.layer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheExtensions;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Holds the thread pool encoding and storing the tiles of the metatiles, shared by all the layers.
+ * <p>
+ * The pool is sized with the {@code GEOWEBCACHE_METATILE_ENCODER_THREADS} property (system
+ * property, servlet context parameter or environment variable), by default the number of
+ * available processors, independently from the servlet container and seeding pools since the
+ * encoding is CPU bound. A value of 1 or less disables it, the tiles being encoded sequentially
+ * by the requesting thread.
+ * </p>
+ * <p>
+ * The queue is bounded and the tasks not fitting in it are dropped: the requesting thread runs
+ * the tasks which did not start yet by itself, so a saturated pool only slows down to the
+ * sequential encoding instead of piling up work.
+ * </p>
+ */
+public class MetaTileEncoderExecutor {
+
+    private static final Log log = LogFactory.getLog(MetaTileEncoderExecutor.class);
+
+    public static final String THREADS_PROPERTY = "GEOWEBCACHE_METATILE_ENCODER_THREADS";
+
+    private static volatile ThreadPoolExecutor executor;
+
+    private static volatile boolean initialized;
+
+    private MetaTileEncoderExecutor() {
+    }
+
+    /**
+     * Returns the shared encoder pool, or null if the tiles should be encoded sequentially
+     */
+    public static ThreadPoolExecutor get() {
+        if (!initialized) {
+            synchronized (MetaTileEncoderExecutor.class) {
+                if (!initialized) {
+                    executor = create(getThreads());
+                    initialized = true;
+                }
+            }
+        }
+        return executor;
+    }
+
+    private static int getThreads() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String value = GeoWebCacheExtensions.getProperty(THREADS_PROPERTY);
+        if (value != null) {
+            try {
+                threads = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for " + THREADS_PROPERTY + ": " + value + ", using "
+                        + threads + " threads");
+            }
+        }
+        return threads;
+    }
+
+    private static ThreadPoolExecutor create(int threads) {
+        if (threads <= 1) {
+            log.info("Metatile tiles will be encoded sequentially by the requesting threads");
+            return null;
+        }
+        log.info("Encoding the metatile tiles with " + threads + " threads");
+        CustomizableThreadFactory tf = new CustomizableThreadFactory("GWC MetaTile encoder-");
+        tf.setDaemon(true);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 16), tf,
+                new ThreadPoolExecutor.DiscardPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
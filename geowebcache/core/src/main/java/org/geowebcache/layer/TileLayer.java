@@ -25,6 +25,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 
 import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletResponse;
@@ -45,12 +49,14 @@ import org.geowebcache.grid.GridUtil;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.grid.SRS;
 import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.ByteArrayResourcePool;
 import org.geowebcache.io.Resource;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.layer.meta.MetadataURL;
 import org.geowebcache.layer.updatesource.UpdateSourceDefinition;
 import org.geowebcache.mime.FormatModifier;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileObject;
 import org.geowebcache.util.GWCVars;
@@ -67,9 +73,11 @@ public abstract class TileLayer {
 
     private static Log log = LogFactory.getLog(org.geowebcache.layer.TileLayer.class);
 
-    protected static final ThreadLocal<ByteArrayResource> WMS_BUFFER = new ThreadLocal<ByteArrayResource>();
-
-    protected static final ThreadLocal<ByteArrayResource> WMS_BUFFER2 = new ThreadLocal<ByteArrayResource>();
+    /**
+     * Buffers for the backend responses and the encoded tiles, shared among layers and threads
+     */
+    protected static final ByteArrayResourcePool BUFFERS = new ByteArrayResourcePool(16 * 1024,
+            4 * 1024 * 1024, 256);
 
     // cached default parameter filter values
     protected transient Map<String, String> defaultParameterFilterValues;
@@ -628,24 +636,19 @@ public abstract class TileLayer {
 
     public abstract void addGridSubset(GridSubset gridSubset);
 
-    protected ByteArrayResource getImageBuffer(ThreadLocal<ByteArrayResource> tl) {
-        ByteArrayResource buffer = tl.get();
-        if (buffer == null) {
-            buffer = new ByteArrayResource(16 * 1024);
-            tl.set(buffer);
-        }
-        buffer.truncate();
-        return buffer;
-    }
-
     /**
-     * Loops over the gridPositions, generates cache keys and saves to cache
+     * Loops over the gridPositions, generates cache keys and saves to cache. The tiles are encoded
+     * and stored in parallel by the {@link MetaTileEncoderExecutor}, the calling thread encoding
+     * the requested tile first and then helping with the ones not started yet, returning once
+     * all of them are saved. When the storage supports {@link StorageBroker#isBulkPutSupported()
+     * bulk puts}, the tiles are stored all together once encoded instead.
      * 
      * @param metaTile
      * @param tileProto
      * @param requestTime
      */
-    protected void saveTiles(MetaTile metaTile, ConveyorTile tileProto, long requestTime) throws GeoWebCacheException {
+    protected void saveTiles(final MetaTile metaTile, final ConveyorTile tileProto,
+            final long requestTime) throws GeoWebCacheException {
 
         final long[][] gridPositions = metaTile.getTilesGridPositions();
         final long[] gridLoc = tileProto.getTileIndex();
@@ -653,58 +656,187 @@ public abstract class TileLayer {
 
         final int zoomLevel = (int) gridLoc[2];
         final boolean store = this.getExpireCache(zoomLevel) != GWCVars.CACHE_DISABLE_CACHE;
+        // the tiles to store at once, if supported
+        final List<TileObject> batch;
+        if (store && !tileProto.isMetaTileCacheOnly()
+                && tileProto.getStorageBroker().isBulkPutSupported()) {
+            batch = Collections.synchronizedList(new ArrayList<TileObject>(gridPositions.length));
+        } else {
+            batch = null;
+        }
 
-        Resource resource;
-        boolean encode;
+        final ExecutorService executor = MetaTileEncoderExecutor.get();
+        FutureTask<Void> requested = null;
+        List<FutureTask<Void>> others = new ArrayList<FutureTask<Void>>(gridPositions.length);
         for (int i = 0; i < gridPositions.length; i++) {
+            final int tileIdx = i;
             final long[] gridPos = gridPositions[i];
+            final ByteArrayResource target;
+            boolean encode;
             if (Arrays.equals(gridLoc, gridPos)) {
-                // Is this the one we need to save? then don't use the buffer or it'll be overridden
-                // by the next tile
-                resource = getImageBuffer(WMS_BUFFER2);
-                tileProto.setBlob(resource);
+                // Is this the one we need to save? then it gets its own buffer, which is
+                // handed back to the caller
+                target = new ByteArrayResource(16 * 1024);
+                tileProto.setBlob(target);
                 encode = true;
             } else {
-                resource = getImageBuffer(WMS_BUFFER);
+                target = null;
                 encode = store;
             }
 
-            if (encode) {
-                if (!gridSubset.covers(gridPos)) {
-                    // edge tile outside coverage, do not store it
-                    continue;
+            if (!encode || !gridSubset.covers(gridPos)) {
+                // edge tile outside coverage, do not store it
+                continue;
+            }
+
+            FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+
+                public Void call() throws Exception {
+                    saveTile(metaTile, tileIdx, gridPos, target, tileProto, requestTime, store,
+                            batch);
+                    return null;
+                }
+            });
+            if (target != null) {
+                requested = task;
+            } else {
+                others.add(task);
+                if (executor != null) {
+                    executor.execute(task);
                 }
+            }
+        }
+
+        // the requested tile first, the caller is waiting for it
+        if (requested != null) {
+            requested.run();
+        }
+        // running a task already started or done does nothing
+        for (FutureTask<Void> task : others) {
+            task.run();
+        }
+        // wait for all of them before reporting a failure, the metatile gets disposed next
+        Throwable failure = null;
+        if (requested != null) {
+            failure = await(requested, failure);
+        }
+        for (FutureTask<Void> task : others) {
+            failure = await(task, failure);
+        }
+        if (batch != null) {
+            failure = storeBatch(batch, tileProto, failure);
+        }
+        if (failure instanceof GeoWebCacheException) {
+            throw (GeoWebCacheException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new GeoWebCacheException(failure);
+        }
+        if (store) {
+            tileProto.getStorageObject().setCreated(requestTime);
+        }
+    }
 
+    /**
+     * Waits for the task to complete, returning the first failure among the saved tiles
+     */
+    private Throwable await(FutureTask<Void> task, Throwable failure) {
+        boolean interrupted = false;
+        try {
+            for (;;) {
                 try {
-                    boolean completed = metaTile.writeTileToStream(i, resource);
-                    if (!completed) {
-                        log.error("metaTile.writeTileToStream returned false, no tiles saved");
-                    }
-                    if (store) {
-                        long[] idx = { gridPos[0], gridPos[1], gridPos[2] };
-
-                        TileObject tile = TileObject.createCompleteTileObject(this.getName(), idx,
-                                tileProto.getGridSetId(), tileProto.getMimeType().getFormat(),
-                                tileProto.getParameters(), resource);
-                        tile.setCreated(requestTime);
-
-                        try {
-                            if (tileProto.isMetaTileCacheOnly()) {
-                                tileProto.getStorageBroker().putTransient(tile);
-                            } else {
-                                tileProto.getStorageBroker().put(tile);
-                            }
-                            tileProto.getStorageObject().setCreated(tile.getCreated());
-                        } catch (StorageException e) {
-                            throw new GeoWebCacheException(e);
-                        }
+                    task.get();
+                    return failure;
+                } catch (InterruptedException e) {
+                    // the metatile cannot be disposed while its tiles are being encoded
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    return failure != null ? failure : e.getCause();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stores the encoded tiles at once, unless some failed, and returns their pooled buffers
+     */
+    private Throwable storeBatch(List<TileObject> batch, ConveyorTile tileProto,
+            Throwable failure) {
+        try {
+            if (failure == null && !batch.isEmpty()) {
+                tileProto.getStorageBroker().put(batch);
+            }
+        } catch (StorageException e) {
+            failure = new GeoWebCacheException(e);
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            for (TileObject tile : batch) {
+                // the requested tile buffer is handed back to the caller
+                if (tile.getBlob() != tileProto.getBlob()) {
+                    BUFFERS.release((ByteArrayResource) tile.getBlob());
+                }
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * Encodes one tile of the metatile and stores it if needed
+     * 
+     * @param target the buffer to encode the tile into, or null to use a pooled one
+     * @param batch the list to add the tile to instead of storing it, or null to store it
+     */
+    private void saveTile(MetaTile metaTile, int tileIdx, long[] gridPos,
+            ByteArrayResource target, ConveyorTile tileProto, long requestTime, boolean store,
+            List<TileObject> batch) throws GeoWebCacheException {
+        final ByteArrayResource resource = target == null ? BUFFERS.acquire() : target;
+        boolean batched = false;
+        try {
+            boolean completed = metaTile.writeTileToStream(tileIdx, resource);
+            if (!completed) {
+                log.error("metaTile.writeTileToStream returned false, no tiles saved");
+            }
+            if (store) {
+                long[] idx = { gridPos[0], gridPos[1], gridPos[2] };
+
+                TileObject tile = TileObject.createCompleteTileObject(this.getName(), idx,
+                        tileProto.getGridSetId(), tileProto.getMimeType().getFormat(),
+                        tileProto.getParameters(), resource);
+                tile.setCreated(requestTime);
+
+                if (batch != null) {
+                    // stored along with the others, the buffer is released afterwards
+                    batch.add(tile);
+                    batched = true;
+                    return;
+                }
+                try {
+                    if (tileProto.isMetaTileCacheOnly()) {
+                        tileProto.getStorageBroker().putTransient(tile);
+                    } else {
+                        tileProto.getStorageBroker().put(tile);
                     }
-                } catch (IOException ioe) {
-                    log.error("Unable to write image tile to " + "ByteArrayOutputStream: "
-                            + ioe.getMessage());
-                    ioe.printStackTrace();
+                } catch (StorageException e) {
+                    throw new GeoWebCacheException(e);
                 }
             }
+        } catch (IOException ioe) {
+            log.error("Unable to write image tile to " + "ByteArrayOutputStream: "
+                    + ioe.getMessage());
+            ioe.printStackTrace();
+        } finally {
+            if (target == null && !batched) {
+                // the blob stores copy the contents, the buffer can be reused
+                BUFFERS.release(resource);
+            }
         }
     }
 }
@@ -25,6 +25,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -295,16 +296,12 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
         ConveyorTile returnTile;
 
         tile.setMetaTileCacheOnly(!gridSubset.shouldCacheAtZoom(gridLoc[2]));
-        try {
-            if (tryCacheFetch(tile)) {
-                returnTile = finalizeTile(tile);
-            } else if (mime.supportsTiling()) { // Okay, so we need to go to the backend
-                returnTile = getMetatilingReponse(tile, true);
-            } else {
-                returnTile = getNonMetatilingReponse(tile, true);
-            }
-        } finally {
-            cleanUpThreadLocals();
+        if (tryCacheFetch(tile)) {
+            returnTile = finalizeTile(tile);
+        } else if (mime.supportsTiling()) { // Okay, so we need to go to the backend
+            returnTile = getMetatilingReponse(tile, true);
+        } else {
+            returnTile = getNonMetatilingReponse(tile, true);
         }
         
         sendTileRequestedEvent(returnTile);
@@ -363,9 +360,10 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
 
         String metaKey = buildLockKey(tile, metaTile);
         Lock lock = null;
+        ByteArrayResource buffer = null;
         try {
             /** ****************** Acquire lock ******************* */
-            lock = lockProvider.getLock(metaKey);
+            lock = lockProvider.getLock(metaKey, getLockLeaseTime());
             /** ****************** Check cache again ************** */
             if (tryCache && tryCacheFetch(tile)) {
                 // Someone got it already, return lock and we're done
@@ -375,9 +373,9 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
             tile.setCacheResult(CacheResult.MISS);
             
             /*
-             * This thread's byte buffer
+             * A pooled byte buffer for the backend response
              */
-            ByteArrayResource buffer = getImageBuffer(WMS_BUFFER);
+            buffer = BUFFERS.acquire();
 
             /** ****************** No luck, Request metatile ****** */
             // Leave a hint to save expiration, if necessary
@@ -398,6 +396,9 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
             }
 
             metaTile.setImageBytes(buffer);
+            // decoded, no longer needed
+            BUFFERS.release(buffer);
+            buffer = null;
 
             saveTiles(metaTile, tile, requestTime);
 
@@ -406,11 +407,25 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
             if(lock != null) {
                 lock.release();
             }
+            if (buffer != null) {
+                BUFFERS.release(buffer);
+            }
             metaTile.dispose();
         }
         return finalizeTile(tile);
     }
 
+    /**
+     * The lease of the tile locks, in milliseconds. A backend request can take up to twice the
+     * backend timeout (connection plus data), the same is allowed again for saving the tiles, a
+     * lock held longer than that is stuck and gets broken so that the requests waiting for it can
+     * go on.
+     */
+    private long getLockLeaseTime() {
+        int timeout = backendTimeout == null ? 120 : backendTimeout;
+        return TimeUnit.SECONDS.toMillis(4L * timeout);
+    }
+
     private String buildLockKey(ConveyorTile tile, WMSMetaTile metaTile) {
         StringBuilder metaKey = new StringBuilder();
         
@@ -455,7 +470,7 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
         Lock lock = null;
         try {
             /** ****************** Acquire lock ******************* */
-            lock = lockProvider.getLock(lockKey);
+            lock = lockProvider.getLock(lockKey, getLockLeaseTime());
             
             /** ****************** Check cache again ************** */
             if (tryCache && tryCacheFetch(tile)) {
@@ -508,7 +523,8 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
     public ConveyorTile doNonMetatilingRequest(ConveyorTile tile) throws GeoWebCacheException {
         tile.setTileLayer(this);
 
-        ByteArrayResource buffer = getImageBuffer(WMS_BUFFER);
+        // not pooled, the buffer becomes the tile blob
+        ByteArrayResource buffer = new ByteArrayResource(16 * 1024);
         sourceHelper.makeRequest(tile, buffer);
 
         if (tile.getError() || buffer.getSize() == 0) {
@@ -768,8 +784,7 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
 
         // Should we do mime type checks?
 
-        // note: not using getImageBuffer() here cause this method is not called during seeding, so
-        // there's no gain
+        // note: not using the pooled buffers here, the buffer becomes the tile blob
         Resource buffer = new ByteArrayResource(2048);
         sourceHelper.makeRequest(tile, buffer);
         tile.setBlob(buffer);
@@ -785,9 +800,12 @@ public class WMSLayer extends AbstractTileLayer implements ProxyLayer {
         }
     }
 
+    /**
+     * @deprecated the image buffers are pooled and no longer thread local, there is nothing to
+     *             clean up
+     */
+    @Deprecated
     public void cleanUpThreadLocals() {
-        WMS_BUFFER.remove();
-        WMS_BUFFER2.remove();
     }
 
     public void setMetaInformation(LayerMetaInformation layerMetaInfo) {
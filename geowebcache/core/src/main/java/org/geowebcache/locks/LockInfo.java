@@ -0,0 +1,103 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.locks;
+
+import java.io.Serializable;
+
+/**
+ * Snapshot of a lock held in a {@link LockProvider}: who holds it, since when, for how long it is
+ * allowed to and how many threads are waiting for it.
+ */
+public class LockInfo implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+
+    private final String owner;
+
+    private final long acquired;
+
+    private final long age;
+
+    private final long leaseTime;
+
+    private final int waiters;
+
+    public LockInfo(String key, String owner, long acquired, long age, long leaseTime,
+            int waiters) {
+        this.key = key;
+        this.owner = owner;
+        this.acquired = acquired;
+        this.age = age;
+        this.leaseTime = leaseTime;
+        this.waiters = waiters;
+    }
+
+    /**
+     * @return the locked key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return a description of the lock holder, e.g. the name of the thread holding it
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return the time the lock was acquired, in milliseconds since the epoch
+     */
+    public long getAcquired() {
+        return acquired;
+    }
+
+    /**
+     * @return for how long the lock had been held when the snapshot was taken, in milliseconds
+     */
+    public long getAge() {
+        return age;
+    }
+
+    /**
+     * @return the lease of the lock in milliseconds, or 0 if the lock can be held indefinitely
+     */
+    public long getLeaseTime() {
+        return leaseTime;
+    }
+
+    /**
+     * @return true if the lock has been held for longer than its lease
+     */
+    public boolean isExpired() {
+        return leaseTime > 0 && age > leaseTime;
+    }
+
+    /**
+     * @return the number of threads waiting for the lock
+     */
+    public int getWaiters() {
+        return waiters;
+    }
+
+    @Override
+    public String toString() {
+        return "LockInfo[key=" + key + ", owner=" + owner + ", age=" + age + "ms, lease="
+                + (leaseTime > 0 ? leaseTime + "ms" : "none") + ", waiters=" + waiters + "]";
+    }
+}
@@ -14,6 +14,9 @@
  */
 package org.geowebcache.locks;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.geowebcache.GeoWebCacheException;
 
 /**
@@ -28,7 +31,27 @@ public interface LockProvider {
      * @param lockKey
      */
     public Lock getLock(String lockKey) throws GeoWebCacheException;
-    
+
+    /**
+     * Acquires a exclusive lock on the specified key, which is expected to be released within the
+     * lease. Providers supporting leases report the locks held past it and break them, letting
+     * the waiting threads go on, so that a holder stuck forever does not block the key forever.
+     * Providers not supporting leases ignore it.
+     *
+     * @param lockKey
+     * @param leaseTime the lease in milliseconds, 0 or less for no lease
+     */
+    public default Lock getLock(String lockKey, long leaseTime) throws GeoWebCacheException {
+        return getLock(lockKey);
+    }
+
+    /**
+     * Lists the locks currently held, with their owners, ages and waiters, for diagnostic
+     * purposes. Providers not tracking their locks return an empty list.
+     */
+    public default List<LockInfo> getLocks() {
+        return Collections.emptyList();
+    }
     
     public interface Lock {
         /**
@@ -0,0 +1,150 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.locks;
+
+import java.io.Serializable;
+
+/**
+ * Snapshot of the lock usage of a {@link LockProvider}: how many locks were acquired, how many of
+ * them had to wait for another thread and a histogram of the wait times.
+ */
+public class LockStatistics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long acquisitions;
+
+    private final long contendedAcquisitions;
+
+    private final long totalWaitTime;
+
+    private final long maxWaitTime;
+
+    private final int maxQueueLength;
+
+    private final int activeLocks;
+
+    private final long brokenLocks;
+
+    private final long[] waitTimeBuckets;
+
+    private final long[] waitTimeHistogram;
+
+    public LockStatistics(long acquisitions, long contendedAcquisitions, long totalWaitTime,
+            long maxWaitTime, int maxQueueLength, int activeLocks, long brokenLocks,
+            long[] waitTimeBuckets, long[] waitTimeHistogram) {
+        this.acquisitions = acquisitions;
+        this.contendedAcquisitions = contendedAcquisitions;
+        this.totalWaitTime = totalWaitTime;
+        this.maxWaitTime = maxWaitTime;
+        this.maxQueueLength = maxQueueLength;
+        this.activeLocks = activeLocks;
+        this.brokenLocks = brokenLocks;
+        this.waitTimeBuckets = waitTimeBuckets;
+        this.waitTimeHistogram = waitTimeHistogram;
+    }
+
+    /**
+     * @return the number of locks acquired
+     */
+    public long getAcquisitions() {
+        return acquisitions;
+    }
+
+    /**
+     * @return the number of locks which were held by another thread when requested
+     */
+    public long getContendedAcquisitions() {
+        return contendedAcquisitions;
+    }
+
+    /**
+     * @return the total time spent waiting for the locks, in milliseconds
+     */
+    public long getTotalWaitTime() {
+        return totalWaitTime;
+    }
+
+    /**
+     * @return the longest wait for a lock, in milliseconds
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    /**
+     * @return the average wait of the contended acquisitions, in milliseconds
+     */
+    public double getAverageWaitTime() {
+        return contendedAcquisitions == 0 ? 0 : totalWaitTime / (double) contendedAcquisitions;
+    }
+
+    /**
+     * @return the highest number of threads found holding or waiting for a lock when requesting it
+     */
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    /**
+     * @return the number of keys currently locked
+     */
+    public int getActiveLocks() {
+        return activeLocks;
+    }
+
+    /**
+     * @return the number of locks broken because held past their lease
+     */
+    public long getBrokenLocks() {
+        return brokenLocks;
+    }
+
+    /**
+     * @return the upper bounds, in milliseconds, of the wait time histogram buckets, the last
+     *         bucket of the histogram having no upper bound
+     */
+    public long[] getWaitTimeBuckets() {
+        return waitTimeBuckets.clone();
+    }
+
+    /**
+     * @return the number of contended acquisitions for each wait time bucket
+     */
+    public long[] getWaitTimeHistogram() {
+        return waitTimeHistogram.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("LockStatistics[acquisitions=").append(acquisitions)
+                .append(", contended=").append(contendedAcquisitions).append(", maxWait=")
+                .append(maxWaitTime).append("ms, maxQueue=").append(maxQueueLength)
+                .append(", active=").append(activeLocks).append(", broken=")
+                .append(brokenLocks).append(", waits={");
+        for (int i = 0; i < waitTimeHistogram.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            if (i < waitTimeBuckets.length) {
+                sb.append('<').append(waitTimeBuckets[i]).append("ms");
+            } else {
+                sb.append(">=").append(waitTimeBuckets[waitTimeBuckets.length - 1]).append("ms");
+            }
+            sb.append('=').append(waitTimeHistogram[i]);
+        }
+        return sb.append("}]").toString();
+    }
+}
@@ -14,54 +14,462 @@
  */
 package org.geowebcache.locks;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
 
-import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 /**
- * An in memory lock provider based on a striped lock
- * 
+ * An in memory lock provider handing out a lock per key. The locks are reference counted and
+ * dropped as soon as no thread holds or waits for them, so unrelated keys never contend with each
+ * other and the memory used only depends on the number of keys currently locked.
+ * <p>
+ * The time spent waiting for the locks and the number of threads found queued on them are
+ * recorded, see {@link #getStatistics()}, in order to tell when the lock contention, rather than
+ * the backend, is slowing down the tile requests.
+ * </p>
+ * <p>
+ * Locks acquired with a lease are checked by a watchdog: a lock held past its lease is reported,
+ * along with the stack of its holder, and broken, the threads waiting for it moving on to a new
+ * lock. This keeps a request hung on the backend from blocking all the requests for the same key
+ * and, eventually, the whole servlet container thread pool.
+ * </p>
+ *
  * @author Andrea Aime - GeoSolutions
  */
 public class MemoryLockProvider implements LockProvider {
-    
-    java.util.concurrent.locks.Lock[] locks;
-    
+
+    public static Log LOGGER = LogFactory.getLog(MemoryLockProvider.class);
+
+    /**
+     * Upper bounds, in milliseconds, of the wait time histogram buckets. The last bucket collects
+     * the longer waits
+     */
+    static final long[] WAIT_TIME_BUCKETS = { 1, 10, 100, 1000, 10000 };
+
+    /**
+     * How often, in milliseconds, the threads waiting for a lock check whether it has been broken
+     */
+    static final long BREAK_CHECK_INTERVAL = 500;
+
+    /** Runs the lease checks of all the providers */
+    private static final ScheduledExecutorService WATCHDOG;
+
+    static {
+        CustomizableThreadFactory tf = new CustomizableThreadFactory("GWC lock watchdog-");
+        tf.setDaemon(true);
+        WATCHDOG = Executors.newSingleThreadScheduledExecutor(tf);
+    }
+
+    /**
+     * A lock counting the threads holding or waiting for it. A negative count means the lock has
+     * been removed from the map and must not be used anymore.
+     * <p>
+     * The holder fields are guarded by the key lock monitor, so that the watchdog never breaks a
+     * lock which has just been handed over to a new holder.
+     * </p>
+     */
+    static final class KeyLock {
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        final AtomicInteger users = new AtomicInteger();
+
+        /** The thread holding the lock, null if free */
+        Thread owner;
+
+        /** When the lock was acquired, in milliseconds since the epoch */
+        long acquired;
+
+        /** The lease of the current holder in milliseconds, 0 or less if none */
+        long leaseTime;
+
+        /** Run when the lock is broken, to release the resources of the holder */
+        Runnable breakAction;
+
+        /** Set by the watchdog, the lock has been removed from the map and must not be used */
+        volatile boolean broken;
+
+        /**
+         * Registers a new user, returning the number of users already present or -1 if the lock
+         * has been dropped meanwhile
+         */
+        int acquire() {
+            for (;;) {
+                int current = users.get();
+                if (current < 0) {
+                    return -1;
+                }
+                if (users.compareAndSet(current, current + 1)) {
+                    return current;
+                }
+            }
+        }
+
+        /**
+         * Unregisters a user, returning true if this was the last one and the lock is now retired
+         */
+        boolean release() {
+            return users.decrementAndGet() == 0 && users.compareAndSet(0, -1);
+        }
+    }
+
+    final ConcurrentMap<String, KeyLock> locks;
+
+    final LongAdder acquisitions = new LongAdder();
+
+    final LongAdder contendedAcquisitions = new LongAdder();
+
+    final LongAdder totalWaitTime = new LongAdder();
+
+    final AtomicLong maxWaitTime = new AtomicLong();
+
+    final AtomicInteger maxQueueLength = new AtomicInteger();
+
+    final LongAdder[] waitTimeHistogram = new LongAdder[WAIT_TIME_BUCKETS.length + 1];
+
+    final LongAdder brokenLocks = new LongAdder();
+
+    /** How often, in milliseconds, the watchdog checks the leases */
+    long watchdogInterval = 1000;
+
+    private final AtomicBoolean watchdogScheduled = new AtomicBoolean();
+
     public MemoryLockProvider() {
         this(1024);
     }
 
+    /**
+     * @param concurrency the expected number of keys locked at the same time, used to size the
+     *        lock map
+     */
     public MemoryLockProvider(int concurrency) {
-        locks = new java.util.concurrent.locks.Lock[concurrency];
-        for (int i = 0; i < locks.length; i++) {
-            locks[i] = new ReentrantLock();
+        locks = new ConcurrentHashMap<String, KeyLock>(concurrency);
+        for (int i = 0; i < waitTimeHistogram.length; i++) {
+            waitTimeHistogram[i] = new LongAdder();
         }
     }
 
-    public Lock getLock(String lockKey) {
-        final int idx = getIndex(lockKey);
-        locks[idx].lock();        
+    public Lock getLock(final String lockKey) {
+        return getLock(lockKey, 0, null);
+    }
+
+    @Override
+    public Lock getLock(String lockKey, long leaseTime) {
+        return getLock(lockKey, leaseTime, null);
+    }
+
+    /**
+     * Acquires the lock on the specified key
+     * 
+     * @param leaseTime the lease in milliseconds, 0 or less for no lease
+     * @param breakAction run by the watchdog if the lock is broken, can be null
+     */
+    Lock getLock(final String lockKey, long leaseTime, Runnable breakAction) {
+        acquisitions.increment();
+        long start = 0;
+        KeyLock current;
+        for (;;) {
+            current = register(lockKey);
+            boolean locked = current.lock.tryLock();
+            if (!locked) {
+                // someone else is working on this key, wait for it and track how long it took
+                if (start == 0) {
+                    start = System.nanoTime();
+                }
+                locked = lockOrBreak(current);
+            }
+            if (locked && own(current, leaseTime, breakAction)) {
+                break;
+            }
+            // broken while waiting for it, move on to the lock that replaced it
+            if (locked) {
+                current.lock.unlock();
+            }
+            if (current.release()) {
+                locks.remove(lockKey, current);
+            }
+        }
+        if (start != 0) {
+            recordWait(lockKey, System.nanoTime() - start);
+        }
+        if (leaseTime > 0) {
+            scheduleWatchdog();
+        }
+
+        final KeyLock keyLock = current;
         return new Lock() {
-            
+
             boolean released = false;
 
             public void release() throws GeoWebCacheException {
-                if(!released) {
+                if (!released) {
                     released = true;
-                    locks[idx].unlock();
+                    if (keyLock.broken) {
+                        LOGGER.warn("Lock on key " + lockKey
+                                + " released after being broken by the lease watchdog");
+                    }
+                    if (keyLock.lock.getHoldCount() == 1) {
+                        synchronized (keyLock) {
+                            keyLock.owner = null;
+                            keyLock.breakAction = null;
+                        }
+                    }
+                    keyLock.lock.unlock();
+                    if (keyLock.release()) {
+                        locks.remove(lockKey, keyLock);
+                    }
                 }
             }
-            
+
         };
-        
+
+    }
+
+    /**
+     * Waits for the lock, returning true once acquired or false if it got broken meanwhile. As
+     * {@link ReentrantLock#lock()}, the wait is not interruptible, the interrupt status being
+     * restored once done.
+     */
+    private boolean lockOrBreak(KeyLock keyLock) {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    if (keyLock.lock.tryLock(BREAK_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                if (keyLock.broken) {
+                    return false;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Records the current thread as the holder of a lock it just acquired, unless it has been
+     * broken
+     */
+    private boolean own(KeyLock keyLock, long leaseTime, Runnable breakAction) {
+        synchronized (keyLock) {
+            if (keyLock.broken) {
+                return false;
+            }
+            if (keyLock.lock.getHoldCount() == 1) {
+                keyLock.owner = Thread.currentThread();
+                keyLock.acquired = System.currentTimeMillis();
+                keyLock.leaseTime = leaseTime;
+                keyLock.breakAction = breakAction;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Finds or creates the lock of the specified key and registers the current thread as one of
+     * its users
+     */
+    private KeyLock register(String lockKey) {
+        for (;;) {
+            KeyLock keyLock = locks.get(lockKey);
+            if (keyLock == null) {
+                KeyLock created = new KeyLock();
+                keyLock = locks.putIfAbsent(lockKey, created);
+                if (keyLock == null) {
+                    keyLock = created;
+                }
+            }
+            int queued = keyLock.acquire();
+            if (queued >= 0) {
+                updateMax(maxQueueLength, queued);
+                return keyLock;
+            }
+            // dropped by its last user in the meantime, make sure it's gone and retry
+            locks.remove(lockKey, keyLock);
+        }
+    }
+
+    private void recordWait(String lockKey, long waitNanos) {
+        contendedAcquisitions.increment();
+        totalWaitTime.add(waitNanos);
+        updateMax(maxWaitTime, waitNanos);
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        int bucket = 0;
+        while (bucket < WAIT_TIME_BUCKETS.length && waitMillis >= WAIT_TIME_BUCKETS[bucket]) {
+            bucket++;
+        }
+        waitTimeHistogram[bucket].increment();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Waited " + waitMillis + "ms for the lock on key " + lockKey);
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            ;
+        }
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            ;
+        }
+    }
+
+    /**
+     * Returns the number of threads currently waiting for the lock on the specified key
+     */
+    public int getQueueLength(String lockKey) {
+        KeyLock keyLock = locks.get(lockKey);
+        return keyLock == null ? 0 : keyLock.lock.getQueueLength();
+    }
+
+    /**
+     * Returns a snapshot of the lock usage statistics
+     */
+    public LockStatistics getStatistics() {
+        long[] histogram = new long[waitTimeHistogram.length];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = waitTimeHistogram[i].sum();
+        }
+        return new LockStatistics(acquisitions.sum(), contendedAcquisitions.sum(),
+                TimeUnit.NANOSECONDS.toMillis(totalWaitTime.sum()),
+                TimeUnit.NANOSECONDS.toMillis(maxWaitTime.get()), maxQueueLength.get(),
+                locks.size(), brokenLocks.sum(), WAIT_TIME_BUCKETS.clone(), histogram);
+    }
+
+    /**
+     * Lists the locks currently held. The locks broken by the watchdog are not listed, even if
+     * their holders did not release them yet.
+     */
+    @Override
+    public List<LockInfo> getLocks() {
+        long now = System.currentTimeMillis();
+        List<LockInfo> result = new ArrayList<LockInfo>();
+        for (Map.Entry<String, KeyLock> entry : locks.entrySet()) {
+            KeyLock keyLock = entry.getValue();
+            Thread owner;
+            long acquired;
+            long leaseTime;
+            synchronized (keyLock) {
+                owner = keyLock.owner;
+                acquired = keyLock.acquired;
+                leaseTime = keyLock.leaseTime;
+            }
+            if (owner != null) {
+                result.add(new LockInfo(entry.getKey(), describe(owner), acquired, now - acquired,
+                        Math.max(leaseTime, 0), keyLock.lock.getQueueLength()));
+            }
+        }
+        return result;
+    }
+
+    private static String describe(Thread thread) {
+        return thread.getName() + " (" + thread.getId() + ")";
+    }
+
+    private void scheduleWatchdog() {
+        if (watchdogScheduled.compareAndSet(false, true)) {
+            WATCHDOG.schedule(new Runnable() {
+
+                public void run() {
+                    runWatchdog();
+                }
+            }, watchdogInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void runWatchdog() {
+        try {
+            checkLeases();
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to check the lock leases", e);
+        } finally {
+            // keep on checking only while there are leased locks around
+            watchdogScheduled.set(false);
+            if (hasLeasedLocks()) {
+                scheduleWatchdog();
+            }
+        }
     }
 
-    private int getIndex(String lockKey) {
-        // Simply hashing the lock key generated a significant number of collisions,
-        // doing the SHA1 digest of it provides a much better distribution
-        int idx = Math.abs(DigestUtils.shaHex(lockKey).hashCode() % locks.length);
-        return idx;
+    private boolean hasLeasedLocks() {
+        for (KeyLock keyLock : locks.values()) {
+            synchronized (keyLock) {
+                if (keyLock.owner != null && keyLock.leaseTime > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Breaks the locks held past their lease, letting the threads waiting for them go on
+     */
+    void checkLeases() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, KeyLock> entry : locks.entrySet()) {
+            KeyLock keyLock = entry.getValue();
+            Thread owner;
+            long age;
+            long leaseTime;
+            Runnable breakAction;
+            synchronized (keyLock) {
+                owner = keyLock.owner;
+                age = now - keyLock.acquired;
+                leaseTime = keyLock.leaseTime;
+                if (owner == null || keyLock.broken || leaseTime <= 0 || age <= leaseTime) {
+                    continue;
+                }
+                keyLock.broken = true;
+                breakAction = keyLock.breakAction;
+            }
+            locks.remove(entry.getKey(), keyLock);
+            brokenLocks.increment();
+
+            StringBuilder sb = new StringBuilder("Lock on key ").append(entry.getKey())
+                    .append(" held by thread ").append(describe(owner)).append(" for ")
+                    .append(age).append("ms, past its lease of ").append(leaseTime)
+                    .append("ms, breaking it. ").append(keyLock.lock.getQueueLength())
+                    .append(" threads were waiting for it. The holder is at:");
+            for (StackTraceElement element : owner.getStackTrace()) {
+                sb.append("\n\tat ").append(element);
+            }
+            LOGGER.warn(sb.toString());
+
+            if (breakAction != null) {
+                try {
+                    breakAction.run();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Failed to release the resources of the broken lock on key "
+                            + entry.getKey(), e);
+                }
+            }
+        }
     }
 
 }
@@ -15,10 +15,22 @@
 package org.geowebcache.locks;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
@@ -27,28 +39,88 @@ import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.config.ConfigurationException;
 import org.geowebcache.storage.DefaultStorageFinder;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 /**
  * A lock provider based on file system locks
- * 
+ * <p>
+ * The threads of this JVM asking for the same lock file queue in memory, so that a single thread
+ * per JVM waits for the file lock, blocking in the operating system until the other processes
+ * release it instead of polling the file. The lock keys are spread over a fixed set of lock files,
+ * which are reused rather than created and deleted for every lock. A thread locking several keys
+ * sharing a lock file holds the file lock once, until the last of them is released.
+ * </p>
+ * <p>
+ * The leases are enforced by the in memory lock: when a lock held past its lease is broken, the
+ * lock file of the holder is closed as well, releasing the file lock for the other processes.
+ * </p>
+ *
  * @author Andrea Aime - GeoSolutions
  */
 public class NIOLockProvider implements LockProvider {
-    
+
     public static Log LOGGER = LogFactory.getLog(NIOLockProvider.class);
 
+    /** Default number of lock files the keys are spread over */
+    public static final int DEFAULT_LOCK_FILES = 65536;
+
+    /** Closes the channels of the file locks waited for too long, making the waits fail */
+    private static final ScheduledExecutorService TIMEOUT_SCHEDULER;
+
+    static {
+        CustomizableThreadFactory tf = new CustomizableThreadFactory("GWC NIO lock timeout-");
+        tf.setDaemon(true);
+        TIMEOUT_SCHEDULER = Executors.newSingleThreadScheduledExecutor(tf);
+    }
+
     private String root;
     /**
-     * The wait to occur in case the lock cannot be acquired
+     * The wait to occur in case the file system refuses to block on the lock
      */
-    int waitBeforeRetry = 20; 
+    int waitBeforeRetry = 20;
     /**
-     * max lock attempts
+     * Max time, in milliseconds, to wait for a lock held by another process
      */
-    int maxLockAttempts = 120 * 1000 / waitBeforeRetry;
+    long lockTimeout = 120 * 1000;
+
+    /**
+     * Number of lock files the keys are spread over
+     */
+    int lockFiles = DEFAULT_LOCK_FILES;
 
     MemoryLockProvider memoryProvider = new MemoryLockProvider();
 
+    /**
+     * A file lock held by a thread of this JVM, shared by the keys of that thread using the same
+     * lock file. The count is only accessed by the holder of the in memory lock on the file.
+     */
+    static final class HeldFile {
+
+        /** The first key locked on the file, reported by {@link NIOLockProvider#getLocks()} */
+        final String key;
+
+        final Thread owner;
+
+        final RandomAccessFile raf;
+
+        final FileLock lock;
+
+        /** How many keys of the owner are locked on the file */
+        int count = 1;
+
+        HeldFile(String key, RandomAccessFile raf, FileLock lock) {
+            this.key = key;
+            this.owner = Thread.currentThread();
+            this.raf = raf;
+            this.lock = lock;
+        }
+    }
+
+    /**
+     * The file locks held by this JVM, by lock file name
+     */
+    final ConcurrentMap<String, HeldFile> heldFiles = new ConcurrentHashMap<String, HeldFile>();
+
     public NIOLockProvider(DefaultStorageFinder storageFinder) throws ConfigurationException {
         this.root = storageFinder.getDefaultPath();
     }
@@ -57,124 +129,250 @@ public class NIOLockProvider implements LockProvider {
         this.root = root;
     }
 
+    /**
+     * Sets the number of lock files the keys are spread over. Two keys sharing a lock file cannot
+     * be locked at the same time by different threads, the larger the number the lower the chance.
+     */
+    public void setLockFiles(int lockFiles) {
+        if (lockFiles <= 0) {
+            throw new IllegalArgumentException("The number of lock files must be positive");
+        }
+        this.lockFiles = lockFiles;
+    }
+
+    /**
+     * Sets the max time, in seconds, to wait for a lock held by another process
+     */
+    public void setLockTimeout(int seconds) {
+        this.lockTimeout = TimeUnit.SECONDS.toMillis(seconds);
+    }
+
     public LockProvider.Lock getLock(final String lockKey) throws GeoWebCacheException {
-        File file = null;
-        // first off, synchronize among threads in the same jvm (the nio locks won't lock 
-        // threads in the same JVM)
-        final LockProvider.Lock memoryLock = memoryProvider.getLock(lockKey);
+        return getLock(lockKey, 0);
+    }
+
+    @Override
+    public LockProvider.Lock getLock(final String lockKey, long leaseTime)
+            throws GeoWebCacheException {
+        final File file = getFile(lockKey);
+        final String fileName = file.getName();
+        // if the lock gets broken, closing the file releases the file lock too
+        final AtomicReference<RandomAccessFile> held = new AtomicReference<RandomAccessFile>();
+        Runnable breakAction = new Runnable() {
+
+            public void run() {
+                IOUtils.closeQuietly(held.get());
+            }
+        };
+        // first off, synchronize among threads in the same jvm (the nio locks won't lock
+        // threads in the same JVM), queuing on the lock file so that only one thread per JVM
+        // holds or waits for it. The in memory lock is reentrant, a thread already holding the
+        // lock file for another key gets it right away
+        final LockProvider.Lock memoryLock = memoryProvider.getLock(fileName, leaseTime,
+                breakAction);
+        HeldFile current = heldFiles.get(fileName);
+        if (current != null && current.owner == Thread.currentThread() && current.lock.isValid()) {
+            // share the file lock, the channel would refuse to lock the same file twice
+            current.count++;
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Lock " + lockKey + " acquired by thread "
+                        + Thread.currentThread().getId() + " sharing file " + file);
+            }
+            return new FileKeyLock(lockKey, fileName, current, memoryLock);
+        }
+
         // then synch up between different processes
+        RandomAccessFile currRaf = null;
+        FileLock currLock = null;
+        boolean acquired = false;
         try {
-            file = getFile(lockKey);
-            FileOutputStream currFos = null;
-            FileLock currLock = null;
-            try {
-                // try to lock
-                int count = 0;
-                while(currLock == null && count < maxLockAttempts) {
-                    // the file output stream can also fail to be acquired due to the
-                    // other nodes deleting the file
-                    currFos = new FileOutputStream(file);
-                    try {
-                        currLock = currFos.getChannel().lock();
-                    } catch(OverlappingFileLockException e) {
-                        IOUtils.closeQuietly(currFos);
-                        try {
-                            Thread.sleep(20);
-                        } catch (InterruptedException ie) {
-                            // ok, moving on
-                        }
-                    } catch(IOException e) {
-                        // this one is also thrown with a message "avoided fs deadlock"
-                        IOUtils.closeQuietly(currFos);
-                        try {
-                            Thread.sleep(20);
-                        } catch (InterruptedException ie) {
-                            // ok, moving on
-                        }
-                    }
-                    count++;
+            long deadline = System.currentTimeMillis() + lockTimeout;
+            while (currLock == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new GeoWebCacheException("Failed to get a lock on key " + lockKey
+                            + " after waiting " + lockTimeout + "ms");
                 }
-                
-                // verify we managed to get the FS lock
-                if(count >= maxLockAttempts) {
-                    throw new GeoWebCacheException("Failed to get a lock on key " + lockKey + " after " + count + " attempts");
+                // the lock file is created once and then reused, not truncated or deleted
+                currRaf = new RandomAccessFile(file, "rw");
+                currLock = lock(currRaf.getChannel(), remaining);
+                if (currLock == null) {
+                    IOUtils.closeQuietly(currRaf);
+                    currRaf = null;
                 }
+            }
 
-                if(LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Lock " + lockKey + " acquired by thread " + Thread.currentThread().getId() + " on file " + file);
-                }
-                
-                // store the results in a final variable for the inner class to use
-                final FileOutputStream fos = currFos;
-                final FileLock lock = currLock;
-
-                // nullify so that we don't close them, the locking occurred as expected
-                currFos = null;
-                currLock = null;
-                
-                final File lockFile = file;
-                return new LockProvider.Lock() {
-                    
-                    boolean released;
-
-                    public void release() throws GeoWebCacheException {
-                        if(released) {
-                            return;
-                        }
-                        
-                        try {
-                            released = true;
-                            if (!lock.isValid()) {
-                                // do not crap out, locks usage in GWC is only there to prevent duplication of work
-                                if(LOGGER.isDebugEnabled()) {
-                                    LOGGER.debug("Lock key " + lockKey + " for releasing lock is unkonwn, it means " +
-                                            "this lock was never acquired, or was released twice. " +
-                                            "Current thread is: " + Thread.currentThread().getId() + ". " +
-                                             "Are you running two GWC instances in the same JVM using NIO locks? " +
-                                             "This case is not supported and will generate exactly this error message");
-                                    return;
-                                }
-                            }
-                            try {
-                                lock.release();
-                                IOUtils.closeQuietly(fos);
-                                lockFile.delete();
-                                
-                                if(LOGGER.isDebugEnabled()) {
-                                    LOGGER.debug("Lock " + lockKey + " released by thread " + Thread.currentThread().getId());
-                                }
-                            } catch (IOException e) {
-                                throw new GeoWebCacheException("Failure while trying to release lock for key "
-                                        + lockKey, e);
-                            }
-                        } finally {
-                            memoryLock.release();
-                        }
-                        
-                    }
-                };
-            } finally {
+            if(LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Lock " + lockKey + " acquired by thread " + Thread.currentThread().getId() + " on file " + file);
+            }
+
+            // flag so that we don't close them, the locking occurred as expected
+            acquired = true;
+            held.set(currRaf);
+            HeldFile heldFile = new HeldFile(lockKey, currRaf, currLock);
+            heldFiles.put(fileName, heldFile);
+            return new FileKeyLock(lockKey, fileName, heldFile, memoryLock);
+        } catch (IOException e) {
+            throw new GeoWebCacheException("Failure while trying to get lock for key " + lockKey, e);
+        } finally {
+            if (!acquired) {
                 try {
-                    if (currLock != null) {
+                    if (currLock != null && currLock.isValid()) {
                         currLock.release();
                     }
-                    IOUtils.closeQuietly(currFos);
-                    file.delete();
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to release the lock file " + file, e);
                 } finally {
+                    IOUtils.closeQuietly(currRaf);
                     memoryLock.release();
                 }
             }
+        }
+
+    }
+
+    /**
+     * The lock on a key, releasing the file lock once the last key of the thread using it is
+     * released
+     */
+    private class FileKeyLock implements LockProvider.Lock {
+
+        final String lockKey;
+
+        final String fileName;
+
+        final HeldFile heldFile;
+
+        final LockProvider.Lock memoryLock;
+
+        boolean released;
+
+        FileKeyLock(String lockKey, String fileName, HeldFile heldFile,
+                LockProvider.Lock memoryLock) {
+            this.lockKey = lockKey;
+            this.fileName = fileName;
+            this.heldFile = heldFile;
+            this.memoryLock = memoryLock;
+        }
+
+        public void release() throws GeoWebCacheException {
+            if(released) {
+                return;
+            }
+
+            released = true;
+            // still holding the in memory lock, no other thread can use the count
+            if (--heldFile.count > 0) {
+                memoryLock.release();
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Lock " + lockKey + " released by thread "
+                            + Thread.currentThread().getId() + ", file still in use");
+                }
+                return;
+            }
+            try {
+                heldFiles.remove(fileName, heldFile);
+                FileLock lock = heldFile.lock;
+                if (!lock.isValid()) {
+                    // do not crap out, locks usage in GWC is only there to prevent duplication of work
+                    if(LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Lock key " + lockKey + " for releasing lock is unkonwn, it means " +
+                                "this lock was never acquired, or was released twice. " +
+                                "Current thread is: " + Thread.currentThread().getId() + ". " +
+                                 "Are you running two GWC instances in the same JVM using NIO locks? " +
+                                 "This case is not supported and will generate exactly this error message");
+                    }
+                    return;
+                }
+                try {
+                    lock.release();
+
+                    if(LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Lock " + lockKey + " released by thread " + Thread.currentThread().getId());
+                    }
+                } catch (IOException e) {
+                    throw new GeoWebCacheException("Failure while trying to release lock for key "
+                            + lockKey, e);
+                }
+            } finally {
+                IOUtils.closeQuietly(heldFile.raf);
+                memoryLock.release();
+            }
+        }
+    }
+
+    /**
+     * Blocks until the file lock is released by the other processes, or the timeout expires.
+     * Returns null if the lock should be attempted again with a new channel.
+     */
+    private FileLock lock(final FileChannel channel, long timeout) throws IOException,
+            GeoWebCacheException {
+        // the wait cannot be bounded directly, close the channel when the timeout expires
+        ScheduledFuture<?> timeoutTask = TIMEOUT_SCHEDULER.schedule(new Runnable() {
+
+            public void run() {
+                IOUtils.closeQuietly(channel);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        FileLock lock;
+        try {
+            lock = channel.lock();
+        } catch (ClosedByInterruptException e) {
+            // closed because this thread got interrupted, not by the timeout
+            Thread.currentThread().interrupt();
+            throw new GeoWebCacheException("Interrupted while waiting for a file lock", e);
+        } catch (AsynchronousCloseException e) {
+            return null;
+        } catch (OverlappingFileLockException e) {
+            // another provider of this JVM holds it, can only poll
+            backOff(e);
+            return null;
         } catch (IOException e) {
-            throw new GeoWebCacheException("Failure while trying to get lock for key " + lockKey, e);
+            // thrown with a message "avoided fs deadlock" when the file system detects a
+            // potential deadlock between processes, back off and try again
+            backOff(e);
+            return null;
+        } finally {
+            timeoutTask.cancel(false);
         }
+        // the timeout might have expired right after the lock was granted, closing the channel
+        return lock.isValid() ? lock : null;
+    }
+
+    private void backOff(Exception e) throws GeoWebCacheException {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Failed to get a file lock, retrying: " + e.getMessage());
+        }
+        try {
+            Thread.sleep(waitBeforeRetry);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new GeoWebCacheException("Interrupted while waiting for a file lock");
+        }
+    }
 
+    /**
+     * Lists the locks held by this JVM
+     */
+    @Override
+    public List<LockInfo> getLocks() {
+        List<LockInfo> result = new ArrayList<LockInfo>();
+        for (LockInfo info : memoryProvider.getLocks()) {
+            // the file lock might still be waited for
+            HeldFile heldFile = heldFiles.get(info.getKey());
+            result.add(new LockInfo(heldFile == null ? info.getKey() : heldFile.key, info.getOwner(),
+                    info.getAcquired(), info.getAge(), info.getLeaseTime(), info.getWaiters()));
+        }
+        return result;
     }
 
     private File getFile(String lockKey) {
-        File locks = new File(root, "lockfiles");
-        locks.mkdirs();
         String sha1 = DigestUtils.shaHex(lockKey);
-        return new File(locks, sha1 + ".lck");
+        // spread the keys over the lock files, keeping the directories small
+        int slot = (int) (Long.parseLong(sha1.substring(0, 8), 16) % lockFiles);
+        File locks = new File(new File(root, "lockfiles"), String.format("%02x", slot & 0xff));
+        locks.mkdirs();
+        return new File(locks, String.format("%08x", slot) + ".lck");
     }
-    
+
 }
@@ -29,7 +29,6 @@ import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.conveyor.ConveyorTile;
 import org.geowebcache.filter.request.RequestFilter;
 import org.geowebcache.layer.TileLayer;
-import org.geowebcache.layer.wms.WMSLayer;
 import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.TileRange;
 import org.geowebcache.storage.TileRangeIterator;
@@ -293,8 +292,6 @@ class SeedTask extends GWCTask {
 
     @Override
     protected void dispose() {
-        if (tl instanceof WMSLayer) {
-            ((WMSLayer) tl).cleanUpThreadLocals();
-        }
+        // nothing to dispose, the layer buffers are pooled
     }
 }
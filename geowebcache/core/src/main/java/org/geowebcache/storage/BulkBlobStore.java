@@ -0,0 +1,32 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage;
+
+import java.util.List;
+
+/**
+ * A {@link BlobStore} able to store several tiles, typically the ones of a metatile, more
+ * efficiently than with one {@link #put(TileObject)} per tile.
+ */
+public interface BulkBlobStore extends BlobStore {
+
+    /**
+     * Stores the blobs of the tiles. Calls getBlob() on the passed objects, does not modify them.
+     * 
+     * @param objs
+     * @throws StorageException
+     */
+    public void put(List<TileObject> objs) throws StorageException;
+}
@@ -17,6 +17,8 @@
  */
 package org.geowebcache.storage;
 
+import java.util.List;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.io.Resource;
@@ -75,6 +77,23 @@ public class DefaultStorageBroker implements StorageBroker {
         return true;
     }
 
+    @Override
+    public boolean put(List<TileObject> tileObjs) throws StorageException {
+        if (blobStore instanceof BulkBlobStore) {
+            ((BulkBlobStore) blobStore).put(tileObjs);
+        } else {
+            for (TileObject tileObj : tileObjs) {
+                blobStore.put(tileObj);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isBulkPutSupported() {
+        return blobStore instanceof BulkBlobStore;
+    }
+
     public void destroy() {
         log.info("Destroying StorageBroker");
     }
@@ -1,5 +1,7 @@
 package org.geowebcache.storage;
 
+import java.util.List;
+
 /**
  * Abstracts and manages the storing of cachable objects and their metadata.
  */
@@ -47,6 +49,29 @@ public interface StorageBroker {
      */
     public abstract boolean put(TileObject tileObj) throws StorageException;
 
+    /**
+     * Puts the given tiles, typically the ones of a metatile, into storage
+     * @param tileObjs
+     * @return
+     * @throws StorageException
+     * @see #isBulkPutSupported()
+     */
+    public default boolean put(List<TileObject> tileObjs) throws StorageException {
+        for (TileObject tileObj : tileObjs) {
+            put(tileObj);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if {@link #put(List)} stores the tiles more efficiently than one
+     *         {@link #put(TileObject)} per tile, false if they may just as well be stored one by
+     *         one, e.g. in parallel
+     */
+    public default boolean isBulkPutSupported() {
+        return false;
+    }
+
     /**
      * Destroy method for Spring
      */
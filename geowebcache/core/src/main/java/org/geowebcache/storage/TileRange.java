@@ -157,6 +157,14 @@ public class TileRange {
         return parameters;
     }
 
+    /**
+     * @return {@code true} if the range is limited to a {@link #rangeBounds(int) bounding box} per
+     *         zoom level, {@code false} if it covers all the tiles of each zoom level
+     */
+    public boolean isBounded() {
+        return rangeBounds != null;
+    }
+
     public long[] rangeBounds(final int zoomLevel) {
         if (zoomLevel < zoomStart) {
             throw new IllegalArgumentException(zoomLevel + " < zoomStart (" + zoomStart + ")");
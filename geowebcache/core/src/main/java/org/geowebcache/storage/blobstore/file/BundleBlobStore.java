@@ -0,0 +1,728 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.appendFiltered;
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.appendGridsetZoomLevelDir;
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.filteredGridSetId;
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.filteredLayerName;
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.findZoomLevel;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.StorageObject.Status;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.geowebcache.util.FileUtils;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * A {@link BlobStore} that packs square blocks of {@code bundleSize x bundleSize} tiles into a
+ * single bundle file, in the spirit of the ArcGIS compact cache format, instead of writing one
+ * file per tile like {@link FileBlobStore}.
+ * <p>
+ * Layer and gridset/zoom level directories follow the {@link FileBlobStore} layout, so layer and
+ * gridset deletes, renames and layer metadata work the same way. Inside a zoom level directory
+ * tiles live in {@code R<row>C<column>.<extension>.bundle} files, where row and column are the
+ * hexadecimal tile row and column divided by the bundle size. See {@link BundleFile} for the
+ * format of each bundle.
+ * <p>
+ * Concurrent access is coordinated with a read/write lock per bundle: reads share the bundle,
+ * writes and deletes are exclusive. Updated and deleted tiles leave holes in the bundles; once
+ * the wasted space of a bundle exceeds the {@link #setCompactionRatio compaction ratio} it is
+ * rewritten in the background, and {@link #compact()} runs a full pass over the store. Locking
+ * is in-process only, a bundle store directory must not be shared by several GeoWebCache
+ * instances.
+ * <p>
+ * Tile sizes reported to {@link BlobStoreListener}s are the actual blob sizes, there is no file
+ * system block padding to account for.
+ */
+public class BundleBlobStore implements BlobStore {
+
+    private static Log log = LogFactory.getLog(BundleBlobStore.class);
+
+    public static final int DEFAULT_BUNDLE_SIZE = 128;
+
+    public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+    static final long DEFAULT_MIN_COMPACTION_GARBAGE = 1024 * 1024;
+
+    static final String BUNDLE_EXTENSION = ".bundle";
+
+    private static final String COMPACTION_SUFFIX = ".compacting";
+
+    private final String path;
+
+    private final int bundleSize;
+
+    private final File stagingArea;
+
+    private final BlobStoreListenerList listeners = new BlobStoreListenerList();
+
+    private final Striped<ReadWriteLock> bundleLocks = Striped.lazyWeakReadWriteLock(1024);
+
+    private final Set<File> pendingCompactions = Sets.newConcurrentHashSet();
+
+    private final ExecutorService maintenanceService;
+
+    private volatile double compactionRatio = DEFAULT_COMPACTION_RATIO;
+
+    private volatile long minCompactionGarbage = DEFAULT_MIN_COMPACTION_GARBAGE;
+
+    public BundleBlobStore(String rootPath) throws StorageException {
+        this(rootPath, DEFAULT_BUNDLE_SIZE);
+    }
+
+    public BundleBlobStore(String rootPath, int bundleSize) throws StorageException {
+        Preconditions.checkArgument(bundleSize > 0, "bundleSize must be a positive integer: %s",
+                bundleSize);
+        this.path = rootPath;
+        this.bundleSize = bundleSize;
+
+        File fh = new File(path);
+        fh.mkdirs();
+        if (!fh.exists() || !fh.isDirectory() || !fh.canWrite()) {
+            throw new StorageException(path + " is not writable directory.");
+        }
+
+        CustomizableThreadFactory tf;
+        tf = new CustomizableThreadFactory("GWC BundleStore maintenance thread-");
+        tf.setDaemon(true);
+        tf.setThreadPriority(Thread.MIN_PRIORITY);
+        maintenanceService = Executors.newSingleThreadExecutor(tf);
+
+        stagingArea = new File(path, "_gwc_in_progress_deletes_");
+        issuePendingDeletes();
+    }
+
+    private void issuePendingDeletes() {
+        if (!stagingArea.exists()) {
+            return;
+        }
+        if (!stagingArea.isDirectory() || !stagingArea.canWrite()) {
+            throw new IllegalStateException("Staging area is not writable or is not a directory: "
+                    + stagingArea.getAbsolutePath());
+        }
+        for (File directory : stagingArea.listFiles()) {
+            if (directory.isDirectory()) {
+                maintenanceService.submit(new FileBlobStore.DefferredDirectoryDeleteTask(
+                        directory));
+            }
+        }
+    }
+
+    /**
+     * Destroy method for Spring
+     */
+    public void destroy() {
+        maintenanceService.shutdownNow();
+    }
+
+    /**
+     * @return the number of tiles per side of each bundle
+     */
+    public int getBundleSize() {
+        return bundleSize;
+    }
+
+    /**
+     * Sets the ratio of wasted to live bytes above which a bundle gets compacted. Defaults to
+     * {@link #DEFAULT_COMPACTION_RATIO}.
+     */
+    public void setCompactionRatio(double compactionRatio) {
+        Preconditions.checkArgument(compactionRatio >= 0, "compactionRatio can't be negative");
+        this.compactionRatio = compactionRatio;
+    }
+
+    /**
+     * Sets the minimum number of wasted bytes for a bundle to be considered for compaction, so
+     * that small bundles are not rewritten over and over. Defaults to 1MB.
+     */
+    public void setMinCompactionGarbage(long minCompactionGarbage) {
+        Preconditions.checkArgument(minCompactionGarbage >= 0,
+                "minCompactionGarbage can't be negative");
+        this.minCompactionGarbage = minCompactionGarbage;
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#delete(java.lang.String)
+     */
+    public boolean delete(final String layerName) throws StorageException {
+        boolean ret = stageDelete(getLayerPath(layerName), filteredLayerName(layerName));
+        listeners.sendLayerDeleted(layerName);
+        return ret;
+    }
+
+    private boolean stageDelete(final File source, final String targetName)
+            throws StorageException {
+        if (!source.exists() || !source.canWrite()) {
+            log.info(source + " does not exist or is not writable");
+            return false;
+        }
+        if (!stagingArea.exists() && !stagingArea.mkdirs()) {
+            throw new StorageException("Can't create staging directory for deletes: "
+                    + stagingArea.getAbsolutePath());
+        }
+        File tmpFolder = new File(stagingArea, targetName);
+        int tries = 0;
+        while (tmpFolder.exists()) {
+            ++tries;
+            tmpFolder = new File(stagingArea, filteredLayerName(targetName + "." + tries));
+        }
+        if (!FileUtils.renameFile(source, tmpFolder)) {
+            throw new IllegalStateException("Can't rename " + source.getAbsolutePath() + " to "
+                    + tmpFolder.getAbsolutePath() + " for deletion");
+        }
+        maintenanceService.submit(new FileBlobStore.DefferredDirectoryDeleteTask(tmpFolder));
+        return true;
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#deleteByGridsetId(java.lang.String, java.lang.String)
+     */
+    public boolean deleteByGridsetId(final String layerName, final String gridSetId)
+            throws StorageException {
+        final File layerPath = getLayerPath(layerName);
+        if (!layerPath.exists() || !layerPath.canWrite()) {
+            log.info(layerPath + " does not exist or is not writable");
+            return false;
+        }
+        final String filteredGridSetId = filteredGridSetId(gridSetId);
+        File[] gridSubsetCaches = layerPath.listFiles(new FileFilter() {
+            public boolean accept(File pathname) {
+                return pathname.isDirectory() && pathname.getName().startsWith(filteredGridSetId);
+            }
+        });
+        for (File gridSubsetCache : gridSubsetCaches) {
+            String target = filteredLayerName(layerName) + "_" + gridSubsetCache.getName();
+            stageDelete(gridSubsetCache, target);
+        }
+        listeners.sendGridSubsetDeleted(layerName, gridSetId);
+        return true;
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#rename
+     */
+    public boolean rename(final String oldLayerName, final String newLayerName)
+            throws StorageException {
+        final File oldLayerPath = getLayerPath(oldLayerName);
+        final File newLayerPath = getLayerPath(newLayerName);
+
+        if (newLayerPath.exists()) {
+            throw new StorageException("Can't rename layer directory " + oldLayerPath + " to "
+                    + newLayerPath + ". Target directory already exists");
+        }
+        if (!oldLayerPath.exists()) {
+            listeners.sendLayerRenamed(oldLayerName, newLayerName);
+            return true;
+        }
+        if (!oldLayerPath.canWrite()) {
+            log.info(oldLayerPath + " is not writable");
+            return false;
+        }
+        if (!FileUtils.renameFile(oldLayerPath, newLayerPath)) {
+            throw new StorageException("Couldn't rename layer directory " + oldLayerPath + " to "
+                    + newLayerPath);
+        }
+        listeners.sendLayerRenamed(oldLayerName, newLayerName);
+        return true;
+    }
+
+    private File getLayerPath(String layerName) {
+        return new File(path, filteredLayerName(layerName));
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#get(org.geowebcache.storage.TileObject)
+     */
+    public boolean get(TileObject stObj) throws StorageException {
+        final File bundleFile = bundleFile(stObj);
+        final Lock lock = bundleLocks.get(bundleFile.getPath()).readLock();
+        lock.lock();
+        try {
+            BundleFile bundle = BundleFile.open(bundleFile, bundleSize, false);
+            if (bundle != null) {
+                try {
+                    BundleFile.Entry entry = bundle.entry(slot(stObj));
+                    if (entry != null) {
+                        stObj.setBlob(new ByteArrayResource(bundle.read(entry)));
+                        stObj.setCreated(entry.created);
+                        return true;
+                    }
+                } finally {
+                    bundle.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new StorageException("Error reading tile from " + bundleFile.getAbsolutePath(),
+                    e);
+        } finally {
+            lock.unlock();
+        }
+        stObj.setStatus(Status.MISS);
+        return false;
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#put(org.geowebcache.storage.TileObject)
+     */
+    public void put(TileObject stObj) throws StorageException {
+        final File bundleFile = bundleFile(stObj);
+        final long created = stObj.getCreated() > 0 ? stObj.getCreated() : System
+                .currentTimeMillis();
+        final BundleFile.Entry previous;
+        final boolean compact;
+
+        final Lock lock = bundleLocks.get(bundleFile.getPath()).writeLock();
+        lock.lock();
+        try {
+            File parent = bundleFile.getParentFile();
+            if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+                throw new StorageException("Can't create directory " + parent.getAbsolutePath());
+            }
+            BundleFile bundle = BundleFile.open(bundleFile, bundleSize, true);
+            try {
+                previous = bundle.put(slot(stObj), stObj.getBlob(), created);
+                compact = needsCompaction(bundle);
+            } finally {
+                bundle.close();
+            }
+        } catch (IOException e) {
+            throw new StorageException("Error writing tile to " + bundleFile.getAbsolutePath(), e);
+        } finally {
+            lock.unlock();
+        }
+
+        if (compact) {
+            scheduleCompaction(bundleFile);
+        }
+        if (previous == null) {
+            listeners.sendTileStored(stObj);
+        } else {
+            listeners.sendTileUpdated(stObj, previous.size);
+        }
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#delete(org.geowebcache.storage.TileObject)
+     */
+    public boolean delete(TileObject stObj) throws StorageException {
+        final File bundleFile = bundleFile(stObj);
+        final BundleFile.Entry removed;
+        boolean compact = false;
+
+        final Lock lock = bundleLocks.get(bundleFile.getPath()).writeLock();
+        lock.lock();
+        try {
+            if (!bundleFile.exists()) {
+                return false;
+            }
+            BundleFile bundle = BundleFile.open(bundleFile, bundleSize, true);
+            final boolean empty;
+            try {
+                removed = bundle.remove(slot(stObj));
+                // the count is only a hint, the index is checked before dropping the bundle
+                empty = bundle.getLiveCount() <= 0 && bundle.isEmpty();
+                if (!empty) {
+                    compact = needsCompaction(bundle);
+                }
+            } finally {
+                bundle.close();
+            }
+            if (empty) {
+                deleteBundle(bundleFile);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Error deleting tile from "
+                    + bundleFile.getAbsolutePath(), e);
+        } finally {
+            lock.unlock();
+        }
+
+        if (compact) {
+            scheduleCompaction(bundleFile);
+        }
+        if (removed == null) {
+            return false;
+        }
+        stObj.setBlobSize(removed.size);
+        listeners.sendTileDeleted(stObj);
+        return true;
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#delete(org.geowebcache.storage.TileRange)
+     */
+    public boolean delete(TileRange trObj) throws StorageException {
+        final File layerPath = getLayerPath(trObj.getLayerName());
+        if (!layerPath.exists()) {
+            return true;
+        }
+        if (!layerPath.isDirectory() || !layerPath.canWrite()) {
+            throw new StorageException(layerPath + " does is not a directory or is not writable.");
+        }
+
+        final String layerName = trObj.getLayerName();
+        final String gridSetId = trObj.getGridSetId();
+        final String blobFormat = trObj.getMimeType().getFormat();
+        final String parametersId = trObj.getParametersId();
+        final String gridsetPrefix = filteredGridSetId(gridSetId);
+        final String bundleSuffix = "." + trObj.getMimeType().getFileExtension()
+                + BUNDLE_EXTENSION;
+
+        int count = 0;
+        File[] zoomDirs = layerPath.listFiles(new FilePathFilter(trObj));
+        for (File zoomDir : zoomDirs) {
+            final int z = findZoomLevel(gridsetPrefix, zoomDir.getName());
+            File[] bundleFiles = zoomDir.listFiles(new FileFilter() {
+                public boolean accept(File file) {
+                    return file.getName().endsWith(bundleSuffix);
+                }
+            });
+            for (File bundleFile : bundleFiles) {
+                final long[] origin = bundleOrigin(bundleFile.getName());
+                if (origin == null) {
+                    continue;
+                }
+                List<long[]> deleted = deleteRange(bundleFile, origin, trObj, z);
+                for (long[] tile : deleted) {
+                    listeners.sendTileDeleted(layerName, gridSetId, blobFormat, parametersId,
+                            tile[0], tile[1], z, tile[2]);
+                }
+                count += deleted.size();
+            }
+            // prune the zoom level directory if it's empty
+            zoomDir.delete();
+        }
+
+        log.info("Truncated " + count + " tiles");
+        return true;
+    }
+
+    /**
+     * Removes the tiles of a bundle that fall into the range
+     *
+     * @return the {x, y, size} of each tile removed
+     */
+    private List<long[]> deleteRange(File bundleFile, long[] origin, TileRange trObj, int z)
+            throws StorageException {
+        List<long[]> deleted = new ArrayList<long[]>();
+        boolean compact = false;
+        final Lock lock = bundleLocks.get(bundleFile.getPath()).writeLock();
+        lock.lock();
+        try {
+            if (!bundleFile.exists()) {
+                return deleted;
+            }
+            BundleFile bundle = BundleFile.open(bundleFile, bundleSize, true);
+            final boolean empty;
+            try {
+                BundleFile.Entry[] entries = bundle.entries();
+                int live = 0;
+                for (int slot = 0; slot < entries.length; slot++) {
+                    if (entries[slot] == null) {
+                        continue;
+                    }
+                    live++;
+                    long x = origin[0] + slot % bundleSize;
+                    long y = origin[1] + slot / bundleSize;
+                    if (trObj.contains(x, y, z)) {
+                        BundleFile.Entry removed = bundle.remove(slot);
+                        deleted.add(new long[] { x, y, removed.size });
+                    }
+                }
+                // counted out of the index, the header might be stale
+                empty = live == deleted.size();
+                if (!empty && !deleted.isEmpty()) {
+                    compact = needsCompaction(bundle);
+                }
+            } finally {
+                bundle.close();
+            }
+            if (empty) {
+                deleteBundle(bundleFile);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Error deleting tiles from "
+                    + bundleFile.getAbsolutePath(), e);
+        } finally {
+            lock.unlock();
+        }
+        if (compact) {
+            scheduleCompaction(bundleFile);
+        }
+        return deleted;
+    }
+
+    /**
+     * Must be called holding the bundle write lock
+     */
+    private void deleteBundle(File bundleFile) throws IOException {
+        if (!bundleFile.delete() && bundleFile.exists()) {
+            throw new IOException("Unable to delete " + bundleFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Rewrites all the bundles whose wasted space exceeds the configured thresholds. The store
+     * remains usable while compacting, each bundle is locked only while being rewritten.
+     *
+     * @return the number of bundles compacted
+     */
+    public int compact() throws StorageException {
+        int compacted = 0;
+        File[] layerDirs = new File(path).listFiles();
+        if (layerDirs == null) {
+            return 0;
+        }
+        for (File layerDir : layerDirs) {
+            if (!layerDir.isDirectory() || layerDir.equals(stagingArea)) {
+                continue;
+            }
+            for (File zoomDir : listDirectories(layerDir)) {
+                File[] bundleFiles = zoomDir.listFiles(new FileFilter() {
+                    public boolean accept(File file) {
+                        return file.getName().endsWith(BUNDLE_EXTENSION);
+                    }
+                });
+                if (bundleFiles == null) {
+                    continue;
+                }
+                for (File bundleFile : bundleFiles) {
+                    try {
+                        if (compact(bundleFile)) {
+                            compacted++;
+                        }
+                    } catch (IOException e) {
+                        throw new StorageException("Error compacting "
+                                + bundleFile.getAbsolutePath(), e);
+                    }
+                }
+            }
+        }
+        return compacted;
+    }
+
+    private static File[] listDirectories(File dir) {
+        File[] dirs = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isDirectory();
+            }
+        });
+        return dirs == null ? new File[0] : dirs;
+    }
+
+    /**
+     * Rewrites a single bundle without holes if it needs to
+     *
+     * @return {@code true} if the bundle was compacted
+     */
+    boolean compact(final File bundleFile) throws IOException {
+        final File compacted = new File(bundleFile.getParentFile(), bundleFile.getName()
+                + COMPACTION_SUFFIX);
+        final Lock lock = bundleLocks.get(bundleFile.getPath()).writeLock();
+        lock.lock();
+        try {
+            BundleFile bundle = BundleFile.open(bundleFile, bundleSize, false);
+            if (bundle == null) {
+                return false;
+            }
+            try {
+                if (!needsCompaction(bundle)) {
+                    return false;
+                }
+                if (compacted.exists() && !compacted.delete()) {
+                    throw new IOException("Unable to delete stale " + compacted.getAbsolutePath());
+                }
+                bundle.compactTo(compacted);
+            } finally {
+                bundle.close();
+            }
+            if (!FileUtils.renameFile(compacted, bundleFile)) {
+                // renaming over an existing file might fail on windows
+                if (!(bundleFile.delete() && FileUtils.renameFile(compacted, bundleFile))) {
+                    compacted.delete();
+                    throw new IOException("Unable to replace " + bundleFile.getAbsolutePath()
+                            + " with its compacted copy");
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean needsCompaction(BundleFile bundle) throws IOException {
+        final long garbage = bundle.getGarbage();
+        return garbage > 0 && garbage >= minCompactionGarbage
+                && garbage > bundle.getLiveBytes() * compactionRatio;
+    }
+
+    private void scheduleCompaction(final File bundleFile) {
+        if (!pendingCompactions.add(bundleFile)) {
+            return;
+        }
+        try {
+            maintenanceService.submit(new Runnable() {
+                public void run() {
+                    pendingCompactions.remove(bundleFile);
+                    try {
+                        compact(bundleFile);
+                    } catch (IOException e) {
+                        log.warn("Error compacting " + bundleFile.getAbsolutePath(), e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingCompactions.remove(bundleFile);
+            log.debug("Maintenance service shut down, skipping compaction of " + bundleFile);
+        }
+    }
+
+    /**
+     * @return the {x, y} index of the bottom left tile of the bundle, parsed out of its file name,
+     *         or {@code null} if the name does not match
+     */
+    long[] bundleOrigin(String bundleFileName) {
+        final int colIndex = bundleFileName.indexOf('C');
+        final int extIndex = bundleFileName.indexOf('.');
+        if (!bundleFileName.startsWith("R") || colIndex < 0 || extIndex < colIndex) {
+            return null;
+        }
+        try {
+            long row = Long.parseLong(bundleFileName.substring(1, colIndex), 16);
+            long col = Long.parseLong(bundleFileName.substring(colIndex + 1, extIndex), 16);
+            return new long[] { col * bundleSize, row * bundleSize };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private int slot(TileObject stObj) {
+        final long[] xyz = stObj.getXYZ();
+        return (int) ((xyz[1] % bundleSize) * bundleSize + xyz[0] % bundleSize);
+    }
+
+    /**
+     * Builds the path of the bundle a tile belongs to, following the {@link FilePathGenerator}
+     * directory layout down to the zoom level directory
+     */
+    File bundleFile(TileObject stObj) {
+        final MimeType mimeType;
+        try {
+            mimeType = MimeType.createFromFormat(stObj.getBlobFormat());
+        } catch (MimeException me) {
+            log.error(me.getMessage());
+            throw new RuntimeException(me);
+        }
+
+        final long[] xyz = stObj.getXYZ();
+        String parametersId = stObj.getParametersId();
+        Map<String, String> parameters = stObj.getParameters();
+        if (parametersId == null && parameters != null && !parameters.isEmpty()) {
+            parametersId = FilePathGenerator.getParametersId(parameters);
+            stObj.setParametersId(parametersId);
+        }
+
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(path).append(File.separatorChar);
+        appendFiltered(stObj.getLayerName(), sb);
+        sb.append(File.separatorChar);
+        appendGridsetZoomLevelDir(stObj.getGridSetId(), xyz[2], sb);
+        if (parametersId != null) {
+            sb.append('_').append(parametersId);
+        }
+        sb.append(File.separatorChar);
+        sb.append(String.format("R%04xC%04x", xyz[1] / bundleSize, xyz[0] / bundleSize));
+        sb.append('.').append(mimeType.getFileExtension()).append(BUNDLE_EXTENSION);
+        return new File(sb.toString());
+    }
+
+    /**
+     * Deletes all the layers, in the background like {@link #delete(String)}. No layer deleted
+     * events are sent, as the original layer names can't be told from their directory names.
+     *
+     * @see org.geowebcache.storage.BlobStore#clear()
+     */
+    public void clear() throws StorageException {
+        for (File layerDir : listDirectories(new File(path))) {
+            if (!layerDir.equals(stagingArea)) {
+                stageDelete(layerDir, layerDir.getName());
+            }
+        }
+    }
+
+    /**
+     * Add an event listener
+     */
+    public void addListener(BlobStoreListener listener) {
+        listeners.addListener(listener);
+    }
+
+    /**
+     * Remove an event listener
+     */
+    public boolean removeListener(BlobStoreListener listener) {
+        return listeners.removeListener(listener);
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#getLayerMetadata(java.lang.String, java.lang.String)
+     */
+    public String getLayerMetadata(final String layerName, final String key) {
+        return LayerMetadataFiles.getValue(
+                LayerMetadataFiles.metadataFile(getLayerPath(layerName)), key);
+    }
+
+    /**
+     * @see org.geowebcache.storage.BlobStore#putLayerMetadata(java.lang.String, java.lang.String,
+     *      java.lang.String)
+     */
+    public void putLayerMetadata(final String layerName, final String key, final String value) {
+        LayerMetadataFiles.putValue(LayerMetadataFiles.metadataFile(getLayerPath(layerName)),
+                key, value);
+    }
+
+    @Override
+    public boolean layerExists(String layerName) {
+        return getLayerPath(layerName).exists();
+    }
+}
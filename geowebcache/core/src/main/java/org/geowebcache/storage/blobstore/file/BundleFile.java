@@ -0,0 +1,387 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.geowebcache.io.Resource;
+
+/**
+ * A single data file of a {@link BundleBlobStore}, holding up to {@code dim x dim} tiles of the
+ * same layer, gridset, zoom level, parameters and format.
+ * <p>
+ * The file layout is:
+ *
+ * <pre>
+ * header  (32 bytes)         magic, version, dim, reserved (int), live tile count, live bytes (long)
+ * index   (dim * dim * 20)   per slot: data offset (long), size (int), creation time (long)
+ * data                       tile contents, appended in write order
+ * </pre>
+ *
+ * An index entry with a zero offset is an empty slot. Updated and deleted tiles leave holes in the
+ * data region that are reclaimed by {@link #compactTo(File)}, which is what
+ * {@link BundleBlobStore#compact()} uses.
+ * <p>
+ * Instances are not thread safe, callers are expected to hold the {@link BundleBlobStore} lock for
+ * the bundle while using them.
+ */
+final class BundleFile implements Closeable {
+
+    /**
+     * A non empty index entry
+     */
+    static final class Entry {
+
+        final long offset;
+
+        final int size;
+
+        final long created;
+
+        Entry(long offset, int size, long created) {
+            this.offset = offset;
+            this.size = size;
+            this.created = created;
+        }
+    }
+
+    static final int MAGIC = 0x47574342; // "GWCB"
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+
+    static final int ENTRY_SIZE = 20;
+
+    private final File file;
+
+    private final int dim;
+
+    private final RandomAccessFile raf;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer entryBuffer = ByteBuffer.allocate(ENTRY_SIZE);
+
+    private long liveCount;
+
+    private long liveBytes;
+
+    private boolean dirty;
+
+    private BundleFile(File file, int dim, RandomAccessFile raf) throws IOException {
+        this.file = file;
+        this.dim = dim;
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        if (!hasHeader(raf)) {
+            // brand new bundle, or one whose creation was interrupted before the header got
+            // written. The index is left sparse where the file system supports it
+            raf.setLength(0);
+            raf.setLength(dataStart(dim));
+            dirty = true;
+        } else {
+            readHeader();
+        }
+    }
+
+    /**
+     * Opens the bundle file, creating it if {@code writable} is true and it does not yet exist.
+     *
+     * @return the open bundle, or {@code null} if not writable and the file does not exist or
+     *         was never initialized
+     */
+    static BundleFile open(File file, int dim, boolean writable) throws IOException {
+        if (!writable && !file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        boolean opened = false;
+        try {
+            if (!writable && !hasHeader(raf)) {
+                // left empty by a crash right after its creation, nothing to read in there
+                return null;
+            }
+            BundleFile bundle = new BundleFile(file, dim, raf);
+            opened = true;
+            return bundle;
+        } finally {
+            if (!opened) {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * A bundle is initialized once its header is written, a crash between the file creation and
+     * the first flush can leave it empty or with a zeroed header
+     */
+    private static boolean hasHeader(RandomAccessFile raf) throws IOException {
+        if (raf.length() < HEADER_SIZE) {
+            return false;
+        }
+        raf.seek(0);
+        return raf.readInt() != 0;
+    }
+
+    static long dataStart(int dim) {
+        return HEADER_SIZE + (long) dim * dim * ENTRY_SIZE;
+    }
+
+    private static long entryPosition(int slot) {
+        return HEADER_SIZE + (long) slot * ENTRY_SIZE;
+    }
+
+    private void readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+        final int magic = header.getInt();
+        final int version = header.getInt();
+        final int fileDim = header.getInt();
+        header.getInt();
+        if (magic != MAGIC || version != VERSION) {
+            throw new IOException(file.getAbsolutePath() + " is not a version " + VERSION
+                    + " tile bundle");
+        }
+        if (fileDim != dim) {
+            throw new IOException(file.getAbsolutePath() + " was created with a bundle size of "
+                    + fileDim + ", expected " + dim);
+        }
+        liveCount = header.getLong();
+        liveBytes = header.getLong();
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(dim).putInt(0);
+        header.putLong(liveCount).putLong(liveBytes);
+        header.flip();
+        writeFully(header, 0);
+    }
+
+    /**
+     * @return the index entry for {@code slot}, or {@code null} if the slot is empty
+     */
+    Entry entry(int slot) throws IOException {
+        entryBuffer.clear();
+        long position = entryPosition(slot);
+        while (entryBuffer.hasRemaining()) {
+            int read = channel.read(entryBuffer, position);
+            if (read < 0) {
+                return null;
+            }
+            position += read;
+        }
+        entryBuffer.flip();
+        return toEntry(entryBuffer);
+    }
+
+    /**
+     * Reads the whole index in one go.
+     *
+     * @return an array of {@code dim * dim} entries, {@code null} for empty slots
+     */
+    Entry[] entries() throws IOException {
+        final int slots = dim * dim;
+        ByteBuffer index = ByteBuffer.allocate(slots * ENTRY_SIZE);
+        readFully(index, HEADER_SIZE);
+        index.flip();
+        Entry[] entries = new Entry[slots];
+        for (int slot = 0; slot < slots; slot++) {
+            entries[slot] = toEntry(index);
+        }
+        return entries;
+    }
+
+    private static Entry toEntry(ByteBuffer buffer) {
+        final long offset = buffer.getLong();
+        final int size = buffer.getInt();
+        final long created = buffer.getLong();
+        return offset == 0 ? null : new Entry(offset, size, created);
+    }
+
+    byte[] read(Entry entry) throws IOException {
+        ByteBuffer contents = ByteBuffer.allocate(entry.size);
+        readFully(contents, entry.offset);
+        return contents.array();
+    }
+
+    /**
+     * Appends {@code blob} at the end of the data region and points {@code slot} to it.
+     *
+     * @return the entry {@code slot} pointed to before, or {@code null} if it was empty
+     */
+    Entry put(int slot, Resource blob, long created) throws IOException {
+        final Entry previous = entry(slot);
+        final long offset = channel.size();
+        channel.position(offset);
+        blob.transferTo(channel);
+        final long size = channel.position() - offset;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Tile too big for a bundle: " + size + " bytes");
+        }
+        writeEntry(slot, offset, (int) size, created);
+        if (previous == null) {
+            liveCount++;
+        } else {
+            liveBytes -= previous.size;
+        }
+        liveBytes += size;
+        dirty = true;
+        return previous;
+    }
+
+    /**
+     * Empties {@code slot}, leaving its contents as a hole in the data region.
+     *
+     * @return the removed entry, or {@code null} if the slot was already empty
+     */
+    Entry remove(int slot) throws IOException {
+        final Entry previous = entry(slot);
+        if (previous != null) {
+            writeEntry(slot, 0, 0, 0);
+            liveCount--;
+            liveBytes -= previous.size;
+            dirty = true;
+        }
+        return previous;
+    }
+
+    private void writeEntry(int slot, long offset, int size, long created) throws IOException {
+        entryBuffer.clear();
+        entryBuffer.putLong(offset).putInt(size).putLong(created);
+        entryBuffer.flip();
+        writeFully(entryBuffer, entryPosition(slot));
+    }
+
+    long getLiveCount() {
+        return liveCount;
+    }
+
+    /**
+     * Recounts the live tiles and bytes out of the index, as the header is only updated on
+     * {@link #close()} and might be stale if the process died while the bundle was open
+     *
+     * @return {@code true} if all the slots are empty
+     */
+    boolean isEmpty() throws IOException {
+        long count = 0;
+        long bytes = 0;
+        for (Entry entry : entries()) {
+            if (entry != null) {
+                count++;
+                bytes += entry.size;
+            }
+        }
+        if (count != liveCount || bytes != liveBytes) {
+            liveCount = count;
+            liveBytes = bytes;
+            dirty = true;
+        }
+        return count == 0;
+    }
+
+    long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * @return the number of bytes in the data region not referenced by any index entry
+     */
+    long getGarbage() throws IOException {
+        return Math.max(0, channel.size() - dataStart(dim) - liveBytes);
+    }
+
+    /**
+     * Writes a copy of this bundle to {@code target} with the live tiles laid out contiguously,
+     * in slot order. {@code target} must not exist.
+     */
+    void compactTo(File target) throws IOException {
+        final Entry[] entries = entries();
+        BundleFile compacted = open(target, dim, true);
+        try {
+            final FileChannel out = compacted.channel;
+            long position = dataStart(dim);
+            out.position(position);
+            for (int slot = 0; slot < entries.length; slot++) {
+                Entry entry = entries[slot];
+                if (entry == null) {
+                    continue;
+                }
+                long copied = 0;
+                while (copied < entry.size) {
+                    long count = channel.transferTo(entry.offset + copied, entry.size - copied,
+                            out);
+                    if (count <= 0) {
+                        throw new EOFException("Unexpected end of " + file.getAbsolutePath());
+                    }
+                    copied += count;
+                }
+                compacted.writeEntry(slot, position, entry.size, entry.created);
+                compacted.liveCount++;
+                compacted.liveBytes += entry.size;
+                position += entry.size;
+                out.position(position);
+            }
+            compacted.dirty = true;
+            compacted.flush();
+            out.force(true);
+        } finally {
+            compacted.close();
+        }
+    }
+
+    private void flush() throws IOException {
+        if (dirty) {
+            writeHeader();
+            dirty = false;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of " + file.getAbsolutePath());
+            }
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Updates the header if needed and releases the file handle
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -23,19 +23,18 @@ import static org.geowebcache.storage.blobstore.file.FilePathUtils.findZoomLevel
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.nio.channels.FileChannel;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
@@ -84,6 +83,28 @@ public class FileBlobStore implements BlobStore {
 
     private ExecutorService deleteExecutorService;
 
+    private int truncateParallelism = Runtime.getRuntime().availableProcessors();
+
+    private ForkJoinPool truncatePool;
+
+    static final int DEFAULT_MAX_DEDUPLICATED_SIZE = 8192;
+
+    private int maxDeduplicatedSize = DEFAULT_MAX_DEDUPLICATED_SIZE;
+
+    private volatile TileDeduplicator deduplicator;
+
+    private volatile TileExistenceIndex existenceIndex;
+
+    public static final int DEFAULT_WRITE_BEHIND_QUEUE_SIZE = 1000;
+
+    public static final int DEFAULT_WRITE_BEHIND_RETRIES = 3;
+
+    private int writeBehindRetries = DEFAULT_WRITE_BEHIND_RETRIES;
+
+    private static final long WRITE_BEHIND_SHUTDOWN_SECONDS = 60;
+
+    private volatile WriteBehindQueue writeQueue;
+
     public FileBlobStore(DefaultStorageFinder defStoreFinder) throws StorageException,
             ConfigurationException {
         this(defStoreFinder.getDefaultPath());
@@ -140,14 +161,180 @@ public class FileBlobStore implements BlobStore {
         deleteExecutorService = Executors.newFixedThreadPool(1);
     }
 
+    /**
+     * Enables storing byte-identical tiles once, as hard links to a shared copy, which saves disk
+     * space and page cache on caches with many blank or solid color tiles. Only tiles up to
+     * {@link #setMaxDeduplicatedSize(int) a maximum size} are considered.
+     * <p>
+     * Listeners are still notified of the padded size of each tile, so the disk quota accounts for
+     * the logical size of the cache rather than the space actually used. Deduplicated tiles share
+     * their last modified time, so only the tiles created in the same second are shared, which
+     * keeps the age of every tile exact to the second for the cache expiration and the reseeds.
+     * <p>
+     * Requires a file system supporting hard links and link counts, deduplication stays disabled
+     * with a warning otherwise.
+     */
+    public synchronized void setDeduplicate(boolean deduplicate) throws StorageException {
+        if (!deduplicate) {
+            deduplicator = null;
+            return;
+        }
+        if (deduplicator != null) {
+            return;
+        }
+        try {
+            deduplicator = new TileDeduplicator(new File(path), tmp, maxDeduplicatedSize);
+        } catch (UnsupportedOperationException e) {
+            log.warn("Tile deduplication is not supported on " + path + ": " + e.getMessage());
+            return;
+        }
+        // catch up with shared tiles left over by deletes that happened while disabled
+        schedulePurge();
+    }
+
+    public boolean isDeduplicate() {
+        return deduplicator != null;
+    }
+
+    /**
+     * Sets the size in bytes of the largest tile considered for deduplication, defaults to
+     * {@value #DEFAULT_MAX_DEDUPLICATED_SIZE}. Takes effect when deduplication is enabled.
+     */
+    public synchronized void setMaxDeduplicatedSize(int maxDeduplicatedSize) {
+        Preconditions.checkArgument(maxDeduplicatedSize > 0,
+                "maxDeduplicatedSize must be a positive integer");
+        this.maxDeduplicatedSize = maxDeduplicatedSize;
+    }
+
+    /**
+     * Enables answering most misses from in memory Bloom filters rather than the file system,
+     * which saves several metadata system calls per miss on partially seeded layers. The filters
+     * are built in the background the first time a layer, gridset, format and parameters
+     * combination is requested, and saved to the layer directories on {@link #destroy()}.
+     * <p>
+     * Only tiles stored through this blob store are seen by the filters, so this should not be
+     * enabled when other processes write to the same cache directory.
+     */
+    public synchronized void setExistenceFilter(boolean enabled) {
+        if (enabled && existenceIndex == null) {
+            existenceIndex = new TileExistenceIndex(new File(path));
+        } else if (!enabled && existenceIndex != null) {
+            existenceIndex.destroy();
+            existenceIndex = null;
+        }
+    }
+
+    public boolean isExistenceFilter() {
+        return existenceIndex != null;
+    }
+
+    TileExistenceIndex getExistenceIndex() {
+        return existenceIndex;
+    }
+
+    /**
+     * Enables writing tiles asynchronously: {@link #put(TileObject)} queues a copy of the tile and
+     * returns, while {@code writerThreads} threads write the queued tiles to disk. Queued tiles are
+     * served from memory until written, and {@link BlobStoreListener listeners} are notified once
+     * they are on disk. When {@code queueCapacity} tiles are waiting, puts block until there's room
+     * in the queue.
+     * <p>
+     * Layer, gridset and tile range deletes wait for the queued tiles first, and
+     * {@link #destroy()} waits for the queue to drain.
+     *
+     * @param writerThreads the number of writer threads, {@code 0} to write synchronously
+     * @param queueCapacity the maximum number of queued tiles
+     */
+    public synchronized void setWriteBehind(int writerThreads, int queueCapacity) {
+        Preconditions.checkArgument(writerThreads >= 0, "writerThreads can't be negative");
+        Preconditions.checkArgument(queueCapacity > 0, "queueCapacity must be a positive integer");
+        final WriteBehindQueue previous = writeQueue;
+        writeQueue = writerThreads == 0 ? null : new WriteBehindQueue(
+                new WriteBehindQueue.TileWriter() {
+                    public void write(TileObject tile) throws StorageException {
+                        FileBlobStore.this.write(tile);
+                    }
+                }, writerThreads, queueCapacity);
+        if (writeQueue != null) {
+            writeQueue.setRetries(writeBehindRetries);
+        }
+        if (previous != null) {
+            previous.shutdown(WRITE_BEHIND_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Sets the number of times a queued tile failing to be written is retried, with an
+     * exponential backoff, before giving up on it. The tile is still served from memory until then.
+     *
+     * @see #setWriteBehind(int, int)
+     */
+    public synchronized void setWriteBehindRetries(int writeBehindRetries) {
+        Preconditions.checkArgument(writeBehindRetries >= 0,
+                "writeBehindRetries can't be negative");
+        this.writeBehindRetries = writeBehindRetries;
+        if (writeQueue != null) {
+            writeQueue.setRetries(writeBehindRetries);
+        }
+    }
+
+    /**
+     * @return a snapshot of the asynchronous write queue, or {@code null} if tiles are written
+     *         synchronously
+     * @see #setWriteBehind(int, int)
+     */
+    public WriteBehindStatistics getWriteBehindStatistics() {
+        final WriteBehindQueue writeQueue = this.writeQueue;
+        return writeQueue == null ? null : writeQueue.getStatistics();
+    }
+
+    /**
+     * Waits for the queued tiles to be written, so that bulk operations see them on disk
+     */
+    private void flushWrites() throws StorageException {
+        final WriteBehindQueue writeQueue = this.writeQueue;
+        if (writeQueue == null) {
+            return;
+        }
+        try {
+            writeQueue.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted waiting for queued tiles to be written");
+        }
+    }
+
+    /**
+     * Removes the shared tile copies left unreferenced by bulk deletes, once the staged deletes
+     * issued so far are done
+     */
+    private void schedulePurge() {
+        final TileDeduplicator deduplicator = this.deduplicator;
+        if (deduplicator == null) {
+            return;
+        }
+        deleteExecutorService.submit(new Runnable() {
+            public void run() {
+                deduplicator.purgeUnreferenced();
+            }
+        });
+    }
+
     /**
      * Destroy method for Spring
      */
     public void destroy() {
+        setWriteBehind(0, DEFAULT_WRITE_BEHIND_QUEUE_SIZE);
         deleteExecutorService.shutdownNow();
+        setExistenceFilter(false);
+        synchronized (this) {
+            if (truncatePool != null) {
+                truncatePool.shutdownNow();
+            }
+        }
     }
 
-    private static class DefferredDirectoryDeleteTask implements Runnable {
+    static class DefferredDirectoryDeleteTask implements Runnable {
 
         private final File directory;
 
@@ -201,11 +388,17 @@ public class FileBlobStore implements BlobStore {
      * @see org.geowebcache.storage.BlobStore#delete(java.lang.String)
      */
     public boolean delete(final String layerName) throws StorageException {
+        flushWrites();
         final File source = getLayerPath(layerName);
         final String target = filteredLayerName(layerName);
 
         boolean ret = stageDelete(source, target);
 
+        schedulePurge();
+        final TileExistenceIndex existenceIndex = this.existenceIndex;
+        if (existenceIndex != null) {
+            existenceIndex.layerDeleted(layerName);
+        }
         this.listeners.sendLayerDeleted(layerName);
         return ret;
     }
@@ -244,6 +437,7 @@ public class FileBlobStore implements BlobStore {
      */
     public boolean deleteByGridsetId(final String layerName, final String gridSetId)
             throws StorageException {
+        flushWrites();
 
         final File layerPath = getLayerPath(layerName);
         if (!layerPath.exists() || !layerPath.canWrite()) {
@@ -266,6 +460,11 @@ public class FileBlobStore implements BlobStore {
             String target = filteredLayerName(layerName) + "_" + gridSubsetCache.getName();
             stageDelete(gridSubsetCache, target);
         }
+        schedulePurge();
+        final TileExistenceIndex existenceIndex = this.existenceIndex;
+        if (existenceIndex != null) {
+            existenceIndex.gridSetDeleted(layerName, gridSetId);
+        }
 
         listeners.sendGridSubsetDeleted(layerName, gridSetId);
 
@@ -283,6 +482,7 @@ public class FileBlobStore implements BlobStore {
      */
     public boolean rename(final String oldLayerName, final String newLayerName)
             throws StorageException {
+        flushWrites();
         final File oldLayerPath = getLayerPath(oldLayerName);
         final File newLayerPath = getLayerPath(newLayerName);
 
@@ -299,6 +499,10 @@ public class FileBlobStore implements BlobStore {
             return false;
         }
         boolean renamed = FileUtils.renameFile(oldLayerPath, newLayerPath);
+        final TileExistenceIndex existenceIndex = this.existenceIndex;
+        if (existenceIndex != null) {
+            existenceIndex.layerRenamed(oldLayerName, newLayerName);
+        }
         if (renamed) {
             this.listeners.sendLayerRenamed(oldLayerName, newLayerName);
         } else {
@@ -320,16 +524,23 @@ public class FileBlobStore implements BlobStore {
      */
     public boolean delete(TileObject stObj) throws StorageException {
         File fh = getFileHandleTile(stObj, false);
-        boolean ret = false;
+        final WriteBehindQueue writeQueue = this.writeQueue;
+        // a queued tile was never reported to the listeners, so discarding it is enough
+        boolean ret = writeQueue != null && writeQueue.cancel(fh);
         // we call fh.length() here to check wthether the file exists and its length in a single
         // operation cause lots of calls to exists() may raise the file system cache usage to the
         // ceiling. File.length() returns 0 if the file does not exist anyway
         final long length = fh.length();
         final boolean exists = length > 0;
         if (exists) {
+            final TileDeduplicator deduplicator = this.deduplicator;
+            final File shared = deduplicator == null ? null : deduplicator.sharedCopyOf(fh);
             if (!fh.delete()) {
                 throw new StorageException("Unable to delete " + fh.getAbsolutePath());
             }
+            if (shared != null) {
+                deduplicator.release(shared);
+            }
             stObj.setBlobSize((int) padSize(length));
             listeners.sendTileDeleted(stObj);
 
@@ -348,10 +559,13 @@ public class FileBlobStore implements BlobStore {
 
     /**
      * Delete tiles within a range.
+     * <p>
+     * Zoom level and intermediate directories are walked in parallel on a fork/join pool whose
+     * size is set by {@link #setTruncateParallelism(int)}. Intermediate directories that fall
+     * outside the range bounds are skipped without being listed.
      */
     public boolean delete(TileRange trObj) throws StorageException {
-        int count = 0;
-
+        flushWrites();
         String prefix = path + File.separator + filteredLayerName(trObj.getLayerName());
 
         final File layerPath = new File(prefix);
@@ -368,51 +582,213 @@ public class FileBlobStore implements BlobStore {
 
         final FilePathFilter tileFinder = new FilePathFilter(trObj);
 
-        final String layerName = trObj.getLayerName();
-        final String gridSetId = trObj.getGridSetId();
-        final String blobFormat = trObj.getMimeType().getFormat();
-        final String parametersId = trObj.getParametersId();
-
         File[] srsZoomDirs = layerPath.listFiles(tileFinder);
 
-        final String gridsetPrefix = filteredGridSetId(gridSetId);
+        final String gridsetPrefix = filteredGridSetId(trObj.getGridSetId());
+        List<ZoomLevelTruncateTask> tasks = new ArrayList<ZoomLevelTruncateTask>(
+                srsZoomDirs.length);
         for (File srsZoomParamId : srsZoomDirs) {
             int zoomLevel = findZoomLevel(gridsetPrefix, srsZoomParamId.getName());
-            File[] intermediates = srsZoomParamId.listFiles(tileFinder);
+            tasks.add(new ZoomLevelTruncateTask(trObj, srsZoomParamId, zoomLevel));
+        }
+
+        long count = getTruncatePool().invoke(new TruncateTask(tasks));
+
+        log.info("Truncated " + count + " tiles");
+        schedulePurge();
+
+        return true;
+    }
+
+    /**
+     * Sets the maximum number of threads used to walk the cache directories on
+     * {@link #delete(TileRange)}. Defaults to the number of available processors.
+     */
+    public synchronized void setTruncateParallelism(int parallelism) {
+        Preconditions.checkArgument(parallelism > 0, "parallelism must be a positive integer");
+        this.truncateParallelism = parallelism;
+        if (truncatePool != null) {
+            truncatePool.shutdown();
+            truncatePool = null;
+        }
+    }
+
+    private synchronized ForkJoinPool getTruncatePool() {
+        if (truncatePool == null) {
+            truncatePool = new ForkJoinPool(truncateParallelism);
+        }
+        return truncatePool;
+    }
+
+    /**
+     * Truncates a set of zoom level directories and adds up the number of deleted tiles
+     */
+    private static class TruncateTask extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<? extends RecursiveTask<Long>> subtasks;
 
+        TruncateTask(List<? extends RecursiveTask<Long>> subtasks) {
+            this.subtasks = subtasks;
+        }
+
+        @Override
+        protected Long compute() {
+            long count = 0;
+            for (RecursiveTask<Long> task : invokeAll(subtasks)) {
+                count += task.join();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Truncates the intermediate directories of a zoom level that intersect the range, then
+     * prunes the zoom level directory if it's left empty
+     */
+    private class ZoomLevelTruncateTask extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TileRange range;
+
+        private final File zoomDir;
+
+        private final int zoomLevel;
+
+        ZoomLevelTruncateTask(TileRange range, File zoomDir, int zoomLevel) {
+            this.range = range;
+            this.zoomDir = zoomDir;
+            this.zoomLevel = zoomLevel;
+        }
+
+        @Override
+        protected Long compute() {
+            final long[] bounds = range.isBounded() ? range.rangeBounds(zoomLevel) : null;
+            // see FilePathGenerator, intermediate directories hold half x half tiles
+            final long half = 2 << (zoomLevel / 2);
+
+            File[] intermediates = zoomDir.listFiles();
+            if (intermediates == null) {
+                return 0L;
+            }
+            List<IntermediateDirTruncateTask> tasks = new ArrayList<IntermediateDirTruncateTask>();
             for (File imd : intermediates) {
-                File[] tiles = imd.listFiles(tileFinder);
-                long length;
-
-                for (File tile : tiles) {
-                    length = tile.length();
-                    boolean deleted = tile.delete();
-                    if (deleted) {
-                        String[] coords = tile.getName().split("\\.")[0].split("_");
-                        long x = Long.parseLong(coords[0]);
-                        long y = Long.parseLong(coords[1]);
-                        listeners.sendTileDeleted(layerName, gridSetId, blobFormat, parametersId,
-                                x, y, zoomLevel, padSize(length));
-                        count++;
-                    }
+                long[] halfXY = parseCoordinates(imd.getName(), imd.getName().length());
+                if (halfXY == null || !imd.isDirectory()) {
+                    continue;
                 }
-
-                // Try deleting the directory (will be done only if the directory is empty)
-                if (imd.delete()) {
-                    // listeners.sendDirectoryDeleted(layerName);
+                if (bounds != null) {
+                    long minX = halfXY[0] * half;
+                    long minY = halfXY[1] * half;
+                    long maxX = minX + half - 1;
+                    long maxY = minY + half - 1;
+                    if (maxX < bounds[0] || minX > bounds[2] || maxY < bounds[1]
+                            || minY > bounds[3]) {
+                        continue;
+                    }
                 }
+                tasks.add(new IntermediateDirTruncateTask(range, imd, zoomLevel));
+            }
+            long count = 0;
+            for (IntermediateDirTruncateTask task : invokeAll(tasks)) {
+                count += task.join();
             }
 
             // Try deleting the zoom directory (will be done only if the directory is empty)
-            if (srsZoomParamId.delete()) {
-                count++;
-                // listeners.sendDirectoryDeleted(layerName);
+            zoomDir.delete();
+
+            return count;
+        }
+    }
+
+    /**
+     * Deletes the tiles of an intermediate directory that are contained in the range
+     */
+    private class IntermediateDirTruncateTask extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TileRange range;
+
+        private final File dir;
+
+        private final int zoomLevel;
+
+        IntermediateDirTruncateTask(TileRange range, File dir, int zoomLevel) {
+            this.range = range;
+            this.dir = dir;
+            this.zoomLevel = zoomLevel;
+        }
+
+        @Override
+        protected Long compute() {
+            final String layerName = range.getLayerName();
+            final String gridSetId = range.getGridSetId();
+            final String blobFormat = range.getMimeType().getFormat();
+            final String parametersId = range.getParametersId();
+            final String extension = range.getMimeType().getFileExtension();
+
+            String[] tiles = dir.list();
+            if (tiles == null) {
+                return 0L;
+            }
+            long count = 0;
+            for (String name : tiles) {
+                final int dot = name.lastIndexOf('.');
+                if (dot < 0 || name.length() - dot - 1 != extension.length()
+                        || !name.regionMatches(true, dot + 1, extension, 0, extension.length())) {
+                    continue;
+                }
+                long[] xy = parseCoordinates(name, dot);
+                if (xy == null || !range.contains(xy[0], xy[1], zoomLevel)) {
+                    continue;
+                }
+                File tile = new File(dir, name);
+                long length = tile.length();
+                if (tile.delete()) {
+                    listeners.sendTileDeleted(layerName, gridSetId, blobFormat, parametersId,
+                            xy[0], xy[1], zoomLevel, padSize(length));
+                    count++;
+                }
             }
+
+            // Try deleting the directory (will be done only if the directory is empty)
+            dir.delete();
+
+            return count;
         }
+    }
 
-        log.info("Truncated " + count + " tiles");
+    /**
+     * Parses the {@code <x>_<y>} prefix of a file or directory name up to {@code end}
+     *
+     * @return the parsed {x, y}, or {@code null} if the name doesn't match
+     */
+    static long[] parseCoordinates(String name, int end) {
+        final int separator = name.indexOf('_');
+        if (separator <= 0 || separator >= end - 1) {
+            return null;
+        }
+        long x = parseNumber(name, 0, separator);
+        long y = parseNumber(name, separator + 1, end);
+        if (x < 0 || y < 0) {
+            return null;
+        }
+        return new long[] { x, y };
+    }
 
-        return true;
+    private static long parseNumber(String name, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
     }
 
     /**
@@ -423,7 +799,16 @@ public class FileBlobStore implements BlobStore {
      */
     public boolean get(TileObject stObj) throws StorageException {
         File fh = getFileHandleTile(stObj, false);
-        if (!fh.exists()) {
+        final WriteBehindQueue writeQueue = this.writeQueue;
+        final TileObject queued = writeQueue == null ? null : writeQueue.pending(fh);
+        if (queued != null) {
+            stObj.setBlob(queued.getBlob());
+            stObj.setCreated(queued.getCreated());
+            stObj.setBlobSize((int) queued.getBlob().getSize());
+            return true;
+        }
+        final TileExistenceIndex existenceIndex = this.existenceIndex;
+        if ((existenceIndex != null && !existenceIndex.mightExist(stObj, fh)) || !fh.exists()) {
             stObj.setStatus(Status.MISS);
             return false;
         } else {
@@ -437,15 +822,46 @@ public class FileBlobStore implements BlobStore {
 
     /**
      * Store a tile.
+     * 
+     * @see #setWriteBehind(int, int)
      */
     public void put(TileObject stObj) throws StorageException {
+        final WriteBehindQueue writeQueue = this.writeQueue;
+        if (writeQueue != null && writeQueue.enqueue(getFileHandleTile(stObj, false), stObj)) {
+            return;
+        }
+        write(stObj);
+    }
+
+    private void write(TileObject stObj) throws StorageException {
         final File fh = getFileHandleTile(stObj, true);
         final long oldSize = fh.length();
         final boolean existed = oldSize > 0;
-        writeFile(fh, stObj, existed);
+        final TileDeduplicator deduplicator = this.deduplicator;
+        boolean shared = false;
+        if (deduplicator == null) {
+            writeFile(fh, stObj, existed);
+        } else {
+            final File oldShared = existed ? deduplicator.sharedCopyOf(fh) : null;
+            final long created = stObj.getCreated() > 0 ? stObj.getCreated() : System
+                    .currentTimeMillis();
+            shared = deduplicator.isCandidate(stObj.getBlob())
+                    && deduplicator.store(fh, stObj.getBlob(), created, existed);
+            if (!shared) {
+                writeFile(fh, stObj, existed);
+            }
+            if (oldShared != null) {
+                deduplicator.release(oldShared);
+            }
+        }
+        final TileExistenceIndex existenceIndex = this.existenceIndex;
+        if (existenceIndex != null) {
+            existenceIndex.tileStored(stObj, fh);
+        }
         // mark the last modification as the tile creation time if set, otherwise
-        // we'll leave it to the writing time
-        if (stObj.getCreated() > 0) {
+        // we'll leave it to the writing time. Shared copies already have it, and changing it
+        // would change the age of all the tiles sharing them
+        if (!shared && stObj.getCreated() > 0) {
             try {
                 fh.setLastModified(stObj.getCreated());
             } catch (Exception e) {
@@ -599,16 +1015,7 @@ public class FileBlobStore implements BlobStore {
      * @see org.geowebcache.storage.BlobStore#getLayerMetadata(java.lang.String, java.lang.String)
      */
     public String getLayerMetadata(final String layerName, final String key) {
-        Properties metadata = getLayerMetadata(layerName);
-        String value = metadata.getProperty(key);
-        if (value != null) {
-            try {
-                value = URLDecoder.decode(value, "UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        return value;
+        return LayerMetadataFiles.getValue(getMetadataFile(layerName), key);
     }
 
     /**
@@ -616,77 +1023,11 @@ public class FileBlobStore implements BlobStore {
      *      java.lang.String)
      */
     public void putLayerMetadata(final String layerName, final String key, final String value) {
-        Properties metadata = getLayerMetadata(layerName);
-        if (null == value) {
-            metadata.remove(key);
-        } else {
-            try {
-                metadata.setProperty(key, URLEncoder.encode(value, "UTF-8"));
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException(e);
-            }
-        }
-
-        final File metadataFile = getMetadataFile(layerName);
-
-        final String lockObj = metadataFile.getAbsolutePath().intern();
-        synchronized (lockObj) {
-            OutputStream out;
-            try {
-                if (!metadataFile.getParentFile().exists()) {
-                    metadataFile.getParentFile().mkdirs();
-                }
-                out = new FileOutputStream(metadataFile);
-            } catch (FileNotFoundException e) {
-                throw new RuntimeException(e);
-            }
-            try {
-                String comments = "auto generated file, do not edit by hand";
-                metadata.store(out, comments);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            } finally {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    log.warn(e.getMessage(), e);
-                }
-            }
-        }
-    }
-
-    private Properties getLayerMetadata(final String layerName) {
-        final File metadataFile = getMetadataFile(layerName);
-        Properties properties = new Properties();
-        final String lockObj = metadataFile.getAbsolutePath().intern();
-        synchronized (lockObj) {
-            if (metadataFile.exists()) {
-                FileInputStream in;
-                try {
-                    in = new FileInputStream(metadataFile);
-                } catch (FileNotFoundException e) {
-                    throw new RuntimeException(e);
-                }
-                try {
-                    properties.load(in);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    try {
-                        in.close();
-                    } catch (IOException e) {
-                        log.warn(e.getMessage(), e);
-                    }
-                }
-            }
-        }
-        return properties;
+        LayerMetadataFiles.putValue(getMetadataFile(layerName), key, value);
     }
 
     private File getMetadataFile(final String layerName) {
-        File layerPath = getLayerPath(layerName);
-        File metadataFile = new File(layerPath, "metadata.properties");
-        return metadataFile;
+        return LayerMetadataFiles.metadataFile(getLayerPath(layerName));
     }
 
     @Override
@@ -0,0 +1,129 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Arne Kepp / The Open Planning Project 2009
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reads and writes the {@code metadata.properties} file kept at the root of each layer directory
+ * by the file system based blob stores.
+ */
+final class LayerMetadataFiles {
+
+    private static Log log = LogFactory.getLog(LayerMetadataFiles.class);
+
+    static final String METADATA_FILE_NAME = "metadata.properties";
+
+    private LayerMetadataFiles() {
+        // utility class
+    }
+
+    static File metadataFile(File layerPath) {
+        return new File(layerPath, METADATA_FILE_NAME);
+    }
+
+    static String getValue(final File metadataFile, final String key) {
+        Properties metadata = load(metadataFile);
+        String value = metadata.getProperty(key);
+        if (value != null) {
+            try {
+                value = URLDecoder.decode(value, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return value;
+    }
+
+    static void putValue(final File metadataFile, final String key, final String value) {
+        Properties metadata = load(metadataFile);
+        if (null == value) {
+            metadata.remove(key);
+        } else {
+            try {
+                metadata.setProperty(key, URLEncoder.encode(value, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        final String lockObj = metadataFile.getAbsolutePath().intern();
+        synchronized (lockObj) {
+            OutputStream out;
+            try {
+                if (!metadataFile.getParentFile().exists()) {
+                    metadataFile.getParentFile().mkdirs();
+                }
+                out = new FileOutputStream(metadataFile);
+            } catch (FileNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+            try {
+                String comments = "auto generated file, do not edit by hand";
+                metadata.store(out, comments);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    log.warn(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private static Properties load(final File metadataFile) {
+        Properties properties = new Properties();
+        final String lockObj = metadataFile.getAbsolutePath().intern();
+        synchronized (lockObj) {
+            if (metadataFile.exists()) {
+                FileInputStream in;
+                try {
+                    in = new FileInputStream(metadataFile);
+                } catch (FileNotFoundException e) {
+                    throw new RuntimeException(e);
+                }
+                try {
+                    properties.load(in);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        log.warn(e.getMessage(), e);
+                    }
+                }
+            }
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+
+/**
+ * A Bloom filter over tile coordinates, safe for concurrent use without locking.
+ * <p>
+ * Sized for a one percent false positive rate at its expected number of tiles. Once more tiles
+ * than that have been added the filter reports itself as {@link #isSaturated() saturated} so it
+ * can be rebuilt with a larger size.
+ */
+final class TileBloomFilter {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private static final int MIN_EXPECTED_TILES = 1024;
+
+    private final AtomicLongArray bits;
+
+    private final long bitCount;
+
+    private final int hashCount;
+
+    private final long expectedTiles;
+
+    private final AtomicLong tileCount;
+
+    private TileBloomFilter(long expectedTiles, int hashCount, long[] words, long tileCount) {
+        this.expectedTiles = expectedTiles;
+        this.hashCount = hashCount;
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = (long) words.length * Long.SIZE;
+        this.tileCount = new AtomicLong(tileCount);
+    }
+
+    static TileBloomFilter create(long expectedTiles) {
+        expectedTiles = Math.max(MIN_EXPECTED_TILES, expectedTiles);
+        final double ln2 = Math.log(2);
+        long bitCount = (long) (-expectedTiles * Math.log(FALSE_POSITIVE_RATE) / (ln2 * ln2));
+        int hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedTiles * ln2));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, (bitCount + Long.SIZE - 1) / Long.SIZE);
+        return new TileBloomFilter(expectedTiles, hashCount, new long[words], 0);
+    }
+
+    long getExpectedTiles() {
+        return expectedTiles;
+    }
+
+    /**
+     * @return the number of tiles added so far, not counting the ones that were already in the
+     *         filter or collided with the bits of previous tiles
+     */
+    long getTileCount() {
+        return tileCount.get();
+    }
+
+    boolean isSaturated() {
+        return tileCount.get() > expectedTiles;
+    }
+
+    /**
+     * @return {@code true} if the filter changed, {@code false} if the tile was already in it or
+     *         might have been
+     */
+    boolean put(long x, long y, long z) {
+        final long[] hash = hash(x, y, z);
+        final long hash2 = hash[1];
+        long combined = hash[0];
+        boolean changed = false;
+        for (int i = 0; i < hashCount; i++) {
+            changed |= setBit((combined & Long.MAX_VALUE) % bitCount);
+            combined += hash2;
+        }
+        // re-puts of the same tile don't fill the filter, so they must not saturate it either
+        if (changed) {
+            tileCount.incrementAndGet();
+        }
+        return changed;
+    }
+
+    /**
+     * @return {@code false} if the tile was definitely never added, {@code true} if it might have
+     */
+    boolean mightContain(long x, long y, long z) {
+        final long[] hash = hash(x, y, z);
+        final long hash2 = hash[1];
+        long combined = hash[0];
+        for (int i = 0; i < hashCount; i++) {
+            if (!getBit((combined & Long.MAX_VALUE) % bitCount)) {
+                return false;
+            }
+            combined += hash2;
+        }
+        return true;
+    }
+
+    /**
+     * @return the two halves of the 128 bits hash of the tile coordinates, combined as
+     *         {@code hash[0] + i * hash[1]} to derive the bit indexes
+     */
+    private static long[] hash(long x, long y, long z) {
+        byte[] bytes = HASH.newHasher(24).putLong(x).putLong(y).putLong(z).hash().asBytes();
+        return new long[] {
+                Longs.fromBytes(bytes[7], bytes[6], bytes[5], bytes[4], bytes[3], bytes[2],
+                        bytes[1], bytes[0]),
+                Longs.fromBytes(bytes[15], bytes[14], bytes[13], bytes[12], bytes[11], bytes[10],
+                        bytes[9], bytes[8]) };
+    }
+
+    /**
+     * @return {@code true} if the bit was not set yet
+     */
+    private boolean setBit(long index) {
+        final int word = (int) (index >>> 6);
+        final long mask = 1L << index;
+        long current;
+        do {
+            current = bits.get(word);
+            if ((current & mask) != 0) {
+                return false;
+            }
+        } while (!bits.compareAndSet(word, current, current | mask));
+        return true;
+    }
+
+    private boolean getBit(long index) {
+        return (bits.get((int) (index >>> 6)) & (1L << index)) != 0;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeLong(expectedTiles);
+        out.writeInt(hashCount);
+        out.writeLong(tileCount.get());
+        final int words = bits.length();
+        out.writeInt(words);
+        for (int i = 0; i < words; i++) {
+            out.writeLong(bits.get(i));
+        }
+    }
+
+    static TileBloomFilter readFrom(DataInput in) throws IOException {
+        final long expectedTiles = in.readLong();
+        final int hashCount = in.readInt();
+        final long tileCount = in.readLong();
+        final int words = in.readInt();
+        if (expectedTiles <= 0 || hashCount <= 0 || tileCount < 0 || words <= 0) {
+            throw new IOException("Corrupt tile filter");
+        }
+        long[] data = new long[words];
+        for (int i = 0; i < words; i++) {
+            data[i] = in.readLong();
+        }
+        return new TileBloomFilter(expectedTiles, hashCount, data, tileCount);
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.Resource;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.util.FileUtils;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Stores byte-identical tiles of a {@link FileBlobStore} once, as hard links to a shared copy.
+ * <p>
+ * Shared copies live in a pool directory named after the SHA-1 of their contents and their creation
+ * time, in seconds. Storing a tile creates the shared copy if needed and links the tile path to
+ * it, so reading a tile is unchanged. The file system link count acts as the reference count: a shared copy whose only
+ * remaining link is the pool entry itself is unreferenced and gets removed either right away when
+ * a tile is deleted, or by {@link #purgeUnreferenced()} after bulk deletes.
+ * <p>
+ * Only tiles up to a maximum size are considered, as large tiles are seldom duplicates and every
+ * candidate adds an entry to the pool. Since the tiles share an inode, they also share their last
+ * modified time: only tiles created in the same second are shared, and the last modified time of a
+ * shared copy is set once when it is created and never changed afterwards, so that storing a tile
+ * never changes the age of the other ones.
+ */
+final class TileDeduplicator {
+
+    private static Log log = LogFactory.getLog(TileDeduplicator.class);
+
+    static final String POOL_DIRECTORY = "_gwc_shared_tiles_";
+
+    private static final HashFunction HASH = Hashing.sha1();
+
+    private final File pool;
+
+    private final File tmp;
+
+    private final int maxSize;
+
+    /**
+     * @throws UnsupportedOperationException if the file system does not support hard links or
+     *         reporting link counts
+     */
+    TileDeduplicator(File root, File tmp, int maxSize) throws StorageException {
+        this.pool = new File(root, POOL_DIRECTORY);
+        this.tmp = tmp;
+        this.maxSize = maxSize;
+        checkLinkSupport();
+        pool.mkdirs();
+        if (!pool.isDirectory() || !pool.canWrite()) {
+            throw new StorageException(pool.getPath() + " is not writable directory.");
+        }
+    }
+
+    private void checkLinkSupport() throws StorageException {
+        tmp.mkdirs();
+        File probe = new File(tmp, UUID.randomUUID().toString());
+        File link = new File(tmp, UUID.randomUUID().toString());
+        try {
+            if (!probe.createNewFile()) {
+                throw new StorageException("Can't create " + probe.getAbsolutePath());
+            }
+            Files.createLink(link.toPath(), probe.toPath());
+            if (linkCount(probe.toPath()) != 2) {
+                throw new UnsupportedOperationException("Link counts are not reported");
+            }
+        } catch (IOException e) {
+            throw new UnsupportedOperationException("Hard links are not supported in " + tmp, e);
+        } finally {
+            link.delete();
+            probe.delete();
+        }
+    }
+
+    File getPool() {
+        return pool;
+    }
+
+    boolean isCandidate(Resource blob) {
+        final long size = blob.getSize();
+        return size > 0 && size <= maxSize;
+    }
+
+    /**
+     * Makes {@code target} a link to the shared copy of {@code blob} created at the same time,
+     * creating the shared copy if needed
+     *
+     * @param created the creation time of the tile, in milliseconds since the epoch, rounded down
+     *        to seconds
+     * @return {@code false} if the tile couldn't be deduplicated and should be written as a plain
+     *         file instead
+     */
+    boolean store(File target, Resource blob, long created, boolean existed)
+            throws StorageException {
+        final byte[] contents;
+        try {
+            InputStream in = blob.getInputStream();
+            try {
+                contents = IOUtils.toByteArray(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage() + " for " + target.getAbsolutePath(), e);
+        }
+        final long seconds = TimeUnit.MILLISECONDS.toSeconds(created);
+        final File shared = sharedCopy(HASH.hashBytes(contents).toString(), seconds);
+
+        File link = new File(tmp, UUID.randomUUID().toString());
+        // the shared copy might be purged between being checked and linked, so retry once
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (!shared.exists()) {
+                writeShared(shared, contents, TimeUnit.SECONDS.toMillis(seconds));
+            }
+            try {
+                Files.createLink(link.toPath(), shared.toPath());
+            } catch (NoSuchFileException e) {
+                continue;
+            } catch (IOException e) {
+                // e.g. the shared copy reached the file system's maximum number of links
+                if (log.isDebugEnabled()) {
+                    log.debug("Unable to link " + target + " to " + shared
+                            + ", storing a plain copy", e);
+                }
+                return false;
+            }
+            // rename to final position. This will fail if another GWC also wrote this
+            // file, in such case we'll just eliminate this one
+            if (FileUtils.renameFile(link, target)
+                    || (existed && target.delete() && FileUtils.renameFile(link, target))) {
+                return true;
+            }
+            log.warn("Tile " + target.getPath() + " was already written by another thread/process");
+            link.delete();
+            return true;
+        }
+        return false;
+    }
+
+    private void writeShared(File shared, byte[] contents, long created)
+            throws StorageException {
+        File parent = shared.getParentFile();
+        parent.mkdirs();
+        File temp = new File(tmp, UUID.randomUUID().toString());
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(contents);
+            } finally {
+                out.close();
+            }
+            if (!temp.setLastModified(created)) {
+                throw new StorageException("Unable to set the creation time of "
+                        + temp.getAbsolutePath());
+            }
+            // a concurrent writer may have won, its copy has the same contents anyway
+            if (!FileUtils.renameFile(temp, shared) && !shared.exists()) {
+                throw new StorageException("Unable to create shared tile copy "
+                        + shared.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            throw new StorageException(e.getMessage() + " for " + shared.getAbsolutePath(), e);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private File sharedCopy(String hash, long seconds) {
+        return new File(new File(pool, hash.substring(0, 2)), hash + "-" + seconds);
+    }
+
+    /**
+     * Looks up the shared copy a tile file is linked to, must be called before deleting the tile
+     *
+     * @return the shared copy, or {@code null} if the tile is a plain file
+     */
+    File sharedCopyOf(File tile) {
+        final Path path = tile.toPath();
+        try {
+            if (linkCount(path) < 2) {
+                return null;
+            }
+            File shared = sharedCopy(com.google.common.io.Files.hash(tile, HASH).toString(),
+                    TimeUnit.MILLISECONDS.toSeconds(tile.lastModified()));
+            if (shared.exists() && Files.isSameFile(path, shared.toPath())) {
+                return shared;
+            }
+        } catch (IOException e) {
+            log.debug("Unable to find the shared copy of " + tile, e);
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the shared copy if no tile links to it anymore
+     */
+    void release(File shared) {
+        try {
+            if (linkCount(shared.toPath()) == 1) {
+                shared.delete();
+            }
+        } catch (IOException e) {
+            log.debug("Unable to release " + shared, e);
+        }
+    }
+
+    /**
+     * Removes all the shared copies no tile links to anymore
+     *
+     * @return the number of shared copies removed
+     */
+    int purgeUnreferenced() {
+        int purged = 0;
+        File[] buckets = pool.listFiles();
+        if (buckets == null) {
+            return 0;
+        }
+        for (File bucket : buckets) {
+            File[] copies = bucket.listFiles();
+            if (copies == null) {
+                continue;
+            }
+            for (File shared : copies) {
+                try {
+                    if (linkCount(shared.toPath()) == 1 && shared.delete()) {
+                        purged++;
+                    }
+                } catch (IOException e) {
+                    log.debug("Unable to check " + shared, e);
+                }
+            }
+        }
+        if (purged > 0) {
+            log.info("Purged " + purged + " unreferenced shared tiles");
+        }
+        return purged;
+    }
+
+    static int linkCount(Path path) throws IOException {
+        try {
+            return ((Number) Files.getAttribute(path, "unix:nlink")).intValue();
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedOperationException(e);
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.filteredGridSetId;
+import static org.geowebcache.storage.blobstore.file.FilePathUtils.filteredLayerName;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.util.FileUtils;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Keeps a {@link TileBloomFilter} per layer, gridset, parameters and format of a
+ * {@link FileBlobStore}, so that misses can be answered without touching the file system.
+ * <p>
+ * Filters are built lazily, in the background, by walking the cache directories the first time a
+ * tile of their kind is requested. Until then every lookup goes to the file system. Stored tiles
+ * are added to the filters as they are written, while deleted tiles are left in them: this only
+ * raises the false positive rate, which is corrected by the file system check that follows. The
+ * filters of deleted or renamed layers and gridsets are dropped and rebuilt on demand.
+ * <p>
+ * On {@link #destroy()} the filters are saved to a {@value #FILTERS_FILE} file in each layer
+ * directory, which is read and removed the next time the layer is accessed, so that a restart
+ * doesn't need a full rescan and a crash doesn't leave stale filters behind. Tiles written to the
+ * cache directory by anything else than this blob store are not seen by the filters.
+ */
+final class TileExistenceIndex {
+
+    private static Log log = LogFactory.getLog(TileExistenceIndex.class);
+
+    static final String FILTERS_FILE = "existence.filters";
+
+    private static final int MAGIC = 0x47574346;
+
+    private static final int VERSION = 1;
+
+    private final File root;
+
+    private final ConcurrentMap<String, Filter> filters = new ConcurrentHashMap<String, Filter>();
+
+    private final Set<String> loadedLayers = Sets.newConcurrentHashSet();
+
+    private final ExecutorService builder;
+
+    /**
+     * The filter of a kind of tile, and the one replacing it while it's being built
+     */
+    private static final class Filter {
+
+        final String layer;
+
+        final String gridSet;
+
+        final String parametersId;
+
+        final String extension;
+
+        volatile TileBloomFilter ready;
+
+        volatile TileBloomFilter building;
+
+        final AtomicBoolean buildScheduled = new AtomicBoolean();
+
+        Filter(String layer, String gridSet, String parametersId, String extension) {
+            this.layer = layer;
+            this.gridSet = gridSet;
+            this.parametersId = parametersId;
+            this.extension = extension;
+        }
+
+        String key() {
+            return key(layer, gridSet, parametersId, extension);
+        }
+
+        static String key(String layer, String gridSet, String parametersId, String extension) {
+            return layer + '/' + gridSet + '/' + parametersId + '/' + extension;
+        }
+    }
+
+    TileExistenceIndex(File root) {
+        this.root = root;
+        CustomizableThreadFactory tf;
+        tf = new CustomizableThreadFactory("GWC FileStore existence filter builder-");
+        tf.setDaemon(true);
+        tf.setThreadPriority(Thread.MIN_PRIORITY);
+        builder = Executors.newSingleThreadExecutor(tf);
+    }
+
+    /**
+     * @return {@code false} if the tile is definitely not cached, {@code true} if it might be or
+     *         the filter for its kind of tile is not ready yet
+     */
+    boolean mightExist(TileObject tile, File tileFile) {
+        Filter filter = filter(tile, tileFile, true);
+        TileBloomFilter ready = filter.ready;
+        if (ready == null) {
+            return true;
+        }
+        long[] xyz = tile.getXYZ();
+        return ready.mightContain(xyz[0], xyz[1], xyz[2]);
+    }
+
+    /**
+     * Adds a tile to its filter, must be called once the tile file has been written
+     */
+    void tileStored(TileObject tile, File tileFile) {
+        Filter filter = filter(tile, tileFile, false);
+        if (filter == null) {
+            // no one asked for this kind of tile yet, the filter will find the file when built
+            return;
+        }
+        long[] xyz = tile.getXYZ();
+        TileBloomFilter building = filter.building;
+        if (building != null) {
+            building.put(xyz[0], xyz[1], xyz[2]);
+        }
+        TileBloomFilter ready = filter.ready;
+        if (ready != null) {
+            // only tiles setting new bits count, overwriting a cached tile can't saturate it
+            if (ready.put(xyz[0], xyz[1], xyz[2]) && ready.isSaturated()) {
+                scheduleBuild(filter, 2 * ready.getTileCount());
+            }
+        }
+    }
+
+    void layerDeleted(String layerName) {
+        final String layer = filteredLayerName(layerName);
+        for (Iterator<Filter> it = filters.values().iterator(); it.hasNext();) {
+            if (it.next().layer.equals(layer)) {
+                it.remove();
+            }
+        }
+    }
+
+    void gridSetDeleted(String layerName, String gridSetId) {
+        final String layer = filteredLayerName(layerName);
+        final String gridSet = filteredGridSetId(gridSetId);
+        for (Iterator<Filter> it = filters.values().iterator(); it.hasNext();) {
+            Filter filter = it.next();
+            // same prefix match as FileBlobStore.deleteByGridsetId
+            if (filter.layer.equals(layer) && filter.gridSet.startsWith(gridSet)) {
+                it.remove();
+            }
+        }
+    }
+
+    void layerRenamed(String oldLayerName, String newLayerName) {
+        layerDeleted(oldLayerName);
+        layerDeleted(newLayerName);
+    }
+
+    private Filter filter(TileObject tile, File tileFile, boolean create) {
+        final String layer = filteredLayerName(tile.getLayerName());
+        final String gridSet = filteredGridSetId(tile.getGridSetId());
+        final String name = tileFile.getName();
+        final String extension = name.substring(name.lastIndexOf('.') + 1);
+        final String key = Filter.key(layer, gridSet, tile.getParametersId(), extension);
+
+        Filter filter = filters.get(key);
+        if (filter != null || !create) {
+            return filter;
+        }
+        loadLayer(layer);
+        filter = new Filter(layer, gridSet, tile.getParametersId(), extension);
+        Filter existing = filters.putIfAbsent(key, filter);
+        if (existing != null) {
+            return existing;
+        }
+        scheduleBuild(filter, 0);
+        return filter;
+    }
+
+    private void scheduleBuild(final Filter filter, final long expectedTiles) {
+        if (!filter.buildScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        builder.submit(new Runnable() {
+            public void run() {
+                try {
+                    build(filter, expectedTiles);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    log.warn("Unable to build the existence filter for " + filter.key(), e);
+                } finally {
+                    filter.building = null;
+                    filter.buildScheduled.set(false);
+                }
+            }
+        });
+    }
+
+    private void build(Filter filter, long expectedTiles) throws InterruptedException {
+        if (expectedTiles <= 0) {
+            expectedTiles = 2 * walk(filter, null);
+        }
+        TileBloomFilter building = TileBloomFilter.create(expectedTiles);
+        // tiles stored from now on are added by tileStored, the ones already on disk by the walk
+        filter.building = building;
+        long count = walk(filter, building);
+        filter.ready = building;
+        if (log.isDebugEnabled()) {
+            log.debug("Built existence filter for " + filter.key() + " with " + count + " tiles");
+        }
+    }
+
+    /**
+     * Walks the tiles of a kind adding them to {@code target} if not null
+     *
+     * @return the number of tiles found
+     */
+    private long walk(Filter filter, TileBloomFilter target) throws InterruptedException {
+        final File layerDir = new File(root, filter.layer);
+        final String[] zoomDirs = layerDir.list();
+        if (zoomDirs == null) {
+            return 0;
+        }
+        final String suffix = "." + filter.extension;
+        long count = 0;
+        for (String zoomDirName : zoomDirs) {
+            final int zoomLevel = zoomLevel(filter, zoomDirName);
+            if (zoomLevel < 0) {
+                continue;
+            }
+            final File zoomDir = new File(layerDir, zoomDirName);
+            String[] intermediateDirs = zoomDir.list();
+            if (intermediateDirs == null) {
+                continue;
+            }
+            for (String intermediateDirName : intermediateDirs) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                String[] tiles = new File(zoomDir, intermediateDirName).list();
+                if (tiles == null) {
+                    continue;
+                }
+                for (String name : tiles) {
+                    if (!name.endsWith(suffix)) {
+                        continue;
+                    }
+                    long[] xy = FileBlobStore.parseCoordinates(name,
+                            name.length() - suffix.length());
+                    if (xy == null) {
+                        continue;
+                    }
+                    if (target != null) {
+                        target.put(xy[0], xy[1], zoomLevel);
+                    }
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Parses {@code <gridset>_<zoomLevel>[_<parametersId>]}
+     *
+     * @return the zoom level, or {@code -1} if the directory doesn't hold tiles of the filter's
+     *         gridset and parameters
+     */
+    private static int zoomLevel(Filter filter, String dirName) {
+        if (!dirName.startsWith(filter.gridSet + "_")) {
+            return -1;
+        }
+        final int start = filter.gridSet.length() + 1;
+        int end = dirName.indexOf('_', start);
+        String parametersId = null;
+        if (end == -1) {
+            end = dirName.length();
+        } else {
+            parametersId = dirName.substring(end + 1);
+        }
+        if (end == start || end - start > 9
+                || !(parametersId == null ? filter.parametersId == null : parametersId
+                        .equals(filter.parametersId))) {
+            return -1;
+        }
+        int zoomLevel = 0;
+        for (int i = start; i < end; i++) {
+            char c = dirName.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            zoomLevel = zoomLevel * 10 + (c - '0');
+        }
+        return zoomLevel;
+    }
+
+    /**
+     * Reads back the filters saved for a layer the first time it's accessed, deleting the file so
+     * that it can't go stale
+     */
+    private void loadLayer(String layer) {
+        if (loadedLayers.contains(layer)) {
+            return;
+        }
+        synchronized (loadedLayers) {
+            if (!loadedLayers.add(layer)) {
+                return;
+            }
+            final File file = new File(new File(root, layer), FILTERS_FILE);
+            if (!file.exists()) {
+                return;
+            }
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Not an existence filters file");
+                }
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String gridSet = in.readUTF();
+                    String parametersId = in.readBoolean() ? in.readUTF() : null;
+                    String extension = in.readUTF();
+                    Filter filter = new Filter(layer, gridSet, parametersId, extension);
+                    filter.ready = TileBloomFilter.readFrom(in);
+                    filters.putIfAbsent(filter.key(), filter);
+                }
+                log.info("Loaded " + count + " existence filters for " + layer);
+            } catch (IOException e) {
+                log.warn("Unable to read " + file + ", the filters will be rebuilt", e);
+            } finally {
+                IOUtils.closeQuietly(in);
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Saves the ready filters so they can be reused after a restart
+     */
+    private void save() {
+        Map<String, List<Filter>> byLayer = new HashMap<String, List<Filter>>();
+        for (Filter filter : filters.values()) {
+            if (filter.ready == null) {
+                continue;
+            }
+            List<Filter> layerFilters = byLayer.get(filter.layer);
+            if (layerFilters == null) {
+                layerFilters = new ArrayList<Filter>();
+                byLayer.put(filter.layer, layerFilters);
+            }
+            layerFilters.add(filter);
+        }
+        for (Map.Entry<String, List<Filter>> entry : byLayer.entrySet()) {
+            final File layerDir = new File(root, entry.getKey());
+            if (!layerDir.isDirectory()) {
+                continue;
+            }
+            final File file = new File(layerDir, FILTERS_FILE);
+            final File temp = new File(layerDir, FILTERS_FILE + ".tmp");
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entry.getValue().size());
+                for (Filter filter : entry.getValue()) {
+                    out.writeUTF(filter.gridSet);
+                    out.writeBoolean(filter.parametersId != null);
+                    if (filter.parametersId != null) {
+                        out.writeUTF(filter.parametersId);
+                    }
+                    out.writeUTF(filter.extension);
+                    filter.ready.writeTo(out);
+                }
+                out.close();
+                out = null;
+                if (!FileUtils.renameFile(temp, file)) {
+                    log.warn("Unable to save the existence filters to " + file);
+                }
+            } catch (IOException e) {
+                log.warn("Unable to save the existence filters to " + file, e);
+            } finally {
+                IOUtils.closeQuietly(out);
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Waits for the filter builds scheduled so far
+     */
+    void awaitBuilds() throws InterruptedException, ExecutionException {
+        builder.submit(new Runnable() {
+            public void run() {
+            }
+        }).get();
+    }
+
+    /**
+     * Stops building filters and saves the ready ones
+     */
+    void destroy() {
+        builder.shutdownNow();
+        save();
+        filters.clear();
+    }
+}
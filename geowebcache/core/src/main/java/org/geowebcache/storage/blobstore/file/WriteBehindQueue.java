@@ -0,0 +1,314 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Bounded queue of tiles waiting to be written by a pool of writer threads, on behalf of a
+ * {@link FileBlobStore}.
+ * <p>
+ * Queued tiles are kept in memory, by tile file, until written so they can be served in the
+ * meantime. Queuing a tile that is already waiting replaces the waiting copy, and deleting it
+ * cancels the write. When the queue is full, {@link #enqueue} blocks until a writer makes room.
+ * <p>
+ * Failed writes are retried with an exponential backoff, keeping the tile queued meanwhile, until
+ * they succeed or the number of {@link #setRetries(int) retries} runs out.
+ */
+final class WriteBehindQueue {
+
+    private static Log log = LogFactory.getLog(WriteBehindQueue.class);
+
+    /** Delay before the first retry of a failed write, doubled on each further retry */
+    private static final long RETRY_DELAY = 100;
+
+    /**
+     * Performs the actual write of a tile
+     */
+    interface TileWriter {
+        void write(TileObject tile) throws StorageException;
+    }
+
+    /**
+     * A queued tile, locked while being written so deletes can wait for it
+     */
+    private static final class PendingWrite {
+
+        final File file;
+
+        final TileObject tile;
+
+        final long queuedAt = System.nanoTime();
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        /** Guarded by the instance lock */
+        boolean written;
+
+        /** Guarded by the instance lock */
+        int failures;
+
+        long delay = RETRY_DELAY;
+
+        PendingWrite(File file, TileObject tile) {
+            this.file = file;
+            this.tile = tile;
+        }
+    }
+
+    private final TileWriter writer;
+
+    private final ScheduledExecutorService executor;
+
+    private final int capacity;
+
+    private final Semaphore room;
+
+    private final ConcurrentMap<File, PendingWrite> pending = new ConcurrentHashMap<File, PendingWrite>();
+
+    private final AtomicLong written = new AtomicLong();
+
+    private final AtomicLong superseded = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    private final AtomicLong blocked = new AtomicLong();
+
+    private final AtomicLong blockedTime = new AtomicLong();
+
+    private volatile int retries = FileBlobStore.DEFAULT_WRITE_BEHIND_RETRIES;
+
+    WriteBehindQueue(TileWriter writer, int threads, int capacity) {
+        this.writer = writer;
+        this.capacity = capacity;
+        this.room = new Semaphore(capacity);
+        CustomizableThreadFactory tf;
+        tf = new CustomizableThreadFactory("GWC FileStore writer-");
+        tf.setDaemon(true);
+        executor = Executors.newScheduledThreadPool(threads, tf);
+    }
+
+    /**
+     * Sets the number of times a failed write is retried before giving up on the tile
+     */
+    void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Queues a copy of the tile, waiting for room in the queue if it's full
+     *
+     * @return {@code false} if the queue is shut down and the tile must be written by the caller
+     */
+    boolean enqueue(File file, TileObject tile) throws StorageException {
+        final TileObject copy = copy(tile);
+        if (!room.tryAcquire()) {
+            final long start = System.nanoTime();
+            try {
+                room.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException("Interrupted waiting to queue " + file);
+            }
+            blocked.incrementAndGet();
+            blockedTime.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        final PendingWrite write = new PendingWrite(file, copy);
+        final PendingWrite previous = pending.put(file, write);
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    boolean done = true;
+                    try {
+                        done = write(write);
+                        if (!done) {
+                            try {
+                                executor.schedule(this, write.delay, TimeUnit.MILLISECONDS);
+                                write.delay *= 2;
+                            } catch (RejectedExecutionException e) {
+                                done = true;
+                                if (pending.remove(write.file, write)) {
+                                    failed.incrementAndGet();
+                                    log.error("Unable to retry writing tile " + write.file
+                                            + ", the write queue has been shut down");
+                                } else {
+                                    superseded.incrementAndGet();
+                                }
+                            }
+                        }
+                    } finally {
+                        // the tile stays queued, and keeps its room, until retried
+                        if (done) {
+                            pending.remove(write.file, write);
+                            room.release();
+                            write.done.countDown();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(file, write);
+            if (previous != null) {
+                pending.putIfAbsent(file, previous);
+            }
+            room.release();
+            return false;
+        }
+        return true;
+    }
+
+    private static TileObject copy(TileObject tile) throws StorageException {
+        final byte[] contents;
+        try {
+            InputStream in = tile.getBlob().getInputStream();
+            try {
+                contents = IOUtils.toByteArray(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new StorageException("Unable to read tile " + tile, e);
+        }
+        TileObject copy = TileObject.createCompleteTileObject(tile.getLayerName(), tile.getXYZ()
+                .clone(), tile.getGridSetId(), tile.getBlobFormat(), tile.getParameters(),
+                new ByteArrayResource(contents));
+        copy.setParametersId(tile.getParametersId());
+        copy.setCreated(tile.getCreated());
+        return copy;
+    }
+
+    /**
+     * @return {@code false} if the write failed and should be retried
+     */
+    private boolean write(PendingWrite write) {
+        synchronized (write) {
+            // no point in retrying a tile deleted or queued again meanwhile
+            if (pending.get(write.file) != write) {
+                superseded.incrementAndGet();
+                return true;
+            }
+            try {
+                writer.write(write.tile);
+                write.written = true;
+                long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - write.queuedAt);
+                written.incrementAndGet();
+                totalLatency.addAndGet(latency);
+                long max;
+                while ((max = maxLatency.get()) < latency
+                        && !maxLatency.compareAndSet(max, latency)) {
+                    ;
+                }
+            } catch (StorageException | RuntimeException e) {
+                if (write.failures++ < retries) {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Unable to write tile " + write.file + ", retrying in "
+                                + write.delay + "ms: " + e.getMessage());
+                    }
+                    return false;
+                }
+                failed.incrementAndGet();
+                log.error("Unable to write tile " + write.file + " after " + write.failures
+                        + " attempts", e);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return the tile waiting to be written to {@code file}, or {@code null}
+     */
+    TileObject pending(File file) {
+        PendingWrite write = pending.get(file);
+        return write == null ? null : write.tile;
+    }
+
+    /**
+     * Cancels the pending write of {@code file}, waiting for it to finish if already in progress
+     *
+     * @return {@code true} if a queued tile was discarded before being written
+     */
+    boolean cancel(File file) {
+        PendingWrite write = pending.remove(file);
+        if (write == null) {
+            return false;
+        }
+        synchronized (write) {
+            // the write is either done, or will notice it's been cancelled
+            return !write.written;
+        }
+    }
+
+    /**
+     * Waits for the tiles queued so far to be written
+     */
+    void flush() throws InterruptedException {
+        List<PendingWrite> writes = new ArrayList<PendingWrite>(pending.values());
+        for (PendingWrite write : writes) {
+            write.done.await();
+        }
+    }
+
+    WriteBehindStatistics getStatistics() {
+        return new WriteBehindStatistics(capacity, capacity - room.availablePermits(),
+                written.get(), superseded.get(), failed.get(), totalLatency.get(),
+                maxLatency.get(), blocked.get(), blockedTime.get());
+    }
+
+    /**
+     * Stops accepting tiles and waits for the queued ones to be written, giving up on the ones
+     * failing meanwhile
+     *
+     * @return {@code true} if all the queued tiles were written within the timeout
+     */
+    boolean shutdown(long timeout, TimeUnit unit) {
+        executor.shutdown();
+        try {
+            if (executor.awaitTermination(timeout, unit)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.warn(pending.size() + " tiles were not written before shutting down the write queue");
+        executor.shutdownNow();
+        return false;
+    }
+}
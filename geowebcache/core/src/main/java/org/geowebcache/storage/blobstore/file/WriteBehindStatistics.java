@@ -0,0 +1,135 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import java.io.Serializable;
+
+/**
+ * A snapshot of the asynchronous write queue of a {@link FileBlobStore}.
+ *
+ * @see FileBlobStore#setWriteBehind(int, int)
+ */
+public class WriteBehindStatistics implements Serializable {
+
+    private static final long serialVersionUID = -2630981873524071829L;
+
+    private final int queueCapacity;
+
+    private final int queueDepth;
+
+    private final long writtenCount;
+
+    private final long supersededCount;
+
+    private final long failedCount;
+
+    private final long totalLatencyMillis;
+
+    private final long maxLatencyMillis;
+
+    private final long blockedCount;
+
+    private final long blockedMillis;
+
+    WriteBehindStatistics(int queueCapacity, int queueDepth, long writtenCount,
+            long supersededCount, long failedCount, long totalLatencyMillis, long maxLatencyMillis,
+            long blockedCount, long blockedMillis) {
+        this.queueCapacity = queueCapacity;
+        this.queueDepth = queueDepth;
+        this.writtenCount = writtenCount;
+        this.supersededCount = supersededCount;
+        this.failedCount = failedCount;
+        this.totalLatencyMillis = totalLatencyMillis;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.blockedCount = blockedCount;
+        this.blockedMillis = blockedMillis;
+    }
+
+    /**
+     * @return the maximum number of tiles waiting to be written before puts block
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return the number of tiles waiting to be written
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return the number of tiles written to disk
+     */
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
+    /**
+     * @return the number of queued tiles skipped because a newer version of the same tile was
+     *         queued or the tile was deleted before being written
+     */
+    public long getSupersededCount() {
+        return supersededCount;
+    }
+
+    /**
+     * @return the number of tiles that could not be written, even after retrying
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * @return the average time in milliseconds between a tile being queued and written
+     */
+    public double getAverageLatencyMillis() {
+        return writtenCount == 0 ? 0 : (double) totalLatencyMillis / writtenCount;
+    }
+
+    /**
+     * @return the longest time in milliseconds between a tile being queued and written
+     */
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    /**
+     * @return the number of puts that had to wait for room in the queue
+     */
+    public long getBlockedCount() {
+        return blockedCount;
+    }
+
+    /**
+     * @return the total time in milliseconds puts spent waiting for room in the queue
+     */
+    public long getBlockedMillis() {
+        return blockedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("WriteBehindStatistics[queueDepth:").append(queueDepth)
+                .append('/').append(queueCapacity).append(", written:").append(writtenCount)
+                .append(", superseded:").append(supersededCount).append(", failed:")
+                .append(failedCount).append(", averageLatencyMillis:")
+                .append(getAverageLatencyMillis()).append(", maxLatencyMillis:")
+                .append(maxLatencyMillis).append(", blocked:").append(blockedCount)
+                .append(", blockedMillis:").append(blockedMillis).append(']').toString();
+    }
+}
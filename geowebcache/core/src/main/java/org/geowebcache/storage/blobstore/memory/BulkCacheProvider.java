@@ -0,0 +1,34 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.memory;
+
+import java.util.Collection;
+
+import org.geowebcache.storage.TileObject;
+
+/**
+ * A {@link CacheProvider} able to insert several tiles at once, so that the {@link MemoryBlobStore}
+ * caches the tiles of a metatile with a single operation instead of one per tile, e.g. a single
+ * remote call per cluster member for a distributed cache.
+ */
+public interface BulkCacheProvider extends CacheProvider {
+
+    /**
+     * Inserts the {@link TileObject}s in cache
+     * 
+     * @param objs
+     */
+    public void putTileObjs(Collection<TileObject> objs);
+}
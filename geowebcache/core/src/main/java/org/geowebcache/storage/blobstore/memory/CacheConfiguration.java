@@ -15,6 +15,9 @@
 package org.geowebcache.storage.blobstore.memory;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * This class contains the configuration for the {@link CacheProvider} object to use.
@@ -62,6 +65,9 @@ public class CacheConfiguration implements Serializable {
     /** Start Value */
     private long evictionTime = DEFAULT_EVICTION_TIME;
 
+    /** Memory limits in Mb of the layers with their own budget */
+    private Map<String, Long> layerMemoryLimits = Collections.emptyMap();
+
     /**
      * @return the current cache memory limit
      */
@@ -126,6 +132,25 @@ public class CacheConfiguration implements Serializable {
         this.evictionTime = evictionTime;
     }
 
+    /**
+     * @return the memory limits in Mb of the layers with their own budget, keyed by layer name or comma separated list of layer names
+     */
+    public Map<String, Long> getLayerMemoryLimits() {
+        return layerMemoryLimits;
+    }
+
+    /**
+     * Sets memory budgets for some layers, so that heavily used layers cannot push the tiles of the others out of the cache. Each key is a layer
+     * name, or a comma separated list of layer names sharing the budget, and each value is a memory limit in Mb carved out of the
+     * {@link #getHardMemoryLimit() hard memory limit}. The layers without a budget share the remaining memory.
+     * 
+     * @param layerMemoryLimits
+     */
+    public void setLayerMemoryLimits(Map<String, Long> layerMemoryLimits) {
+        this.layerMemoryLimits = layerMemoryLimits == null ? Collections.<String, Long> emptyMap()
+                : Collections.unmodifiableMap(new LinkedHashMap<String, Long>(layerMemoryLimits));
+    }
+
     @Override
     public boolean equals(Object obj) {
         // Ensure that the internal objects are equals
@@ -147,6 +172,8 @@ public class CacheConfiguration implements Serializable {
             return false;
         } else if (this.evictionTime != config.evictionTime) {
             return false;
+        } else if (!this.getLayerMemoryLimits().equals(config.getLayerMemoryLimits())) {
+            return false;
         }
 
         return true;
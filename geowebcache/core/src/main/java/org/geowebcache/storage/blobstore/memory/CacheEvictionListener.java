@@ -0,0 +1,32 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.memory;
+
+import org.geowebcache.storage.TileObject;
+
+/**
+ * Listener notified of the {@link TileObject}s removed by an {@link EvictingCacheProvider} to make
+ * room for other tiles. Tiles removed explicitly or because they expired are not notified.
+ */
+public interface CacheEvictionListener {
+
+    /**
+     * Called after a tile has been evicted, outside of the cache locks
+     * 
+     * @param obj
+     *            the evicted tile
+     */
+    public void tileEvicted(TileObject obj);
+}
@@ -15,6 +15,8 @@
 package org.geowebcache.storage.blobstore.memory;
 
 import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * This class is a container of all the Statistics of the {@link CacheProvider} object used by the {@link MemoryBlobStore}.
@@ -36,6 +38,9 @@ public class CacheStatistics implements Serializable {
     /** Cache eviction count */
     private long evictionCount = 0;
 
+    /** Count of tiles the cache refused to store in place of more frequently used ones */
+    private long admissionRejectionCount = 0;
+
     /** Cache total request count (hit + miss) */
     private long totalCount = 0;
 
@@ -54,12 +59,16 @@ public class CacheStatistics implements Serializable {
     /** Cache actual size */
     private long actualSize = 0;
 
+    /** Statistics of each layer, null if not tracked */
+    private Map<String, CacheStatistics> layerStatistics;
+
     public CacheStatistics() {
     }
 
     // Copy Constructor
     public CacheStatistics(CacheStatistics stats) {
         this.setEvictionCount(stats.getEvictionCount());
+        this.setAdmissionRejectionCount(stats.getAdmissionRejectionCount());
         this.setHitCount(stats.getHitCount());
         this.setMissCount(stats.getMissCount());
         this.setTotalCount(stats.getRequestCount());
@@ -68,6 +77,13 @@ public class CacheStatistics implements Serializable {
         this.setCurrentMemoryOccupation(stats.getCurrentMemoryOccupation());
         this.setActualSize(stats.getActualSize());
         this.setTotalSize(stats.getTotalSize());
+        if (stats.getLayerStatistics() != null) {
+            Map<String, CacheStatistics> layers = new TreeMap<String, CacheStatistics>();
+            for (Map.Entry<String, CacheStatistics> entry : stats.getLayerStatistics().entrySet()) {
+                layers.put(entry.getKey(), new CacheStatistics(entry.getValue()));
+            }
+            this.setLayerStatistics(layers);
+        }
     }
 
     /**
@@ -118,6 +134,23 @@ public class CacheStatistics implements Serializable {
         this.evictionCount = evictionCount;
     }
 
+    /**
+     * @return the count of tiles not admitted in the cache, always 0 for the caches without an
+     *         admission policy
+     */
+    public long getAdmissionRejectionCount() {
+        return admissionRejectionCount;
+    }
+
+    /**
+     * Setter for cache admission rejection count
+     * 
+     * @param admissionRejectionCount
+     */
+    public void setAdmissionRejectionCount(long admissionRejectionCount) {
+        this.admissionRejectionCount = admissionRejectionCount;
+    }
+
     /**
      * @return the cache total request count
      */
@@ -213,4 +246,21 @@ public class CacheStatistics implements Serializable {
     public void setActualSize(long actualSize) {
         this.actualSize = actualSize;
     }
+
+    /**
+     * @return the statistics of each cached layer, whose total size is the memory available to the layer, or null if the cache does not track
+     *         them
+     */
+    public Map<String, CacheStatistics> getLayerStatistics() {
+        return layerStatistics;
+    }
+
+    /**
+     * Setter for the statistics of each cached layer
+     * 
+     * @param layerStatistics
+     */
+    public void setLayerStatistics(Map<String, CacheStatistics> layerStatistics) {
+        this.layerStatistics = layerStatistics;
+    }
 }
@@ -0,0 +1,30 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.memory;
+
+/**
+ * A {@link CacheProvider} able to notify the tiles it evicts when it runs out of memory, allowing
+ * them to be moved to a larger and slower cache.
+ */
+public interface EvictingCacheProvider extends CacheProvider {
+
+    /**
+     * Sets the listener notified of the evicted tiles
+     * 
+     * @param listener
+     *            the listener, or null for none
+     */
+    public void setEvictionListener(CacheEvictionListener listener);
+}
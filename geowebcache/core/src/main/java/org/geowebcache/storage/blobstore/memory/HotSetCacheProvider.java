@@ -0,0 +1,33 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.memory;
+
+import java.util.List;
+
+/**
+ * A {@link CacheProvider} able to tell which of its tiles are the most valuable to keep, so that
+ * the {@link MemoryBlobStore} can save them on shutdown and load them again on startup.
+ */
+public interface HotSetCacheProvider extends CacheProvider {
+
+    /**
+     * Returns the keys of the most valuable cached tiles, in the order they should be loaded again
+     * 
+     * @param maxTiles
+     *            the maximum number of keys to return
+     * @return the keys, the most valuable first
+     */
+    public List<TileKey> getHotSet(int maxTiles);
+}
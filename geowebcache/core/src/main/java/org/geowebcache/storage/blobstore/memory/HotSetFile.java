@@ -0,0 +1,156 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.memory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes the keys of the tiles held by a {@link HotSetCacheProvider}, so that they can be
+ * loaded again by the {@link MemoryBlobStore} after a restart.
+ * <p>
+ * The file starts with a magic number and a format version, followed by the number of keys and the
+ * keys themselves. It is written to a temporary file first and then renamed, so a crash while
+ * saving leaves the previous hot set in place.
+ * </p>
+ */
+final class HotSetFile {
+
+    /** "GWCH" */
+    private static final int MAGIC = 0x47574348;
+
+    private static final int VERSION = 1;
+
+    private HotSetFile() {
+    }
+
+    /**
+     * Writes the keys to a file, replacing its previous contents
+     * 
+     * @param file
+     * @param keys
+     * @throws IOException
+     */
+    static void write(File file, List<TileKey> keys) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create the directory of " + file);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(keys.size());
+            for (TileKey key : keys) {
+                writeString(out, key.getLayerName());
+                writeString(out, key.getGridSetId());
+                writeString(out, key.getBlobFormat());
+                out.writeLong(key.getX());
+                out.writeLong(key.getY());
+                out.writeLong(key.getZ());
+                Map<String, String> parameters = key.getParameters();
+                if (parameters == null) {
+                    out.writeInt(0);
+                } else {
+                    out.writeInt(parameters.size());
+                    for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                        writeString(out, parameter.getKey());
+                        writeString(out, parameter.getValue());
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Reads the keys saved in a file
+     * 
+     * @param file
+     * @return the keys, in the order they were written, or an empty list if the file does not exist
+     * @throws IOException
+     *             if the file cannot be read or is not a hot set file
+     */
+    static List<TileKey> read(File file) throws IOException {
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a hot set file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported hot set file version " + version + " in "
+                        + file);
+            }
+            int count = in.readInt();
+            List<TileKey> keys = new ArrayList<TileKey>(Math.max(0, Math.min(count, 100000)));
+            for (int i = 0; i < count; i++) {
+                String layerName = readString(in);
+                String gridSetId = readString(in);
+                String blobFormat = readString(in);
+                long x = in.readLong();
+                long y = in.readLong();
+                long z = in.readLong();
+                int parameterCount = in.readInt();
+                Map<String, String> parameters = null;
+                if (parameterCount > 0) {
+                    parameters = new HashMap<String, String>();
+                    for (int j = 0; j < parameterCount; j++) {
+                        parameters.put(readString(in), readString(in));
+                    }
+                }
+                keys.add(new TileKey(layerName, gridSetId, blobFormat, x, y, z, parameters));
+            }
+            return keys;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
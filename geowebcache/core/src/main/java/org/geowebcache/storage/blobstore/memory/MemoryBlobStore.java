@@ -14,18 +14,31 @@
  */
 package org.geowebcache.storage.blobstore.memory;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.commons.logging.Log;
@@ -34,6 +47,7 @@ import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.storage.BlobStore;
 import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.BulkBlobStore;
 import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileObject;
 import org.geowebcache.storage.TileRange;
@@ -41,379 +55,891 @@ import org.geowebcache.storage.blobstore.memory.guava.GuavaCacheProvider;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 /**
  * This class is an implementation of the {@link BlobStore} interface wrapping another {@link BlobStore} implementation and supporting in memory
  * caching. Caching is provided by an input {@link CacheProvider} object. It must be pointed out that this Blobstore has an asynchronous relation
  * with the underlying wrapped {@link BlobStore}. In fact, each operation on the wrapped {@link BlobStore} is scheduled in a queue and will be done
  * by an executor thread. Operations that require a boolean value will have to wait until previous tasks are completed. 
+ * <p>
+ * By default {@link #put(TileObject)} waits for the tile to be written to the wrapped {@link BlobStore}. When a
+ * {@link #setWriteBehindQueueSize(int) write behind queue size} is set, it returns as soon as the tile is in the {@link CacheProvider}
+ * instead, and the tile is served from memory until written. The writes have their own thread, so they never delay the reads of the
+ * wrapped {@link BlobStore}. Failed writes are retried later and logged, and puts block while the queue is full. Deleting or overwriting a
+ * tile cancels its pending write, the operation waiting for the write to be over if it already started.
+ * </p>
+ * <p>
+ * The tiles of a metatile stored through {@link #put(List)} are cached with a single operation when the {@link CacheProvider} is a
+ * {@link BulkCacheProvider}.
+ * </p>
+ * <p>
+ * Concurrent {@link #get(TileObject)} misses on the same tile are coalesced: only the first one reads the wrapped {@link BlobStore} and
+ * caches the tile, the others wait up to {@link #setLoadTimeout(long) loadTimeout} milliseconds for its result.
+ * </p>
+ * <p>
+ * When a {@link #setHotSetFile(File) hot set file} is set and the {@link CacheProvider} is a {@link HotSetCacheProvider}, the keys of its most
+ * valuable tiles are saved on {@link #destroy()}, and the tiles are loaded again from the wrapped {@link BlobStore} in the background on startup,
+ * at most {@link #setHotSetRestoreRate(int) hotSetRestoreRate} tiles per second. Tiles removed from the wrapped store in the meantime are not
+ * found there, and are skipped.
+ * </p>
+ * <p>
+ * Operations do not lock: each one works on the {@link BlobStore}, {@link CacheProvider} and write behind queue found when it starts, which
+ * are replaced together when the configuration changes. Operations already running complete on the previous components.
+ * </p>
  * 
  * @author Nicola Lagomarsini Geosolutions
  */
-public class MemoryBlobStore implements BlobStore, ApplicationContextAware {
+public class MemoryBlobStore implements BulkBlobStore, ApplicationContextAware {
 
     /** {@link Log} object used for logging exceptions */
     private final static Log LOG = LogFactory.getLog(MemoryBlobStore.class);
 
-    /** {@link BlobStore} to use when no element is found */
-    private BlobStore store;
+    /** Default number of times a failed write behind is retried */
+    public static final int DEFAULT_WRITE_BEHIND_RETRIES = 3;
 
-    /** {@link CacheProvider} object to use for caching */
-    private CacheProvider cacheProvider;
+    /** Delay before the first retry of a failed write behind, doubled on each further retry */
+    private static final long WRITE_BEHIND_RETRY_DELAY = 100;
+
+    /** Time in milliseconds {@link #destroy()} waits for the pending writes to be done */
+    private static final long WRITE_BEHIND_FLUSH_TIMEOUT = 30000;
+
+    /** Default time in milliseconds a miss waits for the same tile being loaded by another request */
+    public static final long DEFAULT_LOAD_TIMEOUT = 30000;
+
+    /** Default maximum number of tiles saved in the hot set file */
+    public static final int DEFAULT_HOT_SET_SIZE = 10000;
+
+    /** Default number of tiles of the hot set loaded per second on startup */
+    public static final int DEFAULT_HOT_SET_RESTORE_RATE = 100;
+
+    /** Factory of the threads loading the hot set */
+    private static final CustomizableThreadFactory HOT_SET_THREAD_FACTORY = new CustomizableThreadFactory(
+            "GWC Memory Hot Set Restore-");
+
+    /** Factory of the thread writing the tiles to the wrapped store in write behind mode */
+    private static final CustomizableThreadFactory WRITE_BEHIND_THREAD_FACTORY = new CustomizableThreadFactory(
+            "GWC Memory Write Behind-");
+
+    static {
+        HOT_SET_THREAD_FACTORY.setDaemon(true);
+        WRITE_BEHIND_THREAD_FACTORY.setDaemon(true);
+    }
+
+    /** Components used by the operations, replaced as a whole on configuration changes */
+    private volatile State state;
+
+    /** Lock serializing the configuration changes, never taken by the operations */
+    private final Object stateUpdateLock = new Object();
 
     /** Executor service used for scheduling cacheProvider store operations like put,delete,... */
     private final ExecutorService executorService;
 
+    /** Executor writing the tiles to the wrapped store in write behind mode, and retrying the failed writes */
+    private final ScheduledExecutorService writeExecutor;
+
     /** Optional name used for searching the bean related to the CacheProvider to set in the ApplicationContext */
-    private String cacheBeanName;
+    private volatile String cacheBeanName;
 
     /** Boolean used for Application Context initialization */
     private AtomicBoolean cacheAlreadySet;
 
-    /** {@link ReentrantReadWriteLock} used for handling concurrency when accessing the cacheProvider. */
-    private final ReentrantReadWriteLock lock;
+    /** Maximum number of tiles waiting to be written to the wrapped store, 0 if puts are synchronous */
+    private volatile int writeBehindQueueSize;
 
-    /** {@link WriteLock} used for scheduling the access to the {@link MemoryBlobStore} state */
-    private final WriteLock blobStoreStateLock;
+    /** Number of times a failed write behind is retried */
+    private int writeBehindRetries = DEFAULT_WRITE_BEHIND_RETRIES;
 
-    /**
-     * {@link ReadLock} used for granting access to operations which does not change the {@link MemoryBlobStore} state, but can change the state of
-     * its components like {@link CacheProvider} and {@link BlobStore}
-     */
-    private final ReadLock componentsStateLock;
+    /** Writes of the tiles waiting to be written to the wrapped store, by cache key */
+    private final ConcurrentMap<TileKey, WriteBehindTask> pendingWrites = new ConcurrentHashMap<TileKey, WriteBehindTask>();
+
+    /** Number of tiles that could not be written to the wrapped store */
+    private final AtomicLong failedWrites = new AtomicLong();
+
+    /** Tiles being read from the wrapped store after a miss, by cache key */
+    private final ConcurrentMap<TileKey, FutureTask<TileObject>> inFlightLoads = new ConcurrentHashMap<TileKey, FutureTask<TileObject>>();
+
+    /** Time in milliseconds a miss waits for the same tile being loaded by another request */
+    private volatile long loadTimeout = DEFAULT_LOAD_TIMEOUT;
+
+    /** Number of misses served by a load started by another request */
+    private final AtomicLong coalescedLoads = new AtomicLong();
+
+    /** File where the hot set is saved on shutdown, {@code null} if it is not saved */
+    private File hotSetFile;
+
+    /** Maximum number of tiles saved in the hot set file */
+    private int hotSetSize = DEFAULT_HOT_SET_SIZE;
+
+    /** Number of tiles of the hot set loaded per second */
+    private int hotSetRestoreRate = DEFAULT_HOT_SET_RESTORE_RATE;
+
+    /** Thread loading the hot set, {@code null} if not running */
+    private volatile Thread hotSetRestoreThread;
+
+    /** Number of tiles of the hot set loaded in the cache */
+    private final AtomicLong restoredTiles = new AtomicLong();
 
     public MemoryBlobStore() {
         // Initialization of the various elements
         this.executorService = Executors.newFixedThreadPool(1);
-        lock = new ReentrantReadWriteLock(true);
-        blobStoreStateLock = lock.writeLock();
-        componentsStateLock = lock.readLock();
+        this.writeExecutor = new ScheduledThreadPoolExecutor(1, WRITE_BEHIND_THREAD_FACTORY);
         cacheAlreadySet = new AtomicBoolean(false);
         // Initialization of the cacheProvider and store. Must be overridden, this uses default and caches in memory
-        setStore(new NullBlobStore());
         GuavaCacheProvider startingCache = new GuavaCacheProvider(new CacheConfiguration());
-        this.cacheProvider = startingCache;
+        this.state = new State(new NullBlobStore(), startingCache, null);
     }
     
     @Override
 	public boolean layerExists(String layerName) {
-        componentsStateLock.lock();
-        try {
-            return store.layerExists(layerName);
-        } finally {
-            componentsStateLock.unlock();
-        }
+        return state.store.layerExists(layerName);
 	}
     
     @Override
     public boolean delete(String layerName) throws StorageException {
-        componentsStateLock.lock();
-        try {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Removing layer: " + layerName + " from cache provider");
-            }
-            // Remove from cacheProvider
-            cacheProvider.removeLayer(layerName);
-            // Remove the layer. Wait other scheduled tasks
-            boolean executed = executeBlobStoreTask(BlobStoreAction.DELETE_LAYER, store, layerName);
-            if (LOG.isDebugEnabled()) {
-                if (executed) {
-                    LOG.debug("Delete Layer Task executed");
-                } else {
-                    LOG.debug("Delete LayerTask failed");
-                }
+        State current = state;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Removing layer: " + layerName + " from cache provider");
+        }
+        // Remove from cacheProvider
+        current.cacheProvider.removeLayer(layerName);
+        List<WriteBehindTask> cancelled = removePendingWrites(layerName);
+        // Remove the layer. Wait other scheduled tasks
+        boolean executed = waitBlobStoreTask(submitAfterWrites(cancelled,
+                new BlobStoreTask(current.store, BlobStoreAction.DELETE_LAYER, layerName),
+                removeLayerTask(current, layerName)));
+        if (LOG.isDebugEnabled()) {
+            if (executed) {
+                LOG.debug("Delete Layer Task executed");
+            } else {
+                LOG.debug("Delete LayerTask failed");
             }
-            // Returns the result
-            return executed;
-        } finally {
-            componentsStateLock.unlock();
         }
+        // Returns the result
+        return executed;
     }
 
     @Override
     public boolean deleteByGridsetId(String layerName, String gridSetId) throws StorageException {
-        componentsStateLock.lock();
-        try {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Removing Layer: " + layerName);
-            }
-            // Remove the layer from the cacheProvider
-            cacheProvider.removeLayer(layerName);
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Scheduling GridSet: " + gridSetId + " removal for Layer: " + layerName);
-            }
-            // Remove selected gridsets
-            executorService.submit(new BlobStoreTask(store, BlobStoreAction.DELETE_GRIDSET,
-                    layerName, gridSetId));
-            return true;
-        } finally {
-            componentsStateLock.unlock();
+        State current = state;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Removing Layer: " + layerName);
+        }
+        // Remove the layer from the cacheProvider
+        current.cacheProvider.removeLayer(layerName);
+        List<WriteBehindTask> cancelled = removePendingWrites(layerName);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Scheduling GridSet: " + gridSetId + " removal for Layer: " + layerName);
         }
+        // Remove selected gridsets
+        submitAfterWrites(cancelled, new BlobStoreTask(current.store,
+                BlobStoreAction.DELETE_GRIDSET, layerName, gridSetId),
+                removeLayerTask(current, layerName));
+        return true;
     }
 
     @Override
-    public boolean delete(TileObject obj) throws StorageException {
-        componentsStateLock.lock();
-        try {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Removing TileObject: " + obj);
-            }
-            // Remove from cacheProvider
-            cacheProvider.removeTileObj(obj);
-            // Remove selected TileObject
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Scheduling removal of TileObject: " + obj);
+    public boolean delete(final TileObject obj) throws StorageException {
+        final State current = state;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Removing TileObject: " + obj);
+        }
+        // Remove from cacheProvider
+        current.cacheProvider.removeTileObj(obj);
+        List<WriteBehindTask> cancelled = Collections.emptyList();
+        if (!pendingWrites.isEmpty()) {
+            WriteBehindTask pending = pendingWrites.remove(TileKey.of(obj));
+            if (pending != null) {
+                cancelled = Collections.singletonList(pending);
             }
-            executorService.submit(new BlobStoreTask(store, BlobStoreAction.DELETE_SINGLE, obj));
-            return true;
-        } finally {
-            componentsStateLock.unlock();
         }
+        // Remove selected TileObject
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Scheduling removal of TileObject: " + obj);
+        }
+        submitAfterWrites(cancelled, new BlobStoreTask(current.store,
+                BlobStoreAction.DELETE_SINGLE, obj), new Runnable() {
+
+            @Override
+            public void run() {
+                current.cacheProvider.removeTileObj(obj);
+            }
+        });
+        return true;
     }
 
     @Override
     public boolean delete(TileRange obj) throws StorageException {
-        componentsStateLock.lock();
-        try {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Removing TileObjects for Layer: " + obj.getLayerName()
-                        + ", min/max levels: " + "[" + obj.getZoomStart() + ", "
-                        + obj.getZoomStop() + "], Gridset: " + obj.getGridSetId());
-            }
-            // Remove layer for the cacheProvider
-            cacheProvider.removeLayer(obj.getLayerName());
-            // Remove selected TileObject
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Scheduling removal of TileObjects for Layer: " + obj.getLayerName()
-                        + ", min/max levels: " + "[" + obj.getZoomStart() + ", "
-                        + obj.getZoomStop() + "], Gridset: " + obj.getGridSetId());
-            }
-            // Remove selected TileRange
-            executorService.submit(new BlobStoreTask(store, BlobStoreAction.DELETE_RANGE, obj));
-            return true;
-        } finally {
-            componentsStateLock.unlock();
+        State current = state;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Removing TileObjects for Layer: " + obj.getLayerName()
+                    + ", min/max levels: " + "[" + obj.getZoomStart() + ", "
+                    + obj.getZoomStop() + "], Gridset: " + obj.getGridSetId());
+        }
+        // Remove layer for the cacheProvider
+        current.cacheProvider.removeLayer(obj.getLayerName());
+        List<WriteBehindTask> cancelled = removePendingWrites(obj.getLayerName());
+        // Remove selected TileObject
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Scheduling removal of TileObjects for Layer: " + obj.getLayerName()
+                    + ", min/max levels: " + "[" + obj.getZoomStart() + ", "
+                    + obj.getZoomStop() + "], Gridset: " + obj.getGridSetId());
         }
+        // Remove selected TileRange
+        submitAfterWrites(cancelled, new BlobStoreTask(current.store,
+                BlobStoreAction.DELETE_RANGE, obj), removeLayerTask(current, obj.getLayerName()));
+        return true;
     }
 
     @Override
     public boolean get(TileObject obj) throws StorageException {
-        componentsStateLock.lock();
-        try {
+        State current = state;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Checking if TileObject:" + obj + " is present");
+        }
+        TileObject cached = current.cacheProvider.getTileObj(obj);
+        boolean found = false;
+        if (cached == null && !pendingWrites.isEmpty()) {
+            // Evicted before being written to the wrapped blobstore
+            WriteBehindTask pending = pendingWrites.get(TileKey.of(obj));
+            if (pending != null) {
+                cached = pending.cached;
+                current.cacheProvider.putTileObj(cached);
+            }
+        }
+        if (cached == null) {
             if (LOG.isDebugEnabled()) {
-                LOG.debug("Checking if TileObject:" + obj + " is present");
-            }
-            TileObject cached = cacheProvider.getTileObj(obj);
-            boolean found = false;
-            if (cached == null) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("TileObject:" + obj
-                            + " not found. Try to get it from the wrapped blobstore");
-                }
-                // Try if it can be found in the system. Wait other scheduled tasks
-                found = executeBlobStoreTask(BlobStoreAction.GET, store, obj);
-
-                // If the file has been found, it is inserted in cacheProvider
-                if (found) {
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug("TileObject:" + obj + " found. Put it in cache");
-                    }
-                    // Get the Cached TileObject
-                    cached = getByteResourceTile(obj);
-                    // Put the file in Cache
-                    cacheProvider.putTileObj(cached);
-                }
-            } else {
-                // Found in cacheProvider
-                found = true;
+                LOG.debug("TileObject:" + obj
+                        + " not found. Try to get it from the wrapped blobstore");
             }
-            // If found add its resource to the input TileObject
-            if (found) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("TileObject:" + obj + " found, update the input TileObject");
-                }
-                Resource resource = cached.getBlob();
-                obj.setBlob(resource);
-                obj.setCreated(resource.getLastModified());
-                obj.setBlobSize((int) resource.getSize());
+            // Try if it can be found in the system, or join the request already loading it
+            cached = load(current, obj);
+            found = cached != null;
+        } else {
+            // Found in cacheProvider
+            found = true;
+        }
+        // If found add its resource to the input TileObject
+        if (found) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("TileObject:" + obj + " found, update the input TileObject");
             }
-
-            return found;
-        } finally {
-            componentsStateLock.unlock();
+            Resource resource = cached.getBlob();
+            obj.setBlob(resource);
+            obj.setCreated(resource.getLastModified());
+            obj.setBlobSize((int) resource.getSize());
         }
+
+        return found;
     }
 
     @Override
     public void put(TileObject obj) throws StorageException {
-        componentsStateLock.lock();
-        try {
+        State current = state;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Convert Input resource into a Byte Array");
+        }
+        TileObject cached = getByteResourceTile(obj);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Adding TileObject: " + obj + " to cache");
+        }
+        current.cacheProvider.putTileObj(cached);
+        write(current, obj, cached);
+    }
+
+    @Override
+    public void put(List<TileObject> objs) throws StorageException {
+        State current = state;
+        List<TileObject> cached = new ArrayList<TileObject>(objs.size());
+        for (TileObject obj : objs) {
+            cached.add(getByteResourceTile(obj));
+        }
+        if (current.cacheProvider instanceof BulkCacheProvider) {
             if (LOG.isDebugEnabled()) {
-                LOG.debug("Convert Input resource into a Byte Array");
+                LOG.debug("Adding " + cached.size() + " TileObjects to cache at once");
             }
-            TileObject cached = getByteResourceTile(obj);
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Adding TileObject: " + obj + " to cache");
+            ((BulkCacheProvider) current.cacheProvider).putTileObjs(cached);
+        } else {
+            for (TileObject tile : cached) {
+                current.cacheProvider.putTileObj(tile);
             }
-            cacheProvider.putTileObj(cached);
-            // Add selected TileObject. Wait other scheduled tasks
+        }
+        for (int i = 0; i < cached.size(); i++) {
+            write(current, objs.get(i), cached.get(i));
+        }
+    }
+
+    /**
+     * Writes a tile just cached to the wrapped store, or schedules its write in write behind mode
+     * 
+     * @param current
+     * @param obj the tile as received
+     * @param cached the tile as cached
+     * @throws StorageException
+     */
+    private void write(State current, TileObject obj, TileObject cached) throws StorageException {
+        if (current.writeBehindPermits != null) {
             if (LOG.isDebugEnabled()) {
-                LOG.debug("Adding TileObject: " + obj + " to the wrapped blobstore");
+                LOG.debug("Scheduling TileObject: " + obj + " write to the wrapped blobstore");
             }
-            // Variable containing the execution result
-            executeBlobStoreTask(BlobStoreAction.PUT, store, obj);
-        } finally {
-            componentsStateLock.unlock();
+            scheduleWrite(current, cached);
+            return;
         }
+        // Add selected TileObject. Wait other scheduled tasks
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Adding TileObject: " + obj + " to the wrapped blobstore");
+        }
+        // Variable containing the execution result
+        executeBlobStoreTask(BlobStoreAction.PUT, current.store, obj);
     }
 
     @Override
     public void clear() throws StorageException {
-        componentsStateLock.lock();
-        try {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Flushing cache");
-            }
-            // flush the cacheProvider
-            cacheProvider.clear();
-            // Remove all the files
-            executorService.submit(new BlobStoreTask(store, BlobStoreAction.CLEAR, ""));
-        } finally {
-            componentsStateLock.unlock();
+        State current = state;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Flushing cache");
         }
+        // flush the cacheProvider
+        current.cacheProvider.clear();
+        List<WriteBehindTask> cancelled = removePendingWrites(null);
+        // Remove all the files
+        submitAfterWrites(cancelled, new BlobStoreTask(current.store, BlobStoreAction.CLEAR, ""),
+                clearTask(current));
     }
 
     @Override
     public void destroy() {
-        blobStoreStateLock.lock();
+        stopHotSetRestore();
+        saveHotSet();
+        State current = state;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Reset cache");
+        }
+        // flush the cacheProvider
+        current.cacheProvider.reset();
+        // Complete the pending writes
+        writeExecutor.shutdown();
         try {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Reset cache");
-            }
-            // flush the cacheProvider
-            cacheProvider.reset();
-            // Remove all the files
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Destroy wrapped store");
+            if (!writeExecutor.awaitTermination(WRITE_BEHIND_FLUSH_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                if (LOG.isWarnEnabled()) {
+                    LOG.warn("Giving up on " + pendingWrites.size() + " pending writes");
+                }
+                writeExecutor.shutdownNow();
             }
-            executeBlobStoreTask(BlobStoreAction.DESTROY, store, "");
-            // Stop the pending tasks
-            executorService.shutdownNow();
-        } finally {
-            blobStoreStateLock.unlock();
+        } catch (InterruptedException e) {
+            writeExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
         }
+        // Remove all the files
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Destroy wrapped store");
+        }
+        executeBlobStoreTask(BlobStoreAction.DESTROY, current.store, "");
+        // Stop the pending tasks
+        executorService.shutdownNow();
     }
 
     @Override
     public void addListener(BlobStoreListener listener) {
-        componentsStateLock.lock();
-        try {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Adding a new Listener");
-            }
-            // Add a new Listener
-            store.addListener(listener);
-        } finally {
-            componentsStateLock.unlock();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Adding a new Listener");
         }
+        // Add a new Listener
+        state.store.addListener(listener);
     }
 
     @Override
     public boolean removeListener(BlobStoreListener listener) {
-        componentsStateLock.lock();
-        try {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Removing listener");
-            }
-            // Remove a listener
-            return store.removeListener(listener);
-        } finally {
-            componentsStateLock.unlock();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Removing listener");
         }
+        // Remove a listener
+        return state.store.removeListener(listener);
     }
 
     @Override
     public boolean rename(String oldLayerName, String newLayerName) throws StorageException {
-        componentsStateLock.lock();
-        try {
-            // flush the cacheProvider
+        State current = state;
+        // flush the cacheProvider
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Flushing cache");
+        }
+        current.cacheProvider.clear();
+        List<WriteBehindTask> cancelled = removePendingWrites(oldLayerName);
+        // Rename the layer. Wait other scheduled tasks
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Executing Layer rename task");
+        }
+        // Variable containing the execution result
+        boolean executed = waitBlobStoreTask(submitAfterWrites(cancelled, new BlobStoreTask(
+                current.store, BlobStoreAction.RENAME, oldLayerName, newLayerName),
+                clearTask(current)));
+        return executed;
+    }
+
+    @Override
+    public String getLayerMetadata(String layerName, String key) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Getting metadata for Layer: " + layerName);
+        }
+        // Get the Layer metadata
+        return state.store.getLayerMetadata(layerName, key);
+    }
+
+    @Override
+    public void putLayerMetadata(String layerName, String key, String value) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Adding metadata for Layer: " + layerName);
+        }
+        // Add a new Layer Metadata
+        state.store.putLayerMetadata(layerName, key, value);
+    }
+
+    /**
+     * @return a {@link CacheStatistics} object containing the {@link CacheProvider} statistics
+     */
+    public CacheStatistics getCacheStatistics() {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Getting Cache Statistics");
+        }
+        return state.cacheProvider.getStatistics();
+    }
+
+    /**
+     * Sets the maximum number of tiles waiting to be written to the wrapped store. A positive value makes
+     * {@link #put(TileObject)} return as soon as the tile is cached in memory, 0 (the default) makes it wait for the write.
+     * 
+     * @param writeBehindQueueSize
+     */
+    public void setWriteBehindQueueSize(int writeBehindQueueSize) {
+        if (writeBehindQueueSize < 0) {
+            throw new IllegalArgumentException("Write behind queue size cannot be negative");
+        }
+        synchronized (stateUpdateLock) {
             if (LOG.isDebugEnabled()) {
-                LOG.debug("Flushing cache");
+                LOG.debug("Setting write behind queue size to " + writeBehindQueueSize);
             }
-            cacheProvider.clear();
-            // Rename the layer. Wait other scheduled tasks
+            this.writeBehindQueueSize = writeBehindQueueSize;
+            // Writes already queued release their permits on the previous semaphore
+            Semaphore permits = writeBehindQueueSize > 0 ? new Semaphore(writeBehindQueueSize)
+                    : null;
+            State current = state;
+            state = new State(current.store, current.cacheProvider, permits);
+        }
+    }
+
+    /**
+     * @return the maximum number of tiles waiting to be written to the wrapped store, 0 if puts are synchronous
+     */
+    public int getWriteBehindQueueSize() {
+        return writeBehindQueueSize;
+    }
+
+    /**
+     * Sets the number of times a write behind failing with an exception is retried before giving up on the tile
+     * 
+     * @param writeBehindRetries
+     */
+    public void setWriteBehindRetries(int writeBehindRetries) {
+        if (writeBehindRetries < 0) {
+            throw new IllegalArgumentException("Write behind retries cannot be negative");
+        }
+        this.writeBehindRetries = writeBehindRetries;
+    }
+
+    /**
+     * @return the number of times a failed write behind is retried
+     */
+    public int getWriteBehindRetries() {
+        return writeBehindRetries;
+    }
+
+    /**
+     * @return the number of tiles waiting to be written to the wrapped store
+     */
+    public int getPendingWrites() {
+        return pendingWrites.size();
+    }
+
+    /**
+     * @return the number of tiles that could not be written to the wrapped store, after retrying
+     */
+    public long getFailedWrites() {
+        return failedWrites.get();
+    }
+
+    /**
+     * Sets the time in milliseconds a {@link #get(TileObject)} miss waits for the same tile being loaded by another request before failing
+     * with a {@link StorageException}
+     * 
+     * @param loadTimeout
+     */
+    public void setLoadTimeout(long loadTimeout) {
+        if (loadTimeout <= 0) {
+            throw new IllegalArgumentException("Load timeout must be positive");
+        }
+        this.loadTimeout = loadTimeout;
+    }
+
+    /**
+     * @return the time in milliseconds a miss waits for the same tile being loaded by another request
+     */
+    public long getLoadTimeout() {
+        return loadTimeout;
+    }
+
+    /**
+     * @return the number of misses served by a load started by another request instead of reading the wrapped store
+     */
+    public long getCoalescedLoads() {
+        return coalescedLoads.get();
+    }
+
+    /**
+     * Sets the file where the keys of the most valuable cached tiles are saved on {@link #destroy()}, and loaded from on startup
+     * 
+     * @param hotSetFile the file, or {@code null} to disable saving the hot set
+     */
+    public void setHotSetFile(File hotSetFile) {
+        this.hotSetFile = hotSetFile;
+    }
+
+    /**
+     * @return the file where the hot set is saved, {@code null} if it is not saved
+     */
+    public File getHotSetFile() {
+        return hotSetFile;
+    }
+
+    /**
+     * Sets the maximum number of tiles saved in the hot set file
+     * 
+     * @param hotSetSize
+     */
+    public void setHotSetSize(int hotSetSize) {
+        if (hotSetSize < 0) {
+            throw new IllegalArgumentException("Hot set size cannot be negative");
+        }
+        this.hotSetSize = hotSetSize;
+    }
+
+    /**
+     * @return the maximum number of tiles saved in the hot set file
+     */
+    public int getHotSetSize() {
+        return hotSetSize;
+    }
+
+    /**
+     * Sets the number of tiles of the hot set loaded per second on startup, to limit the load on the wrapped store
+     * 
+     * @param hotSetRestoreRate
+     */
+    public void setHotSetRestoreRate(int hotSetRestoreRate) {
+        if (hotSetRestoreRate <= 0) {
+            throw new IllegalArgumentException("Hot set restore rate must be positive");
+        }
+        this.hotSetRestoreRate = hotSetRestoreRate;
+    }
+
+    /**
+     * @return the number of tiles of the hot set loaded per second on startup
+     */
+    public int getHotSetRestoreRate() {
+        return hotSetRestoreRate;
+    }
+
+    /**
+     * @return the number of tiles of the hot set loaded in the cache
+     */
+    public long getRestoredTiles() {
+        return restoredTiles.get();
+    }
+
+    /**
+     * @return true if the hot set is being loaded
+     */
+    public boolean isRestoringHotSet() {
+        return hotSetRestoreThread != null;
+    }
+
+    /**
+     * Saves the keys of the most valuable cached tiles to the {@link #setHotSetFile(File) hot set file}. Does nothing if no file is set or the
+     * {@link CacheProvider} cannot tell its most valuable tiles.
+     */
+    public void saveHotSet() {
+        if (hotSetFile == null || hotSetSize == 0) {
+            return;
+        }
+        CacheProvider cacheProvider = state.cacheProvider;
+        if (!(cacheProvider instanceof HotSetCacheProvider)) {
             if (LOG.isDebugEnabled()) {
-                LOG.debug("Executing Layer rename task");
+                LOG.debug("Cache " + cacheProvider.getName() + " cannot provide its hot set");
+            }
+            return;
+        }
+        try {
+            List<TileKey> keys = ((HotSetCacheProvider) cacheProvider).getHotSet(hotSetSize);
+            HotSetFile.write(hotSetFile, keys);
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Saved " + keys.size() + " tiles of the memory cache hot set to " + hotSetFile);
+            }
+        } catch (IOException e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Unable to save the memory cache hot set to " + hotSetFile, e);
             }
-            // Variable containing the execution result
-            boolean executed = executeBlobStoreTask(BlobStoreAction.RENAME, store, oldLayerName,
-                    newLayerName);
-            return executed;
-        } finally {
-            componentsStateLock.unlock();
         }
     }
 
-    @Override
-    public String getLayerMetadata(String layerName, String key) {
-        componentsStateLock.lock();
+    /**
+     * Starts loading the tiles saved in the {@link #setHotSetFile(File) hot set file} in the background, unless already loading. Requests are
+     * served meanwhile, and share the load of the tiles they miss.
+     */
+    public synchronized void restoreHotSet() {
+        if (hotSetFile == null || hotSetRestoreThread != null) {
+            return;
+        }
+        Thread thread = HOT_SET_THREAD_FACTORY.newThread(new HotSetRestoreTask(hotSetFile));
+        hotSetRestoreThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops loading the hot set, leaving the tiles already loaded in the cache
+     */
+    public synchronized void stopHotSetRestore() {
+        Thread thread = hotSetRestoreThread;
+        if (thread != null) {
+            hotSetRestoreThread = null;
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Loads a tile of the hot set in the cache
+     * 
+     * @param key
+     * @return true if the tile has been found in the wrapped store
+     */
+    private boolean restore(TileKey key) {
+        State current = state;
+        if (current.cacheProvider.containsUncachedLayer(key.getLayerName())) {
+            return false;
+        }
+        long[] xyz = { key.getX(), key.getY(), key.getZ() };
+        TileObject obj = TileObject.createQueryTileObject(key.getLayerName(), xyz,
+                key.getGridSetId(), key.getBlobFormat(), key.getParameters());
         try {
+            return load(current, obj) != null;
+        } catch (StorageException e) {
             if (LOG.isDebugEnabled()) {
-                LOG.debug("Getting metadata for Layer: " + layerName);
+                LOG.debug("Unable to restore TileObject: " + key, e);
             }
-            // Get the Layer metadata
-            return store.getLayerMetadata(layerName, key);
-        } finally {
-            componentsStateLock.unlock();
+            return false;
         }
     }
 
-    @Override
-    public void putLayerMetadata(String layerName, String key, String value) {
-        componentsStateLock.lock();
+    /**
+     * Loads a missing tile from the wrapped store and caches it. If the same tile is already being loaded, waits for that load instead of
+     * reading the wrapped store again. The load is forgotten once done, so a failure is only reported to the requests waiting for it.
+     * 
+     * @param current
+     * @param obj
+     * @return the cached tile, or {@code null} if not found in the wrapped store
+     * @throws StorageException
+     */
+    private TileObject load(State current, TileObject obj) throws StorageException {
+        TileKey key = TileKey.of(obj);
+        FutureTask<TileObject> load = new FutureTask<TileObject>(new LoadTask(current, obj));
+        FutureTask<TileObject> inFlight = inFlightLoads.putIfAbsent(key, load);
         try {
+            if (inFlight == null) {
+                try {
+                    load.run();
+                } finally {
+                    inFlightLoads.remove(key, load);
+                }
+                return load.get();
+            }
             if (LOG.isDebugEnabled()) {
-                LOG.debug("Adding metadata for Layer: " + layerName);
+                LOG.debug("TileObject:" + obj + " already being loaded, waiting for it");
             }
-            // Add a new Layer Metadata
-            store.putLayerMetadata(layerName, key, value);
-        } finally {
-            componentsStateLock.unlock();
+            coalescedLoads.incrementAndGet();
+            return inFlight.get(loadTimeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof StorageException) {
+                throw (StorageException) cause;
+            }
+            throw new StorageException("Unable to load TileObject: " + obj, cause);
+        } catch (TimeoutException e) {
+            throw new StorageException("Timed out after " + loadTimeout
+                    + "ms waiting for TileObject: " + obj + " to be loaded");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted waiting for TileObject: " + obj
+                    + " to be loaded");
         }
     }
 
     /**
-     * @return a {@link CacheStatistics} object containing the {@link CacheProvider} statistics
+     * Queues the write of a cached tile to the wrapped store, waiting for room in the queue if it's full
+     * 
+     * @param current
+     * @param cached
+     * @throws StorageException
      */
-    public CacheStatistics getCacheStatistics() {
-        componentsStateLock.lock();
+    private void scheduleWrite(State current, TileObject cached) throws StorageException {
+        final Semaphore permits = current.writeBehindPermits;
         try {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Getting Cache Statistics");
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted waiting to schedule the write of " + cached);
+        }
+        final TileKey key = TileKey.of(cached);
+        // The wrapped store may update the tile it writes, so it gets its own sharing the cached bytes
+        TileObject tile = TileObject.createCompleteTileObject(cached.getLayerName(),
+                cached.getXYZ().clone(), cached.getGridSetId(), cached.getBlobFormat(),
+                cached.getParameters(), cached.getBlob());
+        final WriteBehindTask task = new WriteBehindTask(current.store, tile, key, cached, permits);
+        WriteBehindTask previous = pendingWrites.put(key, task);
+        // An older version being written must not overwrite this one
+        if (previous == null || previous.cancel(new Runnable() {
+
+            @Override
+            public void run() {
+                submitWrite(task);
+            }
+        })) {
+            if (!submitWrite(task)) {
+                throw new StorageException("Unable to schedule the write of " + cached
+                        + ", the blobstore has been destroyed");
             }
-            return cacheProvider.getStatistics();
-        } finally {
-            componentsStateLock.unlock();
         }
     }
 
     /**
-     * Setter for the store to wrap
+     * Hands a write over to the write behind executor
      * 
-     * @param store
+     * @param task
+     * @return false if the executor has been shut down, the write being dropped
      */
-    public void setStore(BlobStore store) {
-        blobStoreStateLock.lock();
+    private boolean submitWrite(WriteBehindTask task) {
         try {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Setting the wrapped store");
+            writeExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            pendingWrites.remove(task.key, task);
+            task.permits.release();
+            return false;
+        }
+    }
+
+    /**
+     * Cancels the pending writes of a layer, or of all the layers if {@code null}
+     * 
+     * @param layerName
+     * @return the cancelled writes
+     */
+    private List<WriteBehindTask> removePendingWrites(String layerName) {
+        if (pendingWrites.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<WriteBehindTask> cancelled = new ArrayList<WriteBehindTask>();
+        for (Map.Entry<TileKey, WriteBehindTask> entry : pendingWrites.entrySet()) {
+            WriteBehindTask task = entry.getValue();
+            if ((layerName == null || task.cached.getLayerName().equals(layerName))
+                    && pendingWrites.remove(entry.getKey(), task)) {
+                cancelled.add(task);
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Submits an operation on the wrapped store once the writes it cancelled are over. The writes which already started cannot be stopped:
+     * the operation then waits for them, so that they do not undo it, and runs {@code evict} afterwards in case the tiles they wrote got
+     * cached again meanwhile.
+     * 
+     * @param cancelled
+     * @param task
+     * @param evict
+     * @return the result of the operation
+     */
+    private Future<Boolean> submitAfterWrites(List<WriteBehindTask> cancelled, BlobStoreTask task,
+            final Runnable evict) {
+        final FutureTask<Boolean> future = new FutureTask<Boolean>(task);
+        final AtomicInteger remaining = new AtomicInteger(1);
+        final AtomicBoolean waited = new AtomicBoolean();
+        Runnable submit = new Runnable() {
+
+            @Override
+            public void run() {
+                if (remaining.decrementAndGet() > 0) {
+                    return;
+                }
+                if (!waited.get()) {
+                    executorService.execute(future);
+                    return;
+                }
+                executorService.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        future.run();
+                        evict.run();
+                    }
+                });
             }
-            if (store == null) {
-                throw new NullPointerException("Input BlobStore cannot be null");
+        };
+        for (WriteBehindTask write : cancelled) {
+            remaining.incrementAndGet();
+            if (write.cancel(submit)) {
+                remaining.decrementAndGet();
+            } else {
+                waited.set(true);
             }
-            this.store = store;
-        } finally {
-            blobStoreStateLock.unlock();
+        }
+        submit.run();
+        return future;
+    }
+
+    private Runnable removeLayerTask(final State current, final String layerName) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                current.cacheProvider.removeLayer(layerName);
+            }
+        };
+    }
+
+    private Runnable clearTask(final State current) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                current.cacheProvider.clear();
+            }
+        };
+    }
+
+    /**
+     * Setter for the store to wrap
+     * 
+     * @param store
+     */
+    public void setStore(BlobStore store) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Setting the wrapped store");
+        }
+        if (store == null) {
+            throw new NullPointerException("Input BlobStore cannot be null");
+        }
+        synchronized (stateUpdateLock) {
+            State current = state;
+            state = new State(store, current.cacheProvider, current.writeBehindPermits);
         }
     }
 
@@ -421,15 +947,10 @@ public class MemoryBlobStore implements BlobStore, ApplicationContextAware {
      * @return The wrapped {@link BlobStore} implementation
      */
     public BlobStore getStore() {
-        componentsStateLock.lock();
-        try {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Returning the wrapped store");
-            }
-            return store;
-        } finally {
-            componentsStateLock.unlock();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Returning the wrapped store");
         }
+        return state.store;
     }
 
     /**
@@ -438,18 +959,16 @@ public class MemoryBlobStore implements BlobStore, ApplicationContextAware {
      * @param cacheProvider
      */
     public void setCacheProvider(CacheProvider cache) {
-        blobStoreStateLock.lock();
-        try {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Setting cache provided");
-            }
-            if (cache == null) {
-                throw new IllegalArgumentException("Input BlobStore cannot be null");
-            }
-            this.cacheProvider = cache;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Setting cache provided");
+        }
+        if (cache == null) {
+            throw new IllegalArgumentException("Input BlobStore cannot be null");
+        }
+        synchronized (stateUpdateLock) {
+            State current = state;
+            state = new State(current.store, cache, current.writeBehindPermits);
             cacheAlreadySet.getAndSet(true);
-        } finally {
-            blobStoreStateLock.unlock();
         }
     }
 
@@ -500,15 +1019,10 @@ public class MemoryBlobStore implements BlobStore, ApplicationContextAware {
      * @param cacheBeanName
      */
     public void setCacheBeanName(String cacheBeanName) {
-        blobStoreStateLock.lock();
-        try {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Setting cache providee name");
-            }
-            this.cacheBeanName = cacheBeanName;
-        } finally {
-            blobStoreStateLock.unlock();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Setting cache providee name");
         }
+        this.cacheBeanName = cacheBeanName;
     }
 
     @Override
@@ -577,10 +1091,15 @@ public class MemoryBlobStore implements BlobStore, ApplicationContextAware {
                 LOG.debug("CacheProvider already configured");
             }
         }
+        // Warm up the cache configured above
+        restoreHotSet();
     }
 
     private boolean executeBlobStoreTask(BlobStoreAction action, BlobStore store, Object... objs) {
-        Future<Boolean> future = executorService.submit(new BlobStoreTask(store, action, objs));
+        return waitBlobStoreTask(executorService.submit(new BlobStoreTask(store, action, objs)));
+    }
+
+    private boolean waitBlobStoreTask(Future<Boolean> future) {
         // Variable containing the execution result
         boolean executed = false;
         if (LOG.isDebugEnabled()) {
@@ -634,6 +1153,256 @@ public class MemoryBlobStore implements BlobStore, ApplicationContextAware {
         }
     }
 
+    /**
+     * Immutable snapshot of the components used by the {@link MemoryBlobStore} operations. An operation reads it once and uses it until done,
+     * so replacing it never waits for the running operations nor makes them mix old and new components.
+     */
+    static final class State {
+
+        /** {@link BlobStore} to use when no element is found */
+        final BlobStore store;
+
+        /** {@link CacheProvider} object to use for caching */
+        final CacheProvider cacheProvider;
+
+        /** Room left in the write behind queue, {@code null} if puts are synchronous */
+        final Semaphore writeBehindPermits;
+
+        State(BlobStore store, CacheProvider cacheProvider, Semaphore writeBehindPermits) {
+            this.store = store;
+            this.cacheProvider = cacheProvider;
+            this.writeBehindPermits = writeBehindPermits;
+        }
+    }
+
+    /**
+     * Task loading the tiles of a hot set file at the configured rate, until done or {@link #stopHotSetRestore() stopped}.
+     */
+    class HotSetRestoreTask implements Runnable {
+
+        /** File the keys are read from */
+        private final File file;
+
+        HotSetRestoreTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<TileKey> keys = HotSetFile.read(file);
+                if (LOG.isInfoEnabled() && !keys.isEmpty()) {
+                    LOG.info("Loading " + keys.size() + " tiles of the memory cache hot set from " + file);
+                }
+                int restored = 0;
+                long next = System.nanoTime();
+                for (TileKey key : keys) {
+                    if (hotSetRestoreThread != Thread.currentThread()) {
+                        break;
+                    }
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    next = Math.max(next, System.nanoTime())
+                            + TimeUnit.SECONDS.toNanos(1) / hotSetRestoreRate;
+                    if (restore(key)) {
+                        restored++;
+                        restoredTiles.incrementAndGet();
+                    }
+                }
+                if (LOG.isInfoEnabled() && !keys.isEmpty()) {
+                    LOG.info("Loaded " + restored + " tiles of the memory cache hot set");
+                }
+            } catch (InterruptedException e) {
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Stopped loading the memory cache hot set after " + restoredTiles.get() + " tiles");
+                }
+            } catch (IOException e) {
+                if (LOG.isErrorEnabled()) {
+                    LOG.error("Unable to read the memory cache hot set from " + file, e);
+                }
+            } finally {
+                synchronized (MemoryBlobStore.this) {
+                    if (hotSetRestoreThread == Thread.currentThread()) {
+                        hotSetRestoreThread = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Task reading a missing tile from the wrapped store and caching it, shared by the concurrent misses on the same tile.
+     */
+    class LoadTask implements Callable<TileObject> {
+
+        /** Components of the first miss */
+        private final State current;
+
+        /** The tile requested by the first miss */
+        private final TileObject obj;
+
+        LoadTask(State current, TileObject obj) {
+            this.current = current;
+            this.obj = obj;
+        }
+
+        @Override
+        public TileObject call() throws Exception {
+            // Wait other scheduled tasks
+            if (!executeBlobStoreTask(BlobStoreAction.GET, current.store, obj)) {
+                return null;
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("TileObject:" + obj + " found. Put it in cache");
+            }
+            // Get the Cached TileObject
+            TileObject cached = getByteResourceTile(obj);
+            // Put the file in Cache
+            current.cacheProvider.putTileObj(cached);
+            return cached;
+        }
+    }
+
+    /**
+     * Task writing a tile to the wrapped store on behalf of a write behind {@link #put(TileObject)}, rescheduled on failure until out of
+     * retries. Removing it from the pending writes and {@link #cancel(Runnable) cancelling} it stops it, unless it's writing the tile.
+     */
+    class WriteBehindTask implements Runnable {
+
+        /** Store on which the tile must be written */
+        private final BlobStore store;
+
+        /** Tile to write */
+        private final TileObject tile;
+
+        /** Cache key of the tile */
+        final TileKey key;
+
+        /** The pending tile as served from memory until written */
+        final TileObject cached;
+
+        /** Queue room to give back once done */
+        final Semaphore permits;
+
+        /** Number of failed attempts, only used by the write executor */
+        private int failures;
+
+        /** Delay before the next retry, only used by the write executor */
+        private long delay = WRITE_BEHIND_RETRY_DELAY;
+
+        /** Whether the tile got deleted or overwritten, guarded by this */
+        private boolean cancelled;
+
+        /** Whether the tile is being written, guarded by this */
+        private boolean writing;
+
+        /** Actions waiting for the write in progress when cancelled, guarded by this */
+        private List<Runnable> afterWrite;
+
+        WriteBehindTask(BlobStore store, TileObject tile, TileKey key, TileObject cached,
+                Semaphore permits) {
+            this.store = store;
+            this.tile = tile;
+            this.key = key;
+            this.cached = cached;
+            this.permits = permits;
+        }
+
+        /**
+         * Prevents any further attempt to write the tile
+         * 
+         * @param afterWrite action to run once the write in progress is done, if any
+         * @return true if the tile is not being written, false if {@code afterWrite} will be run once it is
+         */
+        synchronized boolean cancel(Runnable afterWrite) {
+            cancelled = true;
+            if (!writing) {
+                return true;
+            }
+            if (this.afterWrite == null) {
+                this.afterWrite = new ArrayList<Runnable>();
+            }
+            this.afterWrite.add(afterWrite);
+            return false;
+        }
+
+        private synchronized boolean startWriting() {
+            writing = !cancelled;
+            return writing;
+        }
+
+        private synchronized List<Runnable> stopWriting() {
+            writing = false;
+            List<Runnable> actions = afterWrite;
+            afterWrite = null;
+            return actions;
+        }
+
+        @Override
+        public void run() {
+            boolean done = true;
+            List<Runnable> actions = null;
+            if (startWriting()) {
+                done = write();
+                actions = stopWriting();
+            }
+            // no point in retrying a tile deleted or overwritten meanwhile
+            if (!done && actions == null) {
+                try {
+                    writeExecutor.schedule(this, delay, TimeUnit.MILLISECONDS);
+                    delay *= 2;
+                    return;
+                } catch (RejectedExecutionException e) {
+                    failedWrites.incrementAndGet();
+                    if (LOG.isErrorEnabled()) {
+                        LOG.error("Unable to retry writing TileObject: " + tile
+                                + ", the blobstore has been destroyed");
+                    }
+                }
+            }
+            pendingWrites.remove(key, this);
+            permits.release();
+            if (actions != null) {
+                for (Runnable action : actions) {
+                    try {
+                        action.run();
+                    } catch (RuntimeException e) {
+                        if (LOG.isErrorEnabled()) {
+                            LOG.error("Unable to run the operation waiting for the write of TileObject: "
+                                    + tile, e);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return false if the write failed and should be retried
+         */
+        private boolean write() {
+            try {
+                store.put(tile);
+                return true;
+            } catch (StorageException | RuntimeException e) {
+                if (failures++ >= writeBehindRetries) {
+                    failedWrites.incrementAndGet();
+                    if (LOG.isErrorEnabled()) {
+                        LOG.error("Unable to write TileObject: " + tile + " after " + failures
+                                + " attempts", e);
+                    }
+                    return true;
+                }
+                if (LOG.isWarnEnabled()) {
+                    LOG.warn("Unable to write TileObject: " + tile + ", retrying in " + delay
+                            + "ms: " + e.getMessage());
+                }
+                return false;
+            }
+        }
+    }
+
     /**
      * Enum containing all the possible operations that can be executed by a {@link BlobStoreTask}. Each operation must implement the
      * "executeOperation" method.
@@ -0,0 +1,159 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.memory;
+
+import java.io.Serializable;
+import java.util.Map;
+
+import org.geowebcache.storage.TileObject;
+
+/**
+ * Immutable key identifying a {@link TileObject} in the in memory caches.
+ * <p>
+ * The key references the layer name, gridset, format and parameters of the tile instead of
+ * concatenating them in a new String, so building it costs a single small allocation, and its hash
+ * code is computed once. Equality compares the tile coordinates first, then the Strings, which are
+ * usually the same instances for all the tiles of a layer.
+ * </p>
+ * <p>
+ * The parameters map is not copied, it must not be modified after the key has been built.
+ * </p>
+ */
+public final class TileKey implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String layerName;
+
+    private final String gridSetId;
+
+    private final String blobFormat;
+
+    private final long x;
+
+    private final long y;
+
+    private final long z;
+
+    private final Map<String, String> parameters;
+
+    private final int hash;
+
+    public TileKey(String layerName, String gridSetId, String blobFormat, long x, long y, long z,
+            Map<String, String> parameters) {
+        this.layerName = layerName;
+        this.gridSetId = gridSetId;
+        this.blobFormat = blobFormat;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.parameters = parameters == null || parameters.isEmpty() ? null : parameters;
+
+        int h = hash(x);
+        h = 31 * h + hash(y);
+        h = 31 * h + hash(z);
+        h = 31 * h + hash(layerName);
+        h = 31 * h + hash(gridSetId);
+        h = 31 * h + hash(blobFormat);
+        h = 31 * h + (this.parameters == null ? 0 : this.parameters.hashCode());
+        this.hash = h;
+    }
+
+    /**
+     * Builds the key of a {@link TileObject}
+     *
+     * @param obj
+     *
+     * @return {@link TileObject} key
+     */
+    public static TileKey of(TileObject obj) {
+        long[] xyz = obj.getXYZ();
+        return new TileKey(obj.getLayerName(), obj.getGridSetId(), obj.getBlobFormat(), xyz[0],
+                xyz[1], xyz[2], obj.getParameters());
+    }
+
+    private static int hash(long value) {
+        return (int) (value ^ (value >>> 32));
+    }
+
+    private static int hash(String value) {
+        return value == null ? 0 : value.hashCode();
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    public String getLayerName() {
+        return layerName;
+    }
+
+    public String getGridSetId() {
+        return gridSetId;
+    }
+
+    public String getBlobFormat() {
+        return blobFormat;
+    }
+
+    public long getX() {
+        return x;
+    }
+
+    public long getY() {
+        return y;
+    }
+
+    public long getZ() {
+        return z;
+    }
+
+    /**
+     * @return the tile parameters, or null if it has none
+     */
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TileKey)) {
+            return false;
+        }
+        TileKey k = (TileKey) o;
+        return hash == k.hash && x == k.x && y == k.y && z == k.z
+                && equal(layerName, k.layerName) && equal(gridSetId, k.gridSetId)
+                && equal(blobFormat, k.blobFormat) && equal(parameters, k.parameters);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(layerName).append('_').append(gridSetId)
+                .append("_[").append(x).append(", ").append(y).append(", ").append(z)
+                .append("]_").append(blobFormat);
+        if (parameters != null) {
+            builder.append('_').append(parameters);
+        }
+        return builder.toString();
+    }
+}
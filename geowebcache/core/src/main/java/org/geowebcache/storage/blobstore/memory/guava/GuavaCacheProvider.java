@@ -14,13 +14,17 @@
  */
 package org.geowebcache.storage.blobstore.memory.guava;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -36,12 +40,17 @@ import org.apache.log4j.Logger;
 import org.geowebcache.storage.TileObject;
 import org.geowebcache.storage.blobstore.memory.CacheConfiguration;
 import org.geowebcache.storage.blobstore.memory.CacheConfiguration.EvictionPolicy;
+import org.geowebcache.storage.blobstore.memory.CacheEvictionListener;
 import org.geowebcache.storage.blobstore.memory.CacheProvider;
 import org.geowebcache.storage.blobstore.memory.CacheStatistics;
+import org.geowebcache.storage.blobstore.memory.EvictingCacheProvider;
+import org.geowebcache.storage.blobstore.memory.HotSetCacheProvider;
+import org.geowebcache.storage.blobstore.memory.TileKey;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.cache.Weigher;
@@ -49,10 +58,15 @@ import com.google.common.cache.Weigher;
 /**
  * This class is an implementation of the {@link CacheProvider} interface using a backing Guava {@link Cache} object. This implementation requires to
  * be configured with the configure() method.
+ * <p>
+ * The layers with a {@link CacheConfiguration#setLayerMemoryLimits(Map) memory budget} get their own Guava {@link Cache}, limited to that budget,
+ * while the other layers share a cache limited to the remaining memory. Hits, misses, evictions and size are tracked for each layer and
+ * reported by {@link CacheStatistics#getLayerStatistics()}.
+ * </p>
  * 
  * @author Nicola Lagomarsini Geosolutions
  */
-public class GuavaCacheProvider implements CacheProvider {
+public class GuavaCacheProvider implements EvictingCacheProvider, HotSetCacheProvider {
 
     /** {@link Logger} object used for logging exceptions */
     private final static Log LOGGER = LogFactory.getLog(GuavaCacheProvider.class);
@@ -97,8 +111,37 @@ public class GuavaCacheProvider implements CacheProvider {
         }
     }
 
-    /** Cache object containing the various {@link TileObject}s */
-    private Cache<String, TileObject> cache;
+    /**
+     * Statistics of the tiles of a layer
+     */
+    static class LayerCounters {
+
+        final AtomicLong hitCount = new AtomicLong();
+
+        final AtomicLong missCount = new AtomicLong();
+
+        final AtomicLong evictionCount = new AtomicLong();
+
+        final AtomicLong actualSize = new AtomicLong();
+    }
+
+    /** Cache object containing the {@link TileObject}s of the layers without their own memory budget */
+    private Cache<TileKey, TileObject> cache;
+
+    /** Caches of the layers with their own memory budget by layer name, the layers sharing a budget share a cache */
+    private Map<String, Cache<TileKey, TileObject>> layerCaches = Collections.emptyMap();
+
+    /** Memory budget in bytes of the layers with their own cache, by layer name */
+    private Map<String, Long> layerMemory = Collections.emptyMap();
+
+    /** All the caches, the shared one first */
+    private List<Cache<TileKey, TileObject>> caches = Collections.emptyList();
+
+    /** Memory in bytes of the cache shared by the layers without a budget */
+    private long sharedMemory;
+
+    /** Statistics of each layer, by layer name */
+    private final ConcurrentMap<String, LayerCounters> layerCounters = new ConcurrentHashMap<String, LayerCounters>();
 
     /** Internal Multimap used for storing the TileObject ids associated to each cached Layer */
     private LayerMap multimap;
@@ -120,6 +163,9 @@ public class GuavaCacheProvider implements CacheProvider {
 
     private ScheduledExecutorService scheduledPool;
 
+    /** Listener notified of the tiles evicted because the cache is full */
+    private volatile CacheEvictionListener evictionListener;
+
     public GuavaCacheProvider(CacheConfiguration config) {
         // Initialization of the Layer set and of the Atomic parameters
         layers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
@@ -144,34 +190,125 @@ public class GuavaCacheProvider implements CacheProvider {
         EvictionPolicy policy = configuration.getPolicy();
 
         // If Cache already exists, flush it
-        if (cache != null) {
-            cache.invalidateAll();
+        for (Cache<TileKey, TileObject> previous : caches) {
+            previous.invalidateAll();
         }
+
+        // Carve the layer budgets out of the total memory
+        Map<String, Cache<TileKey, TileObject>> newLayerCaches = new HashMap<String, Cache<TileKey, TileObject>>();
+        Map<String, Long> newLayerMemory = new HashMap<String, Long>();
+        List<Cache<TileKey, TileObject>> newCaches = new ArrayList<Cache<TileKey, TileObject>>();
+        long budgets = 0;
+        for (Map.Entry<String, Long> limit : configuration.getLayerMemoryLimits().entrySet()) {
+            long budget = limit.getValue() * BYTES_TO_MB;
+            budgets += budget;
+            Cache<TileKey, TileObject> layerCache = buildCache(budget, concurrency, policy,
+                    evictionTime);
+            newCaches.add(layerCache);
+            for (String layerName : layerNames(limit.getKey())) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Configuring a memory budget of " + limit.getValue()
+                            + " Mb for Layer: " + layerName);
+                }
+                newLayerCaches.put(layerName, layerCache);
+                newLayerMemory.put(layerName, budget);
+            }
+        }
+        sharedMemory = maxMemory - budgets;
+
+        // Build the cache
+        cache = buildCache(sharedMemory, concurrency, policy, evictionTime);
+        newCaches.add(0, cache);
+        layerCaches = newLayerCaches;
+        layerMemory = newLayerMemory;
+        caches = newCaches;
+        boolean configuredPolicy = evictionTime > 0
+                && (policy == EvictionPolicy.EXPIRE_AFTER_ACCESS || policy == EvictionPolicy.EXPIRE_AFTER_WRITE);
+
+        // Created a new multimap
+        multimap = new LayerMap();
+
+        // Configure a new scheduling task if needed
+        if (configuredPolicy) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Configuring Scheduled Task for cache eviction");
+            }
+            Runnable command = new Runnable() {
+
+                @Override
+                public void run() {
+                    if (configured.get()) {
+                        // Increment the number of current operations
+                        // This behavior is used in order to wait
+                        // the end of all the operations after setting
+                        // the configured parameter to false
+                        actualOperations.incrementAndGet();
+                        try {
+                            for (Cache<TileKey, TileObject> c : caches) {
+                                c.cleanUp();
+                            }
+                        } finally {
+                            // Decrement the number of current operations.
+                            actualOperations.decrementAndGet();
+                        }
+                    }
+                }
+            };
+            // Initialization of the internal Scheduler task for scheduling cache cleanup
+            scheduledPool = Executors.newScheduledThreadPool(CORE_POOL_SIZE);
+            scheduledPool.scheduleAtFixedRate(command, 10, evictionTime + 1, TimeUnit.SECONDS);
+        }
+
+        // Update the configured parameter
+        configured.getAndSet(true);
+    }
+
+    /**
+     * Creates a cache holding at most the given weight of tiles
+     * 
+     * @param maxWeight
+     * @param concurrency
+     * @param policy
+     * @param evictionTime
+     * @return the new cache
+     */
+    private Cache<TileKey, TileObject> buildCache(long maxWeight, int concurrency,
+            EvictionPolicy policy, long evictionTime) {
         // Create the CacheBuilder
         CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
         // Add weigher
-        Weigher<String, TileObject> weigher = new Weigher<String, TileObject>() {
+        Weigher<TileKey, TileObject> weigher = new Weigher<TileKey, TileObject>() {
 
             @Override
-            public int weigh(String key, TileObject value) {
+            public int weigh(TileKey key, TileObject value) {
                 currentSize.addAndGet(value.getBlobSize());
+                counters(key.getLayerName()).actualSize.addAndGet(value.getBlobSize());
                 return value.getBlobSize();
             }
         };
         // Create the builder
-        CacheBuilder<String, TileObject> newBuilder = builder.maximumWeight(maxMemory)
+        CacheBuilder<TileKey, TileObject> newBuilder = builder.maximumWeight(maxWeight)
                 .recordStats().weigher(weigher).concurrencyLevel(concurrency)
-                .removalListener(new RemovalListener<String, TileObject>() {
+                .removalListener(new RemovalListener<TileKey, TileObject>() {
 
                     @Override
-                    public void onRemoval(RemovalNotification<String, TileObject> notification) {
+                    public void onRemoval(RemovalNotification<TileKey, TileObject> notification) {
                         // TODO This operation is not atomic
                         TileObject obj = notification.getValue();
                         // Update the current size
                         currentSize.addAndGet(-obj.getBlobSize());
-                        final String tileKey = generateTileKey(obj);
-                        final String layerName = obj.getLayerName();
+                        final TileKey tileKey = notification.getKey();
+                        final String layerName = tileKey.getLayerName();
+                        LayerCounters counters = counters(layerName);
+                        counters.actualSize.addAndGet(-obj.getBlobSize());
+                        if (notification.wasEvicted()) {
+                            counters.evictionCount.incrementAndGet();
+                        }
                         multimap.removeTile(layerName, tileKey);
+                        CacheEvictionListener listener = evictionListener;
+                        if (listener != null && notification.getCause() == RemovalCause.SIZE) {
+                            listener.tileEvicted(obj);
+                        }
                         if (LOGGER.isDebugEnabled()) {
                             LOGGER.debug("Removed tile " + tileKey + " for layer " + layerName
                                     + " due to reason:" + notification.getCause().toString());
@@ -180,60 +317,87 @@ public class GuavaCacheProvider implements CacheProvider {
                     }
                 });
         // Handle eviction policy
-        boolean configuredPolicy = false;
         if (policy != null && evictionTime > 0) {
             if (policy == EvictionPolicy.EXPIRE_AFTER_ACCESS) {
                 if (LOGGER.isDebugEnabled()) {
                     LOGGER.debug("Configuring Expire After Access eviction policy");
                 }
                 newBuilder.expireAfterAccess(evictionTime, TimeUnit.SECONDS);
-                configuredPolicy = true;
             } else if (policy == EvictionPolicy.EXPIRE_AFTER_WRITE) {
                 if (LOGGER.isDebugEnabled()) {
                     LOGGER.debug("Configuring Expire After Write eviction policy");
                 }
                 newBuilder.expireAfterWrite(evictionTime, TimeUnit.SECONDS);
-                configuredPolicy = true;
             }
         }
 
-        // Build the cache
-        cache = newBuilder.build();
-
-        // Created a new multimap
-        multimap = new LayerMap();
+        return newBuilder.build();
+    }
 
-        // Configure a new scheduling task if needed
-        if (configuredPolicy) {
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Configuring Scheduled Task for cache eviction");
+    /**
+     * Splits a key of the {@link CacheConfiguration#getLayerMemoryLimits() layer memory limits} into layer names
+     */
+    private static List<String> layerNames(String budgetKey) {
+        List<String> names = new ArrayList<String>();
+        for (String name : budgetKey.split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
             }
-            Runnable command = new Runnable() {
+        }
+        return names;
+    }
 
-                @Override
-                public void run() {
-                    if (configured.get()) {
-                        // Increment the number of current operations
-                        // This behavior is used in order to wait
-                        // the end of all the operations after setting
-                        // the configured parameter to false
-                        actualOperations.incrementAndGet();
-                        try {
-                            cache.cleanUp();
-                        } finally {
-                            // Decrement the number of current operations.
-                            actualOperations.decrementAndGet();
-                        }
-                    }
+    /**
+     * Ensures the layer memory limits can be applied before dropping the current cache
+     * 
+     * @param configuration
+     */
+    private static void checkLayerMemoryLimits(CacheConfiguration configuration) {
+        long budgets = 0;
+        Set<String> budgetedLayers = new HashSet<String>();
+        for (Map.Entry<String, Long> limit : configuration.getLayerMemoryLimits().entrySet()) {
+            if (limit.getValue() == null || limit.getValue() <= 0) {
+                throw new IllegalArgumentException("Invalid memory limit for layers "
+                        + limit.getKey() + ": " + limit.getValue());
+            }
+            for (String layerName : layerNames(limit.getKey())) {
+                if (!budgetedLayers.add(layerName)) {
+                    throw new IllegalArgumentException("Layer " + layerName
+                            + " has more than one memory limit");
                 }
-            };
-            // Initialization of the internal Scheduler task for scheduling cache cleanup
-            scheduledPool = Executors.newScheduledThreadPool(CORE_POOL_SIZE);
-            scheduledPool.scheduleAtFixedRate(command, 10, evictionTime + 1, TimeUnit.SECONDS);
+            }
+            budgets += limit.getValue();
+        }
+        if (budgets > 0 && budgets >= configuration.getHardMemoryLimit()) {
+            throw new IllegalArgumentException("The layer memory limits (" + budgets
+                    + " Mb) must leave some of the " + configuration.getHardMemoryLimit()
+                    + " Mb of the cache to the other layers");
         }
+    }
 
-        // Update the configured parameter
-        configured.getAndSet(true);
+    /**
+     * @param layerName
+     * @return the cache holding the tiles of a layer
+     */
+    private Cache<TileKey, TileObject> cacheFor(String layerName) {
+        Cache<TileKey, TileObject> layerCache = layerCaches.get(layerName);
+        return layerCache == null ? cache : layerCache;
+    }
+
+    /**
+     * @param layerName
+     * @return the statistics of a layer, created if missing
+     */
+    private LayerCounters counters(String layerName) {
+        LayerCounters counters = layerCounters.get(layerName);
+        if (counters == null) {
+            LayerCounters created = new LayerCounters();
+            counters = layerCounters.putIfAbsent(layerName, created);
+            if (counters == null) {
+                counters = created;
+            }
+        }
+        return counters;
     }
 
     @Override
@@ -245,6 +409,7 @@ public class GuavaCacheProvider implements CacheProvider {
     public synchronized void configure(CacheConfiguration configuration) {
         // NOTE that if the cache has already been configured, the user must always call resetCache() before
         // setting the new configuration
+        checkLayerMemoryLimits(configuration);
         reset();
         // Configure a new cache
         initCache(configuration);
@@ -272,9 +437,16 @@ public class GuavaCacheProvider implements CacheProvider {
                     LOGGER.debug("Retrieving TileObject: " + obj + " from cache");
                 }
                 // Generate the TileObject key
-                String id = generateTileKey(obj);
+                TileKey id = TileKey.of(obj);
                 // Get the key from the cache
-                return cache.getIfPresent(id);
+                TileObject cached = cacheFor(id.getLayerName()).getIfPresent(id);
+                LayerCounters counters = counters(id.getLayerName());
+                if (cached == null) {
+                    counters.missCount.incrementAndGet();
+                } else {
+                    counters.hitCount.incrementAndGet();
+                }
+                return cached;
             } finally {
                 // Decrement the number of current operations.
                 actualOperations.decrementAndGet();
@@ -305,9 +477,9 @@ public class GuavaCacheProvider implements CacheProvider {
                     LOGGER.debug("Adding TileObject: " + obj + " to cache");
                 }
                 // Generate the TileObject key
-                String id = generateTileKey(obj);
+                TileKey id = TileKey.of(obj);
                 // Add the TileObject to the cache and its id in the multimap
-                cache.put(id, obj);
+                cacheFor(id.getLayerName()).put(id, obj);
                 multimap.putTile(obj.getLayerName(), id);
             } finally {
                 // Decrement the number of current operations.
@@ -338,9 +510,9 @@ public class GuavaCacheProvider implements CacheProvider {
                     LOGGER.debug("Removing TileObject: " + obj + " from cache");
                 }
                 // Generate the TileObject key
-                String id = generateTileKey(obj);
+                TileKey id = TileKey.of(obj);
                 // Remove the key
-                cache.invalidate(id);
+                cacheFor(id.getLayerName()).invalidate(id);
             } finally {
                 // Decrement the number of current operations.
                 actualOperations.decrementAndGet();
@@ -370,9 +542,9 @@ public class GuavaCacheProvider implements CacheProvider {
                     LOGGER.debug("Removing Layer: " + layername + " from cache");
                 }
                 // Get all the TileObject ids associated to the Layer and removes them
-                Set<String> keys = multimap.removeLayer(layername);
+                Set<TileKey> keys = multimap.removeLayer(layername);
                 if (keys != null) {
-                    cache.invalidateAll(keys);
+                    cacheFor(layername).invalidateAll(keys);
                 }
             } finally {
                 // Decrement the number of current operations.
@@ -395,8 +567,8 @@ public class GuavaCacheProvider implements CacheProvider {
                     LOGGER.debug("Flushing cache");
                 }
                 // Remove all the elements from the cache
-                if (cache != null) {
-                    cache.invalidateAll();
+                for (Cache<TileKey, TileObject> c : caches) {
+                    c.invalidateAll();
                 }
             } finally {
                 // Decrement the number of current operations.
@@ -421,9 +593,10 @@ public class GuavaCacheProvider implements CacheProvider {
                 LOGGER.debug("Flushing cache");
             }
             // Remove all the elements from the cache
-            if (cache != null) {
-                cache.invalidateAll();
+            for (Cache<TileKey, TileObject> c : caches) {
+                c.invalidateAll();
             }
+            layerCounters.clear();
             // Remove all the Layers configured for avoiding caching
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Removing Layers");
@@ -470,7 +643,14 @@ public class GuavaCacheProvider implements CacheProvider {
                     currentSpace = 0;
                 }
                 // Returns a new Object containing a snapshot of the cache statistics
-                return new GuavaCacheStatistics(cache.stats(), currentSpace, actualSize, maxMemory);
+                CacheStats stats = cache.stats();
+                for (Cache<TileKey, TileObject> layerCache : caches.subList(1, caches.size())) {
+                    stats = stats.plus(layerCache.stats());
+                }
+                CacheStatistics statistics = new GuavaCacheStatistics(stats, currentSpace,
+                        actualSize, maxMemory);
+                statistics.setLayerStatistics(getLayerStatistics());
+                return statistics;
             } finally {
                 // Decrement the number of current operations.
                 actualOperations.decrementAndGet();
@@ -484,8 +664,39 @@ public class GuavaCacheProvider implements CacheProvider {
         }
     }
 
+    /**
+     * @return the statistics of each layer, whose total size is the budget of the layer or the memory shared by the layers without one
+     */
+    private Map<String, CacheStatistics> getLayerStatistics() {
+        Map<String, CacheStatistics> statistics = new TreeMap<String, CacheStatistics>();
+        for (Map.Entry<String, LayerCounters> entry : layerCounters.entrySet()) {
+            LayerCounters counters = entry.getValue();
+            Long budget = layerMemory.get(entry.getKey());
+            long totalSize = budget == null ? sharedMemory : budget;
+            long actualSize = Math.max(0, counters.actualSize.get());
+            long hits = counters.hitCount.get();
+            long misses = counters.missCount.get();
+            long requests = hits + misses;
+            int hitRate = requests == 0 ? 100 : (int) (100 * hits / requests);
+            CacheStatistics layerStatistics = new CacheStatistics();
+            layerStatistics.setHitCount(hits);
+            layerStatistics.setMissCount(misses);
+            layerStatistics.setTotalCount(requests);
+            layerStatistics.setHitRate(hitRate);
+            layerStatistics.setMissRate(100 - hitRate);
+            layerStatistics.setEvictionCount(counters.evictionCount.get());
+            layerStatistics.setActualSize(actualSize);
+            layerStatistics.setTotalSize(totalSize);
+            layerStatistics.setCurrentMemoryOccupation(totalSize == 0 ? 0 : 100d * actualSize
+                    / totalSize);
+            statistics.put(entry.getKey(), layerStatistics);
+        }
+        return statistics;
+    }
+
     /***
-     * Static method for generating the {@link TileObject} cache key to use for caching.
+     * Static method for generating a String key for a {@link TileObject}, for the caches that need
+     * a String representation of the tile. The in memory caches use {@link TileKey} instead.
      * 
      * @param obj
      * 
@@ -581,6 +792,36 @@ public class GuavaCacheProvider implements CacheProvider {
         }
     }
 
+    @Override
+    public void setEvictionListener(CacheEvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     * Guava does not expose the access order of its entries, the keys are returned in no particular
+     * order
+     */
+    @Override
+    public List<TileKey> getHotSet(int maxTiles) {
+        List<TileKey> keys = new ArrayList<TileKey>();
+        if (configured.get()) {
+            actualOperations.incrementAndGet();
+            try {
+                for (Cache<TileKey, TileObject> c : caches) {
+                    for (TileKey key : c.asMap().keySet()) {
+                        if (keys.size() >= maxTiles) {
+                            return keys;
+                        }
+                        keys.add(key);
+                    }
+                }
+            } finally {
+                actualOperations.decrementAndGet();
+            }
+        }
+        return keys;
+    }
+
     @Override
     public List<EvictionPolicy> getSupportedPolicies() {
         return POLICIES;
@@ -611,7 +852,7 @@ public class GuavaCacheProvider implements CacheProvider {
         private final ReadLock readLock;
 
         /** MultiMap containing the {@link TileObject} keys for the Layers */
-        private final ConcurrentHashMap<String, Set<String>> layerMap = new ConcurrentHashMap<String, Set<String>>();
+        private final ConcurrentHashMap<String, Set<TileKey>> layerMap = new ConcurrentHashMap<String, Set<TileKey>>();
 
         public LayerMap() {
             // Lock initialization
@@ -626,10 +867,10 @@ public class GuavaCacheProvider implements CacheProvider {
          * @param layer
          * @param id
          */
-        public void putTile(String layer, String id) {
+        public void putTile(String layer, TileKey id) {
             // ReadLock is used because we are only accessing the map
             readLock.lock();
-            Set<String> tileKeys = layerMap.get(layer);
+            Set<TileKey> tileKeys = layerMap.get(layer);
             if (tileKeys == null) {
                 if (LOGGER.isDebugEnabled()) {
                     LOGGER.debug("No KeySet for Layer: " + layer);
@@ -646,7 +887,8 @@ public class GuavaCacheProvider implements CacheProvider {
                             LOGGER.debug("Creating new KeySet for Layer: " + layer);
                         }
                         // If no key is present then a new KeySet is created and then added to the multimap
-                        tileKeys = new ConcurrentSkipListSet<String>();
+                        tileKeys = Collections
+                                .newSetFromMap(new ConcurrentHashMap<TileKey, Boolean>());
                         layerMap.put(layer, tileKeys);
                     }
                     // Downgrade by acquiring read lock before releasing write lock
@@ -673,12 +915,12 @@ public class GuavaCacheProvider implements CacheProvider {
          * @param layer
          * @param id
          */
-        public void removeTile(String layer, String id) {
+        public void removeTile(String layer, TileKey id) {
             // ReadLock is used because we are only accessing the map
             readLock.lock();
             try {
                 // KeySet associated to the image
-                Set<String> tileKeys = layerMap.get(layer);
+                Set<TileKey> tileKeys = layerMap.get(layer);
                 if (tileKeys != null) {
                     if (LOGGER.isDebugEnabled()) {
                         LOGGER.debug("Remove TileObject id to the Map");
@@ -713,14 +955,14 @@ public class GuavaCacheProvider implements CacheProvider {
          * 
          * @return the keys associated to the Layer
          */
-        public Set<String> removeLayer(String layer) {
+        public Set<TileKey> removeLayer(String layer) {
             writeLock.lock();
             try {
                 if (LOGGER.isDebugEnabled()) {
                     LOGGER.debug("Removing KeySet for Layer: " + layer);
                 }
                 // Get the Set from the map
-                Set<String> layers = layerMap.get(layer);
+                Set<TileKey> layers = layerMap.get(layer);
                 // Removes the set from the map
                 layerMap.remove(layer);
                 // Returns the set
@@ -0,0 +1,107 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.memory.offheap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.blobstore.memory.CacheConfiguration;
+
+/**
+ * {@link OffHeapCacheProvider} keeping the tiles in memory mapped files on a local disk, so that
+ * the cache can be larger than the available memory and be paged in and out by the operating
+ * system. It is meant as a spill level of a
+ * {@link org.geowebcache.storage.blobstore.memory.tiered.TieredCacheProvider}, saving a round
+ * trip when the wrapped blob store is remote.
+ * <p>
+ * A file is created in the spill directory for each slab of blocks, the files are deleted when the
+ * cache is reset. The contents are not meant to survive a restart.
+ * </p>
+ */
+public class MappedFileCacheProvider extends OffHeapCacheProvider {
+
+    /** {@link Log} object used for logging exceptions */
+    private final static Log LOGGER = LogFactory.getLog(MappedFileCacheProvider.class);
+
+    private static final String MAPPED_NAME = "Memory Mapped File Cache";
+
+    private final File directory;
+
+    private final List<File> files = new CopyOnWriteArrayList<File>();
+
+    /**
+     * @param config
+     *            the cache configuration, whose hard memory limit is the size of the files
+     * @param directory
+     *            the local directory where the files are created
+     */
+    public MappedFileCacheProvider(CacheConfiguration config, File directory) {
+        super(config);
+        this.directory = directory;
+    }
+
+    @Override
+    protected ByteBuffer allocateBuffer(int size) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the cache directory " + directory);
+        }
+        File file = File.createTempFile("gwc-cache-", ".bin", directory);
+        file.deleteOnExit();
+        files.add(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid once the channel is closed
+            return raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        if (files == null) {
+            // configured by the super class constructor, nothing allocated yet
+            return;
+        }
+        for (File file : files) {
+            if (file.delete()) {
+                files.remove(file);
+            } else if (LOGGER.isDebugEnabled()) {
+                // Still mapped on some platforms, it will be deleted on exit
+                LOGGER.debug("Unable to delete the cache file " + file);
+            }
+        }
+    }
+
+    /**
+     * @return the directory where the files are created
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public String getName() {
+        return MAPPED_NAME;
+    }
+}
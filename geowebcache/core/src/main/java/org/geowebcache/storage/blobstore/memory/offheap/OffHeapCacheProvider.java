@@ -0,0 +1,733 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.memory.offheap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.CacheConfiguration;
+import org.geowebcache.storage.blobstore.memory.CacheConfiguration.EvictionPolicy;
+import org.geowebcache.storage.blobstore.memory.CacheEvictionListener;
+import org.geowebcache.storage.blobstore.memory.CacheProvider;
+import org.geowebcache.storage.blobstore.memory.CacheStatistics;
+import org.geowebcache.storage.blobstore.memory.EvictingCacheProvider;
+import org.geowebcache.storage.blobstore.memory.HotSetCacheProvider;
+import org.geowebcache.storage.blobstore.memory.TileKey;
+import org.geowebcache.storage.blobstore.memory.guava.GuavaCacheProvider;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * This class is an implementation of the {@link CacheProvider} interface keeping the tile contents outside of the Java heap, so that large caches
+ * do not fill the old generation with tile byte arrays.
+ * <p>
+ * The {@link CacheConfiguration#getHardMemoryLimit() memory limit} is split among {@link CacheConfiguration#getConcurrencyLevel() concurrency
+ * level} independently locked segments, each one storing tiles in fixed size blocks of direct {@link ByteBuffer}s allocated on demand. Only a small
+ * entry per tile, holding the tile identity and the indexes of its blocks, is kept on the heap. When a segment runs out of blocks the least recently
+ * used tiles are evicted, and tiles are also expired after access or write depending on the {@link EvictionPolicy}.
+ * </p>
+ * <p>
+ * Tiles returned by {@link #getTileObj(TileObject)} are copied back on the heap, so they remain valid after eviction.
+ * </p>
+ */
+public class OffHeapCacheProvider implements EvictingCacheProvider, HotSetCacheProvider {
+
+    /** {@link Log} object used for logging exceptions */
+    private final static Log LOGGER = LogFactory.getLog(OffHeapCacheProvider.class);
+
+    /** Size of the blocks tiles are stored into */
+    public static final int BLOCK_SIZE = 4096;
+
+    /** Size of each direct buffer allocated by a segment */
+    static final int BUFFER_SIZE = 64 * 1024 * 1024;
+
+    private static final String OFF_HEAP_NAME = "Off-Heap Cache";
+
+    /** Array containing the supported Policies */
+    public final static List<EvictionPolicy> POLICIES = Collections.unmodifiableList(Arrays.asList(
+            EvictionPolicy.NULL, EvictionPolicy.LRU, EvictionPolicy.EXPIRE_AFTER_ACCESS,
+            EvictionPolicy.EXPIRE_AFTER_WRITE));
+
+    /**
+     * On heap part of a cached tile
+     */
+    private static final class Entry {
+
+        final String layerName;
+
+        final String gridSetId;
+
+        final long[] xyz;
+
+        final String blobFormat;
+
+        final Map<String, String> parameters;
+
+        final String parametersId;
+
+        final long lastModified;
+
+        final long writeTime;
+
+        long accessTime;
+
+        final int length;
+
+        final int[] blocks;
+
+        Entry(TileObject obj, long lastModified, int length, int[] blocks, long now) {
+            this.layerName = obj.getLayerName();
+            this.gridSetId = obj.getGridSetId();
+            this.xyz = obj.getXYZ().clone();
+            this.blobFormat = obj.getBlobFormat();
+            this.parameters = obj.getParameters();
+            this.parametersId = obj.getParametersId();
+            this.lastModified = lastModified;
+            this.length = length;
+            this.blocks = blocks;
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+    }
+
+    /**
+     * Tile contents copied back from the off heap storage, keeping the cached modification time
+     */
+    private static final class CachedResource extends ByteArrayResource {
+
+        private final long lastModified;
+
+        CachedResource(byte[] data, long lastModified) {
+            super(data);
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * A share of the cache memory with its own blocks, entries and lock
+     */
+    private final class Segment {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /** Entries by key, in access order */
+        private final LinkedHashMap<TileKey, Entry> entries = new LinkedHashMap<TileKey, Entry>(
+                16, 0.75f, true);
+
+        private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+
+        private final int maxBlocks;
+
+        private final int blocksPerBuffer = BUFFER_SIZE / BLOCK_SIZE;
+
+        /** Stack of free block indexes */
+        private int[] freeBlocks = new int[1024];
+
+        private int freeCount;
+
+        /** Number of blocks handed out from the allocated buffers so far */
+        private int allocatedBlocks;
+
+        Segment(long capacity) {
+            this.maxBlocks = (int) Math.min(Integer.MAX_VALUE, capacity / BLOCK_SIZE);
+        }
+
+        TileObject get(TileKey key) {
+            lock.lock();
+            try {
+                Entry entry = entries.get(key);
+                if (entry == null) {
+                    return null;
+                }
+                long now = System.currentTimeMillis();
+                if (isExpired(entry, now)) {
+                    remove(key);
+                    evictionCount.incrementAndGet();
+                    return null;
+                }
+                entry.accessTime = now;
+                return read(entry);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Copies a tile back on the heap
+         */
+        private TileObject read(Entry entry) {
+            byte[] data = new byte[entry.length];
+            for (int i = 0, offset = 0; i < entry.blocks.length; i++, offset += BLOCK_SIZE) {
+                ByteBuffer buffer = block(entry.blocks[i]);
+                buffer.get(data, offset, Math.min(BLOCK_SIZE, entry.length - offset));
+            }
+            TileObject cached = TileObject.createCompleteTileObject(entry.layerName,
+                    entry.xyz.clone(), entry.gridSetId, entry.blobFormat, entry.parameters,
+                    new CachedResource(data, entry.lastModified));
+            cached.setParametersId(entry.parametersId);
+            cached.setCreated(entry.lastModified);
+            return cached;
+        }
+
+        /**
+         * @return the tiles evicted to make room, if an eviction listener is set
+         */
+        List<TileObject> put(TileKey key, TileObject obj, byte[] data, long lastModified) {
+            final int length = data.length;
+            final int needed = Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            final boolean notify = evictionListener != null;
+            List<TileObject> evictedTiles = null;
+            lock.lock();
+            try {
+                remove(key);
+                if (needed > maxBlocks) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("TileObject: " + obj + " is too big to be cached");
+                    }
+                    return null;
+                }
+                // Make room evicting the least recently used entries
+                Iterator<Map.Entry<TileKey, Entry>> lru = entries.entrySet().iterator();
+                while (availableBlocks() < needed && lru.hasNext()) {
+                    Entry evicted = lru.next().getValue();
+                    if (notify) {
+                        if (evictedTiles == null) {
+                            evictedTiles = new ArrayList<TileObject>();
+                        }
+                        evictedTiles.add(read(evicted));
+                    }
+                    lru.remove();
+                    release(evicted);
+                    evictionCount.incrementAndGet();
+                }
+                int[] blocks = new int[needed];
+                int allocated = 0;
+                try {
+                    for (int offset = 0; allocated < needed; allocated++, offset += BLOCK_SIZE) {
+                        blocks[allocated] = allocate();
+                        ByteBuffer buffer = block(blocks[allocated]);
+                        buffer.put(data, offset, Math.min(BLOCK_SIZE, length - offset));
+                    }
+                } catch (IOException e) {
+                    if (LOGGER.isErrorEnabled()) {
+                        LOGGER.error("Unable to cache TileObject: " + obj, e);
+                    }
+                    release(Arrays.copyOf(blocks, allocated));
+                    return evictedTiles;
+                }
+                entries.put(key, new Entry(obj, lastModified, length, blocks,
+                        System.currentTimeMillis()));
+                currentSize.addAndGet(length);
+            } finally {
+                lock.unlock();
+            }
+            return evictedTiles;
+        }
+
+        void remove(TileKey key) {
+            lock.lock();
+            try {
+                Entry entry = entries.remove(key);
+                if (entry != null) {
+                    release(entry);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void removeLayer(String layerName) {
+            lock.lock();
+            try {
+                for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+                    Entry entry = it.next();
+                    if (entry.layerName.equals(layerName)) {
+                        it.remove();
+                        release(entry);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void removeExpired() {
+            lock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+                    Entry entry = it.next();
+                    if (isExpired(entry, now)) {
+                        it.remove();
+                        release(entry);
+                        evictionCount.incrementAndGet();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Adds the keys of the tiles of this segment with their last access time
+         */
+        void collectAccessTimes(List<Map.Entry<TileKey, Long>> accessTimes) {
+            lock.lock();
+            try {
+                for (Map.Entry<TileKey, Entry> entry : entries.entrySet()) {
+                    accessTimes.add(new SimpleImmutableEntry<TileKey, Long>(entry.getKey(), entry
+                            .getValue().accessTime));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                for (Entry entry : entries.values()) {
+                    release(entry);
+                }
+                entries.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int availableBlocks() {
+            return freeCount + maxBlocks - allocatedBlocks;
+        }
+
+        private int allocate() throws IOException {
+            if (freeCount > 0) {
+                return freeBlocks[--freeCount];
+            }
+            int block = allocatedBlocks;
+            if (block / blocksPerBuffer == buffers.size()) {
+                int remaining = maxBlocks - block;
+                int size = Math.min(blocksPerBuffer, remaining) * BLOCK_SIZE;
+                buffers.add(allocateBuffer(size));
+            }
+            allocatedBlocks++;
+            return block;
+        }
+
+        private void release(Entry entry) {
+            release(entry.blocks);
+            currentSize.addAndGet(-entry.length);
+        }
+
+        private void release(int[] blocks) {
+            if (freeCount + blocks.length > freeBlocks.length) {
+                freeBlocks = Arrays.copyOf(freeBlocks,
+                        Math.max(freeBlocks.length * 2, freeCount + blocks.length));
+            }
+            for (int block : blocks) {
+                freeBlocks[freeCount++] = block;
+            }
+        }
+
+        /**
+         * @return the buffer holding the block, positioned at its start
+         */
+        private ByteBuffer block(int block) {
+            ByteBuffer buffer = buffers.get(block / blocksPerBuffer);
+            buffer.clear();
+            buffer.position((block % blocksPerBuffer) * BLOCK_SIZE);
+            return buffer;
+        }
+    }
+
+    /** Lock guarding the configuration, taken exclusively when the segments are replaced */
+    private final ReentrantReadWriteLock configLock = new ReentrantReadWriteLock();
+
+    /** Internal concurrent Set used for saving the names of the Layers that must not be cached */
+    private final Set<String> layers = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private Segment[] segments;
+
+    /** Cache total memory in bytes */
+    private long maxMemory;
+
+    private EvictionPolicy policy;
+
+    /** Eviction time in milliseconds */
+    private long evictionTime;
+
+    private ScheduledExecutorService scheduledPool;
+
+    private final AtomicLong currentSize = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private volatile CacheEvictionListener evictionListener;
+
+    public OffHeapCacheProvider(CacheConfiguration config) {
+        configure(config);
+    }
+
+    @Override
+    public void configure(CacheConfiguration configuration) {
+        configLock.writeLock().lock();
+        try {
+            reset();
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Building new off heap cache");
+            }
+            maxMemory = configuration.getHardMemoryLimit() * GuavaCacheProvider.BYTES_TO_MB;
+            policy = configuration.getPolicy() == null ? EvictionPolicy.NULL : configuration
+                    .getPolicy();
+            evictionTime = TimeUnit.SECONDS.toMillis(configuration.getEvictionTime());
+            int concurrency = Math.max(1, configuration.getConcurrencyLevel());
+            segments = new Segment[concurrency];
+            for (int i = 0; i < concurrency; i++) {
+                segments[i] = new Segment(maxMemory / concurrency);
+            }
+            if (isExpiring()) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Configuring Scheduled Task for cache eviction");
+                }
+                CustomizableThreadFactory tf = new CustomizableThreadFactory(
+                        "GWC Off-Heap Cache eviction-");
+                tf.setDaemon(true);
+                scheduledPool = Executors.newSingleThreadScheduledExecutor(tf);
+                scheduledPool.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        removeExpired();
+                    }
+                }, 10, configuration.getEvictionTime() + 1, TimeUnit.SECONDS);
+            }
+        } finally {
+            configLock.writeLock().unlock();
+        }
+    }
+
+    private boolean isExpiring() {
+        return evictionTime > 0
+                && (policy == EvictionPolicy.EXPIRE_AFTER_ACCESS || policy == EvictionPolicy.EXPIRE_AFTER_WRITE);
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        if (policy == EvictionPolicy.EXPIRE_AFTER_ACCESS) {
+            return evictionTime > 0 && now - entry.accessTime > evictionTime;
+        } else if (policy == EvictionPolicy.EXPIRE_AFTER_WRITE) {
+            return evictionTime > 0 && now - entry.writeTime > evictionTime;
+        }
+        return false;
+    }
+
+    private void removeExpired() {
+        configLock.readLock().lock();
+        try {
+            if (segments != null) {
+                for (Segment segment : segments) {
+                    segment.removeExpired();
+                }
+            }
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    private Segment segment(TileKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    @Override
+    public TileObject getTileObj(TileObject obj) {
+        configLock.readLock().lock();
+        try {
+            if (segments == null || layers.contains(obj.getLayerName())) {
+                return null;
+            }
+            TileKey key = TileKey.of(obj);
+            TileObject cached = segment(key).get(key);
+            if (cached == null) {
+                missCount.incrementAndGet();
+            } else {
+                hitCount.incrementAndGet();
+            }
+            return cached;
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void putTileObj(TileObject obj) {
+        List<TileObject> evicted;
+        configLock.readLock().lock();
+        try {
+            if (segments == null || layers.contains(obj.getLayerName())) {
+                return;
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Adding TileObject: " + obj + " to cache");
+            }
+            Resource blob = obj.getBlob();
+            byte[] data;
+            if (blob instanceof ByteArrayResource) {
+                data = ((ByteArrayResource) blob).getContents();
+                if (data == null) {
+                    data = new byte[0];
+                }
+            } else {
+                ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+                try {
+                    blob.transferTo(Channels.newChannel(bOut));
+                } catch (IOException e) {
+                    if (LOGGER.isErrorEnabled()) {
+                        LOGGER.error("Unable to cache TileObject: " + obj, e);
+                    }
+                    return;
+                }
+                data = bOut.toByteArray();
+            }
+            TileKey key = TileKey.of(obj);
+            evicted = segment(key).put(key, obj, data, blob.getLastModified());
+        } finally {
+            configLock.readLock().unlock();
+        }
+        notifyEvicted(evicted);
+    }
+
+    private void notifyEvicted(List<TileObject> evicted) {
+        CacheEvictionListener listener = evictionListener;
+        if (evicted != null && listener != null) {
+            for (TileObject tile : evicted) {
+                listener.tileEvicted(tile);
+            }
+        }
+    }
+
+    /**
+     * Allocates a buffer storing tiles, called the first time the blocks it holds are needed
+     * 
+     * @param size
+     *            the buffer size in bytes
+     * @return a new direct buffer
+     * @throws IOException
+     */
+    protected ByteBuffer allocateBuffer(int size) throws IOException {
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    public void removeTileObj(TileObject obj) {
+        configLock.readLock().lock();
+        try {
+            if (segments == null || layers.contains(obj.getLayerName())) {
+                return;
+            }
+            TileKey key = TileKey.of(obj);
+            segment(key).remove(key);
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeLayer(String layername) {
+        configLock.readLock().lock();
+        try {
+            if (segments == null || layers.contains(layername)) {
+                return;
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Removing Layer: " + layername + " from cache");
+            }
+            for (Segment segment : segments) {
+                segment.removeLayer(layername);
+            }
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        configLock.readLock().lock();
+        try {
+            if (segments != null) {
+                for (Segment segment : segments) {
+                    segment.clear();
+                }
+            }
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void reset() {
+        configLock.writeLock().lock();
+        try {
+            if (segments == null) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Cache is already reset");
+                }
+                return;
+            }
+            if (scheduledPool != null) {
+                scheduledPool.shutdownNow();
+                scheduledPool = null;
+            }
+            for (Segment segment : segments) {
+                segment.clear();
+            }
+            // the direct buffers are released once garbage collected
+            segments = null;
+            layers.clear();
+        } finally {
+            configLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public CacheStatistics getStatistics() {
+        configLock.readLock().lock();
+        try {
+            CacheStatistics stats = new CacheStatistics();
+            if (segments == null) {
+                return stats;
+            }
+            long hits = hitCount.get();
+            long misses = missCount.get();
+            long requests = hits + misses;
+            long actualSize = currentSize.get();
+            int hitRate = requests == 0 ? 100 : (int) (100 * hits / requests);
+            stats.setHitCount(hits);
+            stats.setMissCount(misses);
+            stats.setTotalCount(requests);
+            stats.setEvictionCount(evictionCount.get());
+            stats.setHitRate(hitRate);
+            stats.setMissRate(100 - hitRate);
+            stats.setCurrentMemoryOccupation(maxMemory == 0 ? 0 : Math.max(0, 100d
+                    * actualSize / maxMemory));
+            stats.setActualSize(actualSize);
+            stats.setTotalSize(maxMemory);
+            return stats;
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void addUncachedLayer(String layername) {
+        layers.add(layername);
+    }
+
+    @Override
+    public void removeUncachedLayer(String layername) {
+        layers.remove(layername);
+    }
+
+    @Override
+    public boolean containsUncachedLayer(String layername) {
+        return layers.contains(layername);
+    }
+
+    @Override
+    public void setEvictionListener(CacheEvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     * Returns the most recently used tiles first
+     */
+    @Override
+    public List<TileKey> getHotSet(int maxTiles) {
+        List<Map.Entry<TileKey, Long>> accessTimes = new ArrayList<Map.Entry<TileKey, Long>>();
+        configLock.readLock().lock();
+        try {
+            if (segments != null) {
+                for (Segment segment : segments) {
+                    segment.collectAccessTimes(accessTimes);
+                }
+            }
+        } finally {
+            configLock.readLock().unlock();
+        }
+        Collections.sort(accessTimes, new Comparator<Map.Entry<TileKey, Long>>() {
+
+            @Override
+            public int compare(Map.Entry<TileKey, Long> o1, Map.Entry<TileKey, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        List<TileKey> keys = new ArrayList<TileKey>(Math.min(maxTiles, accessTimes.size()));
+        for (int i = 0; i < accessTimes.size() && keys.size() < maxTiles; i++) {
+            keys.add(accessTimes.get(i).getKey());
+        }
+        return keys;
+    }
+
+    @Override
+    public List<EvictionPolicy> getSupportedPolicies() {
+        return POLICIES;
+    }
+
+    @Override
+    public boolean isImmutable() {
+        return false;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return OFF_HEAP_NAME;
+    }
+}
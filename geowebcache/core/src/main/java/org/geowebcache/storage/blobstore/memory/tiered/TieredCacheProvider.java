@@ -0,0 +1,383 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.memory.tiered;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.CacheConfiguration;
+import org.geowebcache.storage.blobstore.memory.CacheConfiguration.EvictionPolicy;
+import org.geowebcache.storage.blobstore.memory.CacheEvictionListener;
+import org.geowebcache.storage.blobstore.memory.CacheProvider;
+import org.geowebcache.storage.blobstore.memory.CacheStatistics;
+import org.geowebcache.storage.blobstore.memory.EvictingCacheProvider;
+import org.geowebcache.storage.blobstore.memory.HotSetCacheProvider;
+import org.geowebcache.storage.blobstore.memory.TileKey;
+
+/**
+ * This class is an implementation of the {@link CacheProvider} interface chaining several cache
+ * levels, typically a small on-heap cache and a larger
+ * {@link org.geowebcache.storage.blobstore.memory.offheap.MappedFileCacheProvider spill} cache on a
+ * local disk, so that tiles evicted from memory do not cost a round trip to a remote blob store.
+ * <p>
+ * New tiles are stored in the first level. Tiles evicted by a level are demoted to the next one,
+ * which requires the level to be an {@link EvictingCacheProvider}. Tiles found in a lower level are
+ * promoted back to the first level once they have been hit {@link #setPromotionThreshold(int)
+ * promotionThreshold} times. A tile is kept in a single level at a time.
+ * </p>
+ * <p>
+ * {@link #configure(CacheConfiguration) Configuring} this provider configures the first level, the
+ * other levels keep the configuration they were built with and are only flushed when this provider
+ * is reset. Each level statistics and size limits are available through
+ * {@link #getLevelStatistics()}.
+ * </p>
+ */
+public class TieredCacheProvider implements HotSetCacheProvider {
+
+    /** {@link Log} object used for logging exceptions */
+    private final static Log LOGGER = LogFactory.getLog(TieredCacheProvider.class);
+
+    /** Default number of hits in a lower level promoting a tile to the first level */
+    public static final int DEFAULT_PROMOTION_THRESHOLD = 2;
+
+    /** Maximum number of lower level tiles whose hits are tracked */
+    static final int MAX_TRACKED_TILES = 10000;
+
+    private static final String TIERED_NAME = "Tiered Cache";
+
+    /**
+     * Moves the tiles evicted from a level to the next one
+     */
+    private class Demoter implements CacheEvictionListener {
+
+        private final CacheProvider next;
+
+        Demoter(CacheProvider next) {
+            this.next = next;
+        }
+
+        @Override
+        public void tileEvicted(TileObject obj) {
+            if (layers.contains(obj.getLayerName())) {
+                return;
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Demoting TileObject: " + obj + " to " + next.getName());
+            }
+            next.putTileObj(obj);
+            demotionCount.incrementAndGet();
+        }
+    }
+
+    private final List<CacheProvider> levels;
+
+    /** Internal concurrent Set used for saving the names of the Layers that must not be cached */
+    private final Set<String> layers = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Hits of the tiles found in the lower levels, not yet promoted */
+    private final ConcurrentMap<TileKey, AtomicInteger> lowerLevelHits = new ConcurrentHashMap<TileKey, AtomicInteger>();
+
+    private volatile int promotionThreshold = DEFAULT_PROMOTION_THRESHOLD;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong promotionCount = new AtomicLong();
+
+    private final AtomicLong demotionCount = new AtomicLong();
+
+    /**
+     * @param levels
+     *            the cache levels, from the fastest and smallest to the slowest and largest
+     */
+    public TieredCacheProvider(List<CacheProvider> levels) {
+        if (levels == null || levels.isEmpty()) {
+            throw new IllegalArgumentException("At least one cache level is required");
+        }
+        this.levels = Collections.unmodifiableList(new ArrayList<CacheProvider>(levels));
+        for (int i = 0; i < levels.size() - 1; i++) {
+            CacheProvider level = levels.get(i);
+            if (level instanceof EvictingCacheProvider) {
+                ((EvictingCacheProvider) level).setEvictionListener(new Demoter(levels.get(i + 1)));
+            } else if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("The tiles evicted by " + level.getName()
+                        + " cannot be moved to the next cache level");
+            }
+        }
+    }
+
+    /**
+     * @return the cache levels, from the first one
+     */
+    public List<CacheProvider> getLevels() {
+        return levels;
+    }
+
+    /**
+     * @return the statistics of each level, from the first one
+     */
+    public List<CacheStatistics> getLevelStatistics() {
+        List<CacheStatistics> statistics = new ArrayList<CacheStatistics>(levels.size());
+        for (CacheProvider level : levels) {
+            statistics.add(level.getStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * Sets the number of hits in a lower level promoting a tile to the first level
+     *
+     * @param promotionThreshold
+     */
+    public void setPromotionThreshold(int promotionThreshold) {
+        this.promotionThreshold = Math.max(1, promotionThreshold);
+    }
+
+    public int getPromotionThreshold() {
+        return promotionThreshold;
+    }
+
+    /**
+     * @return the number of tiles moved back to the first level
+     */
+    public long getPromotionCount() {
+        return promotionCount.get();
+    }
+
+    /**
+     * @return the number of tiles moved to a lower level on eviction
+     */
+    public long getDemotionCount() {
+        return demotionCount.get();
+    }
+
+    @Override
+    public TileObject getTileObj(TileObject obj) {
+        if (layers.contains(obj.getLayerName())) {
+            return null;
+        }
+        for (int i = 0; i < levels.size(); i++) {
+            TileObject cached = levels.get(i).getTileObj(obj);
+            if (cached != null) {
+                hitCount.incrementAndGet();
+                if (i > 0) {
+                    hitLowerLevel(i, cached);
+                }
+                return cached;
+            }
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Counts the hits of a tile found in a lower level, promoting it to the first level when the
+     * threshold is reached
+     */
+    private void hitLowerLevel(int level, TileObject cached) {
+        TileKey key = TileKey.of(cached);
+        AtomicInteger hits = lowerLevelHits.get(key);
+        if (hits == null) {
+            if (lowerLevelHits.size() >= MAX_TRACKED_TILES) {
+                lowerLevelHits.clear();
+            }
+            AtomicInteger created = new AtomicInteger();
+            hits = lowerLevelHits.putIfAbsent(key, created);
+            if (hits == null) {
+                hits = created;
+            }
+        }
+        if (hits.incrementAndGet() >= promotionThreshold && lowerLevelHits.remove(key, hits)) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Promoting TileObject: " + cached + " from "
+                        + levels.get(level).getName());
+            }
+            levels.get(level).removeTileObj(cached);
+            levels.get(0).putTileObj(cached);
+            promotionCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void putTileObj(TileObject obj) {
+        if (layers.contains(obj.getLayerName())) {
+            return;
+        }
+        // Drop any older version kept in the lower levels first, the put may demote tiles to them
+        for (int i = 1; i < levels.size(); i++) {
+            levels.get(i).removeTileObj(obj);
+        }
+        levels.get(0).putTileObj(obj);
+    }
+
+    @Override
+    public void removeTileObj(TileObject obj) {
+        for (CacheProvider level : levels) {
+            level.removeTileObj(obj);
+        }
+        if (!lowerLevelHits.isEmpty()) {
+            lowerLevelHits.remove(TileKey.of(obj));
+        }
+    }
+
+    @Override
+    public void removeLayer(String layername) {
+        for (CacheProvider level : levels) {
+            level.removeLayer(layername);
+        }
+        for (Iterator<TileKey> it = lowerLevelHits.keySet().iterator(); it.hasNext();) {
+            if (it.next().getLayerName().equals(layername)) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (CacheProvider level : levels) {
+            level.clear();
+        }
+        lowerLevelHits.clear();
+    }
+
+    @Override
+    public void reset() {
+        levels.get(0).reset();
+        for (int i = 1; i < levels.size(); i++) {
+            levels.get(i).clear();
+        }
+        lowerLevelHits.clear();
+        layers.clear();
+    }
+
+    @Override
+    public void configure(CacheConfiguration configuration) {
+        reset();
+        levels.get(0).configure(configuration);
+    }
+
+    /**
+     * Returns the statistics of the whole chain: a hit is a tile found in any level, the evictions
+     * are the tiles leaving the last level, and the sizes are the sum of the levels sizes.
+     */
+    @Override
+    public CacheStatistics getStatistics() {
+        CacheStatistics stats = new CacheStatistics();
+        long evictions = 0;
+        long rejections = 0;
+        long actualSize = 0;
+        long totalSize = 0;
+        for (int i = 0; i < levels.size(); i++) {
+            CacheProvider level = levels.get(i);
+            CacheStatistics levelStats = level.getStatistics();
+            if (i == levels.size() - 1 || !(level instanceof EvictingCacheProvider)) {
+                evictions += levelStats.getEvictionCount();
+            }
+            rejections += levelStats.getAdmissionRejectionCount();
+            actualSize += levelStats.getActualSize();
+            totalSize += levelStats.getTotalSize();
+        }
+        long hits = hitCount.get();
+        long misses = missCount.get();
+        long requests = hits + misses;
+        int hitRate = requests == 0 ? 100 : (int) (100 * hits / requests);
+        stats.setHitCount(hits);
+        stats.setMissCount(misses);
+        stats.setTotalCount(requests);
+        stats.setHitRate(hitRate);
+        stats.setMissRate(100 - hitRate);
+        stats.setEvictionCount(evictions);
+        stats.setAdmissionRejectionCount(rejections);
+        stats.setActualSize(actualSize);
+        stats.setTotalSize(totalSize);
+        stats.setCurrentMemoryOccupation(totalSize == 0 ? 0 : 100d * actualSize / totalSize);
+        return stats;
+    }
+
+    @Override
+    public void addUncachedLayer(String layername) {
+        layers.add(layername);
+    }
+
+    @Override
+    public void removeUncachedLayer(String layername) {
+        layers.remove(layername);
+    }
+
+    @Override
+    public boolean containsUncachedLayer(String layername) {
+        return layers.contains(layername);
+    }
+
+    /**
+     * Returns the hot set of each level in turn, from the first one
+     */
+    @Override
+    public List<TileKey> getHotSet(int maxTiles) {
+        List<TileKey> keys = new ArrayList<TileKey>();
+        Set<TileKey> added = new HashSet<TileKey>();
+        for (CacheProvider level : levels) {
+            if (keys.size() >= maxTiles) {
+                break;
+            }
+            if (level instanceof HotSetCacheProvider) {
+                for (TileKey key : ((HotSetCacheProvider) level).getHotSet(maxTiles - keys.size())) {
+                    if (added.add(key)) {
+                        keys.add(key);
+                    }
+                }
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public List<EvictionPolicy> getSupportedPolicies() {
+        return levels.get(0).getSupportedPolicies();
+    }
+
+    @Override
+    public boolean isImmutable() {
+        return levels.get(0).isImmutable();
+    }
+
+    @Override
+    public boolean isAvailable() {
+        for (CacheProvider level : levels) {
+            if (!level.isAvailable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return TIERED_NAME;
+    }
+}
@@ -0,0 +1,762 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.memory.tinylfu;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.CacheConfiguration;
+import org.geowebcache.storage.blobstore.memory.CacheConfiguration.EvictionPolicy;
+import org.geowebcache.storage.blobstore.memory.CacheEvictionListener;
+import org.geowebcache.storage.blobstore.memory.CacheProvider;
+import org.geowebcache.storage.blobstore.memory.CacheStatistics;
+import org.geowebcache.storage.blobstore.memory.EvictingCacheProvider;
+import org.geowebcache.storage.blobstore.memory.HotSetCacheProvider;
+import org.geowebcache.storage.blobstore.memory.TileKey;
+import org.geowebcache.storage.blobstore.memory.guava.GuavaCacheProvider;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * This class is an implementation of the {@link CacheProvider} interface using a frequency aware
+ * admission policy (Window TinyLFU), so that scans over many tiles requested only once, as seeding
+ * or crawlers do, do not flush the tiles requested often.
+ * <p>
+ * New tiles enter a small LRU window. Tiles leaving the window are admitted in the main space only
+ * if they have been requested more often than the tile that would be evicted to make room for them,
+ * according to a {@link FrequencySketch} of the recent requests. The main space is split in a
+ * probation area, for the tiles hit only once since their admission, and a protected area for the
+ * tiles hit again. Each of the {@link CacheConfiguration#getConcurrencyLevel() concurrency level}
+ * segments applies the policy independently, on its own share of the memory limit.
+ * </p>
+ * <p>
+ * Tiles refused by the admission policy are reported as
+ * {@link CacheStatistics#getAdmissionRejectionCount() admission rejections}, the tiles removed to
+ * make room for others as evictions.
+ * </p>
+ */
+public class TinyLfuCacheProvider implements EvictingCacheProvider, HotSetCacheProvider {
+
+    /** {@link Log} object used for logging exceptions */
+    private final static Log LOGGER = LogFactory.getLog(TinyLfuCacheProvider.class);
+
+    /** Percentage of each segment memory used by the admission window */
+    public static final int WINDOW_PERCENTAGE = 1;
+
+    /** Percentage of the main space of each segment used by the protected area */
+    public static final int PROTECTED_PERCENTAGE = 80;
+
+    /** Tile size used for sizing the frequency sketch */
+    static final int EXPECTED_TILE_SIZE = 4096;
+
+    private static final String TINY_LFU_NAME = "TinyLFU Cache";
+
+    /** Array containing the supported Policies */
+    public final static List<EvictionPolicy> POLICIES = Collections.unmodifiableList(Arrays.asList(
+            EvictionPolicy.NULL, EvictionPolicy.LFU, EvictionPolicy.EXPIRE_AFTER_ACCESS,
+            EvictionPolicy.EXPIRE_AFTER_WRITE));
+
+    private static final byte WINDOW = 0;
+
+    private static final byte PROBATION = 1;
+
+    private static final byte PROTECTED = 2;
+
+    /**
+     * A cached tile, linked in the queue of its area
+     */
+    private static final class Node {
+
+        final TileKey key;
+
+        TileObject value;
+
+        int weight;
+
+        byte area;
+
+        long writeTime;
+
+        long accessTime;
+
+        Node prev;
+
+        Node next;
+
+        Node(TileKey key, TileObject value, long now) {
+            this.key = key;
+            this.value = value;
+            this.weight = value.getBlobSize();
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+    }
+
+    /**
+     * Doubly linked list of nodes from the least to the most recently used, with their total weight
+     */
+    private static final class AccessQueue {
+
+        Node head;
+
+        Node tail;
+
+        long weight;
+
+        void addLast(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToLast(Node node) {
+            if (tail != node) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+            weight = 0;
+        }
+    }
+
+    /**
+     * A share of the cache memory with its own areas, frequency sketch and lock
+     */
+    private final class Segment {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final HashMap<TileKey, Node> data = new HashMap<TileKey, Node>();
+
+        private final AccessQueue window = new AccessQueue();
+
+        private final AccessQueue probation = new AccessQueue();
+
+        private final AccessQueue protectedArea = new AccessQueue();
+
+        private final FrequencySketch sketch;
+
+        private final long windowMax;
+
+        private final long mainMax;
+
+        private final long protectedMax;
+
+        /** Tiles evicted or not admitted by the current put, to be notified */
+        private List<TileObject> evicted;
+
+        Segment(long capacity) {
+            this.windowMax = capacity * WINDOW_PERCENTAGE / 100;
+            this.mainMax = capacity - windowMax;
+            this.protectedMax = mainMax * PROTECTED_PERCENTAGE / 100;
+            this.sketch = new FrequencySketch(capacity / EXPECTED_TILE_SIZE);
+        }
+
+        TileObject get(TileKey key) {
+            lock.lock();
+            try {
+                sketch.increment(key.hashCode());
+                Node node = data.get(key);
+                if (node == null) {
+                    return null;
+                }
+                long now = System.currentTimeMillis();
+                if (isExpired(node, now)) {
+                    remove(node);
+                    evictionCount.incrementAndGet();
+                    return null;
+                }
+                node.accessTime = now;
+                onAccess(node);
+                return node.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return the tiles evicted or not admitted, if an eviction listener is set
+         */
+        List<TileObject> put(TileKey key, TileObject obj) {
+            lock.lock();
+            try {
+                sketch.increment(key.hashCode());
+                long now = System.currentTimeMillis();
+                Node node = data.get(key);
+                if (node != null) {
+                    // Replace the value, updating the weight of its area
+                    int weight = obj.getBlobSize();
+                    queue(node).weight += weight - node.weight;
+                    currentSize.addAndGet(weight - node.weight);
+                    node.value = obj;
+                    node.weight = weight;
+                    node.writeTime = now;
+                    node.accessTime = now;
+                    onAccess(node);
+                } else {
+                    node = new Node(key, obj, now);
+                    if (node.weight > windowMax + mainMax) {
+                        if (LOGGER.isDebugEnabled()) {
+                            LOGGER.debug("TileObject: " + obj + " is too big to be cached");
+                        }
+                        admissionRejectionCount.incrementAndGet();
+                        return null;
+                    }
+                    data.put(key, node);
+                    node.area = WINDOW;
+                    window.addLast(node);
+                    currentSize.addAndGet(node.weight);
+                }
+                evict();
+                List<TileObject> result = evicted;
+                evicted = null;
+                return result;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(TileKey key) {
+            lock.lock();
+            try {
+                Node node = data.get(key);
+                if (node != null) {
+                    remove(node);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void removeLayer(String layerName) {
+            lock.lock();
+            try {
+                for (Iterator<Node> it = data.values().iterator(); it.hasNext();) {
+                    Node node = it.next();
+                    if (node.key.getLayerName().equals(layerName)) {
+                        it.remove();
+                        unlink(node);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void removeExpired() {
+            lock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                for (Iterator<Node> it = data.values().iterator(); it.hasNext();) {
+                    Node node = it.next();
+                    if (isExpired(node, now)) {
+                        it.remove();
+                        unlink(node);
+                        evictionCount.incrementAndGet();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Adds the keys of the tiles of this segment with their estimated frequency
+         */
+        void collectFrequencies(List<Map.Entry<TileKey, Integer>> frequencies) {
+            lock.lock();
+            try {
+                for (TileKey key : data.keySet()) {
+                    frequencies.add(new SimpleImmutableEntry<TileKey, Integer>(key, sketch
+                            .frequency(key.hashCode())));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                currentSize.addAndGet(-(window.weight + probation.weight + protectedArea.weight));
+                data.clear();
+                window.clear();
+                probation.clear();
+                protectedArea.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private AccessQueue queue(Node node) {
+            switch (node.area) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protectedArea;
+            }
+        }
+
+        private void onAccess(Node node) {
+            if (node.area == PROBATION) {
+                // Hit again since its admission, the tile is promoted
+                probation.remove(node);
+                node.area = PROTECTED;
+                protectedArea.addLast(node);
+                while (protectedArea.weight > protectedMax && protectedArea.head != node) {
+                    Node demoted = protectedArea.head;
+                    protectedArea.remove(demoted);
+                    demoted.area = PROBATION;
+                    probation.addLast(demoted);
+                }
+            } else {
+                queue(node).moveToLast(node);
+            }
+        }
+
+        /**
+         * Moves the tiles exceeding the window to the main space, if admitted, and evicts from the
+         * main space until it fits its share of memory
+         */
+        private void evict() {
+            while (window.weight > windowMax && window.head != null) {
+                Node candidate = window.head;
+                window.remove(candidate);
+                admit(candidate);
+            }
+            while (probation.weight + protectedArea.weight > mainMax) {
+                Node victim = probation.head != null ? probation.head : protectedArea.head;
+                evict(victim);
+            }
+        }
+
+        private void admit(Node candidate) {
+            if (candidate.weight > mainMax) {
+                reject(candidate);
+                return;
+            }
+            int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+            while (probation.weight + protectedArea.weight + candidate.weight > mainMax) {
+                Node victim = probation.head != null ? probation.head : protectedArea.head;
+                if (candidateFrequency <= sketch.frequency(victim.key.hashCode())) {
+                    reject(candidate);
+                    return;
+                }
+                evict(victim);
+            }
+            candidate.area = PROBATION;
+            probation.addLast(candidate);
+        }
+
+        private void evict(Node victim) {
+            remove(victim);
+            evictionCount.incrementAndGet();
+            notifyLater(victim);
+        }
+
+        private void notifyLater(Node node) {
+            if (evictionListener != null) {
+                if (evicted == null) {
+                    evicted = new ArrayList<TileObject>();
+                }
+                evicted.add(node.value);
+            }
+        }
+
+        private void reject(Node candidate) {
+            notifyLater(candidate);
+            data.remove(candidate.key);
+            currentSize.addAndGet(-candidate.weight);
+            admissionRejectionCount.incrementAndGet();
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("TileObject: " + candidate.value + " not admitted in the cache");
+            }
+        }
+
+        private void remove(Node node) {
+            data.remove(node.key);
+            unlink(node);
+        }
+
+        private void unlink(Node node) {
+            queue(node).remove(node);
+            currentSize.addAndGet(-node.weight);
+        }
+    }
+
+    /** Lock guarding the configuration, taken exclusively when the segments are replaced */
+    private final ReentrantReadWriteLock configLock = new ReentrantReadWriteLock();
+
+    /** Internal concurrent Set used for saving the names of the Layers that must not be cached */
+    private final Set<String> layers = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private Segment[] segments;
+
+    /** Cache total memory in bytes */
+    private long maxMemory;
+
+    private EvictionPolicy policy;
+
+    /** Eviction time in milliseconds */
+    private long evictionTime;
+
+    private ScheduledExecutorService scheduledPool;
+
+    private final AtomicLong currentSize = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private final AtomicLong admissionRejectionCount = new AtomicLong();
+
+    private volatile CacheEvictionListener evictionListener;
+
+    public TinyLfuCacheProvider(CacheConfiguration config) {
+        configure(config);
+    }
+
+    @Override
+    public void configure(CacheConfiguration configuration) {
+        configLock.writeLock().lock();
+        try {
+            reset();
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Building new TinyLFU cache");
+            }
+            maxMemory = configuration.getHardMemoryLimit() * GuavaCacheProvider.BYTES_TO_MB;
+            policy = configuration.getPolicy() == null ? EvictionPolicy.NULL : configuration
+                    .getPolicy();
+            evictionTime = TimeUnit.SECONDS.toMillis(configuration.getEvictionTime());
+            int concurrency = Math.max(1, configuration.getConcurrencyLevel());
+            segments = new Segment[concurrency];
+            for (int i = 0; i < concurrency; i++) {
+                segments[i] = new Segment(maxMemory / concurrency);
+            }
+            if (isExpiring()) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Configuring Scheduled Task for cache eviction");
+                }
+                CustomizableThreadFactory tf = new CustomizableThreadFactory(
+                        "GWC TinyLFU Cache eviction-");
+                tf.setDaemon(true);
+                scheduledPool = Executors.newSingleThreadScheduledExecutor(tf);
+                scheduledPool.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        removeExpired();
+                    }
+                }, 10, configuration.getEvictionTime() + 1, TimeUnit.SECONDS);
+            }
+        } finally {
+            configLock.writeLock().unlock();
+        }
+    }
+
+    private boolean isExpiring() {
+        return evictionTime > 0
+                && (policy == EvictionPolicy.EXPIRE_AFTER_ACCESS || policy == EvictionPolicy.EXPIRE_AFTER_WRITE);
+    }
+
+    private boolean isExpired(Node node, long now) {
+        if (policy == EvictionPolicy.EXPIRE_AFTER_ACCESS) {
+            return evictionTime > 0 && now - node.accessTime > evictionTime;
+        } else if (policy == EvictionPolicy.EXPIRE_AFTER_WRITE) {
+            return evictionTime > 0 && now - node.writeTime > evictionTime;
+        }
+        return false;
+    }
+
+    private void removeExpired() {
+        configLock.readLock().lock();
+        try {
+            if (segments != null) {
+                for (Segment segment : segments) {
+                    segment.removeExpired();
+                }
+            }
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    private Segment segment(TileKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    @Override
+    public TileObject getTileObj(TileObject obj) {
+        configLock.readLock().lock();
+        try {
+            if (segments == null || layers.contains(obj.getLayerName())) {
+                return null;
+            }
+            TileKey key = TileKey.of(obj);
+            TileObject cached = segment(key).get(key);
+            if (cached == null) {
+                missCount.incrementAndGet();
+            } else {
+                hitCount.incrementAndGet();
+            }
+            return cached;
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void putTileObj(TileObject obj) {
+        List<TileObject> evicted;
+        configLock.readLock().lock();
+        try {
+            if (segments == null || layers.contains(obj.getLayerName())) {
+                return;
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Adding TileObject: " + obj + " to cache");
+            }
+            TileKey key = TileKey.of(obj);
+            evicted = segment(key).put(key, obj);
+        } finally {
+            configLock.readLock().unlock();
+        }
+        CacheEvictionListener listener = evictionListener;
+        if (evicted != null && listener != null) {
+            for (TileObject tile : evicted) {
+                listener.tileEvicted(tile);
+            }
+        }
+    }
+
+    @Override
+    public void removeTileObj(TileObject obj) {
+        configLock.readLock().lock();
+        try {
+            if (segments == null || layers.contains(obj.getLayerName())) {
+                return;
+            }
+            TileKey key = TileKey.of(obj);
+            segment(key).remove(key);
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeLayer(String layername) {
+        configLock.readLock().lock();
+        try {
+            if (segments == null || layers.contains(layername)) {
+                return;
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Removing Layer: " + layername + " from cache");
+            }
+            for (Segment segment : segments) {
+                segment.removeLayer(layername);
+            }
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        configLock.readLock().lock();
+        try {
+            if (segments != null) {
+                for (Segment segment : segments) {
+                    segment.clear();
+                }
+            }
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void reset() {
+        configLock.writeLock().lock();
+        try {
+            if (segments == null) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Cache is already reset");
+                }
+                return;
+            }
+            if (scheduledPool != null) {
+                scheduledPool.shutdownNow();
+                scheduledPool = null;
+            }
+            for (Segment segment : segments) {
+                segment.clear();
+            }
+            segments = null;
+            layers.clear();
+        } finally {
+            configLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public CacheStatistics getStatistics() {
+        configLock.readLock().lock();
+        try {
+            CacheStatistics stats = new CacheStatistics();
+            if (segments == null) {
+                return stats;
+            }
+            long hits = hitCount.get();
+            long misses = missCount.get();
+            long requests = hits + misses;
+            long actualSize = currentSize.get();
+            int hitRate = requests == 0 ? 100 : (int) (100 * hits / requests);
+            stats.setHitCount(hits);
+            stats.setMissCount(misses);
+            stats.setTotalCount(requests);
+            stats.setEvictionCount(evictionCount.get());
+            stats.setAdmissionRejectionCount(admissionRejectionCount.get());
+            stats.setHitRate(hitRate);
+            stats.setMissRate(100 - hitRate);
+            stats.setCurrentMemoryOccupation(maxMemory == 0 ? 0 : Math.max(0, 100d
+                    * actualSize / maxMemory));
+            stats.setActualSize(actualSize);
+            stats.setTotalSize(maxMemory);
+            return stats;
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void addUncachedLayer(String layername) {
+        layers.add(layername);
+    }
+
+    @Override
+    public void removeUncachedLayer(String layername) {
+        layers.remove(layername);
+    }
+
+    @Override
+    public boolean containsUncachedLayer(String layername) {
+        return layers.contains(layername);
+    }
+
+    @Override
+    public void setEvictionListener(CacheEvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     * Returns the most frequently requested tiles first
+     */
+    @Override
+    public List<TileKey> getHotSet(int maxTiles) {
+        List<Map.Entry<TileKey, Integer>> frequencies = new ArrayList<Map.Entry<TileKey, Integer>>();
+        configLock.readLock().lock();
+        try {
+            if (segments != null) {
+                for (Segment segment : segments) {
+                    segment.collectFrequencies(frequencies);
+                }
+            }
+        } finally {
+            configLock.readLock().unlock();
+        }
+        Collections.sort(frequencies, new Comparator<Map.Entry<TileKey, Integer>>() {
+
+            @Override
+            public int compare(Map.Entry<TileKey, Integer> o1, Map.Entry<TileKey, Integer> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        List<TileKey> keys = new ArrayList<TileKey>(Math.min(maxTiles, frequencies.size()));
+        for (int i = 0; i < frequencies.size() && keys.size() < maxTiles; i++) {
+            keys.add(frequencies.get(i).getKey());
+        }
+        return keys;
+    }
+
+    @Override
+    public List<EvictionPolicy> getSupportedPolicies() {
+        return POLICIES;
+    }
+
+    @Override
+    public boolean isImmutable() {
+        return false;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return TINY_LFU_NAME;
+    }
+}
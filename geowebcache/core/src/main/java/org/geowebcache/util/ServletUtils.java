@@ -16,11 +16,15 @@
  */
 package org.geowebcache.util;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -34,10 +38,14 @@ import java.util.Map.Entry;
 import java.util.TimeZone;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.collections.map.CaseInsensitiveMap;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.FileBackedResource;
+import org.geowebcache.io.Resource;
 
 public class ServletUtils {
     private static Log log = LogFactory.getLog(org.geowebcache.util.ServletUtils.class);
@@ -235,6 +243,44 @@ public class ServletUtils {
         return newBuffer;
     }
 
+    /**
+     * Writes {@code resource} as the response body.
+     * <p>
+     * File backed resources are streamed from a channel opened here, and the response content
+     * length set to the size of the file opened. The blob stores replace a tile by renaming a new
+     * file over it, so the response stays consistent with its declared length even if the tile is
+     * replaced or deleted while being sent. Any other resource is written through
+     * {@link Resource#transferTo}, the response content length being expected to be set already to
+     * the resource size.
+     * 
+     * @return the number of bytes written
+     */
+    public static long writeResource(Resource resource, HttpServletResponse response)
+            throws IOException {
+        if (resource instanceof FileBackedResource) {
+            final File file = ((FileBackedResource) resource).getFile();
+            final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                // the size checked by the caller might be the one of a file replaced meanwhile
+                final long size = channel.size();
+                response.setContentLength((int) size);
+                // FileChannel.transferTo can't reach the socket through the servlet output stream
+                // and would copy through an intermediate direct buffer, read the file straight
+                // into the stream instead
+                long written = IOUtils.copyLarge(Channels.newInputStream(channel),
+                        response.getOutputStream());
+                if (written != size) {
+                    throw new IOException("Expected " + size + " bytes from " + file
+                            + ", read " + written);
+                }
+                return written;
+            } finally {
+                channel.close();
+            }
+        }
+        return resource.transferTo(Channels.newChannel(response.getOutputStream()));
+    }
+
     /**
      * Makes HTTP Expire header value
      * 
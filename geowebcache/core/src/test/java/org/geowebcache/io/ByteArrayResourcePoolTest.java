@@ -0,0 +1,67 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+/**
+ * This test class is used for testing the {@link ByteArrayResourcePool} buffer reuse
+ */
+public class ByteArrayResourcePoolTest {
+
+    private static void write(ByteArrayResource buffer, int size) throws Exception {
+        OutputStream os = buffer.getOutputStream();
+        os.write(new byte[size]);
+        os.close();
+    }
+
+    @Test
+    public void testBuffersReused() throws Exception {
+        ByteArrayResourcePool pool = new ByteArrayResourcePool(1024, 4096, 2);
+        ByteArrayResource buffer = pool.acquire();
+        write(buffer, 100);
+        pool.release(buffer);
+        assertEquals(1, pool.getPooled());
+
+        // handed back empty
+        ByteArrayResource reused = pool.acquire();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.getSize());
+        assertEquals(0, pool.getPooled());
+        assertNotSame(reused, pool.acquire());
+    }
+
+    @Test
+    public void testPoolBounded() throws Exception {
+        ByteArrayResourcePool pool = new ByteArrayResourcePool(1024, 4096, 2);
+        for (int i = 0; i < 3; i++) {
+            pool.release(new ByteArrayResource(1024));
+        }
+        assertEquals(2, pool.getPooled());
+
+        // too large to be kept around
+        ByteArrayResource large = pool.acquire();
+        write(large, 8192);
+        pool.release(large);
+        assertEquals(1, pool.getPooled());
+        assertNotSame(large, pool.acquire());
+    }
+}
@@ -42,6 +42,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -55,6 +56,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.io.IOUtils;
 import org.easymock.Capture;
 import org.easymock.CaptureType;
 import org.easymock.IAnswer;
@@ -78,11 +80,17 @@ import org.geowebcache.mime.MimeType;
 import org.geowebcache.seed.GWCTask;
 import org.geowebcache.seed.SeedRequest;
 import org.geowebcache.seed.TileBreeder;
+import org.geowebcache.storage.DefaultStorageBroker;
 import org.geowebcache.storage.StorageBroker;
 import org.geowebcache.storage.TileObject;
 import org.geowebcache.storage.TileRange;
 import org.geowebcache.storage.TileRangeIterator;
 import org.geowebcache.storage.TransientCache;
+import org.geowebcache.storage.blobstore.memory.BulkCacheProvider;
+import org.geowebcache.storage.blobstore.memory.CacheConfiguration;
+import org.geowebcache.storage.blobstore.memory.MemoryBlobStore;
+import org.geowebcache.storage.blobstore.memory.NullBlobStore;
+import org.geowebcache.storage.blobstore.memory.guava.GuavaCacheProvider;
 import org.geowebcache.util.MockLockProvider;
 import org.geowebcache.util.MockWMSSourceHelper;
 import org.junit.After;
@@ -119,6 +127,7 @@ public class WMSLayerTest extends TileLayerTest {
         final StorageBroker mockStorageBroker = EasyMock.createMock(StorageBroker.class);
         Capture<TileObject> captured = new Capture<TileObject>();
         expect(mockStorageBroker.put(EasyMock.capture(captured))).andReturn(true).anyTimes();
+        expect(mockStorageBroker.isBulkPutSupported()).andReturn(false).anyTimes();
         replay(mockStorageBroker);
 
         String layerId = layer.getName();
@@ -149,6 +158,133 @@ public class WMSLayerTest extends TileLayerTest {
         lockProvider.clear();
     }
     
+    @Test
+    public void testSeedMetaTiledInParallel() throws Exception {
+        WMSLayer layer = createWMSLayer("image/png");
+
+        WMSSourceHelper mockSourceHelper = new MockWMSSourceHelper();
+        MockLockProvider lockProvider = new MockLockProvider();
+        layer.setSourceHelper(mockSourceHelper);
+        layer.setLockProvider(lockProvider);
+
+        final Map<List<Long>, byte[]> stored = new ConcurrentHashMap<List<Long>, byte[]>();
+        final StorageBroker mockStorageBroker = EasyMock.createMock(StorageBroker.class);
+        expect(mockStorageBroker.put((TileObject) anyObject())).andAnswer(new IAnswer<Boolean>() {
+
+            public Boolean answer() throws Throwable {
+                TileObject tile = (TileObject) EasyMock.getCurrentArguments()[0];
+                long[] xyz = tile.getXYZ();
+                // the buffers are reused once the tile is stored, keep a copy
+                byte[] contents = IOUtils.toByteArray(tile.getBlob().getInputStream());
+                assertNull(stored.put(Arrays.asList(xyz[0], xyz[1], xyz[2]), contents));
+                return true;
+            }
+        }).anyTimes();
+        expect(mockStorageBroker.isBulkPutSupported()).andReturn(false).anyTimes();
+        replay(mockStorageBroker);
+
+        // a metatile fully inside the layer bounds
+        int zoom = 6;
+        GridSet gridSet = gridSetBroker.WORLD_EPSG4326;
+        long[] coverage = layer.getGridSubset(gridSet.getName()).getCoverage(zoom);
+        long x = (coverage[0] + 2) / 3 * 3;
+        long y = (coverage[1] + 2) / 3 * 3;
+        assertTrue(x + 2 <= coverage[2] && y + 2 <= coverage[3]);
+
+        long[] gridLoc = { x + 1, y + 1, zoom };
+        MimeType mimeType = layer.getMimeTypes().get(0);
+        ConveyorTile tile = new ConveyorTile(mockStorageBroker, layer.getName(),
+                gridSet.getName(), gridLoc, mimeType, null, new MockHttpServletRequest(),
+                new MockHttpServletResponse());
+        layer.seedTile(tile, false);
+
+        // all the tiles were encoded and stored, each one with its own contents
+        assertEquals(9, stored.size());
+        for (byte[] contents : stored.values()) {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(contents));
+            assertNotNull(image);
+            assertEquals(256, image.getWidth());
+            assertEquals(256, image.getHeight());
+        }
+        assertTrue(tile.getBlob().getSize() > 0);
+
+        verify(mockStorageBroker);
+        lockProvider.verify();
+        lockProvider.clear();
+    }
+
+    @Test
+    public void testSeedMetaTiledBulkPut() throws Exception {
+        WMSLayer layer = createWMSLayer("image/png");
+        layer.setSourceHelper(new MockWMSSourceHelper());
+        MockLockProvider lockProvider = new MockLockProvider();
+        layer.setLockProvider(lockProvider);
+
+        // records the tiles cached at once
+        final List<Integer> bulkPuts = new ArrayList<Integer>();
+        final AtomicInteger singlePuts = new AtomicInteger();
+        class BulkGuavaCacheProvider extends GuavaCacheProvider implements BulkCacheProvider {
+
+            BulkGuavaCacheProvider() {
+                super(new CacheConfiguration());
+            }
+
+            @Override
+            public void putTileObj(TileObject obj) {
+                singlePuts.incrementAndGet();
+                super.putTileObj(obj);
+            }
+
+            @Override
+            public void putTileObjs(Collection<TileObject> objs) {
+                bulkPuts.add(objs.size());
+                for (TileObject obj : objs) {
+                    super.putTileObj(obj);
+                }
+            }
+        }
+        BulkGuavaCacheProvider cache = new BulkGuavaCacheProvider();
+        MemoryBlobStore blobStore = new MemoryBlobStore();
+        blobStore.setStore(new NullBlobStore());
+        blobStore.setCacheProvider(cache);
+        StorageBroker storageBroker = new DefaultStorageBroker(blobStore);
+        assertTrue(storageBroker.isBulkPutSupported());
+
+        try {
+            int zoom = 6;
+            GridSet gridSet = gridSetBroker.WORLD_EPSG4326;
+            long[] coverage = layer.getGridSubset(gridSet.getName()).getCoverage(zoom);
+            long x = (coverage[0] + 2) / 3 * 3;
+            long y = (coverage[1] + 2) / 3 * 3;
+            long[] gridLoc = { x + 1, y + 1, zoom };
+            MimeType mimeType = layer.getMimeTypes().get(0);
+            ConveyorTile tile = new ConveyorTile(storageBroker, layer.getName(),
+                    gridSet.getName(), gridLoc, mimeType, null, new MockHttpServletRequest(),
+                    new MockHttpServletResponse());
+            layer.seedTile(tile, false);
+
+            // the whole metatile got cached with a single operation
+            assertEquals(Arrays.asList(9), bulkPuts);
+            assertEquals(0, singlePuts.get());
+            for (long tx = x; tx < x + 3; tx++) {
+                for (long ty = y; ty < y + 3; ty++) {
+                    TileObject query = TileObject.createQueryTileObject(layer.getName(),
+                            new long[] { tx, ty, zoom }, gridSet.getName(),
+                            mimeType.getFormat(), null);
+                    TileObject cached = cache.getTileObj(query);
+                    assertNotNull(cached);
+                    BufferedImage image = ImageIO.read(cached.getBlob().getInputStream());
+                    assertEquals(256, image.getWidth());
+                }
+            }
+            assertTrue(tile.getBlob().getSize() > 0);
+        } finally {
+            blobStore.destroy();
+        }
+        lockProvider.verify();
+        lockProvider.clear();
+    }
+
     @Test
     public void testSeedJpegPngMetaTiled() throws Exception {
         WMSLayer layer = createWMSLayer("image/vnd.jpeg-png");
@@ -217,6 +353,7 @@ public class WMSLayerTest extends TileLayerTest {
             }
             
         }).anyTimes();
+        expect(mockStorageBroker.isBulkPutSupported()).andReturn(false).anyTimes();
         replay(mockStorageBroker);
 
         String layerId = layer.getName();
@@ -544,6 +681,7 @@ public class WMSLayerTest extends TileLayerTest {
                     }
                 }
             }).anyTimes();
+            expect(storageBroker.isBulkPutSupported()).andReturn(false).anyTimes();
             replay(storageBroker);
         }
     }
@@ -0,0 +1,248 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.locks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geowebcache.locks.LockProvider.Lock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test class is used for testing the {@link MemoryLockProvider} per key locks, statistics and
+ * leases
+ */
+public class MemoryLockProviderTest {
+
+    private MemoryLockProvider provider;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        provider = new MemoryLockProvider();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testLocksDroppedWhenReleased() throws Exception {
+        Lock first = provider.getLock("a");
+        Lock second = provider.getLock("b");
+        assertEquals(2, provider.locks.size());
+        first.release();
+        // releasing twice is harmless
+        first.release();
+        assertEquals(1, provider.locks.size());
+        second.release();
+        assertTrue(provider.locks.isEmpty());
+
+        LockStatistics statistics = provider.getStatistics();
+        assertEquals(2, statistics.getAcquisitions());
+        assertEquals(0, statistics.getContendedAcquisitions());
+        assertEquals(0, statistics.getActiveLocks());
+    }
+
+    @Test
+    public void testDistinctKeysDoNotBlock() throws Exception {
+        // many keys, none of them blocks the others whatever their hash
+        final Lock held = provider.getLock("held");
+        for (int i = 0; i < 10000; i++) {
+            provider.getLock("key-" + i).release();
+        }
+        Future<?> other = executor.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                provider.getLock("other").release();
+                return null;
+            }
+        });
+        other.get(5, TimeUnit.SECONDS);
+        held.release();
+        assertEquals(0, provider.getStatistics().getContendedAcquisitions());
+    }
+
+    @Test
+    public void testContentionRecorded() throws Exception {
+        Lock held = provider.getLock("metatile");
+        final CountDownLatch started = new CountDownLatch(2);
+        List<Future<Void>> waiting = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 2; i++) {
+            waiting.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    started.countDown();
+                    provider.getLock("metatile").release();
+                    return null;
+                }
+            }));
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 250 && provider.getQueueLength("metatile") < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, provider.getQueueLength("metatile"));
+        Thread.sleep(20);
+        held.release();
+        for (Future<Void> future : waiting) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        LockStatistics statistics = provider.getStatistics();
+        assertEquals(3, statistics.getAcquisitions());
+        assertEquals(2, statistics.getContendedAcquisitions());
+        assertTrue(statistics.getMaxQueueLength() >= 1);
+        assertTrue(statistics.getMaxWaitTime() >= 20);
+        long waits = 0;
+        for (long count : statistics.getWaitTimeHistogram()) {
+            waits += count;
+        }
+        assertEquals(2, waits);
+        // both waited at least 20ms
+        assertEquals(0, statistics.getWaitTimeHistogram()[0]);
+        assertTrue(provider.locks.isEmpty());
+    }
+
+    @Test
+    public void testMutualExclusion() throws Exception {
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        List<Future<Void>> workers = new ArrayList<Future<Void>>();
+        for (int t = 0; t < 8; t++) {
+            workers.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < 2000; i++) {
+                        String key = "key-" + (i % 4);
+                        Lock lock = provider.getLock(key);
+                        try {
+                            if (key.equals("key-0") && inside.incrementAndGet() > 1) {
+                                overlaps.incrementAndGet();
+                            }
+                        } finally {
+                            if (key.equals("key-0")) {
+                                inside.decrementAndGet();
+                            }
+                            lock.release();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> worker : workers) {
+            worker.get(60, TimeUnit.SECONDS);
+        }
+        assertEquals(0, overlaps.get());
+        assertTrue(provider.locks.isEmpty());
+        assertEquals(8 * 2000, provider.getStatistics().getAcquisitions());
+        assertFalse(provider.getStatistics().toString().isEmpty());
+    }
+
+    @Test
+    public void testLocksListed() throws Exception {
+        Lock held = provider.getLock("metatile", 60000);
+        Future<?> waiting = executor.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                provider.getLock("metatile").release();
+                return null;
+            }
+        });
+        for (int i = 0; i < 250 && provider.getQueueLength("metatile") < 1; i++) {
+            Thread.sleep(10);
+        }
+        List<LockInfo> locks = provider.getLocks();
+        assertEquals(1, locks.size());
+        LockInfo info = locks.get(0);
+        assertEquals("metatile", info.getKey());
+        assertTrue(info.getOwner().startsWith(Thread.currentThread().getName()));
+        assertEquals(60000, info.getLeaseTime());
+        assertEquals(1, info.getWaiters());
+        assertFalse(info.isExpired());
+
+        held.release();
+        waiting.get(5, TimeUnit.SECONDS);
+        assertTrue(provider.getLocks().isEmpty());
+    }
+
+    @Test
+    public void testExpiredLeaseBroken() throws Exception {
+        provider.watchdogInterval = 50;
+        final AtomicBoolean broken = new AtomicBoolean();
+        Lock stuck = provider.getLock("metatile", 100, new Runnable() {
+
+            public void run() {
+                broken.set(true);
+            }
+        });
+        // the waiter goes on once the lease expires, without the holder releasing the lock
+        long start = System.currentTimeMillis();
+        Future<Lock> waiting = executor.submit(new Callable<Lock>() {
+
+            @Override
+            public Lock call() throws Exception {
+                Lock lock = provider.getLock("metatile");
+                lock.release();
+                return lock;
+            }
+        });
+        waiting.get(5, TimeUnit.SECONDS);
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertTrue(broken.get());
+        assertEquals(1, provider.getStatistics().getBrokenLocks());
+
+        // the late release of the broken lock is harmless
+        stuck.release();
+        assertTrue(provider.locks.isEmpty());
+        provider.getLock("metatile").release();
+    }
+
+    @Test
+    public void testLeaseNotBrokenWhenReleased() throws Exception {
+        provider.watchdogInterval = 20;
+        Lock first = provider.getLock("metatile", 1000);
+        Lock second = provider.getLock("unleased");
+        Thread.sleep(100);
+        first.release();
+        Thread.sleep(100);
+        // no lease, held forever
+        assertEquals(1, provider.getLocks().size());
+        second.release();
+        assertEquals(0, provider.getStatistics().getBrokenLocks());
+    }
+}
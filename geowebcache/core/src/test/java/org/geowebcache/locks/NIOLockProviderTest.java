@@ -0,0 +1,271 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.locks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.locks.LockProvider.Lock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This test class is used for testing the {@link NIOLockProvider} locking among threads and
+ * processes
+ */
+public class NIOLockProviderTest {
+
+    private static final String KEY = "metatile:layer:EPSG:4326:image/png:1:2:3";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private NIOLockProvider provider;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        provider = new NIOLockProvider(temp.getRoot().getPath());
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private Collection<File> lockFiles() {
+        return FileUtils.listFiles(new File(temp.getRoot(), "lockfiles"), null, true);
+    }
+
+    @Test
+    public void testLockFilesReused() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            provider.getLock(KEY).release();
+        }
+        assertEquals(1, lockFiles().size());
+        provider.getLock("another key").release();
+        assertEquals(2, lockFiles().size());
+    }
+
+    @Test
+    public void testLockFilesBounded() throws Exception {
+        provider.setLockFiles(16);
+        for (int i = 0; i < 1000; i++) {
+            provider.getLock("key " + i).release();
+        }
+        assertTrue(lockFiles().size() <= 16);
+    }
+
+    @Test
+    public void testCollidingKeysSameThread() throws Exception {
+        // every key shares the same lock file
+        provider.setLockFiles(1);
+        provider.setLockTimeout(1);
+        Lock first = provider.getLock(KEY);
+        Lock second;
+        try {
+            // the same thread reuses the file lock it holds instead of waiting for itself
+            second = provider.getLock("another key");
+        } finally {
+            first.release();
+        }
+        assertEquals(1, provider.heldFiles.size());
+        // the file lock is still held for the second key, the other threads have to wait
+        Future<Void> other = executor.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                provider.getLock("key").release();
+                return null;
+            }
+        });
+        Thread.sleep(200);
+        assertFalse(other.isDone());
+        second.release();
+        other.get(10, TimeUnit.SECONDS);
+        assertTrue(provider.heldFiles.isEmpty());
+        assertEquals(1, lockFiles().size());
+    }
+
+    @Test
+    public void testThreadsExclusion() throws Exception {
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        List<Future<Void>> workers = new ArrayList<Future<Void>>();
+        for (int t = 0; t < 4; t++) {
+            workers.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < 200; i++) {
+                        Lock lock = provider.getLock(KEY);
+                        try {
+                            if (inside.incrementAndGet() > 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            inside.decrementAndGet();
+                        } finally {
+                            lock.release();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> worker : workers) {
+            worker.get(60, TimeUnit.SECONDS);
+        }
+        assertEquals(0, overlaps.get());
+        // the threads queued in memory, not on the file
+        assertEquals(800, provider.memoryProvider.getStatistics().getAcquisitions());
+    }
+
+    /**
+     * Starts a process locking {@link #KEY}, returning once it holds the lock
+     */
+    private Process lockInOtherProcess() throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+                + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                NIOLockProviderTest.class.getName(), temp.getRoot().getPath(), KEY).start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                process.getInputStream()));
+        assertEquals("locked", reader.readLine());
+        return process;
+    }
+
+    @Test
+    public void testOtherProcess() throws Exception {
+        Process process = lockInOtherProcess();
+        try {
+            provider.setLockTimeout(1);
+            long start = System.currentTimeMillis();
+            try {
+                provider.getLock(KEY);
+                fail("The lock is held by the other process");
+            } catch (GeoWebCacheException e) {
+                assertTrue(System.currentTimeMillis() - start >= 900);
+            }
+
+            // blocks until the other process releases the lock
+            provider.setLockTimeout(30);
+            Future<Void> waiting = executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    provider.getLock(KEY).release();
+                    return null;
+                }
+            });
+            Thread.sleep(200);
+            assertFalse(waiting.isDone());
+            process.getOutputStream().close();
+            waiting.get(10, TimeUnit.SECONDS);
+            assertEquals(0, process.waitFor());
+        } finally {
+            process.destroy();
+        }
+    }
+
+    @Test
+    public void testInterruptedWait() throws Exception {
+        Process process = lockInOtherProcess();
+        try {
+            provider.setLockTimeout(30);
+            final AtomicBoolean interrupted = new AtomicBoolean();
+            Thread waiting = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        provider.getLock(KEY).release();
+                    } catch (GeoWebCacheException e) {
+                        interrupted.set(Thread.currentThread().isInterrupted());
+                    }
+                }
+            };
+            waiting.start();
+            Thread.sleep(200);
+            waiting.interrupt();
+            // gives up right away instead of retrying until the timeout
+            waiting.join(5000);
+            assertFalse(waiting.isAlive());
+            assertTrue(interrupted.get());
+            assertTrue(provider.getLocks().isEmpty());
+        } finally {
+            process.destroy();
+        }
+    }
+
+    @Test
+    public void testExpiredLeaseReleasesFile() throws Exception {
+        provider.memoryProvider.watchdogInterval = 50;
+        Lock stuck = provider.getLock(KEY, 100);
+        List<LockInfo> locks = provider.getLocks();
+        assertEquals(1, locks.size());
+        assertEquals(KEY, locks.get(0).getKey());
+
+        // the file lock of the stuck holder is released along with the memory one
+        provider.setLockTimeout(5);
+        Future<Void> waiting = executor.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                provider.getLock(KEY).release();
+                return null;
+            }
+        });
+        waiting.get(10, TimeUnit.SECONDS);
+        stuck.release();
+        assertTrue(provider.getLocks().isEmpty());
+    }
+
+    /**
+     * Holds the lock on the key until the standard input is closed
+     */
+    public static void main(String[] args) throws Exception {
+        NIOLockProvider provider = new NIOLockProvider(args[0]);
+        Lock lock = provider.getLock(args[1]);
+        System.out.println("locked");
+        System.out.flush();
+        while (System.in.read() >= 0) {
+            ;
+        }
+        lock.release();
+    }
+}
@@ -131,6 +131,7 @@ public class SeedTaskTest extends TestCase {
         final StorageBroker mockStorageBroker = EasyMock.createMock(StorageBroker.class);
         expect(mockStorageBroker.put((TileObject) anyObject())).andReturn(true).anyTimes();
         expect(mockStorageBroker.get((TileObject) anyObject())).andReturn(false).anyTimes();
+        expect(mockStorageBroker.isBulkPutSupported()).andReturn(false).anyTimes();
         replay(mockStorageBroker);
 
         boolean reseed = false;
@@ -209,6 +210,7 @@ public class SeedTaskTest extends TestCase {
         final StorageBroker mockStorageBroker = EasyMock.createMock(StorageBroker.class);
         expect(mockStorageBroker.put((TileObject) anyObject())).andReturn(true).anyTimes();
         expect(mockStorageBroker.get((TileObject) anyObject())).andReturn(false).anyTimes();
+        expect(mockStorageBroker.isBulkPutSupported()).andReturn(false).anyTimes();
         replay(mockStorageBroker);
 
         boolean reseed = false;
@@ -275,6 +277,7 @@ public class SeedTaskTest extends TestCase {
         };
         expect(mockStorageBroker.put(capture(storedObjects))).andReturn(true).anyTimes();
         expect(mockStorageBroker.get((TileObject) anyObject())).andReturn(false).anyTimes();
+        expect(mockStorageBroker.isBulkPutSupported()).andReturn(false).anyTimes();
         replay(mockStorageBroker);
 
         TileRange tr = TileBreeder.createTileRange(req, tl);
@@ -21,11 +21,13 @@ import java.io.File;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.easymock.IAnswer;
 import org.easymock.classextension.EasyMock;
 import org.geowebcache.grid.SRS;
 import org.geowebcache.io.ByteArrayResource;
@@ -172,6 +174,67 @@ public class BlobStoreTest extends TestCase {
         assertNull(res);
     }
 
+    public void testTileRangeDeleteParallel() throws Exception {
+        FileBlobStore fbs = setup();
+        fbs.setTruncateParallelism(4);
+
+        Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
+        MimeType mime = ImageMime.png;
+        String gridSetId = SRS.getEPSG4326().toString();
+        String layerName = "test:parallel";
+        Map<String, String> parameters = null;
+
+        // zoom levels 4 and 5 use 8x8 tile intermediate directories, so 32x32 tiles spread
+        // over several of them
+        for (int z = 3; z <= 5; z++) {
+            for (int x = 0; x < 32; x++) {
+                for (int y = 0; y < 32; y++) {
+                    long[] xyz = { x, y, z };
+                    fbs.put(TileObject.createCompleteTileObject(layerName, xyz, gridSetId,
+                            mime.getFormat(), parameters, bytes));
+                }
+            }
+        }
+        // a different format in the same directories should be left alone
+        fbs.put(TileObject.createCompleteTileObject(layerName, new long[] { 10, 10, 4 },
+                gridSetId, ImageMime.jpeg.getFormat(), parameters, bytes));
+
+        final AtomicInteger deleted = new AtomicInteger();
+        BlobStoreListener listener = EasyMock.createNiceMock(BlobStoreListener.class);
+        listener.tileDeleted(EasyMock.eq(layerName), EasyMock.eq(gridSetId),
+                EasyMock.eq(mime.getFormat()), (String) EasyMock.isNull(), EasyMock.anyLong(),
+                EasyMock.anyLong(), EasyMock.anyInt(), EasyMock.anyLong());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            public Object answer() throws Throwable {
+                deleted.incrementAndGet();
+                return null;
+            }
+        }).anyTimes();
+        EasyMock.replay(listener);
+        fbs.addListener(listener);
+
+        long[][] rangeBounds = { { 5, 6, 20, 9, 4 }, { 0, 0, 31, 31, 5 } };
+        TileRange trObj = new TileRange(layerName, gridSetId, 4, 5, rangeBounds, mime,
+                parameters);
+        fbs.delete(trObj);
+
+        assertEquals(16 * 4 + 32 * 32, deleted.get());
+        for (int x = 0; x < 32; x++) {
+            for (int y = 0; y < 32; y++) {
+                boolean inRange = x >= 5 && x <= 20 && y >= 6 && y <= 9;
+                assertTrue(fbs.get(TileObject.createQueryTileObject(layerName, new long[] { x,
+                        y, 3 }, gridSetId, mime.getFormat(), parameters)));
+                assertEquals(!inRange, fbs.get(TileObject.createQueryTileObject(layerName,
+                        new long[] { x, y, 4 }, gridSetId, mime.getFormat(), parameters)));
+                assertFalse(fbs.get(TileObject.createQueryTileObject(layerName, new long[] { x,
+                        y, 5 }, gridSetId, mime.getFormat(), parameters)));
+            }
+        }
+        assertTrue(fbs.get(TileObject.createQueryTileObject(layerName, new long[] { 10, 10, 4 },
+                gridSetId, ImageMime.jpeg.getFormat(), parameters)));
+        fbs.destroy();
+    }
+
     public void testRenameLayer() throws Exception {
         FileBlobStore fbs = setup();
         Resource bytes = new ByteArrayResource("1 2 3 4 5 6 test".getBytes());
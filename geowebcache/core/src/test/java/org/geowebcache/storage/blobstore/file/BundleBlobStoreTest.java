@@ -0,0 +1,315 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import static org.geowebcache.util.TestUtils.query;
+import static org.geowebcache.util.TestUtils.tile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BundleBlobStoreTest {
+
+    private static final String LAYER = "topp:states";
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    private static final String FORMAT = ImageMime.png.getFormat();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private BundleBlobStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new BundleBlobStore(tmp.getRoot().getAbsolutePath(), 4);
+    }
+
+    @After
+    public void tearDown() {
+        store.destroy();
+    }
+
+    private byte[] contents(TileObject tile) throws Exception {
+        assertTrue(store.get(tile));
+        return IOUtils.toByteArray(tile.getBlob().getInputStream());
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        store.put(tile(LAYER, 1, 2, 3, "tile 1 2 3".getBytes()));
+        store.put(tile(LAYER, 2, 2, 3, "tile 2 2 3".getBytes()));
+        store.put(tile(LAYER, 5, 6, 3, "tile 5 6 3".getBytes()));
+
+        assertArrayEquals("tile 1 2 3".getBytes(), contents(query(LAYER, 1, 2, 3)));
+        assertArrayEquals("tile 2 2 3".getBytes(), contents(query(LAYER, 2, 2, 3)));
+        assertArrayEquals("tile 5 6 3".getBytes(), contents(query(LAYER, 5, 6, 3)));
+        assertFalse(store.get(query(LAYER, 3, 2, 3)));
+        assertFalse(store.get(query(LAYER, 1, 2, 4)));
+
+        // the first two share a bundle
+        File zoomDir = store.bundleFile(query(LAYER, 1, 2, 3)).getParentFile();
+        assertEquals(2, zoomDir.listFiles().length);
+        assertTrue(store.layerExists(LAYER));
+    }
+
+    @Test
+    public void testBundleOrigin() throws Exception {
+        File bundle = store.bundleFile(query(LAYER, 45, 17, 8));
+        assertEquals("R0004C000b.png.bundle", bundle.getName());
+        assertArrayEquals(new long[] { 44, 16 }, store.bundleOrigin(bundle.getName()));
+        assertNull(store.bundleOrigin("metadata.properties"));
+    }
+
+    @Test
+    public void testUninitializedBundleIsAMiss() throws Exception {
+        // a crash right after the bundle creation leaves it empty
+        File bundle = store.bundleFile(query(LAYER, 1, 2, 3));
+        bundle.getParentFile().mkdirs();
+        assertTrue(bundle.createNewFile());
+        assertFalse(store.get(query(LAYER, 1, 2, 3)));
+        assertEquals(0, bundle.length());
+
+        // or sized, but without a header
+        FileUtils.writeByteArrayToFile(bundle, new byte[64]);
+        assertFalse(store.get(query(LAYER, 1, 2, 3)));
+
+        // and gets initialized by the next write
+        store.put(tile(LAYER, 1, 2, 3, "tile 1 2 3".getBytes()));
+        assertArrayEquals("tile 1 2 3".getBytes(), contents(query(LAYER, 1, 2, 3)));
+        assertFalse(store.get(query(LAYER, 2, 2, 3)));
+    }
+
+    @Test
+    public void testUpdateAndDelete() throws Exception {
+        BlobStoreListener listener = mock(BlobStoreListener.class);
+        store.addListener(listener);
+
+        store.put(tile(LAYER, 1, 1, 1, new byte[10]));
+        verify(listener).tileStored(LAYER, GRIDSET, FORMAT, null, 1, 1, 1, 10);
+
+        store.put(tile(LAYER, 1, 1, 1, new byte[20]));
+        verify(listener).tileUpdated(LAYER, GRIDSET, FORMAT, null, 1, 1, 1, 20, 10);
+        assertEquals(20, contents(query(LAYER, 1, 1, 1)).length);
+
+        store.put(tile(LAYER, 0, 1, 1, new byte[5]));
+        assertTrue(store.delete(query(LAYER, 1, 1, 1)));
+        verify(listener).tileDeleted(LAYER, GRIDSET, FORMAT, null, 1, 1, 1, 20);
+        assertFalse(store.get(query(LAYER, 1, 1, 1)));
+        assertFalse(store.delete(query(LAYER, 1, 1, 1)));
+
+        // deleting the last tile removes the bundle
+        File bundle = store.bundleFile(query(LAYER, 0, 1, 1));
+        assertTrue(bundle.exists());
+        assertTrue(store.delete(query(LAYER, 0, 1, 1)));
+        assertFalse(bundle.exists());
+    }
+
+    @Test
+    public void testStaleHeaderKeepsBundle() throws Exception {
+        store.put(tile(LAYER, 0, 0, 1, new byte[5]));
+        store.put(tile(LAYER, 1, 0, 1, new byte[5]));
+        // a crash before the bundle got closed leaves the previous live tile count in the header
+        File bundle = store.bundleFile(query(LAYER, 0, 0, 1));
+        RandomAccessFile raf = new RandomAccessFile(bundle, "rw");
+        try {
+            raf.seek(16);
+            raf.writeLong(1);
+        } finally {
+            raf.close();
+        }
+
+        assertTrue(store.delete(query(LAYER, 0, 0, 1)));
+        assertTrue(bundle.exists());
+        assertEquals(5, contents(query(LAYER, 1, 0, 1)).length);
+        // and the count got repaired
+        assertTrue(store.delete(query(LAYER, 1, 0, 1)));
+        assertFalse(bundle.exists());
+    }
+
+    @Test
+    public void testDeleteRange() throws Exception {
+        BlobStoreListener listener = mock(BlobStoreListener.class);
+        for (int x = 0; x < 8; x++) {
+            for (int y = 0; y < 8; y++) {
+                store.put(tile(LAYER, x, y, 5, new byte[] { (byte) x, (byte) y }));
+            }
+        }
+        store.put(tile(LAYER, 0, 0, 4, new byte[1]));
+        store.addListener(listener);
+
+        long[][] rangeBounds = { { 2, 3, 5, 3, 5 } };
+        TileRange range = new TileRange(LAYER, GRIDSET, 5, 5, rangeBounds, ImageMime.png,
+                (Map<String, String>) null);
+        assertTrue(store.delete(range));
+
+        verify(listener, times(4)).tileDeleted(eq(LAYER), eq(GRIDSET), eq(FORMAT),
+                (String) isNull(), anyLong(), eq(3L), eq(5), eq(2L));
+        for (int x = 0; x < 8; x++) {
+            for (int y = 0; y < 8; y++) {
+                boolean deleted = y == 3 && x >= 2 && x <= 5;
+                assertEquals(x + "," + y, !deleted, store.get(query(LAYER, x, y, 5)));
+            }
+        }
+        assertTrue(store.get(query(LAYER, 0, 0, 4)));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        store.setMinCompactionGarbage(0);
+        store.setCompactionRatio(Double.MAX_VALUE);
+
+        store.put(tile(LAYER, 0, 0, 2, new byte[100]));
+        store.put(tile(LAYER, 1, 0, 2, "keep me".getBytes()));
+        for (int i = 0; i < 10; i++) {
+            store.put(tile(LAYER, 0, 0, 2, new byte[100]));
+        }
+        File bundle = store.bundleFile(query(LAYER, 0, 0, 2));
+        final long dataStart = BundleFile.dataStart(store.getBundleSize());
+        assertEquals(dataStart + 11 * 100 + 7, bundle.length());
+
+        assertEquals(0, store.compact());
+
+        store.setCompactionRatio(1);
+        assertEquals(1, store.compact());
+        assertEquals(dataStart + 100 + 7, bundle.length());
+        assertArrayEquals("keep me".getBytes(), contents(query(LAYER, 1, 0, 2)));
+        assertEquals(100, contents(query(LAYER, 0, 0, 2)).length);
+
+        // nothing left to reclaim
+        assertEquals(0, store.compact());
+    }
+
+    @Test
+    public void testLayerOperations() throws Exception {
+        store.put(tile(LAYER, 0, 0, 0, new byte[1]));
+        store.putLayerMetadata(LAYER, "key", "value with spaces");
+        assertEquals("value with spaces", store.getLayerMetadata(LAYER, "key"));
+
+        assertTrue(store.rename(LAYER, "topp:renamed"));
+        assertFalse(store.layerExists(LAYER));
+        assertTrue(store.layerExists("topp:renamed"));
+
+        assertTrue(store.delete("topp:renamed"));
+        assertFalse(store.layerExists("topp:renamed"));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        store.put(tile(LAYER, 0, 0, 0, new byte[1]));
+        store.put(TileObject.createCompleteTileObject("topp:other", new long[] { 0, 0, 0 },
+                GRIDSET, FORMAT, null, new ByteArrayResource(new byte[1])));
+
+        store.clear();
+        assertFalse(store.layerExists(LAYER));
+        assertFalse(store.layerExists("topp:other"));
+        assertFalse(store.get(query(LAYER, 0, 0, 0)));
+
+        // still usable afterwards
+        store.put(tile(LAYER, 0, 0, 0, new byte[1]));
+        assertTrue(store.get(query(LAYER, 0, 0, 0)));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final int threads = 8;
+        final int tilesPerThread = 64;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        // every thread writes to the same bundles, interleaving with the others
+                        for (int i = 0; i < tilesPerThread; i++) {
+                            long x = i % 8;
+                            long y = thread;
+                            byte[] contents = (thread + "/" + i).getBytes();
+                            store.put(tile(LAYER, x, y, 3, contents));
+                            TileObject read = query(LAYER, x, y, 3);
+                            assertTrue(store.get(read));
+                            assertNotNull(read.getBlob());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (int thread = 0; thread < threads; thread++) {
+            for (int x = 0; x < 8; x++) {
+                // last write of each tile wins
+                String expected = thread + "/" + (tilesPerThread - 8 + x);
+                assertEquals(expected, new String(contents(query(LAYER, x, thread, 3))));
+            }
+        }
+    }
+
+    @Test
+    public void testRejectsDifferentBundleSize() throws Exception {
+        store.put(tile(LAYER, 0, 0, 0, new byte[1]));
+        BundleBlobStore other = new BundleBlobStore(tmp.getRoot().getAbsolutePath(), 8);
+        try {
+            other.get(query(LAYER, 0, 0, 0));
+            fail("Expected StorageException");
+        } catch (StorageException e) {
+            assertTrue(e.getCause().getMessage().contains("bundle size of 4"));
+        } finally {
+            other.destroy();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import static org.geowebcache.util.TestUtils.query;
+import static org.geowebcache.util.TestUtils.tile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileBlobStoreDeduplicationTest {
+
+    private static final String LAYER = "topp:states";
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    private static final String FORMAT = ImageMime.png.getFormat();
+
+    private static final byte[] BLANK = "blank tile".getBytes();
+
+    /** Tiles are only shared when created in the same second */
+    private static final long CREATED = 1262304000000L;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FileBlobStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new FileBlobStore(tmp.getRoot().getAbsolutePath());
+        store.setDeduplicate(true);
+        assumeTrue(store.isDeduplicate());
+    }
+
+    @After
+    public void tearDown() {
+        store.destroy();
+    }
+
+    private static TileObject created(TileObject tile) {
+        tile.setCreated(CREATED);
+        return tile;
+    }
+
+    private byte[] contents(TileObject tile) throws Exception {
+        assertTrue(store.get(tile));
+        return IOUtils.toByteArray(tile.getBlob().getInputStream());
+    }
+
+    private int sharedCopies() {
+        int count = 0;
+        File[] buckets = new File(tmp.getRoot(), TileDeduplicator.POOL_DIRECTORY).listFiles();
+        for (File bucket : buckets) {
+            count += bucket.list().length;
+        }
+        return count;
+    }
+
+    @Test
+    public void testIdenticalTilesShareStorage() throws Exception {
+        BlobStoreListener listener = mock(BlobStoreListener.class);
+        store.addListener(listener);
+
+        store.put(created(tile(LAYER, 0, 0, 1, BLANK)));
+        store.put(created(tile(LAYER, 1, 0, 1, BLANK)));
+        store.put(created(tile(LAYER, 0, 1, 1, "other".getBytes())));
+
+        assertEquals(2, sharedCopies());
+        assertArrayEquals(BLANK, contents(query(LAYER, 0, 0, 1)));
+        assertArrayEquals(BLANK, contents(query(LAYER, 1, 0, 1)));
+        assertArrayEquals("other".getBytes(), contents(query(LAYER, 0, 1, 1)));
+
+        // listeners still see the size of every tile
+        verify(listener).tileStored(LAYER, GRIDSET, FORMAT, null, 0, 0, 1, 4096);
+        verify(listener).tileStored(LAYER, GRIDSET, FORMAT, null, 1, 0, 1, 4096);
+    }
+
+    @Test
+    public void testSharedCopyFreedWithLastReference() throws Exception {
+        BlobStoreListener listener = mock(BlobStoreListener.class);
+        store.put(created(tile(LAYER, 0, 0, 1, BLANK)));
+        store.put(created(tile(LAYER, 1, 0, 1, BLANK)));
+        store.addListener(listener);
+
+        assertTrue(store.delete(query(LAYER, 0, 0, 1)));
+        verify(listener).tileDeleted(LAYER, GRIDSET, FORMAT, null, 0, 0, 1, 4096);
+        assertEquals(1, sharedCopies());
+        assertArrayEquals(BLANK, contents(query(LAYER, 1, 0, 1)));
+
+        assertTrue(store.delete(query(LAYER, 1, 0, 1)));
+        assertEquals(0, sharedCopies());
+    }
+
+    @Test
+    public void testOverwriteReleasesSharedCopy() throws Exception {
+        store.put(created(tile(LAYER, 0, 0, 1, BLANK)));
+        store.put(created(tile(LAYER, 0, 0, 1, "updated".getBytes())));
+
+        assertEquals(1, sharedCopies());
+        assertArrayEquals("updated".getBytes(), contents(query(LAYER, 0, 0, 1)));
+    }
+
+    @Test
+    public void testRePutKeepsAgeOfDuplicates() throws Exception {
+        store.put(created(tile(LAYER, 0, 0, 1, BLANK)));
+        store.put(created(tile(LAYER, 1, 0, 1, BLANK)));
+        assertEquals(1, sharedCopies());
+
+        // a reseed of one of them an hour later
+        TileObject reseeded = created(tile(LAYER, 1, 0, 1, BLANK));
+        reseeded.setCreated(CREATED + 3600 * 1000);
+        store.put(reseeded);
+
+        TileObject unrelated = query(LAYER, 0, 0, 1);
+        assertArrayEquals(BLANK, contents(unrelated));
+        assertEquals(CREATED, unrelated.getCreated());
+        TileObject updated = query(LAYER, 1, 0, 1);
+        assertArrayEquals(BLANK, contents(updated));
+        assertEquals(CREATED + 3600 * 1000, updated.getCreated());
+        assertEquals(2, sharedCopies());
+    }
+
+    @Test
+    public void testLargeTilesNotDeduplicated() throws Exception {
+        store.setDeduplicate(false);
+        store.setMaxDeduplicatedSize(16);
+        store.setDeduplicate(true);
+
+        store.put(created(tile(LAYER, 0, 0, 1, new byte[17])));
+        store.put(created(tile(LAYER, 1, 0, 1, new byte[17])));
+
+        assertEquals(0, sharedCopies());
+        assertEquals(17, contents(query(LAYER, 1, 0, 1)).length);
+    }
+
+    @Test
+    public void testRangeDeletePurgesSharedCopies() throws Exception {
+        for (int x = 0; x < 4; x++) {
+            store.put(created(tile(LAYER, x, 0, 2, BLANK)));
+        }
+        store.put(created(tile(LAYER, 0, 1, 2, "kept".getBytes())));
+
+        long[][] rangeBounds = { { 0, 0, 3, 0, 2 } };
+        TileRange range = new TileRange(LAYER, GRIDSET, 2, 2, rangeBounds, ImageMime.png,
+                (Map<String, String>) null);
+        assertTrue(store.delete(range));
+
+        // the purge runs in the background, give it some time
+        for (int i = 0; i < 100 && sharedCopies() > 1; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, sharedCopies());
+        assertFalse(store.get(query(LAYER, 0, 0, 2)));
+        assertArrayEquals("kept".getBytes(), contents(query(LAYER, 0, 1, 2)));
+    }
+}
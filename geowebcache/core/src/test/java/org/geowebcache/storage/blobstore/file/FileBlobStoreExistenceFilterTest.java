@@ -0,0 +1,189 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import static org.geowebcache.util.TestUtils.query;
+import static org.geowebcache.util.TestUtils.tile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.TileObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileBlobStoreExistenceFilterTest {
+
+    private static final String LAYER = "topp:states";
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    private static final String FORMAT = ImageMime.png.getFormat();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FileBlobStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = newStore();
+    }
+
+    @After
+    public void tearDown() {
+        store.destroy();
+    }
+
+    private FileBlobStore newStore() throws Exception {
+        FileBlobStore store = new FileBlobStore(tmp.getRoot().getAbsolutePath());
+        store.setExistenceFilter(true);
+        return store;
+    }
+
+    /**
+     * Writes a tile behind the back of the store, which the filters are not aware of
+     */
+    private void writeExternally(long x, long y, long z) throws Exception {
+        File file = new FilePathGenerator(tmp.getRoot().getAbsolutePath()).tilePath(
+                query(LAYER, x, y, z), MimeType.createFromFormat(FORMAT));
+        FileUtils.writeByteArrayToFile(file, new byte[] { 1 });
+    }
+
+    @Test
+    public void testFilterBuiltFromDisk() throws Exception {
+        store.put(tile(LAYER, 0, 0, 3, new byte[] { 1, 2, 3 }));
+        writeExternally(1, 0, 3);
+
+        // not ready yet, both go to disk and trigger the build
+        assertTrue(store.get(query(LAYER, 0, 0, 3)));
+        assertTrue(store.get(query(LAYER, 1, 0, 3)));
+        store.getExistenceIndex().awaitBuilds();
+
+        assertTrue(store.get(query(LAYER, 0, 0, 3)));
+        assertTrue(store.get(query(LAYER, 1, 0, 3)));
+        assertFalse(store.get(query(LAYER, 2, 0, 3)));
+
+        // stored tiles are added as they're written, external ones aren't seen anymore
+        store.put(tile(LAYER, 3, 0, 3, new byte[] { 1, 2, 3 }));
+        writeExternally(4, 0, 3);
+        assertTrue(store.get(query(LAYER, 3, 0, 3)));
+        assertFalse(store.get(query(LAYER, 4, 0, 3)));
+    }
+
+    @Test
+    public void testFilterPerParameters() throws Exception {
+        store.put(tile(LAYER, 0, 0, 3, new byte[] { 1, 2, 3 }));
+        assertTrue(store.get(query(LAYER, 0, 0, 3)));
+        store.getExistenceIndex().awaitBuilds();
+
+        TileObject withParams = TileObject.createCompleteTileObject(LAYER, new long[] { 0, 0, 3 },
+                GRIDSET, FORMAT, Collections.singletonMap("STYLES", "population"),
+                new ByteArrayResource(new byte[] { 1 }));
+        store.put(withParams);
+        TileObject query = TileObject.createQueryTileObject(LAYER, new long[] { 0, 0, 3 },
+                GRIDSET, FORMAT, Collections.singletonMap("STYLES", "population"));
+        assertTrue(store.get(query));
+        store.getExistenceIndex().awaitBuilds();
+        assertTrue(store.get(query));
+    }
+
+    @Test
+    public void testLayerDeleteDropsFilters() throws Exception {
+        store.put(tile(LAYER, 0, 0, 3, new byte[] { 1, 2, 3 }));
+        assertTrue(store.get(query(LAYER, 0, 0, 3)));
+        store.getExistenceIndex().awaitBuilds();
+
+        store.delete(LAYER);
+        writeExternally(1, 0, 3);
+        // rebuilt from scratch
+        assertTrue(store.get(query(LAYER, 1, 0, 3)));
+        store.getExistenceIndex().awaitBuilds();
+        assertTrue(store.get(query(LAYER, 1, 0, 3)));
+        assertFalse(store.get(query(LAYER, 0, 0, 3)));
+    }
+
+    @Test
+    public void testFiltersSurviveRestart() throws Exception {
+        store.put(tile(LAYER, 0, 0, 3, new byte[] { 1, 2, 3 }));
+        assertTrue(store.get(query(LAYER, 0, 0, 3)));
+        store.getExistenceIndex().awaitBuilds();
+        store.destroy();
+
+        File saved = new File(new File(tmp.getRoot(), FilePathUtils.filteredLayerName(LAYER)),
+                TileExistenceIndex.FILTERS_FILE);
+        assertTrue(saved.exists());
+        writeExternally(1, 0, 3);
+
+        store = newStore();
+        assertTrue(store.get(query(LAYER, 0, 0, 3)));
+        // loaded rather than rebuilt, so the external tile is not seen
+        assertFalse(store.get(query(LAYER, 1, 0, 3)));
+        // and the saved copy is gone so that it can't go stale
+        assertFalse(saved.exists());
+    }
+
+    @Test
+    public void testBloomFilter() throws Exception {
+        TileBloomFilter filter = TileBloomFilter.create(2000);
+        for (int x = 0; x < 1000; x++) {
+            filter.put(x, 2 * x, 10);
+        }
+        int falsePositives = 0;
+        for (int x = 0; x < 1000; x++) {
+            assertTrue(filter.mightContain(x, 2 * x, 10));
+            if (filter.mightContain(x, 2 * x + 1, 10)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("too many false positives: " + falsePositives, falsePositives < 50);
+        assertFalse(filter.isSaturated());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        filter.writeTo(new DataOutputStream(bytes));
+        TileBloomFilter read = TileBloomFilter.readFrom(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(1000, read.getTileCount());
+        for (int x = 0; x < 1000; x++) {
+            assertTrue(read.mightContain(x, 2 * x, 10));
+        }
+    }
+
+    @Test
+    public void testRePutsDoNotSaturate() throws Exception {
+        TileBloomFilter filter = TileBloomFilter.create(1024);
+        assertTrue(filter.put(0, 0, 10));
+        for (int i = 0; i < 2000; i++) {
+            assertFalse(filter.put(0, 0, 10));
+        }
+        assertEquals(1, filter.getTileCount());
+        assertFalse(filter.isSaturated());
+    }
+}
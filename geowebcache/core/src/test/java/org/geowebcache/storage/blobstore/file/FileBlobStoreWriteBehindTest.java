@@ -0,0 +1,299 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.file;
+
+import static org.geowebcache.util.TestUtils.query;
+import static org.geowebcache.util.TestUtils.tile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileBlobStoreWriteBehindTest {
+
+    private static final String LAYER = "topp:states";
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    private static final String FORMAT = ImageMime.png.getFormat();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Records the written tiles, blocking until released
+     */
+    private static class BlockingWriter implements WriteBehindQueue.TileWriter {
+
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final List<TileObject> written = Collections.synchronizedList(new ArrayList<TileObject>());
+
+        public void write(TileObject tile) throws StorageException {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new StorageException("interrupted");
+            }
+            written.add(tile);
+        }
+    }
+
+    @Test
+    public void testQueuedTilesServedUntilWritten() throws Exception {
+        BlockingWriter writer = new BlockingWriter();
+        WriteBehindQueue queue = new WriteBehindQueue(writer, 1, 10);
+        File file = new File("tile.png");
+
+        byte[] contents = { 1, 2, 3 };
+        assertTrue(queue.enqueue(file, tile(LAYER, 0, 0, 0, contents)));
+        // the caller may reuse its buffer
+        contents[0] = 42;
+        TileObject pending = queue.pending(file);
+        assertNotNull(pending);
+        assertArrayEquals(new byte[] { 1, 2, 3 },
+                IOUtils.toByteArray(pending.getBlob().getInputStream()));
+        assertEquals(1, queue.getStatistics().getQueueDepth());
+
+        writer.release.countDown();
+        queue.flush();
+        assertNull(queue.pending(file));
+        assertEquals(1, writer.written.size());
+        WriteBehindStatistics stats = queue.getStatistics();
+        assertEquals(1, stats.getWrittenCount());
+        assertEquals(0, stats.getQueueDepth());
+        assertTrue(queue.shutdown(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Fails the first writes, then records the written tiles
+     */
+    private static class FailingWriter implements WriteBehindQueue.TileWriter {
+
+        final CountDownLatch failures;
+
+        final List<TileObject> written = Collections.synchronizedList(new ArrayList<TileObject>());
+
+        FailingWriter(int failures) {
+            this.failures = new CountDownLatch(failures);
+        }
+
+        public void write(TileObject tile) throws StorageException {
+            if (failures.getCount() > 0) {
+                failures.countDown();
+                throw new StorageException("disk full");
+            }
+            written.add(tile);
+        }
+    }
+
+    @Test
+    public void testFailedWritesRetried() throws Exception {
+        FailingWriter writer = new FailingWriter(2);
+        WriteBehindQueue queue = new WriteBehindQueue(writer, 1, 10);
+        File file = new File("tile.png");
+
+        queue.enqueue(file, tile(LAYER, 0, 0, 0, new byte[] { 1 }));
+        writer.failures.await();
+        // still served while waiting for the retry
+        assertEquals(1, queue.pending(file).getBlob().getInputStream().read());
+        assertEquals(1, queue.getStatistics().getQueueDepth());
+
+        queue.flush();
+        assertNull(queue.pending(file));
+        assertEquals(1, writer.written.size());
+        WriteBehindStatistics stats = queue.getStatistics();
+        assertEquals(1, stats.getWrittenCount());
+        assertEquals(0, stats.getFailedCount());
+        assertEquals(0, stats.getQueueDepth());
+        assertTrue(queue.shutdown(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRetriesExhausted() throws Exception {
+        FailingWriter writer = new FailingWriter(3);
+        WriteBehindQueue queue = new WriteBehindQueue(writer, 1, 10);
+        queue.setRetries(2);
+        File file = new File("tile.png");
+
+        queue.enqueue(file, tile(LAYER, 0, 0, 0, new byte[] { 1 }));
+        queue.flush();
+        assertNull(queue.pending(file));
+        assertEquals(0, writer.written.size());
+        WriteBehindStatistics stats = queue.getStatistics();
+        assertEquals(0, stats.getWrittenCount());
+        assertEquals(1, stats.getFailedCount());
+        assertEquals(0, stats.getQueueDepth());
+        assertTrue(queue.shutdown(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRetryCancelled() throws Exception {
+        FailingWriter writer = new FailingWriter(1);
+        WriteBehindQueue queue = new WriteBehindQueue(writer, 1, 10);
+        File file = new File("tile.png");
+
+        queue.enqueue(file, tile(LAYER, 0, 0, 0, new byte[] { 1 }));
+        writer.failures.await();
+        assertTrue(queue.cancel(file));
+        assertTrue(queue.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(0, writer.written.size());
+        assertEquals(1, queue.getStatistics().getSupersededCount());
+        assertEquals(0, queue.getStatistics().getFailedCount());
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        final BlockingWriter writer = new BlockingWriter();
+        final WriteBehindQueue queue = new WriteBehindQueue(writer, 1, 2);
+        queue.enqueue(new File("0.png"), tile(LAYER, 0, 0, 0, new byte[1]));
+        queue.enqueue(new File("1.png"), tile(LAYER, 1, 0, 0, new byte[1]));
+
+        Future<Boolean> blocked = executor.submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return queue.enqueue(new File("2.png"), tile(LAYER, 2, 0, 0, new byte[1]));
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(blocked.isDone());
+        assertEquals(2, queue.getStatistics().getQueueDepth());
+
+        writer.release.countDown();
+        assertTrue(blocked.get(5, TimeUnit.SECONDS));
+        assertTrue(queue.shutdown(5, TimeUnit.SECONDS));
+        assertEquals(3, writer.written.size());
+        assertEquals(1, queue.getStatistics().getBlockedCount());
+    }
+
+    @Test
+    public void testSupersededAndCancelled() throws Exception {
+        BlockingWriter writer = new BlockingWriter();
+        WriteBehindQueue queue = new WriteBehindQueue(writer, 1, 10);
+        File first = new File("0.png");
+        File second = new File("1.png");
+
+        queue.enqueue(first, tile(LAYER, 0, 0, 0, new byte[] { 1 }));
+        writer.entered.await();
+        queue.enqueue(first, tile(LAYER, 0, 0, 0, new byte[] { 2 }));
+        queue.enqueue(second, tile(LAYER, 1, 0, 0, new byte[] { 3 }));
+        queue.cancel(second);
+        assertNull(queue.pending(second));
+
+        writer.release.countDown();
+        assertTrue(queue.shutdown(5, TimeUnit.SECONDS));
+
+        // the first copy of the first tile was blocked in the writer already
+        assertEquals(2, writer.written.size());
+        assertEquals(2, writer.written.get(1).getBlob().getInputStream().read());
+        assertEquals(1, queue.getStatistics().getSupersededCount());
+        assertFalse(queue.enqueue(first, tile(LAYER, 0, 0, 0, new byte[1])));
+    }
+
+    @Test
+    public void testFileBlobStoreWriteBehind() throws Exception {
+        FileBlobStore store = new FileBlobStore(tmp.getRoot().getAbsolutePath());
+        BlobStoreListener listener = mock(BlobStoreListener.class);
+        store.addListener(listener);
+        store.setWriteBehind(2, 4);
+        try {
+            for (int x = 0; x < 20; x++) {
+                store.put(tile(LAYER, x, 0, 5, new byte[] { (byte) x }));
+                TileObject read = query(LAYER, x, 0, 5);
+                assertTrue(store.get(read));
+                assertEquals(x, read.getBlob().getInputStream().read());
+            }
+            // either cancelled or deleted from disk
+            assertTrue(store.delete(query(LAYER, 19, 0, 5)));
+            assertFalse(store.get(query(LAYER, 19, 0, 5)));
+            assertNotNull(store.getWriteBehindStatistics());
+        } finally {
+            store.destroy();
+        }
+        for (int x = 0; x < 19; x++) {
+            verify(listener).tileStored(LAYER, GRIDSET, FORMAT, null, x, 0, 5, 4096);
+        }
+
+        store = new FileBlobStore(tmp.getRoot().getAbsolutePath());
+        try {
+            assertNull(store.getWriteBehindStatistics());
+            for (int x = 0; x < 19; x++) {
+                TileObject read = query(LAYER, x, 0, 5);
+                assertTrue(store.get(read));
+                assertEquals(x, read.getBlob().getInputStream().read());
+            }
+            assertFalse(store.get(query(LAYER, 19, 0, 5)));
+        } finally {
+            store.destroy();
+        }
+    }
+
+    @Test
+    public void testDeleteQueuedTile() throws Exception {
+        FileBlobStore store = new FileBlobStore(tmp.getRoot().getAbsolutePath());
+        store.setWriteBehind(1, 10);
+        try {
+            TileObject tile = tile(LAYER, 0, 0, 1, new byte[] { 1 });
+            store.put(tile);
+            store.delete(query(LAYER, 0, 0, 1));
+            store.setWriteBehind(0, 10);
+            assertFalse(store.get(query(LAYER, 0, 0, 1)));
+        } finally {
+            store.destroy();
+        }
+        assertNull(store.getWriteBehindStatistics());
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.guava.GuavaCacheProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test class is used for testing the {@link MemoryBlobStore} operations running concurrently with configuration changes
+ */
+public class MemoryBlobStoreConcurrencyTest {
+
+    /** LOGGER */
+    public static final Log LOG = LogFactory.getLog(MemoryBlobStoreConcurrencyTest.class);
+
+    private static final String LAYER = "test:123123 112";
+
+    private static final int THREADS = 8;
+
+    private static final int ITERATIONS = 2000;
+
+    /**
+     * Keeps the tiles in a map, blocking the layer renames until released
+     */
+    private static class MapBlobStore extends NullBlobStore {
+
+        final ConcurrentMap<TileKey, byte[]> tiles = new ConcurrentHashMap<TileKey, byte[]>();
+
+        final CountDownLatch renaming = new CountDownLatch(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void put(TileObject obj) throws StorageException {
+            tiles.put(TileKey.of(obj), ((ByteArrayResource) obj.getBlob()).getContents());
+        }
+
+        @Override
+        public boolean get(TileObject obj) throws StorageException {
+            byte[] data = tiles.get(TileKey.of(obj));
+            if (data == null) {
+                return false;
+            }
+            obj.setBlob(new ByteArrayResource(data));
+            return true;
+        }
+
+        @Override
+        public boolean delete(TileObject obj) throws StorageException {
+            return tiles.remove(TileKey.of(obj)) != null;
+        }
+
+        @Override
+        public boolean rename(String oldLayerName, String newLayerName)
+                throws StorageException {
+            renaming.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new StorageException("interrupted");
+            }
+            return true;
+        }
+    }
+
+    private MapBlobStore store;
+
+    private MemoryBlobStore mbs;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        store = new MapBlobStore();
+        mbs = new MemoryBlobStore();
+        mbs.setStore(store);
+        mbs.setCacheProvider(new GuavaCacheProvider(new CacheConfiguration()));
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        store.release.countDown();
+        executor.shutdownNow();
+        mbs.destroy();
+    }
+
+    private static Map<String, String> parameters() {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("a", "x");
+        parameters.put("b", "ø");
+        return parameters;
+    }
+
+    private static TileObject tile(long x, long y) {
+        return TileObject.createCompleteTileObject(LAYER, new long[] { x, y, 3 }, "EPSG:4326",
+                "image/jpeg", parameters(), new ByteArrayResource(new byte[] { (byte) x,
+                        (byte) y }));
+    }
+
+    private static TileObject query(long x, long y) {
+        return TileObject.createQueryTileObject(LAYER, new long[] { x, y, 3 }, "EPSG:4326",
+                "image/jpeg", parameters());
+    }
+
+    /**
+     * Puts, gets and deletes the tiles of a row, as the {@link MemoryBlobStoreTest} scenarios
+     */
+    private Callable<Integer> worker(final long row) {
+        return new Callable<Integer>() {
+
+            @Override
+            public Integer call() throws Exception {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    long x = i % 64;
+                    mbs.put(tile(x, row));
+                    TileObject obj = query(x, row);
+                    assertTrue(mbs.get(obj));
+                    assertEquals(2, obj.getBlobSize());
+                    assertEquals(x, obj.getBlob().getInputStream().read());
+                    if (i % 4 == 3) {
+                        mbs.delete(query(x, row));
+                    }
+                }
+                return ITERATIONS;
+            }
+        };
+    }
+
+    @Test
+    public void testOperationsDuringConfigurationChanges() throws Exception {
+        final CacheProvider[] caches = { new GuavaCacheProvider(new CacheConfiguration()),
+                new GuavaCacheProvider(new CacheConfiguration()) };
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Future<Integer> reconfigure = executor.submit(new Callable<Integer>() {
+
+            @Override
+            public Integer call() throws Exception {
+                int changes = 0;
+                while (running.get()) {
+                    mbs.setCacheProvider(caches[changes % 2]);
+                    mbs.setStore(store);
+                    mbs.setWriteBehindQueueSize(changes % 2 == 0 ? 16 : 0);
+                    changes++;
+                }
+                return changes;
+            }
+        });
+
+        long start = System.nanoTime();
+        List<Future<Integer>> workers = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < THREADS; t++) {
+            workers.add(executor.submit(worker(t)));
+        }
+        int operations = 0;
+        for (Future<Integer> worker : workers) {
+            operations += worker.get(60, TimeUnit.SECONDS);
+        }
+        long elapsed = System.nanoTime() - start;
+        running.set(false);
+        int changes = reconfigure.get(10, TimeUnit.SECONDS);
+
+        assertEquals(THREADS * ITERATIONS, operations);
+        assertTrue(changes > 0);
+        if (LOG.isInfoEnabled()) {
+            LOG.info(operations + " put/get cycles on " + THREADS + " threads in "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms, with " + changes
+                    + " configuration changes");
+        }
+    }
+
+    @Test
+    public void testGetNotBlockedBySlowOperations() throws Exception {
+        // a layer rename waiting on the wrapped store
+        Future<Boolean> rename = executor.submit(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws Exception {
+                return mbs.rename("other", "renamed");
+            }
+        });
+        assertTrue(store.renaming.await(5, TimeUnit.SECONDS));
+
+        // a configuration change does not wait for it
+        final CacheProvider cache = new GuavaCacheProvider(new CacheConfiguration());
+        cache.putTileObj(tile(0, 0));
+        Future<?> setCacheProvider = executor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                mbs.setCacheProvider(cache);
+            }
+        });
+        setCacheProvider.get(5, TimeUnit.SECONDS);
+
+        // nor do cache hits
+        Future<Boolean> get = executor.submit(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws Exception {
+                return mbs.get(query(0, 0));
+            }
+        });
+        assertTrue(get.get(5, TimeUnit.SECONDS));
+        assertEquals(1, mbs.getCacheStatistics().getHitCount());
+        assertFalse(rename.isDone());
+
+        store.release.countDown();
+        assertTrue(rename.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.memory;
+
+import static org.geowebcache.util.TestUtils.query;
+import static org.geowebcache.util.TestUtils.tile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.offheap.OffHeapCacheProvider;
+import org.geowebcache.storage.blobstore.memory.tinylfu.TinyLfuCacheProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This test class is used for testing the save and restore of the {@link MemoryBlobStore} hot set
+ */
+public class MemoryBlobStoreHotSetTest {
+
+    private static final String LAYER = "test:layer";
+
+    private static final int TILES = 50;
+
+    /**
+     * Keeps the tiles in a map
+     */
+    private static class MapBlobStore extends NullBlobStore {
+
+        final ConcurrentMap<TileKey, byte[]> tiles = new ConcurrentHashMap<TileKey, byte[]>();
+
+        @Override
+        public void put(TileObject obj) throws StorageException {
+            tiles.put(TileKey.of(obj), ((ByteArrayResource) obj.getBlob()).getContents());
+        }
+
+        @Override
+        public boolean get(TileObject obj) throws StorageException {
+            byte[] data = tiles.get(TileKey.of(obj));
+            if (data == null) {
+                return false;
+            }
+            obj.setBlob(new ByteArrayResource(data));
+            return true;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private MapBlobStore store;
+
+    private File file;
+
+    private MemoryBlobStore mbs;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new MapBlobStore();
+        file = new File(tmp.getRoot(), "hot-set.bin");
+    }
+
+    @After
+    public void tearDown() {
+        if (mbs != null) {
+            mbs.setHotSetFile(null);
+            mbs.destroy();
+        }
+    }
+
+    private static CacheConfiguration configuration() {
+        CacheConfiguration config = new CacheConfiguration();
+        config.setHardMemoryLimit(1);
+        config.setConcurrencyLevel(1);
+        return config;
+    }
+
+    private MemoryBlobStore newBlobStore(CacheProvider cache) {
+        MemoryBlobStore blobStore = new MemoryBlobStore();
+        blobStore.setStore(store);
+        blobStore.setCacheProvider(cache);
+        blobStore.setHotSetFile(file);
+        return blobStore;
+    }
+
+    /**
+     * Caches tiles and saves them as a previous run would
+     */
+    private void saveHotSet() throws Exception {
+        MemoryBlobStore previous = newBlobStore(new TinyLfuCacheProvider(configuration()));
+        for (int x = 0; x < TILES; x++) {
+            previous.put(tile(LAYER, x, 0, 5, new byte[] { (byte) x }));
+        }
+        previous.destroy();
+        assertTrue(file.exists());
+    }
+
+    private void awaitRestore() throws InterruptedException {
+        for (int i = 0; i < 250 && mbs.isRestoringHotSet(); i++) {
+            Thread.sleep(20);
+        }
+        assertFalse(mbs.isRestoringHotSet());
+    }
+
+    @Test
+    public void testSaveAndRestore() throws Exception {
+        saveHotSet();
+
+        CacheProvider cache = new TinyLfuCacheProvider(configuration());
+        mbs = newBlobStore(cache);
+        mbs.setHotSetRestoreRate(1000);
+        mbs.restoreHotSet();
+        awaitRestore();
+
+        assertEquals(TILES, mbs.getRestoredTiles());
+        for (int x = 0; x < TILES; x++) {
+            TileObject cached = cache.getTileObj(query(LAYER, x, 0, 5));
+            assertNotNull(cached);
+            assertEquals(x, cached.getBlob().getInputStream().read());
+        }
+    }
+
+    @Test
+    public void testTruncatedTilesSkipped() throws Exception {
+        saveHotSet();
+        // truncated while the node was down
+        for (int x = 0; x < TILES; x += 2) {
+            store.tiles.remove(TileKey.of(query(LAYER, x, 0, 5)));
+        }
+
+        CacheProvider cache = new TinyLfuCacheProvider(configuration());
+        mbs = newBlobStore(cache);
+        mbs.setHotSetRestoreRate(1000);
+        mbs.restoreHotSet();
+        awaitRestore();
+
+        assertEquals(TILES / 2, mbs.getRestoredTiles());
+        assertNull(cache.getTileObj(query(LAYER, 0, 0, 5)));
+        assertNotNull(cache.getTileObj(query(LAYER, 1, 0, 5)));
+    }
+
+    @Test
+    public void testRestoreRateLimitedAndStoppable() throws Exception {
+        saveHotSet();
+
+        mbs = newBlobStore(new TinyLfuCacheProvider(configuration()));
+        mbs.setHotSetRestoreRate(10);
+        mbs.restoreHotSet();
+        Thread.sleep(300);
+        assertTrue(mbs.isRestoringHotSet());
+        assertTrue(mbs.getRestoredTiles() < 10);
+
+        mbs.stopHotSetRestore();
+        awaitRestore();
+        long restored = mbs.getRestoredTiles();
+        Thread.sleep(300);
+        assertEquals(restored, mbs.getRestoredTiles());
+    }
+
+    @Test
+    public void testHotSetFile() throws Exception {
+        List<TileKey> keys = Arrays.asList(TileKey.of(tile(LAYER, 1, 0, 5, new byte[] { 1 })),
+                new TileKey("other", null, null, 2, 3, 4,
+                        Collections.singletonMap("STYLE", "dark")));
+        HotSetFile.write(file, keys);
+        assertEquals(keys, HotSetFile.read(file));
+        assertTrue(HotSetFile.read(new File(tmp.getRoot(), "missing.bin")).isEmpty());
+    }
+
+    @Test
+    public void testRecentlyUsedFirst() throws Exception {
+        OffHeapCacheProvider cache = new OffHeapCacheProvider(configuration());
+        try {
+            for (int x = 0; x < 3; x++) {
+                cache.putTileObj(tile(LAYER, x, 0, 5, new byte[] { (byte) x }));
+                Thread.sleep(5);
+            }
+            cache.getTileObj(query(LAYER, 0, 0, 5));
+            List<TileKey> hotSet = cache.getHotSet(2);
+            assertEquals(Arrays.asList(TileKey.of(query(LAYER, 0, 0, 5)),
+                    TileKey.of(query(LAYER, 2, 0, 5))), hotSet);
+        } finally {
+            cache.reset();
+        }
+    }
+}
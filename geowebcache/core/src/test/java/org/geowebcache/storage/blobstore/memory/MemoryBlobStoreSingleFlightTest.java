@@ -0,0 +1,203 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.memory;
+
+import static org.geowebcache.util.TestUtils.query;
+import static org.geowebcache.util.TestUtils.tile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.FileResource;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.guava.GuavaCacheProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test class is used for testing the coalescing of concurrent {@link MemoryBlobStore} misses
+ */
+public class MemoryBlobStoreSingleFlightTest {
+
+    private static final String LAYER = "test:layer";
+
+    /**
+     * Counts the reads, blocking until released and returning an unreadable tile a number of times first
+     */
+    private static class SlowBlobStore extends NullBlobStore {
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final AtomicInteger reads = new AtomicInteger();
+
+        final AtomicInteger failures = new AtomicInteger();
+
+        @Override
+        public boolean get(TileObject obj) throws StorageException {
+            reads.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new StorageException("interrupted");
+            }
+            if (failures.getAndDecrement() > 0) {
+                // vanished before being read
+                obj.setBlob(new FileResource(new File("missing-tile.png")));
+            } else {
+                obj.setBlob(new ByteArrayResource(new byte[] { 1 }));
+            }
+            return true;
+        }
+    }
+
+    private SlowBlobStore store;
+
+    private MemoryBlobStore mbs;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        store = new SlowBlobStore();
+        mbs = new MemoryBlobStore();
+        mbs.setStore(store);
+        mbs.setCacheProvider(new GuavaCacheProvider(new CacheConfiguration()));
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        store.release.countDown();
+        executor.shutdownNow();
+        mbs.destroy();
+    }
+
+    private Future<TileObject> submitGet(final long x) {
+        return executor.submit(new Callable<TileObject>() {
+
+            @Override
+            public TileObject call() throws Exception {
+                TileObject obj = query(LAYER, x, 0, 1);
+                return mbs.get(obj) ? obj : null;
+            }
+        });
+    }
+
+    private void awaitReads(int reads) throws InterruptedException {
+        for (int i = 0; i < 100 && store.reads.get() < reads; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(reads, store.reads.get());
+    }
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+        final int requests = 10;
+        List<Future<TileObject>> results = new ArrayList<Future<TileObject>>();
+        for (int i = 0; i < requests; i++) {
+            results.add(submitGet(0));
+        }
+        awaitReads(1);
+        for (int i = 0; i < 100 && mbs.getCoalescedLoads() < requests - 1; i++) {
+            Thread.sleep(20);
+        }
+        store.release.countDown();
+
+        for (Future<TileObject> result : results) {
+            TileObject obj = result.get(5, TimeUnit.SECONDS);
+            assertEquals(1, obj.getBlob().getInputStream().read());
+            assertEquals(1, obj.getBlobSize());
+        }
+        assertEquals(1, store.reads.get());
+        assertEquals(requests - 1, mbs.getCoalescedLoads());
+
+        // now served from the cache
+        assertTrue(mbs.get(query(LAYER, 0, 0, 1)));
+        assertEquals(1, store.reads.get());
+    }
+
+    @Test
+    public void testOtherTilesNotCoalesced() throws Exception {
+        store.release.countDown();
+        Future<TileObject> first = submitGet(0);
+        Future<TileObject> second = submitGet(1);
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        assertEquals(2, store.reads.get());
+        assertEquals(0, mbs.getCoalescedLoads());
+    }
+
+    @Test
+    public void testWaitTimesOut() throws Exception {
+        mbs.setLoadTimeout(100);
+        Future<TileObject> leader = submitGet(0);
+        awaitReads(1);
+        try {
+            mbs.get(query(LAYER, 0, 0, 1));
+            fail("Waiting for the load should have timed out");
+        } catch (StorageException e) {
+            // expected
+        }
+        // the load itself is not affected
+        store.release.countDown();
+        assertEquals(1, leader.get(5, TimeUnit.SECONDS).getBlob().getInputStream().read());
+        assertEquals(1, store.reads.get());
+    }
+
+    @Test
+    public void testFailureNotCached() throws Exception {
+        store.failures.set(1);
+        Future<TileObject> leader = submitGet(0);
+        awaitReads(1);
+        Future<TileObject> waiter = submitGet(0);
+        for (int i = 0; i < 100 && mbs.getCoalescedLoads() < 1; i++) {
+            Thread.sleep(20);
+        }
+        store.release.countDown();
+        assertFailed(leader);
+        assertFailed(waiter);
+
+        // the next miss loads the tile again
+        TileObject obj = query(LAYER, 0, 0, 1);
+        assertTrue(mbs.get(obj));
+        assertEquals(1, obj.getBlob().getInputStream().read());
+        assertEquals(2, store.reads.get());
+    }
+
+    private static void assertFailed(Future<TileObject> result) throws Exception {
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("The load should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof StorageException);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.memory;
+
+import static org.geowebcache.util.TestUtils.query;
+import static org.geowebcache.util.TestUtils.tile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.guava.GuavaCacheProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test class is used for testing the {@link MemoryBlobStore} write behind mode
+ */
+public class MemoryBlobStoreWriteBehindTest {
+
+    private static final String LAYER = "test:layer";
+
+    /**
+     * Records the written tiles, blocking until released and failing a number of times first
+     */
+    private static class SlowBlobStore extends NullBlobStore {
+
+        final CountDownLatch started = new CountDownLatch(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final AtomicInteger failures = new AtomicInteger();
+
+        final List<TileObject> written = Collections.synchronizedList(new ArrayList<TileObject>());
+
+        final List<String> operations = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void put(TileObject obj) throws StorageException {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new StorageException("interrupted");
+            }
+            if (failures.getAndDecrement() > 0) {
+                throw new StorageException("write failed");
+            }
+            written.add(obj);
+            operations.add("put " + obj.getXYZ()[0] + " " + obj.getBlobSize());
+        }
+
+        @Override
+        public boolean delete(TileObject obj) throws StorageException {
+            operations.add("delete " + obj.getXYZ()[0]);
+            return true;
+        }
+    }
+
+    private CacheProvider cache;
+
+    private SlowBlobStore store;
+
+    private MemoryBlobStore mbs;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        cache = new GuavaCacheProvider(new CacheConfiguration());
+        store = new SlowBlobStore();
+        mbs = new MemoryBlobStore();
+        mbs.setStore(store);
+        mbs.setCacheProvider(cache);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        store.release.countDown();
+        executor.shutdownNow();
+        mbs.destroy();
+    }
+
+    private void awaitOperations(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && store.operations.size() < count; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, store.operations.size());
+    }
+
+    private void awaitWrites() throws InterruptedException {
+        for (int i = 0; i < 100 && mbs.getPendingWrites() > 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, mbs.getPendingWrites());
+    }
+
+    @Test
+    public void testPutReturnsBeforeWrite() throws Exception {
+        mbs.setWriteBehindQueueSize(10);
+        mbs.put(tile(LAYER, 0, 0, 1, new byte[] { (byte) 1 }));
+        assertEquals(1, mbs.getPendingWrites());
+        assertTrue(store.written.isEmpty());
+
+        // served from the pending writes even if evicted from the cache
+        cache.clear();
+        TileObject read = query(LAYER, 0, 0, 1);
+        assertTrue(mbs.get(read));
+        assertEquals(1, read.getBlob().getInputStream().read());
+
+        store.release.countDown();
+        awaitWrites();
+        assertEquals(1, store.written.size());
+        assertEquals(0, mbs.getFailedWrites());
+    }
+
+    @Test
+    public void testFailedWritesRetried() throws Exception {
+        mbs.setWriteBehindQueueSize(10);
+        mbs.setWriteBehindRetries(2);
+        store.failures.set(2);
+        store.release.countDown();
+        mbs.put(tile(LAYER, 0, 0, 1, new byte[] { (byte) 1 }));
+        awaitWrites();
+        assertEquals(1, store.written.size());
+        assertEquals(0, mbs.getFailedWrites());
+
+        store.failures.set(3);
+        mbs.put(tile(LAYER, 1, 0, 1, new byte[] { (byte) 1 }));
+        awaitWrites();
+        assertEquals(1, store.written.size());
+        assertEquals(1, mbs.getFailedWrites());
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        mbs.setWriteBehindQueueSize(2);
+        mbs.put(tile(LAYER, 0, 0, 1, new byte[] { (byte) 0 }));
+        mbs.put(tile(LAYER, 1, 0, 1, new byte[] { (byte) 1 }));
+
+        Future<Boolean> blocked = executor.submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                mbs.put(tile(LAYER, 2, 0, 1, new byte[] { (byte) 2 }));
+                return true;
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(blocked.isDone());
+
+        store.release.countDown();
+        assertTrue(blocked.get(5, TimeUnit.SECONDS));
+        awaitWrites();
+        assertEquals(3, store.written.size());
+    }
+
+    @Test
+    public void testDeletePendingTile() throws Exception {
+        mbs.setWriteBehindQueueSize(10);
+        mbs.put(tile(LAYER, 0, 0, 1, new byte[] { (byte) 1 }));
+        mbs.delete(query(LAYER, 0, 0, 1));
+        assertEquals(0, mbs.getPendingWrites());
+        // the lookup in the wrapped store waits for the write and delete to be done
+        store.release.countDown();
+        assertFalse(mbs.get(query(LAYER, 0, 0, 1)));
+    }
+
+    @Test
+    public void testWritesDoNotDelayReads() throws Exception {
+        mbs.setWriteBehindQueueSize(10);
+        mbs.put(tile(LAYER, 0, 0, 1, new byte[] { (byte) 1 }));
+        assertTrue(store.started.await(5, TimeUnit.SECONDS));
+
+        // the write is stuck, the misses still get to the wrapped store
+        Future<Boolean> read = executor.submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return mbs.get(query(LAYER, 1, 0, 1));
+            }
+        });
+        assertFalse(read.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDeleteWaitsForWriteInProgress() throws Exception {
+        mbs.setWriteBehindQueueSize(10);
+        mbs.put(tile(LAYER, 0, 0, 1, new byte[] { (byte) 1 }));
+        assertTrue(store.started.await(5, TimeUnit.SECONDS));
+
+        // the write cannot be stopped anymore, the delete goes after it
+        mbs.delete(query(LAYER, 0, 0, 1));
+        assertEquals(0, mbs.getPendingWrites());
+        Thread.sleep(100);
+        assertTrue(store.operations.isEmpty());
+
+        store.release.countDown();
+        awaitOperations(2);
+        assertEquals("put 0 1", store.operations.get(0));
+        assertEquals("delete 0", store.operations.get(1));
+        assertFalse(mbs.get(query(LAYER, 0, 0, 1)));
+    }
+
+    @Test
+    public void testDeleteCancelsRetry() throws Exception {
+        mbs.setWriteBehindQueueSize(10);
+        mbs.setWriteBehindRetries(5);
+        store.failures.set(1);
+        store.release.countDown();
+        mbs.put(tile(LAYER, 0, 0, 1, new byte[] { (byte) 1 }));
+        for (int i = 0; i < 100 && store.failures.get() > 0; i++) {
+            Thread.sleep(10);
+        }
+
+        // waiting for the retry, dropped right away
+        mbs.delete(query(LAYER, 0, 0, 1));
+        awaitWrites();
+        awaitOperations(1);
+        Thread.sleep(300);
+        assertEquals("delete 0", store.operations.get(0));
+        assertEquals(1, store.operations.size());
+        assertEquals(0, mbs.getFailedWrites());
+    }
+
+    @Test
+    public void testOverwriteWaitsForWriteInProgress() throws Exception {
+        mbs.setWriteBehindQueueSize(10);
+        mbs.put(tile(LAYER, 0, 0, 1, new byte[] { (byte) 1 }));
+        assertTrue(store.started.await(5, TimeUnit.SECONDS));
+        mbs.put(TileObject.createCompleteTileObject(LAYER, new long[] { 0, 0, 1 }, "EPSG:4326",
+                "image/png", null, new ByteArrayResource(new byte[2])));
+        assertEquals(1, mbs.getPendingWrites());
+
+        store.release.countDown();
+        awaitWrites();
+        assertEquals(2, store.operations.size());
+        assertEquals("put 0 1", store.operations.get(0));
+        assertEquals("put 0 2", store.operations.get(1));
+    }
+}
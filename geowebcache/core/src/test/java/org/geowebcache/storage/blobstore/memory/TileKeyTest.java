@@ -0,0 +1,95 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.guava.GuavaCacheProvider;
+import org.junit.Test;
+
+/**
+ * This test class is used for testing {@link TileKey} functionality
+ */
+public class TileKeyTest {
+
+    private static TileObject tile(String layer, long x, String format,
+            Map<String, String> parameters) {
+        return TileObject.createQueryTileObject(layer, new long[] { x, 2, 3 }, "EPSG:4326",
+                format, parameters);
+    }
+
+    @Test
+    public void testEquality() {
+        Map<String, String> hashed = new HashMap<String, String>();
+        hashed.put("STYLES", "population");
+        hashed.put("CQL_FILTER", "PERSONS > 1000");
+        Map<String, String> sorted = new TreeMap<String, String>(hashed);
+
+        TileKey key = TileKey.of(tile("topp:states", 1, "image/png", hashed));
+        TileKey same = TileKey.of(tile(new String("topp:states"), 1, "image/png", sorted));
+        assertEquals(key, same);
+        assertEquals(key.hashCode(), same.hashCode());
+
+        assertNotEquals(key, TileKey.of(tile("topp:states", 0, "image/png", hashed)));
+        assertNotEquals(key, TileKey.of(tile("topp:states", 1, "image/jpeg", hashed)));
+        assertNotEquals(key, TileKey.of(tile("topp:roads", 1, "image/png", hashed)));
+        assertNotEquals(key, TileKey.of(tile("topp:states", 1, "image/png", null)));
+
+        // empty and missing parameters are the same
+        assertEquals(TileKey.of(tile("topp:states", 1, "image/png", null)),
+                TileKey.of(tile("topp:states", 1, "image/png",
+                        Collections.<String, String> emptyMap())));
+
+        // the key does not share the coordinates array of the tile
+        TileObject obj = tile("topp:states", 1, "image/png", null);
+        TileKey before = TileKey.of(obj);
+        obj.getXYZ()[0] = 5;
+        assertFalse(before.equals(TileKey.of(obj)));
+        assertEquals(1, before.getX());
+    }
+
+    @Test
+    public void testRemoveLayer() {
+        GuavaCacheProvider cache = new GuavaCacheProvider(new CacheConfiguration());
+        try {
+            for (long x = 0; x < 10; x++) {
+                for (String layer : new String[] { "topp:states", "topp:roads" }) {
+                    TileObject obj = TileObject.createCompleteTileObject(layer, new long[] { x,
+                            2, 3 }, "EPSG:4326", "image/png", null, new ByteArrayResource(
+                            new byte[10]));
+                    cache.putTileObj(obj);
+                }
+            }
+            cache.removeLayer("topp:states");
+            assertNull(cache.getTileObj(tile("topp:states", 0, "image/png", null)));
+            assertEquals("topp:roads", cache.getTileObj(tile("topp:roads", 0, "image/png", null))
+                    .getLayerName());
+            assertEquals(100, cache.getStatistics().getActualSize());
+        } finally {
+            cache.reset();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.memory.guava;
+
+import static org.geowebcache.util.TestUtils.query;
+import static org.geowebcache.util.TestUtils.tile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.geowebcache.storage.blobstore.memory.CacheConfiguration;
+import org.geowebcache.storage.blobstore.memory.CacheStatistics;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * This test class is used for testing the {@link GuavaCacheProvider} layer memory budgets
+ */
+public class GuavaCacheProviderTest {
+
+    private static final String BASE = "base";
+
+    private static final String OVERLAY = "overlay";
+
+    private static final int TILE_SIZE = 100 * 1024;
+
+    private static final long MB = 1024 * 1024;
+
+    private GuavaCacheProvider cache;
+
+    @After
+    public void tearDown() {
+        if (cache != null) {
+            cache.reset();
+        }
+    }
+
+    private static CacheConfiguration configuration(Map<String, Long> layerMemoryLimits) {
+        CacheConfiguration config = new CacheConfiguration();
+        config.setHardMemoryLimit(3);
+        config.setConcurrencyLevel(1);
+        config.setLayerMemoryLimits(layerMemoryLimits);
+        return config;
+    }
+
+    @Test
+    public void testBudgetProtectsLayer() {
+        cache = new GuavaCacheProvider(configuration(Collections.singletonMap(OVERLAY, 1L)));
+        for (int x = 0; x < 8; x++) {
+            cache.putTileObj(tile(OVERLAY, x, 0, 10, new byte[TILE_SIZE]));
+        }
+        // far more than the whole cache
+        for (int x = 0; x < 100; x++) {
+            cache.putTileObj(tile(BASE, x, 0, 10, new byte[TILE_SIZE]));
+        }
+        for (int x = 0; x < 8; x++) {
+            assertNotNull("Overlay tile " + x + " evicted",
+                    cache.getTileObj(query(OVERLAY, x, 0, 10)));
+        }
+
+        Map<String, CacheStatistics> layers = cache.getStatistics().getLayerStatistics();
+        CacheStatistics overlay = layers.get(OVERLAY);
+        assertEquals(MB, overlay.getTotalSize());
+        assertEquals(8L * TILE_SIZE, overlay.getActualSize());
+        assertEquals(0, overlay.getEvictionCount());
+        CacheStatistics base = layers.get(BASE);
+        assertEquals(2 * MB, base.getTotalSize());
+        assertTrue(base.getActualSize() <= 2 * MB);
+        assertTrue(base.getEvictionCount() > 0);
+        assertEquals(3 * MB, cache.getStatistics().getTotalSize());
+    }
+
+    @Test
+    public void testSharedBudget() {
+        cache = new GuavaCacheProvider(configuration(Collections.singletonMap("a, b", 1L)));
+        for (int x = 0; x < 20; x++) {
+            cache.putTileObj(tile("a", x, 0, 10, new byte[TILE_SIZE]));
+            cache.putTileObj(tile("b", x, 0, 10, new byte[TILE_SIZE]));
+        }
+        Map<String, CacheStatistics> layers = cache.getStatistics().getLayerStatistics();
+        assertEquals(MB, layers.get("a").getTotalSize());
+        assertEquals(MB, layers.get("b").getTotalSize());
+        assertTrue(layers.get("a").getActualSize() + layers.get("b").getActualSize() <= MB);
+
+        // the other layers are not affected
+        cache.putTileObj(tile(BASE, 0, 0, 10, new byte[TILE_SIZE]));
+        assertNotNull(cache.getTileObj(query(BASE, 0, 0, 10)));
+    }
+
+    @Test
+    public void testLayerStatistics() {
+        cache = new GuavaCacheProvider(configuration(Collections.singletonMap(OVERLAY, 1L)));
+        cache.putTileObj(tile(OVERLAY, 0, 0, 10, new byte[TILE_SIZE]));
+        cache.putTileObj(tile(BASE, 0, 0, 10, new byte[TILE_SIZE]));
+        cache.getTileObj(query(OVERLAY, 0, 0, 10));
+        cache.getTileObj(query(OVERLAY, 0, 0, 10));
+        cache.getTileObj(query(OVERLAY, 0, 0, 10));
+        cache.getTileObj(query(OVERLAY, 1, 0, 10));
+        cache.getTileObj(query(BASE, 1, 0, 10));
+
+        CacheStatistics stats = cache.getStatistics();
+        CacheStatistics overlay = stats.getLayerStatistics().get(OVERLAY);
+        assertEquals(3, overlay.getHitCount());
+        assertEquals(1, overlay.getMissCount());
+        assertEquals(4, overlay.getRequestCount());
+        assertEquals(75, overlay.getHitRate(), 0d);
+        CacheStatistics base = stats.getLayerStatistics().get(BASE);
+        assertEquals(0, base.getHitCount());
+        assertEquals(1, base.getMissCount());
+        // the totals cover all the layers
+        assertEquals(3, stats.getHitCount());
+        assertEquals(2, stats.getMissCount());
+        assertEquals(2L * TILE_SIZE, stats.getActualSize());
+
+        // a copy keeps the layer statistics
+        CacheStatistics copy = new CacheStatistics(stats);
+        assertEquals(3, copy.getLayerStatistics().get(OVERLAY).getHitCount());
+    }
+
+    @Test
+    public void testRemoveAndClear() {
+        cache = new GuavaCacheProvider(configuration(Collections.singletonMap(OVERLAY, 1L)));
+        cache.putTileObj(tile(OVERLAY, 0, 0, 10, new byte[TILE_SIZE]));
+        cache.putTileObj(tile(OVERLAY, 1, 0, 10, new byte[TILE_SIZE]));
+        cache.putTileObj(tile(BASE, 0, 0, 10, new byte[TILE_SIZE]));
+
+        cache.removeTileObj(query(OVERLAY, 0, 0, 10));
+        assertNull(cache.getTileObj(query(OVERLAY, 0, 0, 10)));
+        cache.removeLayer(OVERLAY);
+        assertNull(cache.getTileObj(query(OVERLAY, 1, 0, 10)));
+        assertNotNull(cache.getTileObj(query(BASE, 0, 0, 10)));
+        assertEquals(0, cache.getStatistics().getLayerStatistics().get(OVERLAY).getActualSize());
+
+        cache.putTileObj(tile(OVERLAY, 0, 0, 10, new byte[TILE_SIZE]));
+        cache.clear();
+        assertNull(cache.getTileObj(query(OVERLAY, 0, 0, 10)));
+        assertNull(cache.getTileObj(query(BASE, 0, 0, 10)));
+        assertEquals(0, cache.getStatistics().getActualSize());
+        assertTrue(cache.getHotSet(10).isEmpty());
+    }
+
+    @Test
+    public void testInvalidBudgets() {
+        cache = new GuavaCacheProvider(configuration(null));
+        cache.putTileObj(tile(BASE, 0, 0, 10, new byte[TILE_SIZE]));
+
+        try {
+            cache.configure(configuration(Collections.singletonMap(OVERLAY, 3L)));
+            fail("The budgets must leave memory to the other layers");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Map<String, Long> limits = new HashMap<String, Long>();
+        limits.put(OVERLAY, 1L);
+        limits.put("other," + OVERLAY, 1L);
+        try {
+            cache.configure(configuration(limits));
+            fail("A layer cannot have two budgets");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // the previous configuration is still in place
+        assertNotNull(cache.getTileObj(query(BASE, 0, 0, 10)));
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.memory.offheap;
+
+import static org.geowebcache.util.TestUtils.query;
+import static org.geowebcache.util.TestUtils.tile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.CacheConfiguration;
+import org.geowebcache.storage.blobstore.memory.CacheConfiguration.EvictionPolicy;
+import org.geowebcache.storage.blobstore.memory.CacheStatistics;
+import org.geowebcache.storage.blobstore.memory.MemoryBlobStore;
+import org.geowebcache.storage.blobstore.memory.NullBlobStore;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * This test class is used for testing {@link OffHeapCacheProvider} functionality
+ */
+public class OffHeapCacheProviderTest {
+
+    private static final String LAYER = "test:layer";
+
+    private static final Map<String, String> PARAMETERS = Collections.singletonMap("STYLES",
+            "population");
+
+    private OffHeapCacheProvider cache;
+
+    @After
+    public void tearDown() {
+        if (cache != null) {
+            cache.reset();
+        }
+    }
+
+    private static CacheConfiguration configuration(long megabytes, EvictionPolicy policy,
+            long evictionTime) {
+        CacheConfiguration config = new CacheConfiguration();
+        config.setHardMemoryLimit(megabytes);
+        config.setConcurrencyLevel(1);
+        config.setPolicy(policy);
+        config.setEvictionTime(evictionTime);
+        return config;
+    }
+
+    private static byte[] contents(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    private static byte[] read(TileObject tile) throws Exception {
+        return IOUtils.toByteArray(tile.getBlob().getInputStream());
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        cache = new OffHeapCacheProvider(configuration(1, EvictionPolicy.NULL, 0));
+        byte[] large = contents(3 * OffHeapCacheProvider.BLOCK_SIZE + 17, 1);
+        cache.putTileObj(tile(LAYER, 0, 0, 5, PARAMETERS, large));
+        cache.putTileObj(tile(LAYER, 1, 0, 5, PARAMETERS, new byte[0]));
+
+        TileObject cached = cache.getTileObj(query(LAYER, 0, 0, 5, PARAMETERS));
+        assertNotNull(cached);
+        assertArrayEquals(large, read(cached));
+        assertEquals(large.length, cached.getBlobSize());
+        assertEquals("population", cached.getParameters().get("STYLES"));
+        assertEquals(0, read(cache.getTileObj(query(LAYER, 1, 0, 5, PARAMETERS))).length);
+        assertNull(cache.getTileObj(query(LAYER, 2, 0, 5, PARAMETERS)));
+
+        // replacing a tile frees its blocks
+        byte[] small = contents(10, 2);
+        cache.putTileObj(tile(LAYER, 0, 0, 5, PARAMETERS, small));
+        assertArrayEquals(small, read(cache.getTileObj(query(LAYER, 0, 0, 5, PARAMETERS))));
+
+        CacheStatistics stats = cache.getStatistics();
+        assertEquals(3, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(10, stats.getActualSize());
+        assertEquals(1024 * 1024, stats.getTotalSize());
+
+        cache.removeTileObj(query(LAYER, 0, 0, 5, PARAMETERS));
+        assertNull(cache.getTileObj(query(LAYER, 0, 0, 5, PARAMETERS)));
+        assertEquals(0, cache.getStatistics().getActualSize());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        cache = new OffHeapCacheProvider(configuration(1, EvictionPolicy.LRU, 0));
+        int tiles = 1024 * 1024 / OffHeapCacheProvider.BLOCK_SIZE;
+        for (int x = 0; x < tiles; x++) {
+            cache.putTileObj(tile(LAYER, x, 0, 5, PARAMETERS,
+                    contents(OffHeapCacheProvider.BLOCK_SIZE, x)));
+        }
+        assertEquals(0, cache.getStatistics().getEvictionCount());
+        // touch the first tile so that the second one is the least recently used
+        assertNotNull(cache.getTileObj(query(LAYER, 0, 0, 5, PARAMETERS)));
+        cache.putTileObj(tile(LAYER, tiles, 0, 5, PARAMETERS,
+                contents(OffHeapCacheProvider.BLOCK_SIZE, 0)));
+
+        assertEquals(1, cache.getStatistics().getEvictionCount());
+        assertNotNull(cache.getTileObj(query(LAYER, 0, 0, 5, PARAMETERS)));
+        assertNull(cache.getTileObj(query(LAYER, 1, 0, 5, PARAMETERS)));
+        assertArrayEquals(contents(OffHeapCacheProvider.BLOCK_SIZE, tiles - 1),
+                read(cache.getTileObj(query(LAYER, tiles - 1, 0, 5, PARAMETERS))));
+        assertTrue(cache.getStatistics().getActualSize() <= 1024 * 1024);
+
+        // too big to ever fit
+        cache.putTileObj(tile(LAYER, -1, 0, 5, PARAMETERS, new byte[2 * 1024 * 1024]));
+        assertNull(cache.getTileObj(query(LAYER, -1, 0, 5, PARAMETERS)));
+    }
+
+    @Test
+    public void testLayers() throws Exception {
+        cache = new OffHeapCacheProvider(configuration(1, EvictionPolicy.NULL, 0));
+        cache.putTileObj(tile(LAYER, 0, 0, 5, PARAMETERS, contents(10, 0)));
+        cache.putTileObj(tile("other", 0, 0, 5, PARAMETERS, contents(10, 0)));
+        cache.removeLayer(LAYER);
+        assertNull(cache.getTileObj(query(LAYER, 0, 0, 5, PARAMETERS)));
+        assertNotNull(cache.getTileObj(query("other", 0, 0, 5, PARAMETERS)));
+
+        cache.addUncachedLayer(LAYER);
+        cache.putTileObj(tile(LAYER, 0, 0, 5, PARAMETERS, contents(10, 0)));
+        assertNull(cache.getTileObj(query(LAYER, 0, 0, 5, PARAMETERS)));
+        assertTrue(cache.containsUncachedLayer(LAYER));
+
+        cache.clear();
+        assertNull(cache.getTileObj(query("other", 0, 0, 5, PARAMETERS)));
+    }
+
+    @Test
+    public void testExpireAfterWrite() throws Exception {
+        cache = new OffHeapCacheProvider(configuration(1, EvictionPolicy.EXPIRE_AFTER_WRITE, 1));
+        cache.putTileObj(tile(LAYER, 0, 0, 5, PARAMETERS, contents(10, 0)));
+        assertNotNull(cache.getTileObj(query(LAYER, 0, 0, 5, PARAMETERS)));
+        Thread.sleep(1100);
+        assertNull(cache.getTileObj(query(LAYER, 0, 0, 5, PARAMETERS)));
+        assertEquals(1, cache.getStatistics().getEvictionCount());
+    }
+
+    @Test
+    public void testMemoryBlobStore() throws Exception {
+        cache = new OffHeapCacheProvider(configuration(1, EvictionPolicy.NULL, 0));
+        MemoryBlobStore mbs = new MemoryBlobStore();
+        mbs.setStore(new NullBlobStore());
+        mbs.setCacheProvider(cache);
+        try {
+            byte[] data = contents(5000, 3);
+            mbs.put(tile(LAYER, 0, 0, 5, PARAMETERS, data));
+            TileObject read = query(LAYER, 0, 0, 5, PARAMETERS);
+            assertTrue(mbs.get(read));
+            assertArrayEquals(data, read(read));
+            assertEquals(1, mbs.getCacheStatistics().getHitCount());
+        } finally {
+            mbs.destroy();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.memory.tiered;
+
+import static org.geowebcache.util.TestUtils.query;
+import static org.geowebcache.util.TestUtils.tile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.CacheConfiguration;
+import org.geowebcache.storage.blobstore.memory.CacheProvider;
+import org.geowebcache.storage.blobstore.memory.CacheStatistics;
+import org.geowebcache.storage.blobstore.memory.MemoryBlobStore;
+import org.geowebcache.storage.blobstore.memory.NullBlobStore;
+import org.geowebcache.storage.blobstore.memory.guava.GuavaCacheProvider;
+import org.geowebcache.storage.blobstore.memory.offheap.MappedFileCacheProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This test class is used for testing {@link TieredCacheProvider} functionality
+ */
+public class TieredCacheProviderTest {
+
+    private static final String LAYER = "test:layer";
+
+    private static final int TILE_SIZE = 100 * 1024;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private GuavaCacheProvider heap;
+
+    private MappedFileCacheProvider spill;
+
+    private TieredCacheProvider cache;
+
+    @Before
+    public void setUp() throws Exception {
+        CacheConfiguration heapConfig = new CacheConfiguration();
+        heapConfig.setHardMemoryLimit(1);
+        heapConfig.setConcurrencyLevel(1);
+        heap = new GuavaCacheProvider(heapConfig);
+        CacheConfiguration spillConfig = new CacheConfiguration();
+        spillConfig.setHardMemoryLimit(4);
+        spillConfig.setConcurrencyLevel(1);
+        spill = new MappedFileCacheProvider(spillConfig, tmp.newFolder("spill"));
+        cache = new TieredCacheProvider(Arrays.<CacheProvider> asList(heap, spill));
+    }
+
+    @After
+    public void tearDown() {
+        cache.reset();
+        spill.reset();
+    }
+
+    private static byte[] contents(long x) {
+        byte[] data = new byte[TILE_SIZE];
+        Arrays.fill(data, (byte) x);
+        return data;
+    }
+
+    private static byte[] read(TileObject tile) throws Exception {
+        return IOUtils.toByteArray(tile.getBlob().getInputStream());
+    }
+
+    @Test
+    public void testDemotionAndPromotion() throws Exception {
+        // 30 tiles of 100KB do not fit in the 1MB heap level
+        for (int x = 0; x < 30; x++) {
+            cache.putTileObj(tile(LAYER, x, 0, 10, contents(x)));
+        }
+        assertTrue(cache.getDemotionCount() >= 20);
+        assertTrue(heap.getStatistics().getActualSize() <= 1024 * 1024);
+        assertEquals(cache.getDemotionCount() * TILE_SIZE, spill.getStatistics().getActualSize());
+
+        // all the tiles are still cached, the first ones in the spill level
+        for (int x = 0; x < 30; x++) {
+            TileObject cached = cache.getTileObj(query(LAYER, x, 0, 10));
+            assertNotNull("Tile " + x + " not cached", cached);
+            assertArrayEquals(contents(x), read(cached));
+        }
+        assertNull(heap.getTileObj(query(LAYER, 0, 0, 10)));
+        assertNotNull(spill.getTileObj(query(LAYER, 0, 0, 10)));
+        assertEquals(0, cache.getPromotionCount());
+
+        // a second hit moves the tile back to the heap
+        assertNotNull(cache.getTileObj(query(LAYER, 0, 0, 10)));
+        assertEquals(1, cache.getPromotionCount());
+        assertNotNull(heap.getTileObj(query(LAYER, 0, 0, 10)));
+        assertNull(spill.getTileObj(query(LAYER, 0, 0, 10)));
+
+        CacheStatistics stats = cache.getStatistics();
+        assertEquals(31, stats.getHitCount());
+        assertEquals(5 * 1024 * 1024, stats.getTotalSize());
+        assertEquals(30L * TILE_SIZE, stats.getActualSize());
+        List<CacheStatistics> levels = cache.getLevelStatistics();
+        assertEquals(2, levels.size());
+        assertEquals(1024 * 1024, levels.get(0).getTotalSize());
+        assertEquals(4 * 1024 * 1024, levels.get(1).getTotalSize());
+    }
+
+    @Test
+    public void testPutReplacesLowerLevels() throws Exception {
+        for (int x = 0; x < 30; x++) {
+            cache.putTileObj(tile(LAYER, x, 0, 10, contents(x)));
+        }
+        assertNotNull(spill.getTileObj(query(LAYER, 0, 0, 10)));
+        TileObject updated = TileObject.createCompleteTileObject(LAYER, new long[] { 0, 0, 10 },
+                "EPSG:4326", "image/png", null, new ByteArrayResource(contents(42)));
+        cache.putTileObj(updated);
+        assertNull(spill.getTileObj(query(LAYER, 0, 0, 10)));
+        assertArrayEquals(contents(42), read(cache.getTileObj(query(LAYER, 0, 0, 10))));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        // 4MB of tiles, spread over the two levels
+        for (int x = 0; x < 20; x++) {
+            cache.putTileObj(tile(LAYER, x, 0, 10, contents(x)));
+            cache.putTileObj(tile("other", x, 0, 10, contents(x)));
+        }
+        cache.removeTileObj(query(LAYER, 0, 0, 10));
+        assertNull(cache.getTileObj(query(LAYER, 0, 0, 10)));
+
+        cache.removeLayer(LAYER);
+        for (int x = 0; x < 20; x++) {
+            assertNull(cache.getTileObj(query(LAYER, x, 0, 10)));
+        }
+        assertNotNull(cache.getTileObj(query("other", 0, 0, 10)));
+        assertNotNull(cache.getTileObj(query("other", 19, 0, 10)));
+
+        cache.addUncachedLayer(LAYER);
+        cache.putTileObj(tile(LAYER, 0, 0, 10, contents(0)));
+        assertNull(cache.getTileObj(query(LAYER, 0, 0, 10)));
+
+        cache.clear();
+        assertNull(cache.getTileObj(query("other", 0, 0, 10)));
+        assertEquals(0, cache.getStatistics().getActualSize());
+    }
+
+    @Test
+    public void testMemoryBlobStore() throws Exception {
+        MemoryBlobStore mbs = new MemoryBlobStore();
+        mbs.setStore(new NullBlobStore());
+        mbs.setCacheProvider(cache);
+        for (int x = 0; x < 30; x++) {
+            mbs.put(tile(LAYER, x, 0, 10, contents(x)));
+        }
+        TileObject read = query(LAYER, 0, 0, 10);
+        assertTrue(mbs.get(read));
+        assertArrayEquals(contents(0), read(read));
+        assertEquals(1, mbs.getCacheStatistics().getHitCount());
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.storage.blobstore.memory.tinylfu;
+
+import static org.geowebcache.util.TestUtils.query;
+import static org.geowebcache.util.TestUtils.tile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.CacheConfiguration;
+import org.geowebcache.storage.blobstore.memory.CacheConfiguration.EvictionPolicy;
+import org.geowebcache.storage.blobstore.memory.CacheProvider;
+import org.geowebcache.storage.blobstore.memory.CacheStatistics;
+import org.geowebcache.storage.blobstore.memory.MemoryBlobStore;
+import org.geowebcache.storage.blobstore.memory.NullBlobStore;
+import org.geowebcache.storage.blobstore.memory.guava.GuavaCacheProvider;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * This test class is used for testing {@link TinyLfuCacheProvider} functionality
+ */
+public class TinyLfuCacheProviderTest {
+
+    private static final String LAYER = "test:layer";
+
+    private static final int TILE_SIZE = 10 * 1024;
+
+    private CacheProvider cache;
+
+    @After
+    public void tearDown() {
+        if (cache != null) {
+            cache.reset();
+        }
+    }
+
+    private static CacheConfiguration configuration(EvictionPolicy policy, long evictionTime) {
+        CacheConfiguration config = new CacheConfiguration();
+        config.setHardMemoryLimit(1);
+        config.setConcurrencyLevel(1);
+        config.setPolicy(policy);
+        config.setEvictionTime(evictionTime);
+        return config;
+    }
+
+    /**
+     * Reads a tile as the {@link MemoryBlobStore} does, caching it on a miss
+     */
+    private TileObject request(long x) {
+        TileObject cached = cache.getTileObj(query(LAYER, x, 0, 10));
+        if (cached == null) {
+            cache.putTileObj(tile(LAYER, x, 0, 10, new byte[TILE_SIZE]));
+        }
+        return cached;
+    }
+
+    /**
+     * Requests a set of tiles many times, then scans many tiles requested once
+     * 
+     * @return the number of tiles of the first set still cached
+     */
+    private int scan(int hot) {
+        for (int i = 0; i < 5; i++) {
+            for (int x = 0; x < hot; x++) {
+                request(x);
+            }
+        }
+        for (int x = 1000; x < 3000; x++) {
+            request(x);
+        }
+
+        int retained = 0;
+        for (int x = 0; x < hot; x++) {
+            if (cache.getTileObj(query(LAYER, x, 0, 10)) != null) {
+                retained++;
+            }
+        }
+        return retained;
+    }
+
+    @Test
+    public void testScanResistance() {
+        // half of the cache is used by tiles requested often
+        int hot = 1024 * 1024 / TILE_SIZE / 2;
+
+        cache = new GuavaCacheProvider(configuration(EvictionPolicy.NULL, 0));
+        assertEquals(0, scan(hot));
+        cache.reset();
+
+        cache = new TinyLfuCacheProvider(configuration(EvictionPolicy.NULL, 0));
+        assertTrue(scan(hot) >= hot * 9 / 10);
+        CacheStatistics stats = cache.getStatistics();
+        assertTrue(stats.getAdmissionRejectionCount() > 0);
+        assertTrue(stats.getEvictionCount() > 0);
+        assertTrue(stats.getActualSize() <= stats.getTotalSize());
+        assertEquals(stats.getHitCount() + stats.getMissCount(), stats.getRequestCount());
+    }
+
+    @Test
+    public void testFrequentTilesAdmitted() {
+        cache = new TinyLfuCacheProvider(configuration(EvictionPolicy.LFU, 0));
+        for (int x = 0; x < 1000; x++) {
+            request(x);
+        }
+        // a tile requested again and again eventually replaces a tile requested once
+        for (int i = 0; i < 5; i++) {
+            request(5000);
+        }
+        // pushes it out of the admission window
+        request(6000);
+        long rejected = cache.getStatistics().getAdmissionRejectionCount();
+        request(6001);
+        assertEquals(rejected + 1, cache.getStatistics().getAdmissionRejectionCount());
+        assertNotNull(cache.getTileObj(query(LAYER, 5000, 0, 10)));
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        cache = new TinyLfuCacheProvider(configuration(EvictionPolicy.NULL, 0));
+        TileObject obj = tile(LAYER, 0, 0, 10, new byte[TILE_SIZE]);
+        cache.putTileObj(obj);
+        cache.putTileObj(tile("other", 0, 0, 10, new byte[TILE_SIZE]));
+        assertSame(obj, cache.getTileObj(query(LAYER, 0, 0, 10)));
+        assertEquals(2 * TILE_SIZE, cache.getStatistics().getActualSize());
+
+        cache.removeTileObj(query(LAYER, 0, 0, 10));
+        assertNull(cache.getTileObj(query(LAYER, 0, 0, 10)));
+        cache.putTileObj(tile(LAYER, 0, 0, 10, new byte[TILE_SIZE]));
+        cache.removeLayer(LAYER);
+        assertNull(cache.getTileObj(query(LAYER, 0, 0, 10)));
+        assertNotNull(cache.getTileObj(query("other", 0, 0, 10)));
+
+        cache.addUncachedLayer(LAYER);
+        cache.putTileObj(tile(LAYER, 0, 0, 10, new byte[TILE_SIZE]));
+        assertNull(cache.getTileObj(query(LAYER, 0, 0, 10)));
+
+        cache.clear();
+        assertNull(cache.getTileObj(query("other", 0, 0, 10)));
+        assertEquals(0, cache.getStatistics().getActualSize());
+
+        // too big to ever fit
+        cache.putTileObj(TileObject.createCompleteTileObject("big", new long[] { 0, 0, 0 },
+                "EPSG:4326", "image/png", null, new ByteArrayResource(new byte[2 * 1024 * 1024])));
+        assertNull(cache.getTileObj(query("big", 0, 0, 10)));
+    }
+
+    @Test
+    public void testExpireAfterAccess() throws Exception {
+        cache = new TinyLfuCacheProvider(configuration(EvictionPolicy.EXPIRE_AFTER_ACCESS, 1));
+        cache.putTileObj(tile(LAYER, 0, 0, 10, new byte[TILE_SIZE]));
+        Thread.sleep(600);
+        assertNotNull(cache.getTileObj(query(LAYER, 0, 0, 10)));
+        Thread.sleep(600);
+        assertNotNull(cache.getTileObj(query(LAYER, 0, 0, 10)));
+        Thread.sleep(1100);
+        assertNull(cache.getTileObj(query(LAYER, 0, 0, 10)));
+        assertEquals(0, cache.getStatistics().getActualSize());
+    }
+
+    @Test
+    public void testFrequencySketch() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(42);
+        }
+        sketch.increment(7);
+        assertEquals(15, sketch.frequency(42));
+        assertEquals(1, sketch.frequency(7));
+
+        // the counters are halved once the sample size is reached
+        for (int i = 1000; sketch.frequency(42) == 15; i++) {
+            sketch.increment(i);
+        }
+        assertEquals(7, sketch.frequency(42));
+    }
+
+    @Test
+    public void testMemoryBlobStore() throws Exception {
+        cache = new TinyLfuCacheProvider(configuration(EvictionPolicy.NULL, 0));
+        MemoryBlobStore mbs = new MemoryBlobStore();
+        mbs.setStore(new NullBlobStore());
+        mbs.setCacheProvider(cache);
+        try {
+            mbs.put(tile(LAYER, 0, 0, 10, new byte[TILE_SIZE]));
+            assertTrue(mbs.get(query(LAYER, 0, 0, 10)));
+            assertEquals(1, mbs.getCacheStatistics().getHitCount());
+        } finally {
+            mbs.destroy();
+        }
+    }
+}
@@ -37,6 +37,11 @@ public class MockLockProvider extends MemoryLockProvider {
         };
     }
 
+    @Override
+    public Lock getLock(String lockKey, long leaseTime) {
+        return getLock(lockKey);
+    }
+
     public void verify() {
         assertEquals(acquires.get(), releases.get());
         assertEquals(0, keys.size());
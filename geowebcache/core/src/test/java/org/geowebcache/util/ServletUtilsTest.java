@@ -0,0 +1,88 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.io.FileUtils;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.FileResource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class ServletUtilsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final byte[] CONTENTS = "not really a png".getBytes();
+
+    private FileResource fileResource() throws Exception {
+        File file = tmp.newFile("tile.png");
+        FileUtils.writeByteArrayToFile(file, CONTENTS);
+        return new FileResource(file);
+    }
+
+    @Test
+    public void testWriteFileResource() throws Exception {
+        FileResource resource = fileResource();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        long written = ServletUtils.writeResource(resource, response);
+
+        assertEquals(CONTENTS.length, written);
+        assertEquals(CONTENTS.length, response.getContentLength());
+        assertArrayEquals(CONTENTS, response.getContentAsByteArray());
+    }
+
+    @Test
+    public void testTileReplacedBeforeSend() throws Exception {
+        FileResource resource = fileResource();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        response.setContentLength((int) resource.getSize());
+
+        // reseeded as the blob stores do, writing a new file and renaming it over the old one
+        byte[] reseeded = "a larger reseeded tile".getBytes();
+        File temp = tmp.newFile("tile.png.tmp");
+        FileUtils.writeByteArrayToFile(temp, reseeded);
+        Files.move(temp.toPath(), resource.getFile().toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        long written = ServletUtils.writeResource(resource, response);
+
+        // the length matches the file actually sent
+        assertEquals(reseeded.length, written);
+        assertEquals(reseeded.length, response.getContentLength());
+        assertArrayEquals(reseeded, response.getContentAsByteArray());
+    }
+
+    @Test
+    public void testWriteNonFileResource() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        long written = ServletUtils.writeResource(new ByteArrayResource(CONTENTS), response);
+
+        assertEquals(CONTENTS.length, written);
+        assertArrayEquals(CONTENTS, response.getContentAsByteArray());
+    }
+}
@@ -25,6 +25,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 
 import javax.imageio.ImageIO;
 
@@ -34,7 +35,10 @@ import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.layer.wms.WMSLayer;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.TileObject;
 
 public class TestUtils {
 
@@ -96,6 +100,32 @@ public class TestUtils {
     //
     // }
 
+    /**
+     * Creates a PNG tile of the EPSG:4326 gridset, ready to be put in a blob store
+     */
+    public static TileObject tile(String layer, long x, long y, long z, byte[] contents) {
+        return tile(layer, x, y, z, null, contents);
+    }
+
+    public static TileObject tile(String layer, long x, long y, long z,
+            Map<String, String> parameters, byte[] contents) {
+        return TileObject.createCompleteTileObject(layer, new long[] { x, y, z }, "EPSG:4326",
+                ImageMime.png.getFormat(), parameters, new ByteArrayResource(contents));
+    }
+
+    /**
+     * Creates a query for a PNG tile of the EPSG:4326 gridset
+     */
+    public static TileObject query(String layer, long x, long y, long z) {
+        return query(layer, x, y, z, null);
+    }
+
+    public static TileObject query(String layer, long x, long y, long z,
+            Map<String, String> parameters) {
+        return TileObject.createQueryTileObject(layer, new long[] { x, y, z }, "EPSG:4326",
+                ImageMime.png.getFormat(), parameters);
+    }
+
     public static String toStr(long[][] array) {
         StringBuilder sb = new StringBuilder("[");
         for (int i = 0; i < array.length; i++) {
@@ -0,0 +1,441 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.diskquota;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.diskquota.storage.Quota;
+import org.geowebcache.diskquota.storage.TileSet;
+import org.geowebcache.storage.BlobStoreListener;
+
+/**
+ * Keeps the number of tiles and bytes stored per layer, gridset, format, parameters and zoom
+ * level, up to date with the blob store events and saved to the cache directory so that the disk
+ * usage is known at startup without walking the cache.
+ * <p>
+ * The saved snapshot records whether it was written on a clean shutdown. Once loaded the snapshot
+ * on disk is marked as dirty until the next clean shutdown, so that events lost to a crash are
+ * detected and the affected layers can be {@link LayerCacheInfoBuilder#verifyCacheInfo verified}
+ * against the cache contents.
+ * </p>
+ */
+final class CacheUsageIndex implements BlobStoreListener {
+
+    private static final Log log = LogFactory.getLog(CacheUsageIndex.class);
+
+    static final String INDEX_FILE = "diskquota_usage.idx";
+
+    private static final int MAGIC = 0x47574355;
+
+    private static final int VERSION = 1;
+
+    /**
+     * A tile set zoom level
+     */
+    static final class Key {
+
+        final TileSet tileSet;
+
+        final int zoomLevel;
+
+        Key(TileSet tileSet, int zoomLevel) {
+            this.tileSet = tileSet;
+            this.zoomLevel = zoomLevel;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return zoomLevel == k.zoomLevel && tileSet.equals(k.tileSet);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * tileSet.hashCode() + zoomLevel;
+        }
+
+        @Override
+        public String toString() {
+            return tileSet + "/" + zoomLevel;
+        }
+    }
+
+    /**
+     * Tile count and bytes of a tile set zoom level
+     */
+    static final class Usage {
+
+        final AtomicLong tiles = new AtomicLong();
+
+        final AtomicLong bytes = new AtomicLong();
+
+        /** Sequence number of the last event applied, guarded by this */
+        private long lastChange;
+
+        /** Whether it was dropped from the index, guarded by this */
+        private boolean dropped;
+
+        long getTiles() {
+            return tiles.get();
+        }
+
+        long getBytes() {
+            return bytes.get();
+        }
+
+        synchronized long getLastChange() {
+            return lastChange;
+        }
+    }
+
+    private final File indexFile;
+
+    private final ConcurrentMap<Key, Usage> usage = new ConcurrentHashMap<Key, Usage>();
+
+    /** Numbers the events, so that the entries changed since a given time can be told apart */
+    private final AtomicLong changes = new AtomicLong();
+
+    public CacheUsageIndex(final File cacheRoot) {
+        this.indexFile = new File(cacheRoot, INDEX_FILE);
+    }
+
+    /**
+     * Loads the saved snapshot, if any, and marks it as dirty until the next clean
+     * {@link #save(boolean) save}
+     *
+     * @return {@code true} if the snapshot was saved on a clean shutdown, {@code false} if there
+     *         was no snapshot or it may have missed some updates
+     */
+    public synchronized boolean load() {
+        usage.clear();
+        if (!indexFile.exists()) {
+            return false;
+        }
+        boolean clean = false;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                    indexFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    log.warn("Ignoring disk quota usage index " + indexFile
+                            + ", unknown file format");
+                    return false;
+                }
+                clean = in.readBoolean();
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String layerName = in.readUTF();
+                    String gridsetId = in.readUTF();
+                    String blobFormat = readNullable(in);
+                    String parametersId = readNullable(in);
+                    TileSet tileSet = new TileSet(layerName, gridsetId, blobFormat, parametersId);
+                    Usage u = get(new Key(tileSet, in.readInt()));
+                    u.tiles.set(in.readLong());
+                    u.bytes.set(in.readLong());
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to read disk quota usage index " + indexFile, e);
+            usage.clear();
+            return false;
+        }
+        save(false);
+        log.info("Loaded disk quota usage index for " + usage.size() + " zoom levels from "
+                + indexFile + (clean ? "" : ", the last shutdown was not clean"));
+        return clean;
+    }
+
+    /**
+     * Atomically replaces the saved snapshot with the current usage figures
+     *
+     * @param clean
+     *            whether no updates will be received after this save, as on shutdown
+     */
+    public synchronized void save(boolean clean) {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try {
+            indexFile.getParentFile().mkdirs();
+            List<Map.Entry<Key, Usage>> entries = new ArrayList<Map.Entry<Key, Usage>>(
+                    usage.entrySet());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeBoolean(clean);
+                out.writeInt(entries.size());
+                for (Map.Entry<Key, Usage> e : entries) {
+                    TileSet tileSet = e.getKey().tileSet;
+                    out.writeUTF(tileSet.getLayerName());
+                    out.writeUTF(tileSet.getGridsetId());
+                    writeNullable(out, tileSet.getBlobFormat());
+                    writeNullable(out, tileSet.getParametersId());
+                    out.writeInt(e.getKey().zoomLevel);
+                    out.writeLong(e.getValue().getTiles());
+                    out.writeLong(e.getValue().getBytes());
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Unable to save disk quota usage index " + indexFile, e);
+            tmp.delete();
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private Usage get(Key key) {
+        Usage u = usage.get(key);
+        if (u == null) {
+            Usage created = new Usage();
+            u = usage.putIfAbsent(key, created);
+            if (u == null) {
+                u = created;
+            }
+        }
+        return u;
+    }
+
+    private void add(String layerName, String gridSetId, String blobFormat,
+            String parametersId, int z, long tiles, long bytes) {
+        TileSet tileSet = new TileSet(layerName, gridSetId, blobFormat, parametersId);
+        Key key = new Key(tileSet, z);
+        while (true) {
+            Usage u = get(key);
+            synchronized (u) {
+                // if dropped by a verification meanwhile, go for the new entry
+                if (!u.dropped) {
+                    u.tiles.addAndGet(tiles);
+                    u.bytes.addAndGet(bytes);
+                    u.lastChange = changes.incrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether there is usage information for the layer
+     */
+    public boolean hasLayer(String layerName) {
+        for (Key key : usage.keySet()) {
+            if (key.tileSet.getLayerName().equals(layerName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the usage of the layer, by zoom level
+     */
+    public Map<Key, Usage> getUsage(String layerName) {
+        Map<Key, Usage> layerUsage = new HashMap<Key, Usage>();
+        for (Map.Entry<Key, Usage> e : usage.entrySet()) {
+            if (e.getKey().tileSet.getLayerName().equals(layerName)) {
+                layerUsage.put(e.getKey(), e.getValue());
+            }
+        }
+        return layerUsage;
+    }
+
+    /**
+     * @return the bytes used by each tile set of the layer
+     */
+    public Map<TileSet, Quota> getUsedQuota(String layerName) {
+        Map<TileSet, Quota> quotas = new HashMap<TileSet, Quota>();
+        for (Map.Entry<Key, Usage> e : getUsage(layerName).entrySet()) {
+            TileSet tileSet = e.getKey().tileSet;
+            Quota quota = quotas.get(tileSet);
+            if (quota == null) {
+                quota = new Quota();
+                quotas.put(tileSet, quota);
+            }
+            quota.addBytes(e.getValue().getBytes());
+        }
+        return quotas;
+    }
+
+    /**
+     * @return the sequence number of the last event applied to each zoom level of the layer, to
+     *         be passed to {@link #setUsage(Key, long, long, long)}
+     */
+    public Map<Key, Long> getLastChanges(String layerName) {
+        Map<Key, Long> lastChanges = new HashMap<Key, Long>();
+        for (Map.Entry<Key, Usage> e : getUsage(layerName).entrySet()) {
+            lastChanges.put(e.getKey(), e.getValue().getLastChange());
+        }
+        return lastChanges;
+    }
+
+    /**
+     * @return the sequence number of the last event applied to the layer
+     */
+    public long getLastChange(String layerName) {
+        long lastChange = 0;
+        for (Usage u : getUsage(layerName).values()) {
+            lastChange = Math.max(lastChange, u.getLastChange());
+        }
+        return lastChange;
+    }
+
+    /**
+     * Replaces the usage of a tile set zoom level with the figures obtained walking the cache,
+     * dropping it if empty, unless it received events since {@code lastChange}: a tile stored or
+     * deleted during the walk may or may not have been counted.
+     * 
+     * @param lastChange
+     *            the {@link #getLastChanges(String) last change} of the zoom level before the
+     *            walk, 0 if it was not in the index
+     * @return {@code false} if the zoom level changed and was left untouched
+     */
+    public boolean setUsage(Key key, long lastChange, long tiles, long bytes) {
+        while (true) {
+            Usage u = usage.get(key);
+            if (u == null) {
+                if (lastChange != 0) {
+                    return false;
+                }
+                if (tiles == 0 && bytes == 0) {
+                    return true;
+                }
+                Usage created = new Usage();
+                created.tiles.set(tiles);
+                created.bytes.set(bytes);
+                if (usage.putIfAbsent(key, created) == null) {
+                    return true;
+                }
+                continue;
+            }
+            synchronized (u) {
+                if (u.dropped) {
+                    continue;
+                }
+                if (u.lastChange != lastChange) {
+                    return false;
+                }
+                if (tiles == 0 && bytes == 0) {
+                    drop(key, u);
+                } else {
+                    u.tiles.set(tiles);
+                    u.bytes.set(bytes);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes an entry from the index, marking it as dropped so that the events racing with the
+     * removal go to a new entry rather than being lost. Must be called holding the entry monitor.
+     */
+    private void drop(Key key, Usage u) {
+        u.dropped = true;
+        usage.remove(key, u);
+    }
+
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        add(layerName, gridSetId, blobFormat, parametersId, z, 1, blobSize);
+    }
+
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        add(layerName, gridSetId, blobFormat, parametersId, z, -1, -blobSize);
+    }
+
+    public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        add(layerName, gridSetId, blobFormat, parametersId, z, 0, blobSize - oldSize);
+    }
+
+    public void layerDeleted(String layerName) {
+        for (Map.Entry<Key, Usage> e : getUsage(layerName).entrySet()) {
+            synchronized (e.getValue()) {
+                if (!e.getValue().dropped) {
+                    drop(e.getKey(), e.getValue());
+                }
+            }
+        }
+    }
+
+    public void gridSubsetDeleted(String layerName, String gridSetId) {
+        for (Map.Entry<Key, Usage> e : getUsage(layerName).entrySet()) {
+            if (!e.getKey().tileSet.getGridsetId().equals(gridSetId)) {
+                continue;
+            }
+            synchronized (e.getValue()) {
+                if (!e.getValue().dropped) {
+                    drop(e.getKey(), e.getValue());
+                }
+            }
+        }
+    }
+
+    public void layerRenamed(String oldLayerName, String newLayerName) {
+        for (Map.Entry<Key, Usage> e : getUsage(oldLayerName).entrySet()) {
+            final Usage old = e.getValue();
+            final long tiles;
+            final long bytes;
+            synchronized (old) {
+                if (old.dropped) {
+                    continue;
+                }
+                drop(e.getKey(), old);
+                tiles = old.getTiles();
+                bytes = old.getBytes();
+            }
+            TileSet tileSet = e.getKey().tileSet;
+            add(newLayerName, tileSet.getGridsetId(), tileSet.getBlobFormat(),
+                    tileSet.getParametersId(), e.getKey().zoomLevel, tiles, bytes);
+        }
+    }
+}
@@ -20,9 +20,12 @@ package org.geowebcache.diskquota;
 import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -34,7 +37,9 @@ import org.geowebcache.diskquota.CacheCleaner.GlobalQuotaResolver;
 import org.geowebcache.diskquota.CacheCleaner.LayerQuotaResolver;
 import org.geowebcache.diskquota.CacheCleaner.QuotaResolver;
 import org.geowebcache.diskquota.storage.LayerQuota;
+import org.geowebcache.diskquota.storage.PageStatsPayload;
 import org.geowebcache.diskquota.storage.Quota;
+import org.geowebcache.diskquota.storage.TileSet;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.layer.TileLayerDispatcher;
 import org.geowebcache.storage.DefaultStorageFinder;
@@ -69,6 +74,11 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
      */
     public static final String GWC_DISKQUOTA_DISABLED = "GWC_DISKQUOTA_DISABLED";
 
+    /**
+     * How often the cache usage index is saved while running, so that little is lost on a crash
+     */
+    private static final long USAGE_INDEX_SAVE_PERIOD_SECS = 60;
+
     private final TileLayerDispatcher tileLayerDispatcher;
 
     private final StorageBroker storageBroker;
@@ -89,6 +99,17 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
 
     private QuotaStore quotaStore;
 
+    /**
+     * Per zoom level cache usage kept up to date with the blob store events, used instead of
+     * walking the cache at startup
+     */
+    private CacheUsageIndex usageIndex;
+
+    /**
+     * Whether {@link #usageIndex} was loaded from a snapshot saved on a clean shutdown
+     */
+    private boolean usageIndexClean;
+
     /**
      * Executor service for the periodic clean up of layers caches that exceed its quota
      * 
@@ -244,6 +265,10 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
         
         quotaStore = quotaStoreProvider.getQuotaStore();
 
+        usageIndex = new CacheUsageIndex(getCacheRoot());
+        usageIndexClean = usageIndex.load();
+        storageBroker.addBlobStoreListener(usageIndex);
+
         quotaUsageMonitor = new QuotaUpdatesMonitor(quotaConfig, storageBroker, quotaStore);
         usageStatsMonitor = new UsageStatsMonitor(quotaStore, tileLayerDispatcher);
 
@@ -264,6 +289,8 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
         // when a quota is exceeded
         setUpScheduledCleanUp();
 
+        setUpScheduledUsageIndexSave();
+
         // the startup might be called more than once (happens in GeoServer after disk quota
         // re-configuration for example), in this case shut down the old cache info builder
         if(this.cacheInfoBuilder != null) {
@@ -303,6 +330,11 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
                 this.cleanUpExecutorService.shutdownNow();
             }
 
+            if (this.usageIndex != null) {
+                storageBroker.removeBlobStoreListener(usageIndex);
+                usageIndex.save(true);
+            }
+
             log.info("Shutting down quota usage monitor...");
             quotaUsageMonitor.shutDownNow();
 
@@ -375,9 +407,23 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
         saveConfig(quotaConfig);
     }
 
+    private File getCacheRoot() {
+        try {
+            return new File(storageFinder.getDefaultPath());
+        } catch (ConfigurationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
-     * Launches a background task to traverse the cache and compute the disk usage of each layer
-     * that has no {@link LayerQuota#getUsedQuota() used quota} already loaded.
+     * Sets up the used quota of each layer that has no {@link LayerQuota#getUsedQuota() used
+     * quota} already loaded.
+     * <p>
+     * The usage is taken from the {@link CacheUsageIndex cache usage index} when available, and
+     * otherwise computed by a background task that traverses the layer's cache. Layers missing from
+     * the index, or all of them if the index was not saved on a clean shutdown, are verified in the
+     * background so that the index and quota store are corrected if needed.
+     * </p>
      * 
      * @return
      * @throws InterruptedException
@@ -385,32 +431,38 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
     private LayerCacheInfoBuilder launchCacheInfoGatheringThreads() throws InterruptedException {
 
         LayerCacheInfoBuilder cacheInfoBuilder;
-        File cacheRoot;
-        try {
-            cacheRoot = new File(storageFinder.getDefaultPath());
-        } catch (ConfigurationException e) {
-            throw new RuntimeException(e);
-        }
-        cacheInfoBuilder = new LayerCacheInfoBuilder(cacheRoot, cleanUpExecutorService,
-                quotaUsageMonitor);
+        cacheInfoBuilder = new LayerCacheInfoBuilder(getCacheRoot(), cleanUpExecutorService,
+                quotaUsageMonitor, usageIndex, quotaStore);
 
         for (String layerName : tileLayerDispatcher.getLayerNames()) {
+            TileLayer tileLayer;
+            try {
+                tileLayer = tileLayerDispatcher.getTileLayer(layerName);
+            } catch (GeoWebCacheException e) {
+                e.printStackTrace();
+                continue;
+            }
 
+            final boolean indexed = usageIndex.hasLayer(layerName);
             Quota usedQuota = quotaStore.getUsedQuotaByLayerName(layerName);
             if (usedQuota.getBytes().compareTo(BigInteger.ZERO) > 0) {
                 log.debug("Using saved quota information for layer " + layerName + ": "
                         + usedQuota.toNiceString());
+            } else if (indexed) {
+                log.debug(layerName + " has no saved used quota information,"
+                        + " using the cache usage index.");
+                for (Map.Entry<TileSet, Quota> e : usageIndex.getUsedQuota(layerName).entrySet()) {
+                    quotaStore.addToQuotaAndTileCounts(e.getKey(), e.getValue(),
+                            Collections.<PageStatsPayload> emptyList());
+                }
             } else {
                 log.debug(layerName + " has no saved used quota information,"
                         + "traversing layer cache to compute its disk usage.");
-                TileLayer tileLayer;
-                try {
-                    tileLayer = tileLayerDispatcher.getTileLayer(layerName);
-                } catch (GeoWebCacheException e) {
-                    e.printStackTrace();
-                    continue;
-                }
                 cacheInfoBuilder.buildCacheInfo(tileLayer);
+                continue;
+            }
+            if (!indexed || !usageIndexClean) {
+                cacheInfoBuilder.verifyCacheInfo(tileLayer);
             }
         }
         return cacheInfoBuilder;
@@ -442,6 +494,15 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
         log.info("Disk quota periodic enforcement task set up every " + period + " " + unit);
     }
 
+    private void setUpScheduledUsageIndexSave() {
+        final CacheUsageIndex index = usageIndex;
+        cleanUpExecutorService.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                index.save(false);
+            }
+        }, USAGE_INDEX_SAVE_PERIOD_SECS, USAGE_INDEX_SAVE_PERIOD_SECS, TimeUnit.SECONDS);
+    }
+
     /**
      * Sets the {@link LayerQuota#setExpirationPolicy(ExpirationPolicy) expiration policy} to all
      * the configured layer quotas based on their {@link LayerQuota#getExpirationPolicyName()
@@ -502,6 +563,26 @@ public class DiskQuotaMonitor implements InitializingBean, DisposableBean {
         return cacheInfoBuilder != null && cacheInfoBuilder.isRunning(layerName);
     }
 
+    /**
+     * Walks the cache of the given layer in the background and corrects its used quota if it
+     * drifted from the actual disk usage.
+     * <p>
+     * <b>Preconditions</b>:
+     * <ul>
+     * <li> {@link #isRunning() == true}
+     * </ul>
+     * </p>
+     * 
+     * @return the future result of the verification, holding the byte difference applied to each
+     *         tile set whose used quota was wrong
+     * @see #isCacheInfoBuilderRunning(String)
+     */
+    public Future<Map<TileSet, Quota>> verifyCacheUsage(String layerName)
+            throws GeoWebCacheException {
+        Assert.isTrue(isRunning, "DiskQuotaMonitor is not running");
+        return cacheInfoBuilder.verifyCacheInfo(tileLayerDispatcher.getTileLayer(layerName));
+    }
+
     /**
      * @see QuotaStore#getUsedQuotaByLayerName(String)
      */
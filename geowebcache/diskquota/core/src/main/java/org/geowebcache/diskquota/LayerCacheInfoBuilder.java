@@ -20,6 +20,7 @@ package org.geowebcache.diskquota;
 import java.io.File;
 import java.io.FileFilter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -27,13 +28,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.diskquota.storage.LayerQuota;
+import org.geowebcache.diskquota.storage.PageStatsPayload;
 import org.geowebcache.diskquota.storage.Quota;
 import org.geowebcache.diskquota.storage.TilePage;
 import org.geowebcache.diskquota.storage.TileSet;
@@ -49,10 +54,21 @@ import org.geowebcache.util.FileUtils;
  * 
  * @author groldan
  */
-final class LayerCacheInfoBuilder {
+class LayerCacheInfoBuilder {
 
     private static final Log log = LogFactory.getLog(LayerCacheInfoBuilder.class);
 
+    /**
+     * Times a zoom level is walked while verifying, if tiles are stored or deleted during the walk
+     */
+    private static final int MAX_WALKS = 3;
+
+    /**
+     * Max time, in seconds, a verification waits for the quota updates thread to correct the used
+     * quota of the layer
+     */
+    static final long CORRECTION_TIMEOUT = 60;
+
     private final File rootCacheDir;
 
     private final ExecutorService threadPool;
@@ -61,14 +77,24 @@ final class LayerCacheInfoBuilder {
 
     private final QuotaUpdatesMonitor quotaUsageMonitor;
 
+    private final CacheUsageIndex usageIndex;
+
+    private final QuotaStore quotaStore;
+
+    private final Map<String, Future<Map<TileSet, Quota>>> perLayerVerifications;
+
     private boolean closed = false;
 
     public LayerCacheInfoBuilder(final File rootCacheDir, final ExecutorService threadPool,
-            QuotaUpdatesMonitor quotaUsageMonitor) {
+            QuotaUpdatesMonitor quotaUsageMonitor, CacheUsageIndex usageIndex,
+            QuotaStore quotaStore) {
         this.rootCacheDir = rootCacheDir;
         this.threadPool = threadPool;
         this.quotaUsageMonitor = quotaUsageMonitor;
+        this.usageIndex = usageIndex;
+        this.quotaStore = quotaStore;
         this.perLayerRunningTasks = new HashMap<String, List<Future<ZoomLevelVisitor.Stats>>>();
+        this.perLayerVerifications = new ConcurrentHashMap<String, Future<Map<TileSet, Quota>>>();
     }
 
     /**
@@ -118,13 +144,8 @@ final class LayerCacheInfoBuilder {
             final int zoomStop = gs.getZoomStop();
 
             for (int zoomLevel = zoomStart; zoomLevel <= zoomStop && !closed; zoomLevel++) {
-                String gridsetZLevelParamsDirName;
-                gridsetZLevelParamsDirName = FilePathUtils.gridsetZoomLevelDir(gridSetId,
-                        zoomLevel);
-                if (parametersId != null) {
-                    gridsetZLevelParamsDirName += "_" + parametersId;
-                }
-                final File gridsetZLevelDir = new File(layerDir, gridsetZLevelParamsDirName);
+                final File gridsetZLevelDir = zoomLevelDir(layerDir, gridSetId, zoomLevel,
+                        parametersId);
 
                 if (gridsetZLevelDir.exists()) {
                     ZoomLevelVisitor cacheInfoBuilder;
@@ -142,6 +163,279 @@ final class LayerCacheInfoBuilder {
         }
     }
 
+    /**
+     * Asynchronously walks the cache of {@code tileLayer} and repairs any drift between the actual
+     * disk usage and the one recorded in the usage index and quota store, as may happen if the
+     * index missed some updates because of an unclean shutdown.
+     * <p>
+     * Unlike {@link #buildCacheInfo(TileLayer)}, the used quota of each tile set is corrected by
+     * its difference with the walked usage once the walk finishes, rather than increased by each
+     * tile found, so the layer's quota figures stay usable while the verification runs. Use
+     * {@link #isRunning(String) isRunning(layerName)} to check whether it finished.
+     * </p>
+     * <p>
+     * The layer keeps being updated meanwhile: a zoom level whose tiles are stored or deleted
+     * while it's walked is walked again, or left alone if it keeps changing, and the quota store
+     * is corrected only once the updates queued by the {@link QuotaUpdatesMonitor} are saved.
+     * </p>
+     * 
+     * @return the future result of the verification, holding the byte difference applied to each
+     *         tile set whose usage was wrong
+     */
+    public Future<Map<TileSet, Quota>> verifyCacheInfo(final TileLayer tileLayer) {
+        final String layerName = tileLayer.getName();
+        Future<Map<TileSet, Quota>> verification = threadPool
+                .submit(new Callable<Map<TileSet, Quota>>() {
+                    public Map<TileSet, Quota> call() throws Exception {
+                        return verify(tileLayer);
+                    }
+                });
+        perLayerVerifications.put(layerName, verification);
+        log.debug("Submitted background task to verify cache info for '" + layerName + "'");
+        return verification;
+    }
+
+    private Map<TileSet, Quota> verify(final TileLayer tileLayer) throws Exception {
+        final String layerName = tileLayer.getName();
+        final File layerDir = new File(rootCacheDir, FilePathUtils.filteredLayerName(layerName));
+        final long runTime = System.currentTimeMillis();
+
+        // the zoom levels in the index but no longer on disk
+        final Map<CacheUsageIndex.Key, Long> notWalked = usageIndex.getLastChanges(layerName);
+        // the tile sets that kept changing while walked
+        final Set<TileSet> unverified = new HashSet<TileSet>();
+        if (layerDir.exists()) {
+            for (TileSet tileSet : findOnDiskTileSets(tileLayer, layerDir)) {
+                final String gridSetId = tileSet.getGridsetId();
+                final String parametersId = tileSet.getParametersId();
+                final GridSubset gs = tileLayer.getGridSubset(gridSetId);
+                for (int zoomLevel = gs.getZoomStart(); zoomLevel <= gs.getZoomStop(); zoomLevel++) {
+                    File gridsetZLevelDir = zoomLevelDir(layerDir, gridSetId, zoomLevel,
+                            parametersId);
+                    if (!gridsetZLevelDir.exists()) {
+                        continue;
+                    }
+                    Set<CacheUsageIndex.Key> changed = verifyZoomLevel(layerName,
+                            gridsetZLevelDir, gridSetId, zoomLevel, parametersId, notWalked);
+                    if (changed == null) {
+                        // canceled
+                        return null;
+                    }
+                    for (CacheUsageIndex.Key key : changed) {
+                        log.warn("Could not verify the cache usage of " + key
+                                + ", it kept changing while walked");
+                        unverified.add(key.tileSet);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<CacheUsageIndex.Key, Long> e : notWalked.entrySet()) {
+            if (!usageIndex.setUsage(e.getKey(), e.getValue(), 0, 0)) {
+                unverified.add(e.getKey().tileSet);
+            }
+        }
+
+        final Map<TileSet, Quota> drift;
+        Callable<Map<TileSet, Quota>> correction = new Callable<Map<TileSet, Quota>>() {
+            public Map<TileSet, Quota> call() throws Exception {
+                return correctUsedQuota(layerName, unverified);
+            }
+        };
+        if (quotaUsageMonitor == null) {
+            drift = correction.call();
+        } else {
+            // once the updates already queued are saved, or they would be taken for drift
+            Future<Map<TileSet, Quota>> corrected = quotaUsageMonitor.submit(correction);
+            try {
+                drift = corrected.get(CORRECTION_TIMEOUT, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                // not interrupting, the quota updates thread would stop
+                corrected.cancel(false);
+                log.warn("Not correcting the used quota of '" + layerName
+                        + "', the quota updates were not saved after " + CORRECTION_TIMEOUT
+                        + "s");
+                return Collections.emptyMap();
+            }
+        }
+        log.info("Verified cache info for '" + layerName + "' in "
+                + (System.currentTimeMillis() - runTime) / 1000D + "s, " + drift.size()
+                + " tile sets corrected");
+        return drift;
+    }
+
+    /**
+     * Walks a zoom level and sets its usage in the index. The blob formats stored or deleted during
+     * the walk may or may not have been counted, and are walked again up to {@link #MAX_WALKS}
+     * times.
+     * 
+     * @param notWalked
+     *            the zoom levels not walked yet, updated
+     * @return the zoom levels that kept changing and were left untouched, or {@code null} if
+     *         canceled
+     */
+    private Set<CacheUsageIndex.Key> verifyZoomLevel(String layerName, File gridsetZLevelDir,
+            String gridSetId, int zoomLevel, String parametersId,
+            Map<CacheUsageIndex.Key, Long> notWalked) throws Exception {
+        Set<CacheUsageIndex.Key> verified = new HashSet<CacheUsageIndex.Key>();
+        Set<CacheUsageIndex.Key> changed = new HashSet<CacheUsageIndex.Key>();
+        for (int walks = 0; walks < MAX_WALKS; walks++) {
+            Map<CacheUsageIndex.Key, Long> lastChanges = getLastChanges(layerName, gridSetId,
+                    zoomLevel, parametersId);
+            Map<String, long[]> walked = walk(layerName, gridsetZLevelDir, gridSetId, zoomLevel,
+                    parametersId);
+            if (walked == null) {
+                return null;
+            }
+            changed = setUsage(layerName, gridSetId, zoomLevel, parametersId, lastChanges, walked,
+                    verified);
+            notWalked.keySet().removeAll(lastChanges.keySet());
+            if (changed.isEmpty()) {
+                break;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return the {@link CacheUsageIndex#getLastChanges(String) last changes} of the blob formats
+     *         of a zoom level
+     */
+    private Map<CacheUsageIndex.Key, Long> getLastChanges(String layerName, String gridSetId,
+            int zoomLevel, String parametersId) {
+        Map<CacheUsageIndex.Key, Long> lastChanges = new HashMap<CacheUsageIndex.Key, Long>();
+        for (Map.Entry<CacheUsageIndex.Key, Long> e : usageIndex.getLastChanges(layerName)
+                .entrySet()) {
+            TileSet indexed = e.getKey().tileSet;
+            if (e.getKey().zoomLevel == zoomLevel && indexed.getGridsetId().equals(gridSetId)
+                    && equal(indexed.getParametersId(), parametersId)) {
+                lastChanges.put(e.getKey(), e.getValue());
+            }
+        }
+        return lastChanges;
+    }
+
+    /**
+     * Sets the usage of the blob formats of a zoom level to the walked figures, unless they changed
+     * since {@code lastChanges} was taken
+     * 
+     * @param lastChanges
+     *            the last changes before the walk, updated with the blob formats found by the walk
+     * @param verified
+     *            the blob formats already set, skipped and updated
+     * @return the blob formats that changed during the walk and were left untouched
+     */
+    private Set<CacheUsageIndex.Key> setUsage(String layerName, String gridSetId, int zoomLevel,
+            String parametersId, Map<CacheUsageIndex.Key, Long> lastChanges,
+            Map<String, long[]> walked, Set<CacheUsageIndex.Key> verified) {
+        for (String blobFormat : walked.keySet()) {
+            CacheUsageIndex.Key key = new CacheUsageIndex.Key(new TileSet(layerName, gridSetId,
+                    blobFormat, parametersId), zoomLevel);
+            if (!lastChanges.containsKey(key)) {
+                lastChanges.put(key, 0L);
+            }
+        }
+        Set<CacheUsageIndex.Key> changed = new HashSet<CacheUsageIndex.Key>();
+        for (Map.Entry<CacheUsageIndex.Key, Long> e : lastChanges.entrySet()) {
+            if (verified.contains(e.getKey())) {
+                continue;
+            }
+            long[] found = walked.get(e.getKey().tileSet.getBlobFormat());
+            if (found == null) {
+                found = new long[2];
+            }
+            if (usageIndex.setUsage(e.getKey(), e.getValue(), found[0], found[1])) {
+                verified.add(e.getKey());
+            } else {
+                changed.add(e.getKey());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Corrects the used quota of the tile sets of the layer to match the usage index, as fixed by
+     * the walk
+     */
+    private Map<TileSet, Quota> correctUsedQuota(String layerName, Set<TileSet> unverified)
+            throws InterruptedException {
+        // the index gets the updates still queued for the quota store as well
+        Map<TileSet, Quota> actual = null;
+        for (int i = 0; i < MAX_WALKS && actual == null; i++) {
+            long lastChange = usageIndex.getLastChange(layerName);
+            actual = usageIndex.getUsedQuota(layerName);
+            if (quotaUsageMonitor != null) {
+                for (Map.Entry<TileSet, Quota> e : quotaUsageMonitor.getQueuedQuota(layerName)
+                        .entrySet()) {
+                    Quota quota = actual.get(e.getKey());
+                    if (quota == null) {
+                        quota = new Quota();
+                        actual.put(e.getKey(), quota);
+                    }
+                    quota.subtract(e.getValue());
+                }
+            }
+            if (lastChange != usageIndex.getLastChange(layerName)) {
+                actual = null;
+            }
+        }
+        if (actual == null) {
+            log.warn("Not correcting the used quota of '" + layerName
+                    + "', its cache kept changing");
+            return Collections.emptyMap();
+        }
+
+        // compare against the quota store rather than the index, which may have been missing
+        // the layer altogether
+        for (TileSet tileSet : quotaStore.getTileSets()) {
+            if (tileSet.getLayerName().equals(layerName) && !actual.containsKey(tileSet)) {
+                actual.put(tileSet, new Quota());
+            }
+        }
+        final Map<TileSet, Quota> drift = new HashMap<TileSet, Quota>();
+        for (Map.Entry<TileSet, Quota> e : actual.entrySet()) {
+            if (unverified.contains(e.getKey())) {
+                continue;
+            }
+            Quota stored = quotaStore.getUsedQuotaByTileSetId(e.getKey().getId());
+            Quota difference = e.getValue().difference(stored);
+            if (difference.getBytes().signum() != 0) {
+                log.info("Correcting used quota of " + e.getKey() + " by "
+                        + difference.getBytes() + " bytes");
+                quotaStore.addToQuotaAndTileCounts(e.getKey(), difference,
+                        Collections.<PageStatsPayload> emptyList());
+                drift.put(e.getKey(), difference);
+            }
+        }
+        return drift;
+    }
+
+    private static boolean equal(String s1, String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
+    /**
+     * Walks a zoom level directory without reporting the tiles found
+     * 
+     * @return the tile count and bytes found by blob format, or {@code null} if canceled
+     */
+    Map<String, long[]> walk(String layerName, File gridsetZLevelDir, String gridSetId,
+            int zoomLevel, String parametersId) throws Exception {
+        ZoomLevelVisitor visitor = new ZoomLevelVisitor(layerName, gridsetZLevelDir, gridSetId,
+                zoomLevel, parametersId, null);
+        ZoomLevelVisitor.Stats stats = visitor.call();
+        return stats == null ? null : stats.perFormat;
+    }
+
+    private static File zoomLevelDir(File layerDir, String gridSetId, int zoomLevel,
+            String parametersId) {
+        String gridsetZLevelParamsDirName;
+        gridsetZLevelParamsDirName = FilePathUtils.gridsetZoomLevelDir(gridSetId, zoomLevel);
+        if (parametersId != null) {
+            gridsetZLevelParamsDirName += "_" + parametersId;
+        }
+        return new File(layerDir, gridsetZLevelParamsDirName);
+    }
+
     private Set<TileSet> findOnDiskTileSets(final TileLayer tileLayer, final File layerDir) {
 
         final String layerName = tileLayer.getName();
@@ -180,6 +474,12 @@ final class LayerCacheInfoBuilder {
 
     /**
      * Builds the cache information for a single layer/gridsetId/parametersId/zoomLevel combo
+     * <p>
+     * If a {@link QuotaUpdatesMonitor} is given each tile found is reported to it, and the usage
+     * index is set to the totals found once the zoom level is fully walked, or walked again as a
+     * verification if tiles were stored or deleted meanwhile. Otherwise the totals are only
+     * returned.
+     * </p>
      * 
      * @author groldan
      * 
@@ -207,6 +507,9 @@ final class LayerCacheInfoBuilder {
             long numTiles;
 
             Quota collectedQuota = new Quota();
+
+            /** Tile count and bytes by blob format */
+            Map<String, long[]> perFormat = new HashMap<String, long[]>();
         }
 
         public ZoomLevelVisitor(final String layerName, final File zoomLevelPath,
@@ -231,10 +534,28 @@ final class LayerCacheInfoBuilder {
                 log.debug("Gathering cache information for '" + zLevelKey);
                 stats.numTiles = 0L;
                 stats.runTimeMillis = 0L;
+                final Map<CacheUsageIndex.Key, Long> lastChanges = quotaUsageMonitor == null ? null
+                        : getLastChanges(layerName, gridSetId, tileZ, parametersId);
                 long runTime = System.currentTimeMillis();
                 FileUtils.traverseDepth(zoomLevelPath, this);
                 runTime = System.currentTimeMillis() - runTime;
                 stats.runTimeMillis = runTime;
+                if (quotaUsageMonitor != null
+                        && !setUsage(layerName, gridSetId, tileZ, parametersId, lastChanges,
+                                stats.perFormat, new HashSet<CacheUsageIndex.Key>()).isEmpty()) {
+                    // the tiles stored or deleted during the walk may or may not have been
+                    // counted, walk again without reporting them to the quota monitor
+                    Set<CacheUsageIndex.Key> changed = verifyZoomLevel(layerName, zoomLevelPath,
+                            gridSetId, tileZ, parametersId,
+                            new HashMap<CacheUsageIndex.Key, Long>());
+                    if (changed == null) {
+                        throw new TraversalCanceledException();
+                    }
+                    for (CacheUsageIndex.Key key : changed) {
+                        log.warn("Could not set the cache usage of " + key
+                                + ", it kept changing while walked");
+                    }
+                }
             } catch (TraversalCanceledException cancel) {
                 log.debug("Gathering cache information for " + zLevelKey + " was canceled.");
                 return null;
@@ -278,10 +599,19 @@ final class LayerCacheInfoBuilder {
             final long x = Long.valueOf(path.substring(fileNameIdx, coordSepIdx));
             final long y = Long.valueOf(path.substring(1 + coordSepIdx, dotIdx));
 
-            this.quotaUsageMonitor.tileStored(layerName, gridSetId, blobFormat, parametersId, x, y,
-                    (int) tileZ, length);
+            if (quotaUsageMonitor != null) {
+                quotaUsageMonitor.tileStored(layerName, gridSetId, blobFormat, parametersId, x, y,
+                        (int) tileZ, length);
+            }
             stats.numTiles++;
             stats.collectedQuota.addBytes(length);
+            long[] formatStats = stats.perFormat.get(blobFormat);
+            if (formatStats == null) {
+                formatStats = new long[2];
+                stats.perFormat.put(blobFormat, formatStats);
+            }
+            formatStats[0]++;
+            formatStats[1] += length;
             return true;
         }
 
@@ -307,6 +637,13 @@ final class LayerCacheInfoBuilder {
      */
     public boolean isRunning(String layerName) {
         try {
+            Future<Map<TileSet, Quota>> verification = perLayerVerifications.get(layerName);
+            if (verification != null) {
+                if (!verification.isDone()) {
+                    return true;
+                }
+                perLayerVerifications.remove(layerName);
+            }
             List<Future<ZoomLevelVisitor.Stats>> layerTasks = perLayerRunningTasks.get(layerName);
             if (layerTasks == null) {
                 return false;
@@ -52,6 +52,25 @@ public class QueuedQuotaUpdatesConsumer implements Callable<Long>, Serializable
     
     boolean terminate = false;
 
+    /**
+     * A task queued along with the quota updates, run once the updates queued before it are saved
+     * to the store and before the ones queued after it
+     */
+    static class QueuedTask extends QuotaUpdate {
+
+        private final Runnable task;
+
+        QueuedTask(Runnable task) {
+            super((TileSet) null, 0, null);
+            this.task = task;
+        }
+
+        @Override
+        public String toString() {
+            return "[task " + task + "]";
+        }
+    }
+
     /**
      * Tracks accumulated quota difference for a single TileSet and accumulated number of tiles
      * difference for pages in the same TileSet
@@ -186,7 +205,10 @@ public class QueuedQuotaUpdatesConsumer implements Callable<Long>, Serializable
                  */
                 QuotaUpdate updateData;
                 updateData = queue.poll(DEFAULT_SYNC_TIMEOUT, TimeUnit.MILLISECONDS);
-                if (updateData != null) {
+                if (updateData instanceof QueuedTask) {
+                    commitAll();
+                    ((QueuedTask) updateData).task.run();
+                } else if (updateData != null) {
                     /*
                      * or perform an aggregated update in case we're really busy
                      */
@@ -233,6 +255,18 @@ public class QueuedQuotaUpdatesConsumer implements Callable<Long>, Serializable
         accumulatedUpdate.add(updateData);
     }
 
+    /**
+     * Saves all the aggregated updates to the store
+     * 
+     * @throws InterruptedException
+     */
+    private void commitAll() throws InterruptedException {
+        for (TimedQuotaUpdate timedUpdate : aggregatedDelayedUpdates.values()) {
+            commit(timedUpdate);
+        }
+        aggregatedDelayedUpdates.clear();
+    }
+
     /**
      * Makes sure no cached updates are held for too long before synchronizing with the store
      * 
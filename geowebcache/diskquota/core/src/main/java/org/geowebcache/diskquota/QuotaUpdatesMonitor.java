@@ -15,15 +15,22 @@
  */
 package org.geowebcache.diskquota;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.GeoWebCacheExtensions;
+import org.geowebcache.diskquota.storage.Quota;
+import org.geowebcache.diskquota.storage.TileSet;
 import org.geowebcache.storage.StorageBroker;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.util.Assert;
@@ -148,6 +155,48 @@ public class QuotaUpdatesMonitor {
                 blobSize);
     }
 
+    /**
+     * Queues a task to be run on the quota updates thread once the updates queued so far are saved
+     * to the quota store, so that the used quotas it reads only miss the updates queued after it.
+     * 
+     * @throws IllegalStateException
+     *             if the monitor is shut down
+     */
+    public <T> Future<T> submit(Callable<T> task) throws InterruptedException {
+        final BlockingQueue<QuotaUpdate> queue = this.sharedQueue;
+        if (queue == null) {
+            throw new IllegalStateException("The quota updates monitor is shut down");
+        }
+        FutureTask<T> future = new FutureTask<T>(task);
+        queue.put(new QueuedQuotaUpdatesConsumer.QueuedTask(future));
+        return future;
+    }
+
+    /**
+     * @return the bytes added or removed by the queued updates of each tile set of the layer, not
+     *         yet saved to the quota store
+     */
+    public Map<TileSet, Quota> getQueuedQuota(String layerName) {
+        Map<TileSet, Quota> queued = new HashMap<TileSet, Quota>();
+        final BlockingQueue<QuotaUpdate> queue = this.sharedQueue;
+        if (queue == null) {
+            return queued;
+        }
+        for (QuotaUpdate update : queue) {
+            TileSet tileSet = update.getTileSet();
+            if (tileSet == null || !tileSet.getLayerName().equals(layerName)) {
+                continue;
+            }
+            Quota quota = queued.get(tileSet);
+            if (quota == null) {
+                quota = new Quota();
+                queued.put(tileSet, quota);
+            }
+            quota.addBytes(update.getSize());
+        }
+        return queued;
+    }
+
     public void awaitTermination(int timeout, TimeUnit units) throws InterruptedException {
         if (!executorService.isShutdown()) {
             throw new IllegalStateException("Called awaitTermination but the "
@@ -0,0 +1,389 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.diskquota;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.geowebcache.diskquota.storage.PageStatsPayload;
+import org.geowebcache.diskquota.storage.Quota;
+import org.geowebcache.diskquota.storage.TilePageCalculator;
+import org.geowebcache.diskquota.storage.TileSet;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.file.FilePathGenerator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CacheUsageIndexTest {
+
+    private static final String LAYER = "topp:states";
+
+    private static final String GRIDSET = "EPSG:4326";
+
+    private static final String PNG = ImageMime.png.getFormat();
+
+    private static final String JPEG = ImageMime.jpeg.getFormat();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private CacheUsageIndex index;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        index = new CacheUsageIndex(tmp.getRoot());
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static TileSet tileSet(String layer, String format) {
+        return new TileSet(layer, GRIDSET, format, null);
+    }
+
+    private Map<CacheUsageIndex.Key, CacheUsageIndex.Usage> usage(String layer) {
+        return index.getUsage(layer);
+    }
+
+    private CacheUsageIndex.Usage usage(String layer, String format, int z) {
+        return index.getUsage(layer).get(new CacheUsageIndex.Key(tileSet(layer, format), z));
+    }
+
+    @Test
+    public void testEventsAndSnapshot() throws Exception {
+        assertFalse(index.load());
+
+        index.tileStored(LAYER, GRIDSET, PNG, null, 0, 0, 3, 100);
+        index.tileStored(LAYER, GRIDSET, PNG, null, 1, 0, 3, 200);
+        index.tileUpdated(LAYER, GRIDSET, PNG, null, 1, 0, 3, 250, 200);
+        index.tileStored(LAYER, GRIDSET, PNG, null, 0, 0, 4, 10);
+        index.tileDeleted(LAYER, GRIDSET, PNG, null, 0, 0, 4, 10);
+        index.tileStored(LAYER, GRIDSET, JPEG, null, 0, 0, 3, 1000);
+        assertEquals(2, usage(LAYER, PNG, 3).getTiles());
+        assertEquals(350, usage(LAYER, PNG, 3).getBytes());
+        assertEquals(0, usage(LAYER, PNG, 4).getTiles());
+        assertEquals(350, index.getUsedQuota(LAYER).get(tileSet(LAYER, PNG)).getBytes()
+                .longValue());
+        assertEquals(1000, index.getUsedQuota(LAYER).get(tileSet(LAYER, JPEG)).getBytes()
+                .longValue());
+        index.save(true);
+
+        index = new CacheUsageIndex(tmp.getRoot());
+        assertTrue(index.load());
+        assertTrue(index.hasLayer(LAYER));
+        assertEquals(3, usage(LAYER).size());
+        assertEquals(350, usage(LAYER, PNG, 3).getBytes());
+        assertEquals(1, usage(LAYER, JPEG, 3).getTiles());
+
+        // loading marks the snapshot as dirty until the next clean save
+        index = new CacheUsageIndex(tmp.getRoot());
+        assertFalse(index.load());
+        assertEquals(350, usage(LAYER, PNG, 3).getBytes());
+    }
+
+    @Test
+    public void testLayerEvents() throws Exception {
+        index.tileStored(LAYER, GRIDSET, PNG, null, 0, 0, 3, 100);
+        index.tileStored(LAYER, "EPSG:900913", PNG, null, 0, 0, 3, 100);
+        index.tileStored("other", GRIDSET, PNG, null, 0, 0, 3, 100);
+
+        index.layerRenamed(LAYER, "renamed");
+        assertFalse(index.hasLayer(LAYER));
+        assertEquals(2, usage("renamed").size());
+        assertEquals(100, usage("renamed", PNG, 3).getBytes());
+
+        index.gridSubsetDeleted("renamed", GRIDSET);
+        assertEquals(1, usage("renamed").size());
+        assertNull(usage("renamed", PNG, 3));
+
+        index.layerDeleted("renamed");
+        assertFalse(index.hasLayer("renamed"));
+        assertTrue(index.hasLayer("other"));
+    }
+
+    private static TileLayer mockLayer() {
+        GridSubset gridSubset = GridSubsetFactory.createGridSubSet(new GridSetBroker(false,
+                false).WORLD_EPSG4326);
+        TileLayer layer = org.easymock.classextension.EasyMock.createMock(TileLayer.class);
+        EasyMock.expect(layer.getName()).andReturn(LAYER).anyTimes();
+        EasyMock.expect(layer.getGridSubsets()).andReturn(Collections.singleton(GRIDSET))
+                .anyTimes();
+        EasyMock.expect(layer.getGridSubset(GRIDSET)).andReturn(gridSubset).anyTimes();
+        org.easymock.classextension.EasyMock.replay(layer);
+        return layer;
+    }
+
+    @Test
+    public void testVerifyRepairsDrift() throws Exception {
+        TileLayer layer = mockLayer();
+
+        writeTile(0, 0, 2, PNG, 100);
+        writeTile(1, 0, 2, PNG, 100);
+        writeTile(0, 0, 3, PNG, 50);
+
+        // the index missed a tile at zoom level 3, and the jpeg tiles are long gone
+        index.tileStored(LAYER, GRIDSET, PNG, null, 0, 0, 2, 100);
+        index.tileStored(LAYER, GRIDSET, PNG, null, 1, 0, 2, 100);
+        index.tileStored(LAYER, GRIDSET, JPEG, null, 0, 0, 3, 1000);
+
+        QuotaStore quotaStore = EasyMock.createMock(QuotaStore.class);
+        EasyMock.expect(quotaStore.getTileSets()).andReturn(
+                Collections.singleton(tileSet(LAYER, JPEG)));
+        EasyMock.expect(quotaStore.getUsedQuotaByTileSetId(tileSet(LAYER, PNG).getId()))
+                .andReturn(new Quota(BigInteger.valueOf(200)));
+        EasyMock.expect(quotaStore.getUsedQuotaByTileSetId(tileSet(LAYER, JPEG).getId()))
+                .andReturn(new Quota(BigInteger.valueOf(1000)));
+        Capture<Quota> pngDiff = new Capture<Quota>();
+        Capture<Quota> jpegDiff = new Capture<Quota>();
+        quotaStore.addToQuotaAndTileCounts(EasyMock.eq(tileSet(LAYER, PNG)),
+                EasyMock.capture(pngDiff), EasyMock.<Collection<PageStatsPayload>> anyObject());
+        quotaStore.addToQuotaAndTileCounts(EasyMock.eq(tileSet(LAYER, JPEG)),
+                EasyMock.capture(jpegDiff), EasyMock.<Collection<PageStatsPayload>> anyObject());
+        EasyMock.replay(quotaStore);
+
+        LayerCacheInfoBuilder builder = new LayerCacheInfoBuilder(tmp.getRoot(), executor, null,
+                index, quotaStore);
+        Map<TileSet, Quota> drift = builder.verifyCacheInfo(layer).get(10, TimeUnit.SECONDS);
+        assertFalse(builder.isRunning(LAYER));
+        EasyMock.verify(quotaStore);
+
+        assertEquals(2, drift.size());
+        assertEquals(50, pngDiff.getValue().getBytes().longValue());
+        assertEquals(-1000, jpegDiff.getValue().getBytes().longValue());
+
+        assertEquals(2, usage(LAYER).size());
+        assertEquals(2, usage(LAYER, PNG, 2).getTiles());
+        assertEquals(1, usage(LAYER, PNG, 3).getTiles());
+        assertEquals(50, usage(LAYER, PNG, 3).getBytes());
+        assertNull(usage(LAYER, JPEG, 3));
+    }
+
+    @Test
+    public void testVerifyDuringUpdates() throws Exception {
+        TileLayer layer = mockLayer();
+
+        // a quota store kept in memory, updated by a running quota updates monitor
+        final Map<TileSet, Long> storedQuota = new ConcurrentHashMap<TileSet, Long>();
+        TilePageCalculator pageCalculator = org.easymock.classextension.EasyMock
+                .createNiceMock(TilePageCalculator.class);
+        org.easymock.classextension.EasyMock.replay(pageCalculator);
+        final QuotaStore quotaStore = EasyMock.createMock(QuotaStore.class);
+        EasyMock.expect(quotaStore.getTilePageCalculator()).andReturn(pageCalculator).anyTimes();
+        EasyMock.expect(quotaStore.getTileSets()).andAnswer(new IAnswer<Set<TileSet>>() {
+            public Set<TileSet> answer() {
+                return new HashSet<TileSet>(storedQuota.keySet());
+            }
+        }).anyTimes();
+        EasyMock.expect(quotaStore.getUsedQuotaByTileSetId((String) EasyMock.anyObject()))
+                .andAnswer(new IAnswer<Quota>() {
+                    public Quota answer() {
+                        for (Map.Entry<TileSet, Long> e : storedQuota.entrySet()) {
+                            if (e.getKey().getId().equals(EasyMock.getCurrentArguments()[0])) {
+                                return new Quota(BigInteger.valueOf(e.getValue()));
+                            }
+                        }
+                        return new Quota();
+                    }
+                }).anyTimes();
+        quotaStore.addToQuotaAndTileCounts((TileSet) EasyMock.anyObject(),
+                (Quota) EasyMock.anyObject(), EasyMock.<Collection<PageStatsPayload>> anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Void>() {
+            public Void answer() {
+                TileSet tileSet = (TileSet) EasyMock.getCurrentArguments()[0];
+                Quota diff = (Quota) EasyMock.getCurrentArguments()[1];
+                Long bytes = storedQuota.get(tileSet);
+                storedQuota.put(tileSet, (bytes == null ? 0 : bytes)
+                        + diff.getBytes().longValue());
+                return null;
+            }
+        }).anyTimes();
+        StorageBroker storageBroker = EasyMock.createMock(StorageBroker.class);
+        final Capture<BlobStoreListener> quotaListener = new Capture<BlobStoreListener>();
+        storageBroker.addBlobStoreListener(EasyMock.capture(quotaListener));
+        EasyMock.expect(storageBroker.removeBlobStoreListener(
+                (BlobStoreListener) EasyMock.anyObject())).andReturn(true);
+        EasyMock.replay(quotaStore, storageBroker);
+        QuotaUpdatesMonitor monitor = new QuotaUpdatesMonitor(new DiskQuotaConfig(),
+                storageBroker, quotaStore);
+        monitor.startUp();
+
+        try {
+            // the index and the quota store both missed a tile at zoom level 2
+            writeTile(0, 0, 2, PNG, 100);
+            writeTile(1, 0, 2, PNG, 100);
+            writeTile(0, 0, 3, PNG, 50);
+            writeTile(0, 0, 4, JPEG, 10);
+            index.tileStored(LAYER, GRIDSET, PNG, null, 0, 0, 2, 100);
+            index.tileStored(LAYER, GRIDSET, PNG, null, 0, 0, 3, 50);
+            index.tileStored(LAYER, GRIDSET, JPEG, null, 0, 0, 4, 10);
+            storedQuota.put(tileSet(LAYER, PNG), 150L);
+            storedQuota.put(tileSet(LAYER, JPEG), 10L);
+
+            // still queued in the monitor when the verification starts
+            writeTile(0, 0, 5, PNG, 30);
+            index.tileStored(LAYER, GRIDSET, PNG, null, 0, 0, 5, 30);
+            quotaListener.getValue().tileStored(LAYER, GRIDSET, PNG, null, 0, 0, 5, 30);
+
+            final BlobStoreListener[] listeners = { index, quotaListener.getValue() };
+            LayerCacheInfoBuilder builder = new LayerCacheInfoBuilder(tmp.getRoot(), executor,
+                    monitor, index, quotaStore) {
+
+                final Map<Integer, Integer> walks = new HashMap<Integer, Integer>();
+
+                @Override
+                Map<String, long[]> walk(String layerName, File gridsetZLevelDir,
+                        String gridSetId, int zoomLevel, String parametersId) throws Exception {
+                    Map<String, long[]> walked = super.walk(layerName, gridsetZLevelDir,
+                            gridSetId, zoomLevel, parametersId);
+                    Integer count = walks.get(zoomLevel);
+                    walks.put(zoomLevel, count == null ? 1 : count + 1);
+                    // changes the walk could not see
+                    if (zoomLevel == 2 && count == null) {
+                        writeTile(2, 0, 2, PNG, 70);
+                        for (BlobStoreListener listener : listeners) {
+                            listener.tileStored(LAYER, GRIDSET, PNG, null, 2, 0, 2, 70);
+                        }
+                    } else if (zoomLevel == 3 && count == null) {
+                        assertTrue(tileFile(0, 0, 3, PNG).delete());
+                        for (BlobStoreListener listener : listeners) {
+                            listener.tileDeleted(LAYER, GRIDSET, PNG, null, 0, 0, 3, 50);
+                        }
+                    } else if (zoomLevel == 4) {
+                        // keeps changing
+                        int size = 10 + walks.get(zoomLevel);
+                        writeTile(0, 0, 4, JPEG, size);
+                        for (BlobStoreListener listener : listeners) {
+                            listener.tileUpdated(LAYER, GRIDSET, JPEG, null, 0, 0, 4, size,
+                                    size - 1);
+                        }
+                    }
+                    return walked;
+                }
+            };
+            Map<TileSet, Quota> drift = builder.verifyCacheInfo(layer).get(10, TimeUnit.SECONDS);
+
+            // only the missed tile is drift, the zoom level that kept changing is left alone
+            assertEquals(1, drift.size());
+            assertEquals(100, drift.get(tileSet(LAYER, PNG)).getBytes().longValue());
+            assertEquals(3, usage(LAYER, PNG, 2).getTiles());
+            assertEquals(270, usage(LAYER, PNG, 2).getBytes());
+            assertNull(usage(LAYER, PNG, 3));
+            assertEquals(13, usage(LAYER, JPEG, 4).getBytes());
+            assertEquals(30, usage(LAYER, PNG, 5).getBytes());
+
+            // once all the updates are saved the quota store matches the cache contents
+            monitor.submit(new Callable<Void>() {
+                public Void call() {
+                    return null;
+                }
+            }).get(10, TimeUnit.SECONDS);
+            assertEquals(300, storedQuota.get(tileSet(LAYER, PNG)).longValue());
+            assertEquals(13, storedQuota.get(tileSet(LAYER, JPEG)).longValue());
+        } finally {
+            monitor.shutDownNow();
+        }
+    }
+
+    @Test
+    public void testBuildDuringUpdates() throws Exception {
+        TileLayer layer = mockLayer();
+        writeTile(0, 0, 2, PNG, 100);
+        writeTile(1, 0, 2, PNG, 100);
+        // a stale figure, replaced by the walk
+        index.tileStored(LAYER, GRIDSET, PNG, null, 0, 0, 2, 1000);
+
+        // deletes the first tile reported by the walk, which has counted it already
+        QuotaUpdatesMonitor monitor = new QuotaUpdatesMonitor(new DiskQuotaConfig(),
+                EasyMock.createNiceMock(StorageBroker.class),
+                EasyMock.createNiceMock(QuotaStore.class)) {
+
+            boolean deleted;
+
+            @Override
+            public void tileStored(String layerName, String gridSetId, String blobFormat,
+                    String parametersId, long x, long y, int z, long blobSize) {
+                if (!deleted) {
+                    deleted = true;
+                    try {
+                        assertTrue(tileFile(x, y, z, blobFormat).delete());
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    index.tileDeleted(layerName, gridSetId, blobFormat, parametersId, x, y, z,
+                            blobSize);
+                }
+            }
+        };
+        LayerCacheInfoBuilder builder = new LayerCacheInfoBuilder(tmp.getRoot(), executor,
+                monitor, index, EasyMock.createNiceMock(QuotaStore.class));
+        builder.buildCacheInfo(layer);
+        for (int i = 0; i < 100 && builder.isRunning(LAYER); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(builder.isRunning(LAYER));
+
+        // walked again rather than losing the delete
+        assertEquals(1, usage(LAYER, PNG, 2).getTiles());
+        assertEquals(100, usage(LAYER, PNG, 2).getBytes());
+    }
+
+    private File tileFile(long x, long y, int z, String format) throws Exception {
+        TileObject tile = TileObject.createQueryTileObject(LAYER, new long[] { x, y, z }, GRIDSET,
+                format, null);
+        return new FilePathGenerator(tmp.getRoot().getAbsolutePath()).tilePath(tile,
+                MimeType.createFromFormat(format));
+    }
+
+    private void writeTile(long x, long y, int z, String format, int size) throws Exception {
+        FileUtils.writeByteArrayToFile(tileFile(x, y, z, format), new byte[size]);
+    }
+}
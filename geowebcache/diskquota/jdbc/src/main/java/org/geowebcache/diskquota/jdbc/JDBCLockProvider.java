@@ -0,0 +1,326 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.diskquota.jdbc;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.diskquota.storage.SystemUtils;
+import org.geowebcache.locks.LockProvider;
+import org.geowebcache.locks.MemoryLockProvider;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * A lock provider coordinating the nodes of a cluster through a table in a relational database,
+ * using the same {@link SQLDialect} and {@link DataSource} as the JDBC quota store.
+ * <p>
+ * Each lock is a row of the <code>GWC_LOCK</code> table with a lease: while held, the lease is
+ * periodically extended, and if the holder dies the row expires and is taken over by the next
+ * node asking for it. Leases are measured with the database clock, so the clocks of the nodes
+ * don't need to agree. The threads of the same node queue in memory, so only one of them per key
+ * polls the database, retrying every {@link #setRetryInterval(int) retry interval} until the lock
+ * is free or the {@link #setLockTimeout(int) lock timeout} expires.
+ * </p>
+ */
+public class JDBCLockProvider implements LockProvider, InitializingBean, DisposableBean {
+
+    private static final Log log = LogFactory.getLog(JDBCLockProvider.class);
+
+    /**
+     * The dialect accounting for database specific differences
+     */
+    SQLDialect dialect;
+
+    /**
+     * The template used to execute commands
+     */
+    SimpleJdbcTemplate jt;
+
+    /**
+     * The database schema (optional)
+     */
+    String schema;
+
+    /**
+     * The identifier of this node in the lock table
+     */
+    String nodeId = UUID.randomUUID().toString();
+
+    /**
+     * Lease of the locks, in milliseconds
+     */
+    long leaseTime = 60 * 1000;
+
+    /**
+     * The wait between two attempts to get a lock held by another node, in milliseconds
+     */
+    int retryInterval = 50;
+
+    /**
+     * Max time, in milliseconds, to wait for a lock held by another node
+     */
+    long lockTimeout = 120 * 1000;
+
+    /**
+     * The holders of the locks currently owned by this node, by key
+     */
+    final Map<String, String> heldLocks = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Orders the threads of this node
+     */
+    final MemoryLockProvider memoryProvider = new MemoryLockProvider();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    ScheduledExecutorService leaseRenewer;
+
+    /**
+     * Sets the connection pool provider
+     */
+    public void setDataSource(DataSource dataSource) {
+        this.jt = new SimpleJdbcTemplate(dataSource);
+    }
+
+    /**
+     * Sets the SQL dialect used by this lock provider
+     */
+    public void setDialect(SQLDialect dialect) {
+        this.dialect = dialect;
+    }
+
+    /**
+     * Sets the database schema used by this lock provider
+     *
+     * @param schema
+     */
+    public void setSchema(String schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * Sets the identifier of this node in the lock table, a random one is used by default
+     */
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Sets the time, in seconds, after which the lock held by a node which stopped renewing them
+     * can be taken over by the other nodes
+     */
+    public void setLeaseTime(int seconds) {
+        this.leaseTime = TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    /**
+     * Sets the wait, in milliseconds, between two attempts to get a lock held by another node
+     */
+    public void setRetryInterval(int retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * Sets the max time, in seconds, to wait for a lock held by another node
+     */
+    public void setLockTimeout(int seconds) {
+        this.lockTimeout = TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    public void afterPropertiesSet() throws Exception {
+        initialize();
+    }
+
+    /**
+     * Creates the lock table if missing and starts renewing the leases
+     */
+    public void initialize() {
+        if (dialect == null || jt == null) {
+            throw new IllegalStateException("Please provide both the sql dialect and the data "
+                    + "source before calling inizialize");
+        }
+        dialect.initializeLockTables(schema, jt);
+
+        CustomizableThreadFactory tf = new CustomizableThreadFactory("GWC JDBC lock lease renewer-");
+        tf.setDaemon(true);
+        leaseRenewer = Executors.newSingleThreadScheduledExecutor(tf);
+        long period = Math.max(leaseTime / 3, 1);
+        leaseRenewer.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                renewLeases();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void destroy() throws Exception {
+        if (leaseRenewer != null) {
+            leaseRenewer.shutdownNow();
+        }
+        // let the other nodes have our locks right away
+        for (Map.Entry<String, String> entry : heldLocks.entrySet()) {
+            try {
+                deleteLock(entry.getKey(), entry.getValue());
+            } catch (DataAccessException e) {
+                log.warn("Failed to release lock " + entry.getKey() + " on shutdown", e);
+            }
+        }
+        heldLocks.clear();
+    }
+
+    public Lock getLock(final String lockKey) throws GeoWebCacheException {
+        // first off, synchronize among threads of this node
+        final Lock memoryLock = memoryProvider.getLock(lockKey);
+        boolean acquired = false;
+        try {
+            // then among the nodes
+            final String key = DigestUtils.shaHex(lockKey);
+            final String holder = nodeId + ":" + sequence.incrementAndGet();
+            final SystemUtils clock = SystemUtils.get();
+            long deadline = clock.currentTimeMillis() + lockTimeout;
+            int attempts = 0;
+            while (!tryLock(key, holder)) {
+                if (clock.currentTimeMillis() >= deadline) {
+                    throw new GeoWebCacheException("Failed to get a lock on key " + lockKey
+                            + " after " + attempts + " attempts");
+                }
+                attempts++;
+                try {
+                    Thread.sleep(retryInterval);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GeoWebCacheException("Interrupted while waiting for lock on key "
+                            + lockKey);
+                }
+            }
+            heldLocks.put(key, holder);
+            acquired = true;
+            if (log.isDebugEnabled()) {
+                log.debug("Lock " + lockKey + " acquired by " + holder + " after " + attempts
+                        + " retries");
+            }
+
+            return new Lock() {
+
+                boolean released;
+
+                public void release() throws GeoWebCacheException {
+                    if (released) {
+                        return;
+                    }
+                    released = true;
+                    try {
+                        heldLocks.remove(key);
+                        if (deleteLock(key, holder) == 0) {
+                            // do not crap out, locks usage in GWC is only there to prevent
+                            // duplication of work
+                            log.warn("Lock " + lockKey + " was taken over by another node "
+                                    + "before being released, its lease expired");
+                        } else if (log.isDebugEnabled()) {
+                            log.debug("Lock " + lockKey + " released by " + holder);
+                        }
+                    } catch (DataAccessException e) {
+                        throw new GeoWebCacheException("Failure while trying to release lock for key "
+                                + lockKey, e);
+                    } finally {
+                        memoryLock.release();
+                    }
+                }
+            };
+        } catch (DataAccessException e) {
+            throw new GeoWebCacheException("Failure while trying to get lock for key " + lockKey,
+                    e);
+        } finally {
+            if (!acquired) {
+                memoryLock.release();
+            }
+        }
+    }
+
+    /**
+     * Inserts the lock row, or takes it over if its lease expired
+     */
+    private boolean tryLock(String key, String holder) {
+        // the expiry is computed and checked by the database, the clocks of the nodes may differ
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("key", key);
+        params.put("holder", holder);
+        params.put("lease", leaseTime);
+        try {
+            String insert = dialect.getLockInsertStatement(schema, "key", "holder", "lease");
+            if (jt.update(insert, params) == 1) {
+                return true;
+            }
+        } catch (DataIntegrityViolationException e) {
+            // another node inserted it at the same time
+        } catch (ParametricDataAccessException e) {
+            if (!(e.getCause() instanceof DataIntegrityViolationException)) {
+                throw e;
+            }
+        }
+        String takeOver = dialect.getLockTakeOverStatement(schema, "key", "holder", "lease");
+        boolean tookOver = jt.update(takeOver, params) == 1;
+        if (tookOver && log.isInfoEnabled()) {
+            log.info("Took over the expired lock " + key);
+        }
+        return tookOver;
+    }
+
+    private int deleteLock(String key, String holder) {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("key", key);
+        params.put("holder", holder);
+        return jt.update(dialect.getLockReleaseStatement(schema, "key", "holder"), params);
+    }
+
+    /**
+     * Extends the lease of the locks held by this node
+     */
+    void renewLeases() {
+        String renew = dialect.getLockRenewStatement(schema, "key", "holder", "lease");
+        for (Map.Entry<String, String> entry : heldLocks.entrySet()) {
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("key", entry.getKey());
+            params.put("holder", entry.getValue());
+            params.put("lease", leaseTime);
+            try {
+                if (jt.update(renew, params) == 0) {
+                    log.warn("Lock " + entry.getKey() + " held by " + entry.getValue()
+                            + " was lost, its lease expired before being renewed");
+                    heldLocks.remove(entry.getKey(), entry.getValue());
+                }
+            } catch (DataAccessException e) {
+                log.warn("Failed to renew the lease of lock " + entry.getKey(), e);
+            }
+        }
+    }
+
+}
@@ -67,12 +67,25 @@ public class OracleDialect extends SQLDialect {
                 "CREATE INDEX TILEPAGE_FILL_FACTOR ON TILEPAGE(FILL_FACTOR)",
                 "CREATE INDEX TILEPAGE_FREQUENCY ON TILEPAGE(FREQUENCY_OF_USE DESC)",
                 "CREATE INDEX TILEPAGE_LAST_ACCESS ON TILEPAGE(LAST_ACCESS_TIME_MINUTES DESC)"));
+
+        LOCK_TABLE_CREATION_MAP.put("GWC_LOCK", Arrays.asList( //
+                "CREATE TABLE ${schema}GWC_LOCK (\n" + //
+                        "  KEY VARCHAR(" + LOCK_KEY_SIZE + ") PRIMARY KEY,\n" + //
+                        "  HOLDER VARCHAR(" + LOCK_HOLDER_SIZE + ") NOT NULL,\n" + //
+                        "  EXPIRES NUMBER(19) NOT NULL\n" + //
+                        ") ORGANIZATION INDEX"));
     }
     
     @Override
     protected void addEmtpyTableReference(StringBuilder sb) {
         sb.append("FROM DUAL");
     }
+
+    @Override
+    protected void addCurrentTimeMillis(StringBuilder sb) {
+        // DATE arithmetic works in days, with a one second precision
+        sb.append("ROUND((CAST(SYS_EXTRACT_UTC(SYSTIMESTAMP) AS DATE) - DATE '1970-01-01') * 86400000)");
+    }
     
     public String getLeastFrequentlyUsedPage(String schema, List<String> layerParamNames) {
         StringBuilder sb = new StringBuilder("SELECT * FROM (");
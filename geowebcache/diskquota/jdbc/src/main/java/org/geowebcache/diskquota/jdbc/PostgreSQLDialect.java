@@ -23,4 +23,8 @@ package org.geowebcache.diskquota.jdbc;
  */
 public class PostgreSQLDialect extends SQLDialect {
 
+    @Override
+    protected void addCurrentTimeMillis(StringBuilder sb) {
+        sb.append("CAST(EXTRACT(EPOCH FROM CURRENT_TIMESTAMP) * 1000 AS BIGINT)");
+    }
 }
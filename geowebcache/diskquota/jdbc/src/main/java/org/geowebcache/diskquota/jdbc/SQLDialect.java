@@ -55,6 +55,9 @@ public class SQLDialect {
     protected static final int NUM_HITS_SIZE = 64;
     protected static final int TILESET_KEY_SIZE = 320;
     protected static final int TILEPAGE_KEY_SIZE = TILESET_KEY_SIZE;
+    // lock keys are stored as their SHA-1 sum, the holder is a node id plus a sequence number
+    protected static final int LOCK_KEY_SIZE = 41;
+    protected static final int LOCK_HOLDER_SIZE = 128;
     
     protected final Map<String, List<String>> TABLE_CREATION_MAP = new LinkedHashMap<String, List<String>>() {
         {
@@ -95,21 +98,49 @@ public class SQLDialect {
         }
     };
 
+    /**
+     * The tables used by {@link JDBCLockProvider}, kept apart from the quota store ones
+     */
+    protected final Map<String, List<String>> LOCK_TABLE_CREATION_MAP = new LinkedHashMap<String, List<String>>() {
+        {
+            put("GWC_LOCK", Arrays.asList( //
+                    "CREATE TABLE ${schema}GWC_LOCK (\n" + //
+                            "  KEY VARCHAR(" + LOCK_KEY_SIZE + ") PRIMARY KEY,\n" + //
+                            "  HOLDER VARCHAR(" + LOCK_HOLDER_SIZE + ") NOT NULL,\n" + //
+                            "  EXPIRES BIGINT NOT NULL\n" + //
+                            ")"));
+        }
+    };
+
     /**
      * Checks if the database schema is present, if missing it generates it
      * 
      * @param template
      */
     public void initializeTables(String schema, SimpleJdbcTemplate template) {
+        initializeTables(schema, template, TABLE_CREATION_MAP);
+    }
+
+    /**
+     * Checks if the lock table is present, if missing it generates it
+     * 
+     * @param template
+     */
+    public void initializeLockTables(String schema, SimpleJdbcTemplate template) {
+        initializeTables(schema, template, LOCK_TABLE_CREATION_MAP);
+    }
+
+    private void initializeTables(String schema, SimpleJdbcTemplate template,
+            Map<String, List<String>> tables) {
         String prefix;
         if (schema == null) {
             prefix = "";
         } else {
             prefix = schema + ".";
         }
-        for (String table : TABLE_CREATION_MAP.keySet()) {
+        for (String table : tables.keySet()) {
             if (!tableExists(template, schema, table)) {
-                for (String command : TABLE_CREATION_MAP.get(table)) {
+                for (String command : tables.get(table)) {
                     command = command.replace("${schema}", prefix);
                     template.getJdbcOperations().execute(command);
                 }
@@ -242,6 +273,15 @@ public class SQLDialect {
         // nothing to do        
     }
 
+    /**
+     * The current time of the database, in milliseconds since the epoch, used for the lock leases
+     * so that the clocks of the nodes of a cluster don't need to agree. The default works for H2.
+     * @param sb
+     */
+    protected void addCurrentTimeMillis(StringBuilder sb) {
+        sb.append("DATEDIFF('MS', TIMESTAMP '1970-01-01 00:00:00', CURRENT_TIMESTAMP)");
+    }
+
     public String getUsedQuotaByTileSetId(String schema, String keyParam) {
         StringBuilder sb = new StringBuilder("SELECT BYTES FROM ");
         if (schema != null) {
@@ -459,4 +499,105 @@ public class SQLDialect {
         return sb.toString();
     }
 
+    /**
+     * Inserts a lock, provided no lock is already present for the same key. The lease is added to
+     * the database clock, so that the nodes agree on the expiry whatever their own clock says
+     * 
+     * @param schema
+     * @param keyParam
+     * @param holderParam
+     * @param leaseParam the lease time in milliseconds
+     * @return
+     */
+    public String getLockInsertStatement(String schema, String keyParam, String holderParam,
+            String leaseParam) {
+        StringBuilder sb = new StringBuilder("INSERT INTO ");
+        if (schema != null) {
+            sb.append(schema).append(".");
+        }
+        sb.append("GWC_LOCK SELECT :").append(keyParam);
+        sb.append(", :").append(holderParam).append(", ");
+        addCurrentTimeMillis(sb);
+        sb.append(" + :").append(leaseParam).append(" ");
+
+        addEmtpyTableReference(sb);
+        sb.append(" WHERE NOT EXISTS(SELECT 1 FROM ");
+        if (schema != null) {
+            sb.append(schema).append(".");
+        }
+        sb.append("GWC_LOCK WHERE KEY = :").append(keyParam).append(")");
+
+        return sb.toString();
+    }
+
+    /**
+     * Takes over a lock whose lease expired according to the database clock, otherwise updates
+     * nothing
+     * 
+     * @param schema
+     * @param keyParam
+     * @param holderParam
+     * @param leaseParam the lease time in milliseconds
+     * @return
+     */
+    public String getLockTakeOverStatement(String schema, String keyParam, String holderParam,
+            String leaseParam) {
+        StringBuilder sb = new StringBuilder("UPDATE ");
+        if (schema != null) {
+            sb.append(schema).append(".");
+        }
+        sb.append("GWC_LOCK SET HOLDER = :").append(holderParam);
+        sb.append(", EXPIRES = ");
+        addCurrentTimeMillis(sb);
+        sb.append(" + :").append(leaseParam);
+        sb.append(" WHERE KEY = :").append(keyParam);
+        sb.append(" AND EXPIRES < ");
+        addCurrentTimeMillis(sb);
+
+        return sb.toString();
+    }
+
+    /**
+     * Extends the lease of a lock, provided it's still owned by the given holder
+     * 
+     * @param schema
+     * @param keyParam
+     * @param holderParam
+     * @param leaseParam the lease time in milliseconds
+     * @return
+     */
+    public String getLockRenewStatement(String schema, String keyParam, String holderParam,
+            String leaseParam) {
+        StringBuilder sb = new StringBuilder("UPDATE ");
+        if (schema != null) {
+            sb.append(schema).append(".");
+        }
+        sb.append("GWC_LOCK SET EXPIRES = ");
+        addCurrentTimeMillis(sb);
+        sb.append(" + :").append(leaseParam);
+        sb.append(" WHERE KEY = :").append(keyParam);
+        sb.append(" AND HOLDER = :").append(holderParam);
+
+        return sb.toString();
+    }
+
+    /**
+     * Removes a lock, provided it's still owned by the given holder
+     * 
+     * @param schema
+     * @param keyParam
+     * @param holderParam
+     * @return
+     */
+    public String getLockReleaseStatement(String schema, String keyParam, String holderParam) {
+        StringBuilder sb = new StringBuilder("DELETE FROM ");
+        if (schema != null) {
+            sb.append(schema).append(".");
+        }
+        sb.append("GWC_LOCK WHERE KEY = :").append(keyParam);
+        sb.append(" AND HOLDER = :").append(holderParam);
+
+        return sb.toString();
+    }
+
 }
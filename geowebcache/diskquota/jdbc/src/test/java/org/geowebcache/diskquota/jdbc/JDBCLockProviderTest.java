@@ -0,0 +1,214 @@
+package org.geowebcache.diskquota.jdbc;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.diskquota.storage.SystemUtils;
+import org.geowebcache.locks.LockProvider.Lock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link JDBCLockProvider} against an embedded H2 database, using several providers to
+ * simulate the nodes of a cluster
+ */
+public class JDBCLockProviderTest {
+
+    private static final String KEY = "metatile:layer:EPSG:4326:image/png:1:2:3";
+
+    private BasicDataSource dataSource;
+
+    private List<JDBCLockProvider> nodes = new ArrayList<JDBCLockProvider>();
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        dataSource = new BasicDataSource();
+        dataSource.setDriverClassName("org.h2.Driver");
+        dataSource.setUrl("jdbc:h2:mem:locks;DB_CLOSE_DELAY=-1");
+        dataSource.setUsername("sa");
+        dataSource.setMaxActive(8);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        SystemUtils.set(new SystemUtils());
+        executor.shutdownNow();
+        for (JDBCLockProvider node : nodes) {
+            node.destroy();
+        }
+        Connection cx = dataSource.getConnection();
+        try {
+            Statement st = cx.createStatement();
+            st.execute("DROP TABLE GWC_LOCK");
+            st.close();
+        } catch (SQLException e) {
+            // fine
+        } finally {
+            cx.close();
+        }
+        dataSource.close();
+    }
+
+    private JDBCLockProvider node(String id, int leaseTime, int lockTimeout) {
+        JDBCLockProvider node = new JDBCLockProvider();
+        node.setDataSource(dataSource);
+        node.setDialect(new H2Dialect());
+        node.setNodeId(id);
+        node.setLeaseTime(leaseTime);
+        node.setLockTimeout(lockTimeout);
+        node.setRetryInterval(10);
+        node.initialize();
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Makes the nodes believe it's the given amount of time later than it really is
+     */
+    private void setClockSkew(final long skew) {
+        SystemUtils.set(new SystemUtils() {
+            @Override
+            public long currentTimeMillis() {
+                return System.currentTimeMillis() + skew;
+            }
+        });
+    }
+
+    private void assertLockTimesOut(JDBCLockProvider node, String key) throws Exception {
+        try {
+            node.getLock(key);
+            fail("The lock is held by another node");
+        } catch (GeoWebCacheException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testExclusionAcrossNodes() throws Exception {
+        final JDBCLockProvider node1 = node("node1", 60, 30);
+        final JDBCLockProvider node2 = node("node2", 60, 30);
+
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        List<Future<Void>> workers = new ArrayList<Future<Void>>();
+        for (int t = 0; t < 4; t++) {
+            final JDBCLockProvider node = t % 2 == 0 ? node1 : node2;
+            workers.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < 25; i++) {
+                        Lock lock = node.getLock(KEY);
+                        try {
+                            if (inside.incrementAndGet() > 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            Thread.sleep(1);
+                            inside.decrementAndGet();
+                        } finally {
+                            lock.release();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> worker : workers) {
+            worker.get(60, TimeUnit.SECONDS);
+        }
+        assertTrue(overlaps.get() == 0);
+        assertTrue(node1.heldLocks.isEmpty());
+        assertTrue(node2.heldLocks.isEmpty());
+    }
+
+    @Test
+    public void testDistinctKeys() throws Exception {
+        JDBCLockProvider node1 = node("node1", 60, 1);
+        JDBCLockProvider node2 = node("node2", 60, 1);
+
+        Lock lock = node1.getLock(KEY);
+        node2.getLock("another key").release();
+        assertLockTimesOut(node2, KEY);
+        lock.release();
+        node2.getLock(KEY).release();
+    }
+
+    @Test
+    public void testLeaseRenewed() throws Exception {
+        JDBCLockProvider node1 = node("node1", 1, 1);
+        JDBCLockProvider node2 = node("node2", 1, 1);
+
+        Lock lock = node1.getLock(KEY);
+        // way past the lease, but the holder is alive
+        Thread.sleep(1500);
+        assertLockTimesOut(node2, KEY);
+        lock.release();
+        node2.getLock(KEY).release();
+    }
+
+    @Test
+    public void testLeaseExpiry() throws Exception {
+        JDBCLockProvider node1 = node("node1", 1, 5);
+        JDBCLockProvider node2 = node("node2", 1, 5);
+        JDBCLockProvider node3 = node("node3", 1, 1);
+
+        Lock lock = node1.getLock(KEY);
+        // the holder dies, without releasing
+        node1.leaseRenewer.shutdownNow();
+
+        long start = System.currentTimeMillis();
+        Lock taken = node2.getLock(KEY);
+        assertTrue(System.currentTimeMillis() - start >= 500);
+
+        // releasing the lost lock does not release the new holder one
+        lock.release();
+        assertFalse(node2.heldLocks.isEmpty());
+        assertLockTimesOut(node3, KEY);
+        taken.release();
+        node3.getLock(KEY).release();
+    }
+
+    @Test
+    public void testClockSkew() throws Exception {
+        final long hour = TimeUnit.HOURS.toMillis(1);
+        JDBCLockProvider node1 = node("node1", 60, 1);
+        JDBCLockProvider node2 = node("node2", 60, 1);
+
+        // a node running early can't take over a live lock
+        setClockSkew(-hour);
+        Lock lock = node1.getLock(KEY);
+        setClockSkew(hour);
+        assertLockTimesOut(node2, KEY);
+        lock.release();
+
+        // and a node running late doesn't wait an hour for an expired one
+        JDBCLockProvider node3 = node("node3", 1, 1);
+        JDBCLockProvider node4 = node("node4", 1, 5);
+        Lock lost = node3.getLock(KEY);
+        node3.leaseRenewer.shutdownNow();
+        setClockSkew(-hour);
+        Lock taken = node4.getLock(KEY);
+        lost.release();
+        assertFalse(node4.heldLocks.isEmpty());
+        taken.release();
+    }
+}
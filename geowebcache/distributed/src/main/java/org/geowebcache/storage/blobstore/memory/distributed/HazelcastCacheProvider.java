@@ -14,13 +14,23 @@
  */
 package org.geowebcache.storage.blobstore.memory.distributed;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.log4j.Logger;
 import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.BulkCacheProvider;
 import org.geowebcache.storage.blobstore.memory.CacheConfiguration;
 import org.geowebcache.storage.blobstore.memory.CacheConfiguration.EvictionPolicy;
 import org.geowebcache.storage.blobstore.memory.CacheProvider;
@@ -28,7 +38,13 @@ import org.geowebcache.storage.blobstore.memory.CacheStatistics;
 import org.geowebcache.storage.blobstore.memory.guava.GuavaCacheProvider;
 import org.springframework.beans.factory.DisposableBean;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.hazelcast.core.EntryAdapter;
+import com.hazelcast.core.EntryEvent;
 import com.hazelcast.core.IMap;
+import com.hazelcast.core.MapEvent;
 import com.hazelcast.map.EntryBackupProcessor;
 import com.hazelcast.map.EntryProcessor;
 import com.hazelcast.monitor.LocalMapStats;
@@ -43,10 +59,21 @@ import com.hazelcast.query.PredicateBuilder;
  * result. There could happen that the number cache HITS is bigger than the number of total operations. This is caused by the fact that HITS number
  * indicates the number of hits on the local entries considering also the requests made by other cluster instances while the total operation count
  * indicates only the number of GET operations requested on the local cluster instance.
+ * <p>
+ * A local near cache of the hot tiles can be enabled with {@link #setNearCacheSize(long)}, so that repeated hits do not cross the network to the
+ * partition owner. Its tiles are invalidated when the map entries are updated or removed by any cluster member, and expire after
+ * {@link #setNearCacheTimeToLive(long) nearCacheTimeToLive} seconds in any case, as an invalidation may race with a concurrent read. There is no
+ * need to configure an Hazelcast near cache for the map as well.
+ * </p>
+ * <p>
+ * The sub-tiles of a metatile can be read and written with a single operation per partition owner through {@link #getTileObjs(List)} and
+ * {@link #putTileObjs(Collection)}, the latter being used by the {@link org.geowebcache.storage.blobstore.memory.MemoryBlobStore} to cache the
+ * tiles of a metatile.
+ * </p>
  * 
  * @author Nicola Lagomarsini Geosolutions
  */
-public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
+public class HazelcastCacheProvider implements BulkCacheProvider, DisposableBean {
 
     /** {@link Logger} object used for logging operations */
     private final static Log LOGGER = LogFactory.getLog(HazelcastCacheProvider.class);
@@ -60,6 +87,9 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
     /** Name of the {@link CacheProvider} used as Label */
     private static final String HAZELCAST_NAME = "Hazelcast Cache";
 
+    /** Default time in seconds a tile is kept in the near cache */
+    public static final long DEFAULT_NEAR_CACHE_TIME_TO_LIVE = 60;
+
     /** Hazelcast {@link IMap} */
     private final IMap<String, TileObject> map;
 
@@ -69,6 +99,21 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
     /** Long value indicating the total size in Bytes */
     private final long totalSize;
 
+    /** Local copies of the hot tiles, {@code null} if the near cache is disabled */
+    private volatile Cache<String, TileObject> nearCache;
+
+    /** Near cache size in MB, 0 if disabled */
+    private long nearCacheSize;
+
+    /** Time in seconds a tile is kept in the near cache */
+    private long nearCacheTimeToLive = DEFAULT_NEAR_CACHE_TIME_TO_LIVE;
+
+    /** Id of the map listener invalidating the near cache, {@code null} if not registered */
+    private String nearCacheListenerId;
+
+    /** Number of requests served by the near cache */
+    private final AtomicLong nearCacheHits = new AtomicLong();
+
     public HazelcastCacheProvider(HazelcastLoader loader) {
         configured = loader.isConfigured();
         // If the Hazelcast instance is configured, then the other
@@ -97,7 +142,20 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
                 LOGGER.debug("Getting TileObject:" + obj);
             }
             String key = GuavaCacheProvider.generateTileKey(obj);
-            return map.get(key);
+            Cache<String, TileObject> near = nearCache;
+            if (near == null) {
+                return map.get(key);
+            }
+            TileObject cached = near.getIfPresent(key);
+            if (cached != null) {
+                nearCacheHits.incrementAndGet();
+                return cached;
+            }
+            cached = map.get(key);
+            if (cached != null) {
+                near.put(key, cached);
+            }
+            return cached;
         } else {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Cache not configured");
@@ -113,7 +171,9 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
                 LOGGER.debug("Adding TileObject:" + obj);
             }
             String key = GuavaCacheProvider.generateTileKey(obj);
-            map.put(key, obj);
+            // No need to send back the previous value
+            map.set(key, obj);
+            invalidate(key);
         } else {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Cache not configured");
@@ -128,7 +188,8 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
                 LOGGER.debug("Removing TileObject:" + obj);
             }
             String key = GuavaCacheProvider.generateTileKey(obj);
-            map.remove(key);
+            map.delete(key);
+            invalidate(key);
         } else {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Cache not configured");
@@ -149,6 +210,15 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
             CacheEntryProcessor entryProcessor = new CacheEntryProcessor();
             // Execution of the Processor
             map.executeOnEntries(entryProcessor, predicate);
+            // The other members are notified by the map
+            Cache<String, TileObject> near = nearCache;
+            if (near != null) {
+                for (Iterator<TileObject> it = near.asMap().values().iterator(); it.hasNext();) {
+                    if (layername.equals(it.next().getLayerName())) {
+                        it.remove();
+                    }
+                }
+            }
         } else {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Cache not configured");
@@ -163,6 +233,7 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
                 LOGGER.debug("Clearing cache");
             }
             map.clear();
+            invalidateAll();
         } else {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Cache not configured");
@@ -177,6 +248,7 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
                 LOGGER.debug("Resetting cache");
             }
             map.clear();
+            invalidateAll();
         } else {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Cache not configured");
@@ -190,6 +262,13 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Destroying cache");
             }
+            synchronized (this) {
+                if (nearCacheListenerId != null) {
+                    map.removeEntryListener(nearCacheListenerId);
+                    nearCacheListenerId = null;
+                }
+                nearCache = null;
+            }
             map.destroy();
         } else {
             if (LOGGER.isDebugEnabled()) {
@@ -206,7 +285,8 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
             }
             // Getting statistics and then creating a new HazelcastCacheStatistics instance
             LocalMapStats localMapStats = map.getLocalMapStats();
-            CacheStatistics stats = new HazelcastCacheStatistics(localMapStats, totalSize);
+            CacheStatistics stats = new HazelcastCacheStatistics(localMapStats, totalSize,
+                    nearCacheHits.get());
             return stats;
         } else {
             if (LOGGER.isDebugEnabled()) {
@@ -216,6 +296,169 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
         return new CacheStatistics();
     }
 
+    /**
+     * Returns the cached sub-tiles of a metatile, reading those not in the near cache with a single request per partition owner
+     * 
+     * @param objs
+     * @return the cached tiles, in the same order as the input ones, with {@code null} for the tiles not cached
+     */
+    public List<TileObject> getTileObjs(List<TileObject> objs) {
+        List<TileObject> result = new ArrayList<TileObject>(objs.size());
+        if (!configured) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Cache not configured");
+            }
+            for (int i = 0; i < objs.size(); i++) {
+                result.add(null);
+            }
+            return result;
+        }
+        Cache<String, TileObject> near = nearCache;
+        List<String> keys = new ArrayList<String>(objs.size());
+        Set<String> missing = new HashSet<String>();
+        for (TileObject obj : objs) {
+            String key = GuavaCacheProvider.generateTileKey(obj);
+            keys.add(key);
+            TileObject cached = near == null ? null : near.getIfPresent(key);
+            if (cached != null) {
+                nearCacheHits.incrementAndGet();
+            } else {
+                missing.add(key);
+            }
+            result.add(cached);
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Getting " + missing.size() + " TileObjects");
+        }
+        Map<String, TileObject> found = map.getAll(missing);
+        for (int i = 0; i < keys.size(); i++) {
+            if (result.get(i) == null) {
+                TileObject cached = found.get(keys.get(i));
+                if (cached != null && near != null) {
+                    near.put(keys.get(i), cached);
+                }
+                result.set(i, cached);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the sub-tiles of a metatile with a single request per partition owner
+     * 
+     * @param objs
+     */
+    @Override
+    public void putTileObjs(Collection<TileObject> objs) {
+        if (configured) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Adding " + objs.size() + " TileObjects");
+            }
+            Map<String, TileObject> entries = new LinkedHashMap<String, TileObject>();
+            for (TileObject obj : objs) {
+                entries.put(GuavaCacheProvider.generateTileKey(obj), obj);
+            }
+            map.putAll(entries);
+            Cache<String, TileObject> near = nearCache;
+            if (near != null) {
+                near.invalidateAll(entries.keySet());
+            }
+        } else {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Cache not configured");
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum size in MB of the local copies of the hot tiles, 0 (the default) disables the near cache
+     * 
+     * @param nearCacheSize
+     */
+    public synchronized void setNearCacheSize(long nearCacheSize) {
+        if (nearCacheSize < 0) {
+            throw new IllegalArgumentException("Near cache size cannot be negative");
+        }
+        this.nearCacheSize = nearCacheSize;
+        configureNearCache();
+    }
+
+    public synchronized long getNearCacheSize() {
+        return nearCacheSize;
+    }
+
+    /**
+     * Sets the time in seconds a tile is kept in the near cache, bounding how long a tile can be served after being changed by another member
+     * 
+     * @param nearCacheTimeToLive
+     */
+    public synchronized void setNearCacheTimeToLive(long nearCacheTimeToLive) {
+        if (nearCacheTimeToLive <= 0) {
+            throw new IllegalArgumentException("Near cache time to live must be positive");
+        }
+        this.nearCacheTimeToLive = nearCacheTimeToLive;
+        configureNearCache();
+    }
+
+    public synchronized long getNearCacheTimeToLive() {
+        return nearCacheTimeToLive;
+    }
+
+    /**
+     * @return the number of requests served by the near cache
+     */
+    public long getNearCacheHits() {
+        return nearCacheHits.get();
+    }
+
+    /**
+     * Creates a new empty near cache with the current settings, and listens to the map changes to invalidate it
+     */
+    private void configureNearCache() {
+        if (!configured) {
+            return;
+        }
+        if (nearCacheSize == 0) {
+            nearCache = null;
+            if (nearCacheListenerId != null) {
+                map.removeEntryListener(nearCacheListenerId);
+                nearCacheListenerId = null;
+            }
+            return;
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Configuring a near cache of " + nearCacheSize + "MB");
+        }
+        nearCache = CacheBuilder.newBuilder().maximumWeight(nearCacheSize * MB_TO_BYTES)
+                .weigher(new Weigher<String, TileObject>() {
+
+                    @Override
+                    public int weigh(String key, TileObject value) {
+                        return value.getBlobSize();
+                    }
+                }).expireAfterWrite(nearCacheTimeToLive, TimeUnit.SECONDS).build();
+        if (nearCacheListenerId == null) {
+            nearCacheListenerId = map.addEntryListener(new NearCacheInvalidator(), false);
+        }
+    }
+
+    private void invalidate(String key) {
+        Cache<String, TileObject> near = nearCache;
+        if (near != null) {
+            near.invalidate(key);
+        }
+    }
+
+    private void invalidateAll() {
+        Cache<String, TileObject> near = nearCache;
+        if (near != null) {
+            near.invalidateAll();
+        }
+    }
+
     @Override
     public void configure(CacheConfiguration configuration) {
     }
@@ -260,13 +503,14 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
      */
     static class HazelcastCacheStatistics extends CacheStatistics {
 
-        public HazelcastCacheStatistics(LocalMapStats localMapStats, long totalSize) {
+        public HazelcastCacheStatistics(LocalMapStats localMapStats, long totalSize,
+                long nearCacheHits) {
             // Note that HITS indicates all the hits to the local entries, even if the request
             // is made from another cluster instance
-            long hits = localMapStats.getHits();
+            long hits = localMapStats.getHits() + nearCacheHits;
             setHitCount(hits);
             // Total indicates the total number of the GET operations made by the local cache
-            long total = localMapStats.getGetOperationCount();
+            long total = localMapStats.getGetOperationCount() + nearCacheHits;
             // Miss count not defined
             setMissCount(-1);
             setTotalCount(total);
@@ -291,6 +535,22 @@ public class HazelcastCacheProvider implements CacheProvider, DisposableBean {
         }
     }
 
+    /**
+     * Map listener dropping the near cache copies of the entries changed by any cluster member
+     */
+    class NearCacheInvalidator extends EntryAdapter<String, TileObject> {
+
+        @Override
+        public void onEntryEvent(EntryEvent<String, TileObject> event) {
+            invalidate(event.getKey());
+        }
+
+        @Override
+        public void onMapEvent(MapEvent event) {
+            invalidateAll();
+        }
+    }
+
     /**
      * {@link EntryProcessor} implementation used for removing defined entries
      * 
@@ -23,12 +23,16 @@ import org.apache.commons.io.filefilter.NameFileFilter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.log4j.Logger;
+import org.geowebcache.GeoWebCacheExtensions;
+import org.geowebcache.storage.TileObject;
 import org.springframework.beans.factory.InitializingBean;
 
 import com.hazelcast.config.Config;
 import com.hazelcast.config.MapConfig;
 import com.hazelcast.config.MaxSizeConfig;
 import com.hazelcast.config.NearCacheConfig;
+import com.hazelcast.config.SerializationConfig;
+import com.hazelcast.config.SerializerConfig;
 import com.hazelcast.config.XmlConfigBuilder;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
@@ -37,7 +41,9 @@ import com.hazelcast.core.HazelcastInstance;
  * This class is used for handling configuration of the Hazelcast cluster. User can directly inject an Hazelcast instance or can setup a file called
  * hazelcast.xml and define its directory with the hazelcast.config.dir Java property. Note that the configuration must contain a map with name
  * "CacheProviderMap" with a specific size in MB, an eviction policy equal to LRU or LFU. Also if NearCache is enabled, user must be careful that the
- * max size is not bigger or equal to Integer.MAX_VALUE
+ * max size is not bigger or equal to Integer.MAX_VALUE. The {@link TileObjectSerializer} is registered in the configurations read from hazelcast.xml
+ * which do not define a serializer for the tiles only if the {@link #TILE_SERIALIZER_PROPERTY} property is true, since the members of a cluster must
+ * all use the same format. It must be registered explicitly in the configuration of an injected instance.
  * 
  * @author Nicola Lagomarsini Geosolutions
  */
@@ -51,6 +57,13 @@ public class HazelcastLoader implements InitializingBean {
     /** Name of the Hazelcast XML file to use */
     public final static String HAZELCAST_NAME = "hazelcast.xml";
 
+    /**
+     * Property enabling the {@link TileObjectSerializer} for the configuration read from hazelcast.xml, false by default. The members still using
+     * the default Java serialization cannot read the tiles written by the others, it has to be enabled on all the members at once once they are
+     * all upgraded.
+     */
+    public final static String TILE_SERIALIZER_PROPERTY = "GWC_HAZELCAST_TILE_SERIALIZER";
+
     /** Hazelcast instance to pass to the {@link HazelcastCacheProvider} class */
     private HazelcastInstance instance;
 
@@ -84,6 +97,19 @@ public class HazelcastLoader implements InitializingBean {
                         }
                         // Ensure the configuration is accepted
                         if (configAccepted(config)) {
+                            if (!hasTileSerializer(config)) {
+                                // switching the format silently would break the rolling upgrades
+                                if (Boolean.parseBoolean(GeoWebCacheExtensions
+                                        .getProperty(TILE_SERIALIZER_PROPERTY))) {
+                                    config.getSerializationConfig().addSerializerConfig(
+                                            new SerializerConfig().setTypeClass(TileObject.class)
+                                                    .setImplementation(new TileObjectSerializer()));
+                                } else if (LOGGER.isInfoEnabled()) {
+                                    LOGGER.info("Tiles are exchanged with the default Java serialization, set "
+                                            + TILE_SERIALIZER_PROPERTY
+                                            + " to true on all the cluster members to use the compact format");
+                                }
+                            }
                             if (LOGGER.isDebugEnabled()) {
                                 LOGGER.debug("Hazelcast instance validated");
                             }
@@ -98,6 +124,9 @@ public class HazelcastLoader implements InitializingBean {
             }
         } else if (!configAccepted(instance.getConfig())) {
             instance = null;
+        } else if (!hasTileSerializer(instance.getConfig()) && LOGGER.isInfoEnabled()) {
+            LOGGER.info("No serializer configured for the tiles, consider registering "
+                    + TileObjectSerializer.class.getName() + " in the Hazelcast configuration");
         }
         if (LOGGER.isDebugEnabled() && instance == null) {
             LOGGER.debug("Hazelcast instance invalid or not found");
@@ -131,6 +160,20 @@ public class HazelcastLoader implements InitializingBean {
         return isConfigured() ? instance : null;
     }
 
+    /**
+     * Checks if the input configuration defines a serializer for the {@link TileObject}s
+     */
+    private boolean hasTileSerializer(Config config) {
+        SerializationConfig serialization = config.getSerializationConfig();
+        for (SerializerConfig serializer : serialization.getSerializerConfigs()) {
+            if (TileObject.class.equals(serializer.getTypeClass())
+                    || TileObject.class.getName().equals(serializer.getTypeClassName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Validation for an input {@link Config} object provided. This method ensures that the input configuration contains a map with name
      * "CacheProviderMap", contains a size configuration in Mb and related to the used Heap size and has an eviction policy equal to LRU or LFU. If a
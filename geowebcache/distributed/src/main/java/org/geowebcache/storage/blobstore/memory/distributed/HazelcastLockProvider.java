@@ -0,0 +1,140 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.memory.distributed;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.locks.LockProvider;
+import org.geowebcache.locks.MemoryLockProvider;
+
+import com.hazelcast.core.HazelcastInstanceNotActiveException;
+import com.hazelcast.core.IMap;
+
+/**
+ * {@link LockProvider} sharing the metatile locks among the members of the Hazelcast cluster returned by the {@link HazelcastLoader}, so that
+ * a single member at a time requests a metatile to the backend. The locks are entries of the {@link #HAZELCAST_LOCK_MAP} map, which holds no
+ * value, and are released by Hazelcast when the member holding them leaves the cluster.
+ * <p>
+ * The threads of a member queue in memory, so only one of them per key waits on the cluster lock. If the Hazelcast instance is not configured
+ * the locks are local to this member.
+ * </p>
+ */
+public class HazelcastLockProvider implements LockProvider {
+
+    private final static Log LOGGER = LogFactory.getLog(HazelcastLockProvider.class);
+
+    /** Fixed name for the Hazelcast map used for locking */
+    public static final String HAZELCAST_LOCK_MAP = "GWCLockMap";
+
+    /** Default max time in seconds to wait for a lock held by another member */
+    public static final long DEFAULT_LOCK_TIMEOUT = 120;
+
+    /** Hazelcast {@link IMap} whose keys are locked, {@code null} if not configured */
+    private final IMap<String, Boolean> locks;
+
+    /** Orders the threads of this member */
+    private final MemoryLockProvider memoryProvider = new MemoryLockProvider();
+
+    /** Max time in seconds to wait for a lock held by another member */
+    private long lockTimeout = DEFAULT_LOCK_TIMEOUT;
+
+    public HazelcastLockProvider(HazelcastLoader loader) {
+        if (loader.isConfigured()) {
+            locks = loader.getInstance().getMap(HAZELCAST_LOCK_MAP);
+        } else {
+            locks = null;
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Hazelcast not configured, the locks will not be shared with the other members");
+            }
+        }
+    }
+
+    /**
+     * Sets the max time in seconds to wait for a lock held by another member
+     */
+    public void setLockTimeout(long lockTimeout) {
+        this.lockTimeout = lockTimeout;
+    }
+
+    /**
+     * @return the max time in seconds to wait for a lock held by another member
+     */
+    public long getLockTimeout() {
+        return lockTimeout;
+    }
+
+    @Override
+    public Lock getLock(final String lockKey) throws GeoWebCacheException {
+        // first off, synchronize among threads of this member
+        final Lock memoryLock = memoryProvider.getLock(lockKey);
+        if (locks == null) {
+            return memoryLock;
+        }
+        boolean acquired = false;
+        try {
+            // then among the members
+            if (!locks.tryLock(lockKey, lockTimeout, TimeUnit.SECONDS)) {
+                throw new GeoWebCacheException("Failed to get a lock on key " + lockKey
+                        + " after waiting " + lockTimeout + " seconds");
+            }
+            acquired = true;
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Lock " + lockKey + " acquired by thread "
+                        + Thread.currentThread().getId());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeoWebCacheException("Interrupted while waiting for lock on key " + lockKey);
+        } catch (HazelcastInstanceNotActiveException e) {
+            throw new GeoWebCacheException("Failure while trying to get lock for key " + lockKey, e);
+        } finally {
+            if (!acquired) {
+                memoryLock.release();
+            }
+        }
+
+        return new Lock() {
+
+            boolean released;
+
+            @Override
+            public void release() throws GeoWebCacheException {
+                if (released) {
+                    return;
+                }
+                released = true;
+                try {
+                    locks.unlock(lockKey);
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Lock " + lockKey + " released by thread "
+                                + Thread.currentThread().getId());
+                    }
+                } catch (IllegalMonitorStateException e) {
+                    // do not crap out, locks usage in GWC is only there to prevent duplication of work
+                    LOGGER.warn("Lock " + lockKey + " was not held anymore when released, "
+                            + "this member might have been disconnected from the cluster");
+                } catch (HazelcastInstanceNotActiveException e) {
+                    throw new GeoWebCacheException("Failure while trying to release lock for key "
+                            + lockKey, e);
+                } finally {
+                    memoryLock.release();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.storage.blobstore.memory.distributed;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.io.IOUtils;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.storage.TileObject;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.StreamSerializer;
+
+/**
+ * Hazelcast {@link StreamSerializer} writing the {@link TileObject}s of the {@link HazelcastCacheProvider} map in a compact binary form, much
+ * smaller and faster to write and read than the default Java serialization. Register it in the Hazelcast configuration for the
+ * {@link TileObject} type class, {@link HazelcastLoader} does it for the configurations read from <i>hazelcast.xml</i>.
+ * <p>
+ * Each tile starts with the format version. Later versions must keep the fields of the previous ones, adding theirs to the extension block
+ * preceding the tile contents, which older members skip: this way the members of a cluster can be upgraded one at a time.
+ * </p>
+ */
+public class TileObjectSerializer implements StreamSerializer<TileObject> {
+
+    /** Hazelcast type id of the serialized tiles, must not change */
+    public static final int TYPE_ID = 0x475743;
+
+    /** Version of the format written */
+    public static final byte VERSION = 1;
+
+    @Override
+    public int getTypeId() {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void write(ObjectDataOutput out, TileObject obj) throws IOException {
+        out.writeByte(VERSION);
+        writeString(out, obj.getLayerName());
+        writeString(out, obj.getGridSetId());
+        writeString(out, obj.getBlobFormat());
+        writeString(out, obj.getParametersId());
+        long[] xyz = obj.getXYZ();
+        out.writeLong(xyz[0]);
+        out.writeLong(xyz[1]);
+        out.writeLong(xyz[2]);
+        out.writeLong(obj.getCreated());
+        Map<String, String> parameters = obj.getParameters();
+        if (parameters == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(parameters.size());
+            for (Entry<String, String> entry : parameters.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+        }
+        // No extensions in this version
+        out.writeInt(0);
+        Resource blob = obj.getBlob();
+        if (blob == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] contents = contents(blob);
+        out.writeInt(contents.length);
+        out.writeLong(blob.getLastModified());
+        out.write(contents);
+    }
+
+    @Override
+    public TileObject read(ObjectDataInput in) throws IOException {
+        byte version = in.readByte();
+        if (version < 1) {
+            throw new IOException("Unknown TileObject format version: " + version);
+        }
+        String layerName = readString(in);
+        String gridSetId = readString(in);
+        String format = readString(in);
+        String parametersId = readString(in);
+        long[] xyz = { in.readLong(), in.readLong(), in.readLong() };
+        long created = in.readLong();
+        int size = in.readInt();
+        Map<String, String> parameters = null;
+        if (size >= 0) {
+            parameters = new HashMap<String, String>();
+            for (int i = 0; i < size; i++) {
+                parameters.put(readString(in), readString(in));
+            }
+        }
+        // Skip the fields added by later versions
+        int extensions = in.readInt();
+        if (in.skipBytes(extensions) != extensions) {
+            throw new IOException("Truncated TileObject extensions");
+        }
+        ByteArrayResource blob = null;
+        int length = in.readInt();
+        if (length >= 0) {
+            long lastModified = in.readLong();
+            byte[] contents = new byte[length];
+            in.readFully(contents);
+            blob = new ByteArrayResource(contents);
+            blob.setLastModified(lastModified);
+        }
+        TileObject obj = TileObject.createCompleteTileObject(layerName, xyz, gridSetId, format,
+                parameters, blob);
+        obj.setParametersId(parametersId);
+        obj.setCreated(created);
+        return obj;
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    private static byte[] contents(Resource blob) throws IOException {
+        if (blob instanceof ByteArrayResource) {
+            byte[] contents = ((ByteArrayResource) blob).getContents();
+            return contents == null ? new byte[0] : contents;
+        }
+        InputStream stream = blob.getInputStream();
+        try {
+            return IOUtils.toByteArray(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void writeString(ObjectDataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(ObjectDataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
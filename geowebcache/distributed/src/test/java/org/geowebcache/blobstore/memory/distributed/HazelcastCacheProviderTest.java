@@ -23,7 +23,9 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.io.IOUtils;
@@ -152,6 +154,33 @@ public class HazelcastCacheProviderTest {
         checkInputStreams(is, is4);
     }
 
+    @Test
+    public void testTileBulkPut() throws Exception {
+        // Clearing cache
+        cache1.clear();
+        assertEquals(0, cache2.getStatistics().getActualSize());
+
+        // Put the tiles of a metatile at once
+        List<TileObject> tiles = new ArrayList<TileObject>();
+        for (long x = 0; x < 3; x++) {
+            for (long y = 0; y < 3; y++) {
+                Resource bytes = new ByteArrayResource(("bulk " + x + " " + y).getBytes());
+                tiles.add(TileObject.createCompleteTileObject("test:bulk", new long[] { x, y, 2 },
+                        "EPSG:4326", "image/png", null, bytes));
+            }
+        }
+        mem1.put(tiles);
+
+        // All of them are available from the other member
+        for (TileObject to : tiles) {
+            TileObject to2 = TileObject.createQueryTileObject("test:bulk", to.getXYZ(),
+                    "EPSG:4326", "image/png", null);
+            assertTrue(mem2.get(to2));
+            checkInputStreams(to.getBlob().getInputStream(), to2.getBlob().getInputStream());
+            assertNotNull(cache2.getTileObj(to));
+        }
+    }
+
     @Test
     public void testTileDelete() throws Exception {
         // Clearing cache
@@ -0,0 +1,100 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.geowebcache.blobstore.memory.distributed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.distributed.HazelcastLoader;
+import org.geowebcache.storage.blobstore.memory.distributed.TileObjectSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.hazelcast.config.SerializerConfig;
+import com.hazelcast.core.HazelcastInstance;
+
+/**
+ * This test class is used for testing how the {@link HazelcastLoader} registers the {@link TileObjectSerializer} in the configuration read from
+ * hazelcast.xml.
+ */
+public class HazelcastLoaderTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private HazelcastInstance instance;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.writeStringToFile(new File(temp.getRoot(), HazelcastLoader.HAZELCAST_NAME),
+                "<hazelcast xmlns=\"http://www.hazelcast.com/schema/config\">"
+                        + "<group><name>loader-test</name></group>"
+                        + "<network><port auto-increment=\"true\">5901</port>"
+                        + "<join><multicast enabled=\"false\"/>"
+                        + "<tcp-ip enabled=\"true\"><interface>127.0.0.1</interface></tcp-ip>"
+                        + "</join></network>" + "<map name=\"CacheProviderMap\">"
+                        + "<eviction-policy>LRU</eviction-policy>"
+                        + "<max-size policy=\"USED_HEAP_SIZE\">16</max-size>"
+                        + "</map></hazelcast>");
+        System.setProperty(HazelcastLoader.HAZELCAST_CONFIG_DIR, temp.getRoot().getPath());
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(HazelcastLoader.HAZELCAST_CONFIG_DIR);
+        System.clearProperty(HazelcastLoader.TILE_SERIALIZER_PROPERTY);
+        if (instance != null) {
+            instance.shutdown();
+        }
+    }
+
+    private List<SerializerConfig> tileSerializers() throws Exception {
+        HazelcastLoader loader = new HazelcastLoader();
+        loader.afterPropertiesSet();
+        assertTrue(loader.isConfigured());
+        instance = loader.getInstance();
+        List<SerializerConfig> serializers = new ArrayList<SerializerConfig>();
+        for (SerializerConfig serializer : instance.getConfig().getSerializationConfig()
+                .getSerializerConfigs()) {
+            if (TileObject.class.equals(serializer.getTypeClass())) {
+                serializers.add(serializer);
+            }
+        }
+        return serializers;
+    }
+
+    @Test
+    public void testSerializerNotRegisteredByDefault() throws Exception {
+        // the members not upgraded yet could not read the tiles
+        assertEquals(0, tileSerializers().size());
+    }
+
+    @Test
+    public void testSerializerEnabled() throws Exception {
+        System.setProperty(HazelcastLoader.TILE_SERIALIZER_PROPERTY, "true");
+        List<SerializerConfig> serializers = tileSerializers();
+        assertEquals(1, serializers.size());
+        assertTrue(serializers.get(0).getImplementation() instanceof TileObjectSerializer);
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.blobstore.memory.distributed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.locks.LockProvider.Lock;
+import org.geowebcache.storage.blobstore.memory.distributed.HazelcastLoader;
+import org.geowebcache.storage.blobstore.memory.distributed.HazelcastLockProvider;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MaxSizeConfig;
+import com.hazelcast.config.NetworkConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+/**
+ * This test class is used for testing the {@link HazelcastLockProvider} on a multi member cluster.
+ */
+public class HazelcastLockProviderTest {
+
+    private static final String KEY = "metatile:layer:EPSG:4326:image/png:1:2:3";
+
+    private static HazelcastInstance instance1;
+
+    private static HazelcastInstance instance2;
+
+    private HazelcastLockProvider locks1;
+
+    private HazelcastLockProvider locks2;
+
+    private ExecutorService executor;
+
+    @BeforeClass
+    public static void startCluster() {
+        instance1 = Hazelcast.newHazelcastInstance(config());
+        instance2 = Hazelcast.newHazelcastInstance(config());
+    }
+
+    @AfterClass
+    public static void stopCluster() {
+        instance1.shutdown();
+        instance2.shutdown();
+    }
+
+    private static Config config() {
+        Config config = new Config();
+        // Kept apart from the other test clusters
+        config.getGroupConfig().setName("lock-test");
+        NetworkConfig network = config.getNetworkConfig();
+        network.setPort(5901);
+        network.setPortAutoIncrement(true);
+        network.getInterfaces().setEnabled(true).addInterface("127.0.0.1");
+        JoinConfig join = network.getJoin();
+        join.getMulticastConfig().setEnabled(false);
+        join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        // the loader requires the cache map to be configured
+        MapConfig mapConfig = new MapConfig("CacheProviderMap");
+        mapConfig.setEvictionPolicy(MapConfig.EvictionPolicy.LRU);
+        mapConfig.setMaxSizeConfig(new MaxSizeConfig(16, MaxSizeConfig.MaxSizePolicy.USED_HEAP_SIZE));
+        config.addMapConfig(mapConfig);
+        return config;
+    }
+
+    private static HazelcastLockProvider provider(HazelcastInstance instance, long lockTimeout)
+            throws Exception {
+        HazelcastLoader loader = new HazelcastLoader();
+        loader.setInstance(instance);
+        loader.afterPropertiesSet();
+        HazelcastLockProvider provider = new HazelcastLockProvider(loader);
+        provider.setLockTimeout(lockTimeout);
+        return provider;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        locks1 = provider(instance1, 30);
+        locks2 = provider(instance2, 1);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testExclusionAcrossMembers() throws Exception {
+        locks2.setLockTimeout(30);
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        List<Future<Void>> workers = new ArrayList<Future<Void>>();
+        for (int t = 0; t < 4; t++) {
+            final HazelcastLockProvider provider = t % 2 == 0 ? locks1 : locks2;
+            workers.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < 50; i++) {
+                        Lock lock = provider.getLock(KEY);
+                        try {
+                            if (inside.incrementAndGet() > 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            inside.decrementAndGet();
+                        } finally {
+                            lock.release();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> worker : workers) {
+            worker.get(60, TimeUnit.SECONDS);
+        }
+        assertEquals(0, overlaps.get());
+        IMap<String, Boolean> map = instance1.getMap(HazelcastLockProvider.HAZELCAST_LOCK_MAP);
+        assertFalse(map.isLocked(KEY));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        Lock lock = locks1.getLock(KEY);
+        try {
+            long start = System.currentTimeMillis();
+            try {
+                locks2.getLock(KEY);
+                fail("The lock is held by the other member");
+            } catch (GeoWebCacheException e) {
+                assertTrue(System.currentTimeMillis() - start >= 900);
+            }
+            // other keys are not affected
+            locks2.getLock("another key").release();
+        } finally {
+            lock.release();
+        }
+        locks2.getLock(KEY).release();
+    }
+
+    @Test
+    public void testReleasedOnMemberFailure() throws Exception {
+        HazelcastInstance instance3 = Hazelcast.newHazelcastInstance(config());
+        try {
+            provider(instance3, 1).getLock(KEY);
+            try {
+                locks2.getLock(KEY);
+                fail("The lock is held by the third member");
+            } catch (GeoWebCacheException e) {
+                // expected
+            }
+        } finally {
+            // dies without releasing the lock
+            instance3.getLifecycleService().terminate();
+        }
+        locks1.getLock(KEY).release();
+    }
+}
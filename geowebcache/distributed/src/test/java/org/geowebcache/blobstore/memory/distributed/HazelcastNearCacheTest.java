@@ -0,0 +1,215 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.blobstore.memory.distributed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.distributed.HazelcastCacheProvider;
+import org.geowebcache.storage.blobstore.memory.distributed.HazelcastLoader;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MaxSizeConfig;
+import com.hazelcast.config.NetworkConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+
+/**
+ * This test class is used for testing the {@link HazelcastCacheProvider} near cache and bulk operations on a two members cluster.
+ */
+public class HazelcastNearCacheTest {
+
+    private static final String LAYER = "test:layer";
+
+    private static final String OTHER_LAYER = "test:other";
+
+    private static HazelcastInstance instance1;
+
+    private static HazelcastInstance instance2;
+
+    private HazelcastCacheProvider cache1;
+
+    private HazelcastCacheProvider cache2;
+
+    @BeforeClass
+    public static void startCluster() {
+        instance1 = Hazelcast.newHazelcastInstance(config());
+        instance2 = Hazelcast.newHazelcastInstance(config());
+    }
+
+    @AfterClass
+    public static void stopCluster() {
+        instance1.shutdown();
+        instance2.shutdown();
+    }
+
+    private static Config config() {
+        Config config = new Config();
+        // Kept apart from the other test clusters
+        config.getGroupConfig().setName("near-cache-test");
+        NetworkConfig network = config.getNetworkConfig();
+        network.setPort(5801);
+        network.setPortAutoIncrement(true);
+        network.getInterfaces().setEnabled(true).addInterface("127.0.0.1");
+        JoinConfig join = network.getJoin();
+        join.getMulticastConfig().setEnabled(false);
+        join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        MapConfig mapConfig = new MapConfig(HazelcastCacheProvider.HAZELCAST_MAP_DEFINITION);
+        mapConfig.setEvictionPolicy(MapConfig.EvictionPolicy.LRU);
+        mapConfig.setMaxSizeConfig(new MaxSizeConfig(16, MaxSizeConfig.MaxSizePolicy.USED_HEAP_SIZE));
+        config.addMapConfig(mapConfig);
+        return config;
+    }
+
+    private static HazelcastCacheProvider provider(HazelcastInstance instance) throws Exception {
+        HazelcastLoader loader = new HazelcastLoader();
+        loader.setInstance(instance);
+        loader.afterPropertiesSet();
+        HazelcastCacheProvider provider = new HazelcastCacheProvider(loader);
+        provider.setNearCacheSize(1);
+        return provider;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        cache1 = provider(instance1);
+        cache2 = provider(instance2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache1.clear();
+        cache1.setNearCacheSize(0);
+        cache2.setNearCacheSize(0);
+    }
+
+    private static TileObject tile(String layer, long x, int value) {
+        return TileObject.createCompleteTileObject(layer, new long[] { x, 0, 4 }, "EPSG:4326",
+                "image/png", null, new ByteArrayResource(new byte[] { (byte) value }));
+    }
+
+    private static TileObject query(String layer, long x) {
+        return TileObject.createQueryTileObject(layer, new long[] { x, 0, 4 }, "EPSG:4326",
+                "image/png", null);
+    }
+
+    private static int read(TileObject obj) throws Exception {
+        return obj.getBlob().getInputStream().read();
+    }
+
+    /**
+     * Lets the events of the previous changes reach the listeners, so that they do not invalidate the tiles read afterwards
+     */
+    private static void awaitEvents() throws InterruptedException {
+        Thread.sleep(500);
+    }
+
+    /**
+     * Waits for the invalidation events sent by the other member
+     */
+    private static void awaitMissing(HazelcastCacheProvider cache, TileObject query)
+            throws InterruptedException {
+        for (int i = 0; i < 250 && cache.getTileObj(query) != null; i++) {
+            Thread.sleep(20);
+        }
+        assertNull(cache.getTileObj(query));
+    }
+
+    @Test
+    public void testNearCacheHits() throws Exception {
+        cache2.putTileObj(tile(LAYER, 0, 1));
+        awaitEvents();
+
+        TileObject first = cache1.getTileObj(query(LAYER, 0));
+        assertEquals(1, read(first));
+        assertEquals(0, cache1.getNearCacheHits());
+        // served locally now
+        assertSame(first, cache1.getTileObj(query(LAYER, 0)));
+        assertEquals(1, cache1.getNearCacheHits());
+        assertEquals(0, cache2.getNearCacheHits());
+    }
+
+    @Test
+    public void testInvalidationOnRemoveLayer() throws Exception {
+        cache1.putTileObj(tile(LAYER, 0, 1));
+        cache1.putTileObj(tile(OTHER_LAYER, 0, 2));
+        awaitEvents();
+        assertNotNull(cache1.getTileObj(query(LAYER, 0)));
+        assertNotNull(cache1.getTileObj(query(OTHER_LAYER, 0)));
+
+        cache2.removeLayer(LAYER);
+        awaitMissing(cache1, query(LAYER, 0));
+        long hits = cache1.getNearCacheHits();
+        assertEquals(2, read(cache1.getTileObj(query(OTHER_LAYER, 0))));
+        assertEquals(hits + 1, cache1.getNearCacheHits());
+    }
+
+    @Test
+    public void testInvalidationOnUpdate() throws Exception {
+        cache2.putTileObj(tile(LAYER, 0, 1));
+        assertEquals(1, read(cache1.getTileObj(query(LAYER, 0))));
+
+        cache2.putTileObj(tile(LAYER, 0, 2));
+        for (int i = 0; i < 250 && read(cache1.getTileObj(query(LAYER, 0))) != 2; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(2, read(cache1.getTileObj(query(LAYER, 0))));
+
+        cache2.removeTileObj(query(LAYER, 0));
+        awaitMissing(cache1, query(LAYER, 0));
+    }
+
+    @Test
+    public void testBulkOperations() throws Exception {
+        List<TileObject> tiles = new ArrayList<TileObject>();
+        List<TileObject> queries = new ArrayList<TileObject>();
+        for (int x = 0; x < 16; x++) {
+            tiles.add(tile(LAYER, x, x));
+            queries.add(query(LAYER, x));
+        }
+        queries.add(query(OTHER_LAYER, 0));
+        cache1.putTileObjs(tiles);
+        awaitEvents();
+
+        // one from the near cache, the others from the cluster
+        assertNotNull(cache2.getTileObj(query(LAYER, 3)));
+        List<TileObject> cached = cache2.getTileObjs(queries);
+        assertEquals(queries.size(), cached.size());
+        for (int x = 0; x < 16; x++) {
+            assertEquals(x, read(cached.get(x)));
+        }
+        assertNull(cached.get(16));
+        assertEquals(1, cache2.getNearCacheHits());
+
+        // all cached locally now
+        cache2.getTileObjs(queries.subList(0, 16));
+        assertEquals(17, cache2.getNearCacheHits());
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.geowebcache.blobstore.memory.distributed;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.memory.distributed.TileObjectSerializer;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hazelcast.config.SerializationConfig;
+import com.hazelcast.config.SerializerConfig;
+import com.hazelcast.nio.BufferObjectDataInput;
+import com.hazelcast.nio.BufferObjectDataOutput;
+import com.hazelcast.nio.serialization.Data;
+import com.hazelcast.nio.serialization.SerializationService;
+import com.hazelcast.nio.serialization.SerializationServiceBuilder;
+
+/**
+ * This test class is used for testing the {@link TileObjectSerializer} format.
+ */
+public class TileObjectSerializerTest {
+
+    private SerializationService serialization;
+
+    private SerializationService javaSerialization;
+
+    @Before
+    public void setUp() {
+        SerializationConfig config = new SerializationConfig();
+        config.addSerializerConfig(new SerializerConfig().setTypeClass(TileObject.class)
+                .setImplementation(new TileObjectSerializer()));
+        serialization = new SerializationServiceBuilder().setConfig(config).build();
+        javaSerialization = new SerializationServiceBuilder().build();
+    }
+
+    private static TileObject tile(Map<String, String> parameters, byte[] contents) {
+        ByteArrayResource blob = contents == null ? null : new ByteArrayResource(contents);
+        TileObject obj = TileObject.createCompleteTileObject("test:layer", new long[] { 3, 5, 7 },
+                "EPSG:900913", "image/png", parameters, blob);
+        obj.setParametersId(parameters == null ? null : "abc");
+        obj.setCreated(1234L);
+        if (blob != null) {
+            blob.setLastModified(5678L);
+        }
+        return obj;
+    }
+
+    private TileObject roundTrip(TileObject obj) {
+        Data data = serialization.toData(obj);
+        assertEquals(TileObjectSerializer.TYPE_ID, data.getType());
+        return serialization.toObject(data);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("STYLES", "ø");
+        parameters.put("CQL_FILTER", "a = 'b'");
+        byte[] contents = { 1, 2, 3, 4 };
+
+        TileObject copy = roundTrip(tile(parameters, contents));
+        assertEquals("test:layer", copy.getLayerName());
+        assertEquals("EPSG:900913", copy.getGridSetId());
+        assertEquals("image/png", copy.getBlobFormat());
+        assertEquals("abc", copy.getParametersId());
+        assertEquals(parameters, copy.getParameters());
+        assertArrayEquals(new long[] { 3, 5, 7 }, copy.getXYZ());
+        assertEquals(1234L, copy.getCreated());
+        assertEquals(4, copy.getBlobSize());
+        assertArrayEquals(contents, ((ByteArrayResource) copy.getBlob()).getContents());
+        assertEquals(5678L, copy.getBlob().getLastModified());
+    }
+
+    @Test
+    public void testNulls() throws Exception {
+        TileObject copy = roundTrip(tile(null, null));
+        assertNull(copy.getParameters());
+        assertNull(copy.getParametersId());
+        assertNull(copy.getBlob());
+        assertEquals(1234L, copy.getCreated());
+    }
+
+    @Test
+    public void testSmallerThanJavaSerialization() throws Exception {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("STYLES", "population");
+        TileObject obj = tile(parameters, new byte[100]);
+        int size = serialization.toData(obj).totalSize();
+        int javaSize = javaSerialization.toData(obj).totalSize();
+        assertTrue(size + " bytes against " + javaSize, size < javaSize / 2);
+    }
+
+    @Test
+    public void testLaterVersionRead() throws Exception {
+        BufferObjectDataOutput out = serialization.createObjectDataOutput(256);
+        out.writeByte(TileObjectSerializer.VERSION + 1);
+        out.writeBoolean(true);
+        out.writeUTF("test:layer");
+        out.writeBoolean(true);
+        out.writeUTF("EPSG:4326");
+        out.writeBoolean(true);
+        out.writeUTF("image/jpeg");
+        out.writeBoolean(false);
+        out.writeLong(1);
+        out.writeLong(2);
+        out.writeLong(3);
+        out.writeLong(10L);
+        out.writeInt(-1);
+        // fields unknown to this version
+        out.writeInt(12);
+        out.writeLong(42L);
+        out.writeInt(7);
+        out.writeInt(1);
+        out.writeLong(20L);
+        out.writeByte(9);
+
+        BufferObjectDataInput in = serialization.createObjectDataInput(out.toByteArray());
+        TileObject obj = new TileObjectSerializer().read(in);
+        assertEquals("test:layer", obj.getLayerName());
+        assertEquals("image/jpeg", obj.getBlobFormat());
+        assertArrayEquals(new long[] { 1, 2, 3 }, obj.getXYZ());
+        assertEquals(10L, obj.getCreated());
+        assertEquals(20L, obj.getBlob().getLastModified());
+        assertArrayEquals(new byte[] { 9 }, ((ByteArrayResource) obj.getBlob()).getContents());
+    }
+
+    @Test
+    public void testUnknownVersion() throws Exception {
+        BufferObjectDataOutput out = serialization.createObjectDataOutput(16);
+        out.writeByte(0);
+        out.writeBoolean(false);
+        try {
+            new TileObjectSerializer().read(serialization.createObjectDataInput(out
+                    .toByteArray()));
+            fail("Version 0 was never written");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -15,6 +15,9 @@
  */
 package org.geowebcache.rest.statistics;
 
+import java.util.Map;
+import java.util.TreeMap;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geowebcache.io.GeoWebCacheXStream;
@@ -161,6 +164,8 @@ public class MemoryCacheStatsResource extends Resource {
     public static XStream getConfiguredXStream(XStream xs) {
         xs.setMode(XStream.NO_REFERENCES);
         xs.alias("gwcInMemoryCacheStatistics", CacheStatistics.class);
+        // Layer statistics are sorted by layer name
+        xs.addDefaultImplementation(TreeMap.class, Map.class);
         return xs;
     }
 }
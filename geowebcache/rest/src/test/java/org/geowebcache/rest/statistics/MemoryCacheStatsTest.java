@@ -71,6 +71,8 @@ public class MemoryCacheStatsTest {
         assertTrue(text.contains("<hitCount>"));
         assertTrue(text.contains("<missCount>"));
         assertTrue(text.contains("<evictionCount>"));
+        assertTrue(text.contains("<admissionRejectionCount>"));
+        assertTrue(text.contains("<layerStatistics"));
     }
 
     @Test
@@ -107,6 +109,8 @@ public class MemoryCacheStatsTest {
         assertTrue(text.contains("\"hitCount\""));
         assertTrue(text.contains("\"missCount\""));
         assertTrue(text.contains("\"evictionCount\""));
+        assertTrue(text.contains("\"admissionRejectionCount\""));
+        assertTrue(text.contains("\"layerStatistics\""));
     }
 
 }